@@ -0,0 +1,633 @@
+/*
+ * Conditions Of Use
+ *
+ * This software was developed by employees of the National Institute of
+ * Standards and Technology (NIST), an agency of the Federal Government.
+ * Pursuant to title 15 Untied States Code Section 105, works of NIST
+ * employees are not subject to copyright protection in the United States
+ * and are considered to be in the public domain.  As a result, a formal
+ * license is not needed to use the software.
+ *
+ * This software is provided by NIST as a service and is expressly
+ * provided "AS IS."  NIST MAKES NO WARRANTY OF ANY KIND, EXPRESS, IMPLIED
+ * OR STATUTORY, INCLUDING, WITHOUT LIMITATION, THE IMPLIED WARRANTY OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, NON-INFRINGEMENT
+ * AND DATA ACCURACY.  NIST does not warrant or make any representations
+ * regarding the use of the software or the results thereof, including but
+ * not limited to the correctness, accuracy, reliability or usefulness of
+ * the software.
+ *
+ * Permission to use this software is contingent upon your acceptance
+ * of the terms of this agreement
+ *
+ * .
+ *
+ */
+package android.gov.nist.core.net;
+
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.StringTokenizer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A minimal stub DNS client (RFC 1035) sending recursive queries to the
+ * configured name servers over UDP, retrying over TCP when the answer is
+ * truncated. It understands the A, AAAA, SRV (RFC 2782) and NAPTR (RFC 3403)
+ * records needed to locate SIP servers, and unlike InetAddress it returns
+ * the TTL of the records, along with the negative caching TTL of the SOA
+ * record (RFC 2308) when the name or the records do not exist.
+ *
+ * @see android.gov.nist.javax.sip.DnsAddressResolver
+ */
+public class DnsClient {
+
+    private static Logger logger = LoggerFactory.getLogger(DnsClient.class);
+
+    public static final int TYPE_A = 1;
+    public static final int TYPE_CNAME = 5;
+    public static final int TYPE_SOA = 6;
+    public static final int TYPE_AAAA = 28;
+    public static final int TYPE_SRV = 33;
+    public static final int TYPE_NAPTR = 35;
+
+    public static final int RCODE_NOERROR = 0;
+    public static final int RCODE_SERVFAIL = 2;
+    public static final int RCODE_NXDOMAIN = 3;
+
+    public static final int DNS_PORT = 53;
+
+    private static final int CLASS_IN = 1;
+
+    private static final int MAX_UDP_SIZE = 512;
+
+    private final List<InetSocketAddress> nameServers;
+
+    private final int timeout;
+
+    private final int attempts;
+
+    private final AtomicInteger nextId = new AtomicInteger(
+            (int) (System.nanoTime() ^ System.identityHashCode(this)));
+
+    /**
+     * @param nameServers the name servers, tried in turn.
+     * @param timeout the time to wait for an answer in milliseconds.
+     * @param attempts the number of times each name server is tried.
+     */
+    public DnsClient(List<InetSocketAddress> nameServers, int timeout, int attempts) {
+        if (nameServers.isEmpty()) {
+            throw new IllegalArgumentException("No name server");
+        }
+        this.nameServers = new ArrayList<InetSocketAddress>(nameServers);
+        this.timeout = timeout;
+        this.attempts = Math.max(1, attempts);
+    }
+
+    /**
+     * Parse a comma separated list of name servers, each one being an IP
+     * address optionally followed by a port (host:port, or [address]:port
+     * for IPv6).
+     */
+    public static List<InetSocketAddress> parseNameServers(String nameServers) {
+        List<InetSocketAddress> result = new ArrayList<InetSocketAddress>();
+        StringTokenizer tokenizer = new StringTokenizer(nameServers, ", ");
+        while (tokenizer.hasMoreTokens()) {
+            String nameServer = tokenizer.nextToken();
+            String host = nameServer;
+            int port = DNS_PORT;
+            int bracket = nameServer.indexOf(']');
+            int colon = nameServer.lastIndexOf(':');
+            if (nameServer.startsWith("[")) {
+                host = nameServer.substring(1, bracket);
+                if (colon > bracket) {
+                    port = Integer.parseInt(nameServer.substring(colon + 1));
+                }
+            } else if (colon > 0 && colon == nameServer.indexOf(':')) {
+                host = nameServer.substring(0, colon);
+                port = Integer.parseInt(nameServer.substring(colon + 1));
+            }
+            result.add(new InetSocketAddress(host, port));
+        }
+        return result;
+    }
+
+    /**
+     * @return the name servers of /etc/resolv.conf, or an empty list if
+     *         there is none (on Android for instance).
+     */
+    public static List<InetSocketAddress> getSystemNameServers() {
+        List<InetSocketAddress> result = new ArrayList<InetSocketAddress>();
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new FileReader("/etc/resolv.conf"));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                StringTokenizer tokenizer = new StringTokenizer(line);
+                if (tokenizer.countTokens() >= 2 && tokenizer.nextToken().equals("nameserver")) {
+                    String address = tokenizer.nextToken();
+                    int zone = address.indexOf('%');
+                    if (zone > 0) {
+                        address = address.substring(0, zone);
+                    }
+                    result.add(new InetSocketAddress(address, DNS_PORT));
+                }
+            }
+        } catch (IOException ex) {
+            logger.debug("No name server found in /etc/resolv.conf: " + ex);
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException ignore) {
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Query the records of the given type, trying each name server in turn.
+     *
+     * @return the response of the first name server answering.
+     * @throws IOException if no name server answered.
+     */
+    public Response query(String name, int type) throws IOException {
+        IOException lastException = null;
+        for (int attempt = 0; attempt < attempts; attempt++) {
+            for (InetSocketAddress nameServer : nameServers) {
+                try {
+                    Response response = query(nameServer, name, type);
+                    if (response.getRcode() != RCODE_SERVFAIL) {
+                        return response;
+                    }
+                    lastException = new IOException("Server failure from " + nameServer
+                            + " for " + name);
+                } catch (IOException ex) {
+                    logger.debug("Query of " + name + " type " + type + " to "
+                            + nameServer + " failed: " + ex);
+                    lastException = ex;
+                }
+            }
+        }
+        throw lastException;
+    }
+
+    private Response query(InetSocketAddress nameServer, String name, int type)
+            throws IOException {
+        int id = nextId.incrementAndGet() & 0xffff;
+        byte[] query = encodeQuery(id, name, type);
+        byte[] answer = new byte[MAX_UDP_SIZE];
+        DatagramSocket socket = new DatagramSocket();
+        int length;
+        try {
+            socket.setSoTimeout(timeout);
+            socket.connect(nameServer);
+            socket.send(new DatagramPacket(query, query.length));
+            long deadline = System.currentTimeMillis() + timeout;
+            while (true) {
+                DatagramPacket packet = new DatagramPacket(answer, answer.length);
+                socket.receive(packet);
+                length = packet.getLength();
+                // Ignore the stray answers to previous queries
+                if (length >= 12 && (((answer[0] & 0xff) << 8) | (answer[1] & 0xff)) == id) {
+                    break;
+                }
+                int remaining = (int) (deadline - System.currentTimeMillis());
+                if (remaining <= 0) {
+                    throw new SocketTimeoutException("No answer from " + nameServer);
+                }
+                socket.setSoTimeout(remaining);
+            }
+        } finally {
+            socket.close();
+        }
+        if ((answer[2] & 0x02) != 0) {
+            logger.debug("Truncated answer for " + name + ", retrying over TCP");
+            return queryOverTcp(nameServer, id, query, name);
+        }
+        return decodeResponse(answer, length, id, name);
+    }
+
+    private Response queryOverTcp(InetSocketAddress nameServer, int id, byte[] query,
+            String name) throws IOException {
+        Socket socket = new Socket();
+        try {
+            socket.connect(nameServer, timeout);
+            socket.setSoTimeout(timeout);
+            OutputStream out = socket.getOutputStream();
+            byte[] framed = new byte[query.length + 2];
+            framed[0] = (byte) (query.length >> 8);
+            framed[1] = (byte) query.length;
+            System.arraycopy(query, 0, framed, 2, query.length);
+            out.write(framed);
+            out.flush();
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            int length = in.readUnsignedShort();
+            byte[] answer = new byte[length];
+            in.readFully(answer);
+            return decodeResponse(answer, length, id, name);
+        } finally {
+            socket.close();
+        }
+    }
+
+    static byte[] encodeQuery(int id, String name, int type) throws IOException {
+        byte[] buffer = new byte[12 + name.length() + 2 + 4];
+        int offset = 0;
+        buffer[offset++] = (byte) (id >> 8);
+        buffer[offset++] = (byte) id;
+        buffer[offset++] = 0x01; // RD
+        buffer[offset++] = 0x00;
+        buffer[offset++] = 0x00;
+        buffer[offset++] = 0x01; // QDCOUNT
+        offset += 6;
+        int start = 0;
+        while (start < name.length()) {
+            int dot = name.indexOf('.', start);
+            if (dot < 0) {
+                dot = name.length();
+            }
+            int labelLength = dot - start;
+            if (labelLength == 0 || labelLength > 63) {
+                throw new IOException("Invalid domain name " + name);
+            }
+            buffer[offset++] = (byte) labelLength;
+            for (int i = start; i < dot; i++) {
+                char c = name.charAt(i);
+                if (c > 0x7f) {
+                    throw new IOException("Invalid domain name " + name);
+                }
+                buffer[offset++] = (byte) c;
+            }
+            start = dot + 1;
+        }
+        buffer[offset++] = 0;
+        buffer[offset++] = (byte) (type >> 8);
+        buffer[offset++] = (byte) type;
+        buffer[offset++] = 0;
+        buffer[offset++] = CLASS_IN;
+        if (offset == buffer.length) {
+            return buffer;
+        }
+        byte[] result = new byte[offset];
+        System.arraycopy(buffer, 0, result, 0, offset);
+        return result;
+    }
+
+    static Response decodeResponse(byte[] message, int length, int id, String name)
+            throws IOException {
+        MessageReader reader = new MessageReader(message, length);
+        if (reader.readUnsignedShort() != id) {
+            throw new IOException("Unexpected answer for " + name);
+        }
+        int flags = reader.readUnsignedShort();
+        int rcode = flags & 0x0f;
+        int questions = reader.readUnsignedShort();
+        int answers = reader.readUnsignedShort();
+        int authorities = reader.readUnsignedShort();
+        reader.readUnsignedShort(); // additional records
+        for (int i = 0; i < questions; i++) {
+            reader.readName();
+            reader.skip(4);
+        }
+        List<Record> records = new ArrayList<Record>(answers);
+        for (int i = 0; i < answers; i++) {
+            Record record = reader.readRecord();
+            if (record != null) {
+                records.add(record);
+            }
+        }
+        long negativeTtl = -1;
+        if (records.isEmpty()) {
+            for (int i = 0; i < authorities; i++) {
+                Record record = reader.readRecord();
+                if (record != null && record.getType() == TYPE_SOA) {
+                    negativeTtl = record.getTtl();
+                }
+            }
+        }
+        return new Response(rcode, records, negativeTtl);
+    }
+
+    /**
+     * Reads the sections of a DNS message, following the compressed names.
+     */
+    private static class MessageReader {
+        private final byte[] message;
+        private final int length;
+        private int offset;
+
+        MessageReader(byte[] message, int length) {
+            this.message = message;
+            this.length = length;
+        }
+
+        private void check(int count) throws IOException {
+            if (offset + count > length) {
+                throw new EOFException("Truncated DNS message");
+            }
+        }
+
+        void skip(int count) throws IOException {
+            check(count);
+            offset += count;
+        }
+
+        int readUnsignedByte() throws IOException {
+            check(1);
+            return message[offset++] & 0xff;
+        }
+
+        int readUnsignedShort() throws IOException {
+            check(2);
+            int value = ((message[offset] & 0xff) << 8) | (message[offset + 1] & 0xff);
+            offset += 2;
+            return value;
+        }
+
+        long readUnsignedInt() throws IOException {
+            return ((long) readUnsignedShort() << 16) | readUnsignedShort();
+        }
+
+        String readCharacterString() throws IOException {
+            int stringLength = readUnsignedByte();
+            check(stringLength);
+            String value = new String(message, offset, stringLength, "ISO-8859-1");
+            offset += stringLength;
+            return value;
+        }
+
+        String readName() throws IOException {
+            StringBuilder name = new StringBuilder();
+            int position = offset;
+            int end = -1;
+            int jumps = 0;
+            while (true) {
+                if (position >= length) {
+                    throw new EOFException("Truncated DNS message");
+                }
+                int labelLength = message[position] & 0xff;
+                if ((labelLength & 0xc0) == 0xc0) {
+                    if (position + 1 >= length || ++jumps > 64) {
+                        throw new IOException("Invalid compressed name");
+                    }
+                    if (end < 0) {
+                        end = position + 2;
+                    }
+                    position = ((labelLength & 0x3f) << 8) | (message[position + 1] & 0xff);
+                } else if (labelLength == 0) {
+                    position++;
+                    break;
+                } else {
+                    if (position + 1 + labelLength > length) {
+                        throw new EOFException("Truncated DNS message");
+                    }
+                    if (name.length() > 0) {
+                        name.append('.');
+                    }
+                    name.append(new String(message, position + 1, labelLength, "ISO-8859-1"));
+                    position += 1 + labelLength;
+                }
+            }
+            offset = end < 0 ? position : end;
+            return name.toString();
+        }
+
+        /**
+         * @return the record, or null if it is of a type that is not
+         *         understood.
+         */
+        Record readRecord() throws IOException {
+            String name = readName();
+            int type = readUnsignedShort();
+            readUnsignedShort(); // class
+            long ttl = readUnsignedInt() & 0x7fffffffL;
+            int dataLength = readUnsignedShort();
+            check(dataLength);
+            int next = offset + dataLength;
+            Record record = null;
+            switch (type) {
+            case TYPE_A:
+            case TYPE_AAAA:
+                byte[] address = new byte[dataLength];
+                System.arraycopy(message, offset, address, 0, dataLength);
+                record = new Record(name, type, ttl);
+                record.address = InetAddress.getByAddress(address);
+                break;
+            case TYPE_SRV:
+                record = new Record(name, type, ttl);
+                record.priority = readUnsignedShort();
+                record.weight = readUnsignedShort();
+                record.port = readUnsignedShort();
+                record.target = readName();
+                break;
+            case TYPE_NAPTR:
+                record = new Record(name, type, ttl);
+                record.priority = readUnsignedShort(); // order
+                record.weight = readUnsignedShort(); // preference
+                record.flags = readCharacterString();
+                record.service = readCharacterString();
+                readCharacterString(); // regexp, not used for SIP
+                record.target = readName(); // replacement
+                break;
+            case TYPE_SOA:
+                readName();
+                readName();
+                skip(16); // serial, refresh, retry and expire
+                // RFC 2308: the negative TTL is the minimum of the SOA TTL and MINIMUM
+                record = new Record(name, type, Math.min(ttl, readUnsignedInt() & 0x7fffffffL));
+                break;
+            default:
+                break;
+            }
+            offset = next;
+            return record;
+        }
+    }
+
+    /**
+     * The answer of a name server.
+     */
+    public static class Response {
+        private final int rcode;
+        private final List<Record> records;
+        private final long negativeTtl;
+
+        Response(int rcode, List<Record> records, long negativeTtl) {
+            this.rcode = rcode;
+            this.records = Collections.unmodifiableList(records);
+            this.negativeTtl = negativeTtl;
+        }
+
+        /**
+         * @return the response code, RCODE_NOERROR or RCODE_NXDOMAIN for
+         *         instance.
+         */
+        public int getRcode() {
+            return rcode;
+        }
+
+        /**
+         * @return the records of the answer section, following the CNAMEs.
+         */
+        public List<Record> getRecords() {
+            return records;
+        }
+
+        /**
+         * @return the records of the given type in the answer section.
+         */
+        public List<Record> getRecords(int type) {
+            List<Record> result = new ArrayList<Record>(records.size());
+            for (Record record : records) {
+                if (record.getType() == type) {
+                    result.add(record);
+                }
+            }
+            return result;
+        }
+
+        /**
+         * @return the negative caching TTL in seconds given by the SOA record
+         *         when there is no answer, or -1 if there is none.
+         */
+        public long getNegativeTtl() {
+            return negativeTtl;
+        }
+    }
+
+    /**
+     * A resource record. The fields that are meaningful depend on its type.
+     */
+    public static class Record {
+        private final String name;
+        private final int type;
+        private final long ttl;
+        private InetAddress address;
+        private int priority;
+        private int weight;
+        private int port;
+        private String target;
+        private String flags;
+        private String service;
+
+        Record(String name, int type, long ttl) {
+            this.name = name;
+            this.type = type;
+            this.ttl = ttl;
+        }
+
+        /**
+         * An A or AAAA record, for addresses obtained by other means.
+         */
+        public Record(String name, InetAddress address, long ttl) {
+            this(name, address instanceof Inet6Address ? TYPE_AAAA : TYPE_A, ttl);
+            this.address = address;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public int getType() {
+            return type;
+        }
+
+        /**
+         * @return the time to live in seconds.
+         */
+        public long getTtl() {
+            return ttl;
+        }
+
+        /**
+         * @return the address of an A or AAAA record.
+         */
+        public InetAddress getAddress() {
+            return address;
+        }
+
+        /**
+         * @return the priority of an SRV record, or the order of a NAPTR
+         *         record.
+         */
+        public int getPriority() {
+            return priority;
+        }
+
+        /**
+         * @return the weight of an SRV record, or the preference of a NAPTR
+         *         record.
+         */
+        public int getWeight() {
+            return weight;
+        }
+
+        /**
+         * @return the port of an SRV record.
+         */
+        public int getPort() {
+            return port;
+        }
+
+        /**
+         * @return the target of an SRV record, or the replacement of a NAPTR
+         *         record.
+         */
+        public String getTarget() {
+            return target;
+        }
+
+        /**
+         * @return the flags of a NAPTR record.
+         */
+        public String getFlags() {
+            return flags;
+        }
+
+        /**
+         * @return the service of a NAPTR record.
+         */
+        public String getService() {
+            return service;
+        }
+
+        public String toString() {
+            StringBuilder buffer = new StringBuilder(name).append(' ').append(ttl)
+                    .append(" type ").append(type);
+            if (address != null) {
+                buffer.append(' ').append(address.getHostAddress());
+            }
+            if (type == TYPE_NAPTR) {
+                buffer.append(' ').append(priority).append(' ').append(weight)
+                        .append(" \"").append(flags).append("\" \"").append(service)
+                        .append("\"");
+            } else if (type == TYPE_SRV) {
+                buffer.append(' ').append(priority).append(' ').append(weight)
+                        .append(' ').append(port);
+            }
+            if (target != null) {
+                buffer.append(' ').append(target);
+            }
+            return buffer.toString();
+        }
+    }
+}
@@ -0,0 +1,616 @@
+/*
+ * Conditions Of Use
+ *
+ * This software was developed by employees of the National Institute of
+ * Standards and Technology (NIST), an agency of the Federal Government.
+ * Pursuant to title 15 Untied States Code Section 105, works of NIST
+ * employees are not subject to copyright protection in the United States
+ * and are considered to be in the public domain.  As a result, a formal
+ * license is not needed to use the software.
+ *
+ * This software is provided by NIST as a service and is expressly
+ * provided "AS IS."  NIST MAKES NO WARRANTY OF ANY KIND, EXPRESS, IMPLIED
+ * OR STATUTORY, INCLUDING, WITHOUT LIMITATION, THE IMPLIED WARRANTY OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, NON-INFRINGEMENT
+ * AND DATA ACCURACY.  NIST does not warrant or make any representations
+ * regarding the use of the software or the results thereof, including but
+ * not limited to the correctness, accuracy, reliability or usefulness of
+ * the software.
+ *
+ * Permission to use this software is contingent upon your acceptance
+ * of the terms of this agreement
+ *
+ * .
+ *
+ */
+package android.gov.nist.javax.sip;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import android.gov.nist.core.net.AddressResolver;
+import android.gov.nist.core.net.DnsClient;
+import android.gov.nist.core.net.DnsClient.Record;
+import android.gov.nist.javax.sip.stack.HopImpl;
+import android.gov.nist.javax.sip.stack.MessageProcessor;
+import android.javax.sip.ListeningPoint;
+import android.javax.sip.address.Hop;
+
+/**
+ * An AddressResolver locating SIP servers as specified by RFC 3263: when the
+ * hop has no port, the NAPTR records of the domain give the SRV records to
+ * look up for the transport of the hop (falling back to the _sip._udp,
+ * _sip._tcp or _sips._tcp SRV records of the domain), the SRV records are
+ * ordered by priority and weight (RFC 2782) and their targets resolved
+ * through their A records, or their AAAA records if there is none. A hop with
+ * a port only has its host resolved. The hop returned has the IP address of
+ * the first target that did not fail recently (see reportFailure).
+ *
+ * <p>
+ * The records are cached for their TTL, and the absence of records for the
+ * negative TTL of the SOA record (RFC 2308), so that the stack threads do not
+ * block on DNS once a domain has been looked up. When a cached record is
+ * used past a share of its TTL it is refreshed in the background, and a
+ * record that expired is still used for a while if the name servers do not
+ * answer. The name servers are the ones of /etc/resolv.conf unless configured;
+ * when there is none (on Android for instance), host names are resolved
+ * through InetAddress and SRV and NAPTR records are not looked up.
+ * </p>
+ *
+ * <p>
+ * It is used by setting the gov.nist.javax.sip.ADDRESS_RESOLVER property to
+ * this class, the stack then configures it from its properties (see
+ * {@link #init(Properties)}), or by creating it and passing it to
+ * {@link SipStackExt#setAddressResolver(AddressResolver)}, in which case an
+ * instance can be shared by several stacks.
+ * </p>
+ *
+ * @see DefaultAddressResolver
+ * @see DnsClient
+ */
+public class DnsAddressResolver implements AddressResolver {
+
+    private static Logger logger = LoggerFactory.getLogger(DnsAddressResolver.class);
+
+    /**
+     * TTL of the addresses obtained through InetAddress, as its own cache.
+     */
+    private static final long SYSTEM_RESOLVER_TTL = 30;
+
+    /**
+     * Time during which a lookup that failed is not retried, when there is
+     * no expired record to use in the meantime.
+     */
+    private static final long FAILURE_TTL = 5;
+
+    private DnsClient dnsClient;
+
+    private long maxTtl = 3600;
+
+    private long negativeTtl = 60;
+
+    private long staleTtl = 300;
+
+    private int refreshAhead = 75;
+
+    private long failoverTime = 32;
+
+    private final ConcurrentHashMap<String, CacheEntry> cache =
+            new ConcurrentHashMap<String, CacheEntry>();
+
+    private final ConcurrentHashMap<String, FutureTask<CacheEntry>> pendingQueries =
+            new ConcurrentHashMap<String, FutureTask<CacheEntry>>();
+
+    private final ConcurrentHashMap<String, Long> failedTargets =
+            new ConcurrentHashMap<String, Long>();
+
+    private final ThreadPoolExecutor refreshExecutor;
+
+    private final AtomicLong cacheHits = new AtomicLong();
+
+    private final AtomicLong cacheMisses = new AtomicLong();
+
+    private static class CacheEntry {
+        private final List<Record> records;
+        private final long expiresAt;
+        private final long refreshAt;
+        private final long staleUntil;
+        private final AtomicBoolean refreshing = new AtomicBoolean();
+
+        CacheEntry(List<Record> records, long now, long ttl, int refreshAhead, long staleTtl) {
+            this.records = records;
+            this.expiresAt = now + ttl * 1000;
+            this.refreshAt = now + ttl * 10 * refreshAhead;
+            this.staleUntil = expiresAt + staleTtl * 1000;
+        }
+
+        /*
+         * The expired records, used again for a while without extending
+         * how long they can be used.
+         */
+        CacheEntry(CacheEntry expired, long now, long ttl) {
+            this.records = expired.records;
+            this.expiresAt = now + ttl * 1000;
+            this.refreshAt = expiresAt;
+            this.staleUntil = expired.staleUntil;
+        }
+    }
+
+    public DnsAddressResolver() {
+        List<InetSocketAddress> nameServers = DnsClient.getSystemNameServers();
+        if (!nameServers.isEmpty()) {
+            dnsClient = new DnsClient(nameServers, 2000, 2);
+        }
+        refreshExecutor = new ThreadPoolExecutor(2, 2, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(1024), new ThreadFactory() {
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable, "DnsRefreshThread");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                }, new ThreadPoolExecutor.DiscardPolicy());
+        refreshExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Configure the resolver from the stack properties (called by the stack
+     * when the resolver is set through the ADDRESS_RESOLVER property).
+     * <ul>
+     * <li>gov.nist.javax.sip.DNS_SERVERS: comma separated name servers,
+     * address[:port], defaults to the ones of /etc/resolv.conf.</li>
+     * <li>gov.nist.javax.sip.DNS_TIMEOUT: time to wait for an answer in
+     * milliseconds, defaults to 2000.</li>
+     * <li>gov.nist.javax.sip.DNS_ATTEMPTS: number of times each name server
+     * is tried, defaults to 2.</li>
+     * <li>gov.nist.javax.sip.DNS_MAX_TTL: maximum time in seconds a record is
+     * cached, defaults to 3600.</li>
+     * <li>gov.nist.javax.sip.DNS_NEGATIVE_TTL: maximum time in seconds the
+     * absence of a record is cached, defaults to 60.</li>
+     * <li>gov.nist.javax.sip.DNS_STALE_TTL: time in seconds an expired record
+     * is still used when the name servers do not answer, defaults to 300.</li>
+     * <li>gov.nist.javax.sip.DNS_REFRESH_AHEAD: percentage of its TTL after
+     * which a record used is refreshed in the background, defaults to 75.</li>
+     * <li>gov.nist.javax.sip.DNS_FAILOVER_TIME: time in seconds a target that
+     * failed is skipped for the alternate ones, defaults to 32.</li>
+     * </ul>
+     */
+    public void init(Properties configurationProperties) {
+        String nameServers = configurationProperties
+                .getProperty("android.gov.nist.javax.sip.DNS_SERVERS");
+        int timeout = Integer.parseInt(configurationProperties.getProperty(
+                "android.gov.nist.javax.sip.DNS_TIMEOUT", "2000"));
+        int attempts = Integer.parseInt(configurationProperties.getProperty(
+                "android.gov.nist.javax.sip.DNS_ATTEMPTS", "2"));
+        List<InetSocketAddress> servers = nameServers != null
+                ? DnsClient.parseNameServers(nameServers)
+                : DnsClient.getSystemNameServers();
+        setDnsClient(servers.isEmpty() ? null : new DnsClient(servers, timeout, attempts));
+        maxTtl = Long.parseLong(configurationProperties.getProperty(
+                "android.gov.nist.javax.sip.DNS_MAX_TTL", String.valueOf(maxTtl)));
+        negativeTtl = Long.parseLong(configurationProperties.getProperty(
+                "android.gov.nist.javax.sip.DNS_NEGATIVE_TTL", String.valueOf(negativeTtl)));
+        staleTtl = Long.parseLong(configurationProperties.getProperty(
+                "android.gov.nist.javax.sip.DNS_STALE_TTL", String.valueOf(staleTtl)));
+        refreshAhead = Integer.parseInt(configurationProperties.getProperty(
+                "android.gov.nist.javax.sip.DNS_REFRESH_AHEAD", String.valueOf(refreshAhead)));
+        failoverTime = Long.parseLong(configurationProperties.getProperty(
+                "android.gov.nist.javax.sip.DNS_FAILOVER_TIME", String.valueOf(failoverTime)));
+    }
+
+    /**
+     * Set the client used to query the name servers, null to resolve the
+     * host names through InetAddress. This clears the cache.
+     */
+    public void setDnsClient(DnsClient dnsClient) {
+        this.dnsClient = dnsClient;
+        clearCache();
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see gov.nist.core.net.AddressResolver#resolveAddress(javax.sip.address.Hop)
+     */
+    public Hop resolveAddress(Hop inputAddress) {
+        List<Hop> targets = resolveTargets(inputAddress);
+        if (targets.isEmpty()) {
+            // Leave it to the stack, which will fail to reach it
+            if (inputAddress.getPort() != -1)
+                return inputAddress;
+            return new HopImpl(inputAddress.getHost(),
+                    MessageProcessor.getDefaultPort(transportOf(inputAddress)),
+                    inputAddress.getTransport());
+        }
+        if (!failedTargets.isEmpty()) {
+            long now = System.currentTimeMillis();
+            for (Hop target : targets) {
+                String key = targetKey(target);
+                Long failedUntil = failedTargets.get(key);
+                if (failedUntil == null) {
+                    return target;
+                }
+                if (failedUntil.longValue() <= now) {
+                    failedTargets.remove(key, failedUntil);
+                    return target;
+                }
+            }
+        }
+        return targets.get(0);
+    }
+
+    /**
+     * Resolve the hop into the ordered list of targets to try, as specified
+     * by RFC 3263.
+     *
+     * @return the targets, with an IP address as host, or an empty list if
+     *         the host could not be resolved.
+     */
+    public List<Hop> resolveTargets(Hop hop) {
+        String host = hop.getHost();
+        if (host.startsWith("[")) {
+            host = host.substring(1, host.length() - 1);
+        }
+        String transport = transportOf(hop);
+        List<Hop> targets = new ArrayList<Hop>(2);
+        if (isNumericAddress(host)) {
+            targets.add(hop.getPort() != -1 ? hop : new HopImpl(host,
+                    MessageProcessor.getDefaultPort(transport), hop.getTransport()));
+        } else if (hop.getPort() != -1) {
+            addAddressTargets(host, hop.getPort(), hop.getTransport(), targets);
+        } else {
+            String srvPrefix = srvPrefix(transport);
+            if (srvPrefix != null) {
+                String service = naptrService(transport);
+                for (Record naptr : lookup(host, DnsClient.TYPE_NAPTR)) {
+                    if ("s".equalsIgnoreCase(naptr.getFlags())
+                            && service.equalsIgnoreCase(naptr.getService())) {
+                        addSrvTargets(naptr.getTarget(), hop.getTransport(), targets);
+                    }
+                }
+                // Unlike RFC 3263, fall back to SRV when the NAPTR records
+                // only advertise other transports, the stack can only use the
+                // transport it chose
+                if (targets.isEmpty()) {
+                    addSrvTargets(srvPrefix + host, hop.getTransport(), targets);
+                }
+            }
+            if (targets.isEmpty()) {
+                addAddressTargets(host, MessageProcessor.getDefaultPort(transport),
+                        hop.getTransport(), targets);
+            }
+        }
+        logger.debug("Targets of " + hop + ": " + targets);
+        return targets;
+    }
+
+    /**
+     * Resolve the hop in the background, so that it is cached when it is
+     * needed.
+     */
+    public void prefetch(final Hop hop) {
+        refreshExecutor.execute(new Runnable() {
+            public void run() {
+                resolveTargets(hop);
+            }
+        });
+    }
+
+    /**
+     * Report that a target returned by resolveAddress did not answer, the
+     * next ones are then returned instead of it for a while
+     * (gov.nist.javax.sip.DNS_FAILOVER_TIME).
+     */
+    public void reportFailure(Hop target) {
+        logger.debug("Skipping target " + target + " for " + failoverTime + "s");
+        failedTargets.put(targetKey(target),
+                Long.valueOf(System.currentTimeMillis() + failoverTime * 1000));
+    }
+
+    /**
+     * Drop the cached records.
+     */
+    public void clearCache() {
+        cache.clear();
+        failedTargets.clear();
+    }
+
+    /**
+     * @return the number of lookups answered from the cache.
+     */
+    public long getCacheHits() {
+        return cacheHits.get();
+    }
+
+    /**
+     * @return the number of lookups that had to wait for the name servers.
+     */
+    public long getCacheMisses() {
+        return cacheMisses.get();
+    }
+
+    private void addSrvTargets(String name, String transport, List<Hop> targets) {
+        for (Record srv : lookup(name, DnsClient.TYPE_SRV)) {
+            // A target of "." means the service is not available
+            if (srv.getTarget().length() > 0) {
+                addAddressTargets(srv.getTarget(), srv.getPort(), transport, targets);
+            }
+        }
+    }
+
+    private void addAddressTargets(String host, int port, String transport, List<Hop> targets) {
+        List<Record> addresses = lookup(host, DnsClient.TYPE_A);
+        if (addresses.isEmpty() && dnsClient != null) {
+            addresses = lookup(host, DnsClient.TYPE_AAAA);
+        }
+        addresses:
+        for (Record address : addresses) {
+            Hop target = new HopImpl(address.getAddress().getHostAddress(), port, transport);
+            String key = targetKey(target);
+            for (Hop existing : targets) {
+                if (targetKey(existing).equals(key)) {
+                    continue addresses;
+                }
+            }
+            targets.add(target);
+        }
+    }
+
+    /**
+     * @return the records of the given type, from the cache when they did not
+     *         expire, or an empty list if there is none.
+     */
+    private List<Record> lookup(final String name, final int type) {
+        final String key = type + " " + name.toLowerCase();
+        long now = System.currentTimeMillis();
+        final CacheEntry entry = cache.get(key);
+        if (entry != null && now < entry.expiresAt) {
+            cacheHits.incrementAndGet();
+            if (now >= entry.refreshAt && entry.refreshing.compareAndSet(false, true)) {
+                refreshExecutor.execute(new Runnable() {
+                    public void run() {
+                        try {
+                            query(key, name, type);
+                        } catch (IOException ex) {
+                            logger.debug("Refresh of " + name + " failed: " + ex);
+                            entry.refreshing.set(false);
+                        }
+                    }
+                });
+            }
+            return entry.records;
+        }
+        cacheMisses.incrementAndGet();
+        try {
+            return query(key, name, type).records;
+        } catch (IOException ex) {
+            if (entry != null && now < entry.staleUntil) {
+                logger.warn("DNS lookup of " + name + " failed, using the expired records: " + ex);
+                cache.put(key, new CacheEntry(entry, now, FAILURE_TTL));
+                return entry.records;
+            }
+            logger.warn("DNS lookup of " + name + " failed: " + ex);
+            cache.put(key, new CacheEntry(Collections.<Record>emptyList(), now,
+                    Math.min(FAILURE_TTL, negativeTtl), 100, 0));
+            return Collections.emptyList();
+        }
+    }
+
+    /*
+     * Query the name servers, waiting for the query already running for the
+     * same records if any.
+     */
+    private CacheEntry query(final String key, final String name, final int type)
+            throws IOException {
+        FutureTask<CacheEntry> task = new FutureTask<CacheEntry>(new Callable<CacheEntry>() {
+            public CacheEntry call() throws IOException {
+                CacheEntry entry = fetch(name, type);
+                cache.put(key, entry);
+                return entry;
+            }
+        });
+        FutureTask<CacheEntry> pendingTask = pendingQueries.putIfAbsent(key, task);
+        if (pendingTask == null) {
+            try {
+                task.run();
+            } finally {
+                pendingQueries.remove(key, task);
+            }
+            pendingTask = task;
+        }
+        try {
+            return pendingTask.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while resolving " + name);
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof IOException) {
+                throw (IOException) ex.getCause();
+            }
+            throw new IOException("Can't resolve " + name, ex.getCause());
+        }
+    }
+
+    private CacheEntry fetch(String name, int type) throws IOException {
+        long now = System.currentTimeMillis();
+        DnsClient client = dnsClient;
+        if (client == null) {
+            List<Record> records = new ArrayList<Record>();
+            if (type == DnsClient.TYPE_A) {
+                try {
+                    for (InetAddress address : InetAddress.getAllByName(name)) {
+                        records.add(new Record(name, address, SYSTEM_RESOLVER_TTL));
+                    }
+                } catch (UnknownHostException ex) {
+                    logger.debug("Unknown host " + name);
+                }
+            }
+            return new CacheEntry(records, now,
+                    records.isEmpty() ? negativeTtl : SYSTEM_RESOLVER_TTL, refreshAhead, staleTtl);
+        }
+        DnsClient.Response response = client.query(name, type);
+        List<Record> records = response.getRecords(type);
+        if (response.getRcode() != DnsClient.RCODE_NOERROR
+                && response.getRcode() != DnsClient.RCODE_NXDOMAIN) {
+            throw new IOException("DNS error " + response.getRcode() + " for " + name);
+        }
+        if (records.isEmpty()) {
+            long ttl = response.getNegativeTtl() >= 0
+                    ? Math.min(response.getNegativeTtl(), negativeTtl) : negativeTtl;
+            logger.debug("No record of type " + type + " for " + name + ", cached for " + ttl + "s");
+            return new CacheEntry(records, now, ttl, 100, 0);
+        }
+        long ttl = maxTtl;
+        for (Record record : records) {
+            ttl = Math.min(ttl, record.getTtl());
+        }
+        // At least a second, so that the records are not queried for each request
+        ttl = Math.max(1, ttl);
+        if (type == DnsClient.TYPE_SRV) {
+            records = orderSrvRecords(records);
+        } else if (type == DnsClient.TYPE_NAPTR) {
+            Collections.sort(records, NAPTR_ORDER);
+        }
+        logger.debug("Resolved " + name + " to " + records + ", cached for " + ttl + "s");
+        return new CacheEntry(records, now, ttl, refreshAhead, staleTtl);
+    }
+
+    private static final Comparator<Record> NAPTR_ORDER = new Comparator<Record>() {
+        public int compare(Record r1, Record r2) {
+            if (r1.getPriority() != r2.getPriority()) {
+                return r1.getPriority() < r2.getPriority() ? -1 : 1;
+            }
+            return r1.getWeight() < r2.getWeight() ? -1 : (r1.getWeight() == r2.getWeight() ? 0 : 1);
+        }
+    };
+
+    private static final Comparator<Record> SRV_PRIORITY_ORDER = new Comparator<Record>() {
+        public int compare(Record r1, Record r2) {
+            return r1.getPriority() < r2.getPriority() ? -1
+                    : (r1.getPriority() == r2.getPriority() ? 0 : 1);
+        }
+    };
+
+    /*
+     * RFC 2782: by priority, then randomly by weight within a priority. This
+     * is done once when the records are cached so that the same target is
+     * used for all the requests (a CANCEL follows its INVITE) until they
+     * expire.
+     */
+    static List<Record> orderSrvRecords(List<Record> records) {
+        List<Record> sorted = new ArrayList<Record>(records);
+        Collections.sort(sorted, SRV_PRIORITY_ORDER);
+        List<Record> ordered = new ArrayList<Record>(sorted.size());
+        int start = 0;
+        while (start < sorted.size()) {
+            int end = start;
+            int totalWeight = 0;
+            List<Record> group = new ArrayList<Record>();
+            while (end < sorted.size()
+                    && sorted.get(end).getPriority() == sorted.get(start).getPriority()) {
+                Record record = sorted.get(end++);
+                // zero weights first, they then have a very small chance to be picked
+                if (record.getWeight() == 0) {
+                    group.add(0, record);
+                } else {
+                    group.add(record);
+                }
+                totalWeight += record.getWeight();
+            }
+            while (!group.isEmpty()) {
+                int pick = ThreadLocalRandom.current().nextInt(totalWeight + 1);
+                int runningSum = 0;
+                int index = 0;
+                for (; index < group.size() - 1; index++) {
+                    runningSum += group.get(index).getWeight();
+                    if (runningSum >= pick) {
+                        break;
+                    }
+                }
+                Record record = group.remove(index);
+                totalWeight -= record.getWeight();
+                ordered.add(record);
+            }
+            start = end;
+        }
+        return ordered;
+    }
+
+    private static String transportOf(Hop hop) {
+        return hop.getTransport() != null ? hop.getTransport() : ListeningPoint.UDP;
+    }
+
+    private static String targetKey(Hop target) {
+        return target.getHost() + ":" + target.getPort() + "/"
+                + transportOf(target).toLowerCase();
+    }
+
+    private static String srvPrefix(String transport) {
+        if (transport.equalsIgnoreCase(ListeningPoint.UDP)) {
+            return "_sip._udp.";
+        } else if (transport.equalsIgnoreCase(ListeningPoint.TCP)) {
+            return "_sip._tcp.";
+        } else if (transport.equalsIgnoreCase(ListeningPoint.TLS)) {
+            return "_sips._tcp.";
+        } else if (transport.equalsIgnoreCase(ListeningPoint.SCTP)) {
+            return "_sip._sctp.";
+        } else if (transport.equalsIgnoreCase("WS")) {
+            return "_sip._ws.";
+        } else if (transport.equalsIgnoreCase("WSS")) {
+            return "_sips._ws.";
+        }
+        return null;
+    }
+
+    private static String naptrService(String transport) {
+        if (transport.equalsIgnoreCase(ListeningPoint.UDP)) {
+            return "SIP+D2U";
+        } else if (transport.equalsIgnoreCase(ListeningPoint.TCP)) {
+            return "SIP+D2T";
+        } else if (transport.equalsIgnoreCase(ListeningPoint.TLS)) {
+            return "SIPS+D2T";
+        } else if (transport.equalsIgnoreCase(ListeningPoint.SCTP)) {
+            return "SIP+D2S";
+        } else if (transport.equalsIgnoreCase("WS")) {
+            return "SIP+D2W";
+        }
+        return "SIPS+D2W";
+    }
+
+    private static boolean isNumericAddress(String host) {
+        if (host.indexOf(':') >= 0) {
+            return true;
+        }
+        int length = host.length();
+        if (length == 0 || !Character.isDigit(host.charAt(length - 1))) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            char c = host.charAt(i);
+            if (c != '.' && (c < '0' || c > '9')) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -28,18 +28,22 @@ package android.gov.nist.javax.sip;
 import java.util.EventObject;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import android.gov.nist.core.ThreadAuditor;
+import android.gov.nist.javax.sip.message.SIPMessage;
 import android.gov.nist.javax.sip.message.SIPRequest;
 import android.gov.nist.javax.sip.message.SIPResponse;
 import android.gov.nist.javax.sip.stack.SIPClientTransaction;
 import android.gov.nist.javax.sip.stack.SIPDialog;
 import android.gov.nist.javax.sip.stack.SIPServerTransaction;
 import android.gov.nist.javax.sip.stack.SIPTransaction;
+import android.javax.sip.Dialog;
 import android.javax.sip.DialogState;
 import android.javax.sip.DialogTerminatedEvent;
 import android.javax.sip.IOExceptionEvent;
@@ -49,6 +53,8 @@ import android.javax.sip.SipListener;
 import android.javax.sip.TimeoutEvent;
 import android.javax.sip.TransactionState;
 import android.javax.sip.TransactionTerminatedEvent;
+import android.javax.sip.header.CallIdHeader;
+import android.javax.sip.message.Message;
 import android.javax.sip.message.Request;
 import android.javax.sip.message.Response;
 
@@ -57,6 +63,12 @@ import android.javax.sip.message.Response;
 /**
  * Event Scanner to deliver events to the Listener.
  *
+ * The events can be spread over several partitions, each one with its own
+ * queue and delivery thread. Events are assigned to a partition by hashing
+ * their Call-ID so the events of a call are still delivered in order, one
+ * at a time, while a listener slow to process an event only holds back the
+ * calls of its partition. The queues may be bounded, see OverloadPolicy.
+ *
  * @version 1.2 $Revision: 1.47 $ $Date: 2010-12-02 22:04:18 $
  *
  * @author M. Ranganathan <br/>
@@ -67,41 +79,212 @@ public class EventScanner implements Runnable {
 	
 	private static Logger logger = LoggerFactory.getLogger(EventScanner.class);
 
-    private boolean isStopped;
+    /**
+     * What to do with a request or response event when the queue of its
+     * partition is full. The events raised by the stack itself (timeouts,
+     * terminations, IO exceptions) are always queued, over the bound if need
+     * be, as they would be lost otherwise and the timer threads must not wait.
+     */
+    public enum OverloadPolicy {
+        /**
+         * Drop the event, the peer retransmits the message.
+         */
+        DROP,
+        /**
+         * Make the thread adding the event wait for room in the queue, which
+         * pushes back on the threads reading the network.
+         */
+        BLOCK
+    }
+
+    private volatile boolean isStopped;
+
+    private final Partition[] partitions;
+
+    private final OverloadPolicy overloadPolicy;
+
+    private final AtomicLong droppedEvents = new AtomicLong();
 
-    private BlockingQueue<EventWrapper> pendingEvents;
-    
     private AtomicInteger refCount;
 
     private SipStackImpl sipStack;
 
+    /**
+     * A queue of events and the thread delivering them.
+     */
+    private class Partition implements Runnable {
+
+        private final BlockingQueue<EventWrapper> pendingEvents = new LinkedBlockingQueue<EventWrapper>();
+
+        private final int capacity;
+
+        private final Thread thread;
+
+        private volatile int blockedThreads;
+
+        private final AtomicLong deliveredEvents = new AtomicLong();
+
+        private final AtomicLong totalLatency = new AtomicLong();
+
+        private volatile long maxLatency;
+
+        Partition(int capacity, String threadName) {
+            this.capacity = capacity;
+            this.thread = new Thread(this);
+            // This needs to be set to false else the
+            // main thread mysteriously exits.
+            this.thread.setDaemon(false);
+            this.thread.setName(threadName);
+        }
+
+        public void run() {
+            scan(this);
+        }
+
+        boolean isFull() {
+            return capacity > 0 && pendingEvents.size() >= capacity;
+        }
+
+        /*
+         * Wait for room in the queue. Returns false if interrupted or
+         * stopped meanwhile.
+         */
+        synchronized boolean awaitRoom() {
+            blockedThreads++;
+            try {
+                while (isFull()) {
+                    if (isStopped) {
+                        return false;
+                    }
+                    wait(100);
+                }
+                return true;
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return false;
+            } finally {
+                blockedThreads--;
+            }
+        }
+
+        void delivering(EventWrapper eventWrapper) {
+            if (blockedThreads > 0) {
+                synchronized (this) {
+                    notifyAll();
+                }
+            }
+            long latency = System.nanoTime() - eventWrapper.enqueueTime;
+            deliveredEvents.incrementAndGet();
+            totalLatency.addAndGet(latency);
+            if (latency > maxLatency) {
+                maxLatency = latency;
+            }
+        }
+    }
+
     public void incrementRefcount() {
         this.refCount.incrementAndGet();
     }
 
     public EventScanner(SipStackImpl sipStackImpl) {
-    	refCount = new AtomicInteger(0);
-        this.pendingEvents = new LinkedBlockingQueue<EventWrapper>();
-        Thread myThread = new Thread(this);
-        // This needs to be set to false else the
-        // main thread mysteriously exits.
-        myThread.setDaemon(false);
+        this(sipStackImpl, 1, 0, OverloadPolicy.DROP);
+    }
 
+    /**
+     * Create an event scanner spreading the events over several partitions.
+     *
+     * @param sipStackImpl the stack.
+     * @param threads the number of partitions, each with its own thread.
+     * @param queueSize the maximum number of pending events per partition, 0
+     *        for no limit.
+     * @param overloadPolicy what to do with an event when the queue of its
+     *        partition is full.
+     */
+    public EventScanner(SipStackImpl sipStackImpl, int threads, int queueSize,
+            OverloadPolicy overloadPolicy) {
+    	refCount = new AtomicInteger(0);
         this.sipStack = sipStackImpl;
-
-        myThread.setName("EventScannerThread");
-
-        myThread.start();
+        this.overloadPolicy = overloadPolicy;
+        this.partitions = new Partition[Math.max(threads, 1)];
+        for (int i = 0; i < partitions.length; i++) {
+            partitions[i] = new Partition(queueSize, partitions.length == 1 ? "EventScannerThread"
+                    : "EventScannerThread-" + i);
+        }
+        for (Partition partition : partitions) {
+            partition.thread.start();
+        }
 
     }
 
     public void addEvent(EventWrapper eventWrapper) {
 		logger.debug("addEvent " + eventWrapper);
+		Partition partition = partitions[0];
+		if (partitions.length > 1) {
+		    partition = partitions[(hashCallId(eventWrapper) & Integer.MAX_VALUE) % partitions.length];
+		}
+		if (partition.isFull() && (eventWrapper.sipEvent instanceof RequestEvent
+		        || eventWrapper.sipEvent instanceof ResponseEvent)) {
+		    // A scanner thread never waits for itself: the listener may
+		    // send messages from the callback.
+		    boolean added = overloadPolicy == OverloadPolicy.BLOCK
+		            && !isScannerThread(Thread.currentThread())
+		            && partition.awaitRoom();
+		    if (!added) {
+		        droppedEvents.incrementAndGet();
+		        logger.warn("reached queue capacity limit couldn't addEvent " + eventWrapper);
+		        return;
+		    }
+		}
+		eventWrapper.enqueueTime = System.nanoTime();
 		// Add the event into the pending events list
-        boolean added = pendingEvents.offer(eventWrapper);
+        partition.pendingEvents.offer(eventWrapper);
+    }
 
-        if (!added)
-    		logger.warn("reached queue capacity limit couldn't addEvent " + eventWrapper);
+    private boolean isScannerThread(Thread thread) {
+        for (Partition partition : partitions) {
+            if (partition.thread == thread) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /*
+     * Hash of the Call-ID the event belongs to, so that all the events of a
+     * call go through the same partition.
+     */
+    private int hashCallId(EventWrapper eventWrapper) {
+        EventObject sipEvent = eventWrapper.sipEvent;
+        Message message = null;
+        Dialog dialog = null;
+        if (sipEvent instanceof RequestEvent) {
+            message = ((RequestEvent) sipEvent).getRequest();
+        } else if (sipEvent instanceof ResponseEvent) {
+            message = ((ResponseEvent) sipEvent).getResponse();
+        } else if (sipEvent instanceof DialogTerminatedEvent) {
+            dialog = ((DialogTerminatedEvent) sipEvent).getDialog();
+        } else if (sipEvent instanceof DialogTimeoutEvent) {
+            dialog = ((DialogTimeoutEvent) sipEvent).getDialog();
+        } else if (eventWrapper.transaction != null) {
+            message = eventWrapper.transaction.getRequest();
+        } else if (sipEvent instanceof TimeoutEvent) {
+            TimeoutEvent timeoutEvent = (TimeoutEvent) sipEvent;
+            message = timeoutEvent.isServerTransaction() ? timeoutEvent.getServerTransaction()
+                    .getRequest() : timeoutEvent.getClientTransaction().getRequest();
+        } else if (sipEvent instanceof TransactionTerminatedEvent) {
+            TransactionTerminatedEvent terminatedEvent = (TransactionTerminatedEvent) sipEvent;
+            message = terminatedEvent.isServerTransaction() ? terminatedEvent
+                    .getServerTransaction().getRequest() : terminatedEvent
+                    .getClientTransaction().getRequest();
+        }
+        CallIdHeader callId = null;
+        if (message != null) {
+            callId = ((SIPMessage) message).getCallId();
+        } else if (dialog != null) {
+            callId = dialog.getCallId();
+        }
+        // IO exceptions and the like have no call.
+        return callId == null || callId.getCallId() == null ? 0 : callId.getCallId().hashCode();
     }
 
     /**
@@ -112,6 +295,7 @@ public class EventScanner implements Runnable {
     public void stop() {
             if (refCount.get() == 0) {
                 isStopped = true;
+                wakeUp();
             }
     }
 
@@ -123,6 +307,61 @@ public class EventScanner implements Runnable {
     public void forceStop() {
             this.isStopped = true;
             this.refCount.set(0);
+            wakeUp();
+    }
+
+    private void wakeUp() {
+        for (Partition partition : partitions) {
+            if (partition.thread != Thread.currentThread()) {
+                partition.thread.interrupt();
+            }
+        }
+    }
+
+    /**
+     * @return the number of partitions (and delivery threads).
+     */
+    public int getPartitionsCount() {
+        return partitions.length;
+    }
+
+    /**
+     * @return the number of events waiting in the queue of a partition.
+     */
+    public int getPendingEventsCount(int partition) {
+        return partitions[partition].pendingEvents.size();
+    }
+
+    /**
+     * @return the number of events of a partition handed to the listener.
+     */
+    public long getDeliveredEventsCount(int partition) {
+        return partitions[partition].deliveredEvents.get();
+    }
+
+    /**
+     * @return the average time in milliseconds the events of a partition
+     *         waited in its queue.
+     */
+    public double getAverageQueueLatency(int partition) {
+        long delivered = partitions[partition].deliveredEvents.get();
+        return delivered == 0 ? 0 : (double) partitions[partition].totalLatency.get()
+                / delivered / TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    /**
+     * @return the longest time in milliseconds an event of a partition
+     *         waited in its queue.
+     */
+    public long getMaxQueueLatency(int partition) {
+        return TimeUnit.NANOSECONDS.toMillis(partitions[partition].maxLatency);
+    }
+
+    /**
+     * @return the number of events dropped because their queue was full.
+     */
+    public long getDroppedEventsCount() {
+        return droppedEvents.get();
     }
 
     public void deliverEvent(EventWrapper eventWrapper) {
@@ -447,6 +686,10 @@ public class EventScanner implements Runnable {
      * calls the deliverEvent method above.
      */
     public void run() {
+        scan(partitions[0]);
+    }
+
+    private void scan(Partition partition) {
         try {
             // Ask the auditor to monitor this thread
         	ThreadAuditor.ThreadHandle threadHandle = null;
@@ -480,11 +723,14 @@ public class EventScanner implements Runnable {
                 // tap-dancing is to avoid deadlocks and also to ensure that
                 // the list is not modified while we are iterating over it.
             	try {
-					eventWrapper = (EventWrapper) pendingEvents.take();
+					eventWrapper = (EventWrapper) partition.pendingEvents.take();
+					partition.delivering(eventWrapper);
 					deliverEvent(eventWrapper);
             	} catch (InterruptedException ex) {
             		// Let the thread die a normal death
-        			logger.error("Interrupted!", ex);
+            		if (!this.isStopped) {
+            			logger.error("Interrupted!", ex);
+            		}
             		return;
             	} catch (Exception e) {
                     logger.error(
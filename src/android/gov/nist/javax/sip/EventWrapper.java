@@ -35,6 +35,8 @@ public class EventWrapper {
 
     protected EventObject sipEvent;
     protected SIPTransaction transaction;
+    // When the event was queued, to measure how long it waited.
+    protected long enqueueTime;
 
     public EventWrapper(EventObject sipEvent, SIPTransaction transaction) {
         this.sipEvent = sipEvent;
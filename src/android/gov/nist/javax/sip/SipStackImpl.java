@@ -147,6 +147,17 @@ import android.javax.sip.message.Request;
  * trace viewer application which is located in the tools/tracesviewer
  * directory. <font color=red> Mail this to us with bug reports. </font></li>
  * 
+ * <li><b>gov.nist.javax.sip.SERVER_LOG_ASYNC = true|false </b><br/>
+ * Default is false. If set to true the SERVER_LOG trace is written by a
+ * background thread in a compact binary format, so that disk latency does not
+ * hold back the threads sending and receiving messages. The records wait in
+ * a buffer of gov.nist.javax.sip.SERVER_LOG_QUEUE_SIZE records (default 8192)
+ * and are dropped (and counted) when it is full. The file is rolled over once
+ * it reaches gov.nist.javax.sip.SERVER_LOG_MAX_FILE_SIZE bytes (default 0,
+ * never), keeping gov.nist.javax.sip.SERVER_LOG_MAX_FILES older files (default
+ * 5). Use android.gov.nist.javax.sip.stack.TraceFileDecoder to turn the trace
+ * into the XML format read by the trace viewer.</li>
+ * 
  * <li><b>gov.nist.javax.sip.DEBUG_LOG = fileName </b> <b> Use of this property
  * is still supported but deprecated. Please use gov.nist.javax.sip.STACK_LOGGER
  * and gov.nist.javax.sip.SERVER_LOGGER for integration with logging frameworks
@@ -210,7 +221,8 @@ import android.javax.sip.message.Request;
  * <li><b>gov.nist.javax.sip.MAX_MESSAGE_SIZE = integer</b> <br/>
  * Maximum size of content that a TCP connection can read. Must be at least 4K.
  * Default is "infinity" -- ie. no limit. This is to prevent DOS attacks
- * launched by writing to a TCP connection until the server chokes.</li>
+ * launched by writing to a TCP connection until the server chokes. It is also
+ * the largest WebSocket frame accepted, 1 MB when it is not set.</li>
  * 
  * <li><b>gov.nist.javax.sip.DELIVER_TERMINATED_EVENT_FOR_NULL_DIALOG = [true|false] </b><br/>
  * If set to false (the default), the application does NOT get notified when a Dialog in the
@@ -264,6 +276,23 @@ import android.javax.sip.message.Request;
  * multithreaded machine write your listener to be re-entrant and set this
  * property to be true </b></li>
  * 
+ * <li><b>gov.nist.javax.sip.EVENT_SCANNER_THREADS = integer </b> <br/>
+ * Default is 1. Number of threads delivering the events to a listener that
+ * is not re-entrant. Each thread has its own queue and the events are
+ * assigned to a queue by hashing their Call-ID, so the events of a call are
+ * delivered in order and one at a time while a listener slow to handle an
+ * event only holds back the calls sharing its queue.</li>
+ *
+ * <li><b>gov.nist.javax.sip.EVENT_SCANNER_QUEUE_SIZE = integer </b> <br/>
+ * Default is 0 (no limit). Maximum number of request and response events
+ * waiting in each event scanner queue. The events raised by the stack itself
+ * (timeouts, terminations) are never held back.</li>
+ *
+ * <li><b>gov.nist.javax.sip.EVENT_SCANNER_OVERLOAD_POLICY = DROP|BLOCK </b> <br/>
+ * Default is DROP. What to do with a request or response event when its
+ * queue is full: drop it (the peer retransmits) or make the thread that read
+ * the message wait for room in the queue.</li>
+ *
  * <li><b>gov.nist.javax.sip.MAX_CONNECTIONS = integer </b> <br/>
  * Max number of simultaneous TCP connections handled by stack.</li>
  * 
@@ -344,7 +373,12 @@ import android.javax.sip.message.Request;
  * getHostByName. Specifying your own address resolver allows you to customize
  * address lookup. The default address resolver is a pass-through address
  * resolver (i.e. just returns the input string without doing a resolution). See
- * gov.nist.javax.sip.DefaultAddressResolver.</li>
+ * gov.nist.javax.sip.DefaultAddressResolver. gov.nist.javax.sip.DnsAddressResolver
+ * locates the servers through NAPTR, SRV and A/AAAA records (RFC 3263), caching
+ * them for their TTL; it is configured by the gov.nist.javax.sip.DNS_SERVERS,
+ * DNS_TIMEOUT, DNS_ATTEMPTS, DNS_MAX_TTL, DNS_NEGATIVE_TTL, DNS_STALE_TTL,
+ * DNS_REFRESH_AHEAD and DNS_FAILOVER_TIME properties described in
+ * DnsAddressResolver.init(Properties).</li>
  * 
  * <li><b>gov.nist.javax.sip.AUTO_GENERATE_TIMESTAMP= [true| false] </b><br/>
  * (default is false) Automatically generate a getTimeOfDay timestamp for a
@@ -371,6 +405,38 @@ import android.javax.sip.message.Request;
  * by the SIP RFC spec.
  * </li>
  * 
+ * <li><b>gov.nist.javax.sip.NIO_CONNECTIONS_PER_PEER = integer </b> <br/>
+ * The maximum number of NIO TCP or TLS connections opened to the same peer. When
+ * all of them have data waiting to be written, another one is opened in the
+ * background and the next calls go to the least loaded connection. The messages of a
+ * call stay on the connection the call started on. Default is 1.
+ * </li>
+ * 
+ * <li><b>gov.nist.javax.sip.NIO_POOL_IDLE_TIME = long </b> <br/>
+ * The number of milliseconds after which the connections opened beyond the first
+ * one to a peer (see NIO_CONNECTIONS_PER_PEER) are closed if idle. Default is 60000.
+ * </li>
+ * 
+ * <li><b>gov.nist.javax.sip.NIO_PRECONNECT_OUTBOUND_PROXY = [true|false] </b> <br/>
+ * Open the NIO connections to the outbound proxy (and do the TLS handshake) in the
+ * background as soon as the listening point is created, rather than when the first
+ * request is sent. Default is false.
+ * </li>
+ * 
+ * <li><b>gov.nist.javax.sip.OIO_INLINE_PARSING = [true|false] </b> <br/>
+ * Parse the messages of the blocking TCP and TLS connections on the thread reading
+ * the connection rather than on a pipeline thread of their own. Only the parser
+ * thread goes away: each open connection still holds one reader thread, taken from
+ * a shared pool so that it is reused once the connection closes. To decouple the
+ * threads from the connections use the NIO processors (NioMessageProcessorFactory)
+ * instead. The READ_TIMEOUT does not apply to such connections. Default is false.
+ * </li>
+ * 
+ * <li><b>gov.nist.javax.sip.OIO_READER_STACK_SIZE = integer </b> <br/>
+ * The stack size, in bytes, asked for the reader threads when
+ * OIO_INLINE_PARSING is set. Default is 0, the JVM default.
+ * </li>
+ * 
  * <li><b>gov.nist.javax.sip.stack.USE_DIRECT_BUFFERS = [true|false]</b> <br/>
  * Default is <it>true</it> If set to <it>false</it>, the NIO stack won't use direct buffers.
  * As Direct buffers reside outside of the heap memory, they can lead to unforeseen out of memory exceptions
@@ -378,6 +444,29 @@ import android.javax.sip.message.Request;
  * monitoring and management.
  * </li>
  * 
+ * <li><b>gov.nist.javax.sip.stack.POOL_DIRECT_BUFFERS = [true|false]</b> <br/>
+ * Default is <it>true</it>. The direct buffers used by the NIO TLS channels are
+ * pooled by size class (capacity rounded up to 1KB) and given back to the pool
+ * once a record is encrypted or decrypted and when the channel is closed. If
+ * set to <it>false</it>, a new direct buffer is allocated each time.
+ * </li>
+ * 
+ * <li><b>gov.nist.javax.sip.stack.DIRECT_BUFFER_POOL_MAX_BYTES = integer</b> <br/>
+ * Default is <it>33554432</it> (32MB). The maximum number of bytes kept in the
+ * direct buffer pool, the buffers released beyond it are left to the garbage
+ * collector.
+ * </li>
+ * 
+ * <li><b>gov.nist.javax.sip.stack.DIRECT_BUFFER_LEAK_DETECTION = [true|false]</b> <br/>
+ * Default is <it>false</it>. If set to <it>true</it>, the pooled direct buffers
+ * garbage collected without having been given back to the pool are logged at
+ * error level with the stack trace of their allocation, and the buffers given
+ * back twice at warn level. This records a stack trace per buffer so it is
+ * meant for debugging. The pool usage (live, pooled and high water bytes) is
+ * available from ByteBufferFactory.getInstance(), the live bytes only while
+ * leak detection is on.
+ * </li>
+ * 
  * <li><b>gov.nist.javax.sip.COMPUTE_CONTENT_LENGTH_FROM_MESSAGE_BODY =
  * [true|false] </b> <br/>
  * Default is <it>false</it> If set to <it>true</it>, when you are creating a
@@ -386,6 +475,16 @@ import android.javax.sip.message.Request;
  * parameter in the Message. Otherwise, it will use the content length supplied
  * and generate a parse exception if the content is truncated.
  * 
+ * <li><b>gov.nist.javax.sip.LAZY_HEADER_PARSING = [true|false] </b> <br/>
+ * Default is <it>false</it>. If set to <it>true</it>, the headers of the
+ * incoming messages that are not needed to match them to their transaction
+ * and dialog (i.e. other than Via, From, To, Call-ID, CSeq, Max-Forwards,
+ * Content-Length and Content-Type) are kept as text and only parsed when
+ * accessed. A malformed header of that kind is then kept with its raw value,
+ * as an extension header, instead of being reported to the parse exception
+ * listener. Only the parsers of this stack are affected.
+ * </li>
+ *
  * <li><b>gov.nist.javax.sip.CANCEL_CLIENT_TRANSACTION_CHECKED = [true|false]
  * </b> <br/>
  * Default is <it>true</it>. This flag is added in support of load balancers or
@@ -426,6 +525,14 @@ import android.javax.sip.message.Request;
  * causing even more retransmissions. Good values to this property for servers
  * is a big number in the order of 8*8*1024 or higher.</li>
  * 
+ * <li><b>gov.nist.javax.sip.UDP_RECEIVE_SOCKETS = int </b> <br/>
+ * Default is <it>1</it>. Number of sockets bound to the ip:port of each UDP
+ * listening point, each read by its own thread into its own queue so that UDP
+ * ingress is not limited to a single core. The kernel spreads datagrams over
+ * the sockets per source address; messages are then queued by Call-ID, so the
+ * messages of a call are still taken in order. Needs SO_REUSEPORT, which is
+ * only available from Java 9 on: a single socket is used otherwise.</li>
+ * 
  * <li><b>gov.nist.javax.sip.CONGESTION_CONTROL_TIMEOUT = int </b> How 
  * much time messages are allowed to wait in queue before being dropped due to
  * stack being too slow to respond. Default value is 8000 ms. The value is in
@@ -506,7 +613,11 @@ import android.javax.sip.message.Request;
  * 
  * <li><b>gov.nist.javax.sip.TIMER_CLASS_NAME =  name of the class implementing gov.nist.javax.sip.stack.timers.SipTimer</b> interface
  * This allows pluggable implementations of the Timer that will take care of scheduling the various SIP Timers.
- * By example one could plug a regular timer, a scheduled thread pool executor.</li>
+ * By example one could plug a regular timer, a scheduled thread pool executor.
+ * android.gov.nist.javax.sip.stack.timers.HashedWheelSipTimer schedules and cancels in constant time, which
+ * pays off with tens of thousands of live transactions. Its tick (in ms) and number of buckets are set with
+ * android.gov.nist.javax.sip.timers.HASHED_WHEEL_TICK_DURATION (default 10) and
+ * android.gov.nist.javax.sip.timers.HASHED_WHEEL_SIZE (default 512).</li>
  * 
  * <li><b>gov.nist.javax.sip.DELIVER_RETRANSMITTED_ACK_TO_LISTENER=boolean</b> A testing property
  * that allows application to see the ACK for retransmitted 200 OK requests. <b>Note that this is for test
@@ -644,6 +755,12 @@ public class SipStackImpl extends SIPTransactionStack implements
 	// Use this flag with caution.
 	private boolean reEntrantListener;
 
+	private int eventScannerThreads = 1;
+
+	private int eventScannerQueueSize;
+
+	private EventScanner.OverloadPolicy eventScannerOverloadPolicy = EventScanner.OverloadPolicy.DROP;
+
 	SipListener sipListener;
 	TlsSecurityPolicy tlsSecurityPolicy;
 
@@ -682,7 +799,7 @@ public class SipStackImpl extends SIPTransactionStack implements
 		NistSipMessageFactoryImpl msgFactory = new NistSipMessageFactoryImpl(
 				this);
 		super.setMessageFactory(msgFactory);
-		this.eventScanner = new EventScanner(this);
+		this.eventScanner = createEventScanner();
 		this.listeningPoints = new Hashtable<String, ListeningPointImpl>();
 		this.sipProviders = Collections.synchronizedList(new LinkedList<SipProviderImpl>());
 
@@ -693,7 +810,7 @@ public class SipStackImpl extends SIPTransactionStack implements
 	 */
 	private void reInitialize() {
 		super.reInit();
-		this.eventScanner = new EventScanner(this);
+		this.eventScanner = createEventScanner();
 		this.listeningPoints = new Hashtable<String, ListeningPointImpl>();
 		this.sipProviders = Collections.synchronizedList(new LinkedList<SipProviderImpl>());
 		this.sipListener = null;
@@ -811,6 +928,15 @@ public class SipStackImpl extends SIPTransactionStack implements
         ByteBufferFactory.getInstance().setUseDirect(Boolean.valueOf(
                 configurationProperties.getProperty("android.gov.nist.javax.sip.stack.USE_DIRECT_BUFFERS",
                         Boolean.TRUE.toString())));
+        ByteBufferFactory.getInstance().setPooling(Boolean.valueOf(
+                configurationProperties.getProperty("android.gov.nist.javax.sip.stack.POOL_DIRECT_BUFFERS",
+                        Boolean.TRUE.toString())));
+        ByteBufferFactory.getInstance().setMaxPooledBytes(Long.parseLong(
+                configurationProperties.getProperty("android.gov.nist.javax.sip.stack.DIRECT_BUFFER_POOL_MAX_BYTES",
+                        String.valueOf(ByteBufferFactory.DEFAULT_MAX_POOLED_BYTES))));
+        ByteBufferFactory.getInstance().setLeakDetection(Boolean.valueOf(
+                configurationProperties.getProperty("android.gov.nist.javax.sip.stack.DIRECT_BUFFER_LEAK_DETECTION",
+                        Boolean.FALSE.toString())));
 
 		this.defaultRouter = new DefaultRouter(this, outboundProxy);
 
@@ -1044,6 +1170,10 @@ public class SipStackImpl extends SIPTransactionStack implements
 				Constructor<?> c = clazz.getConstructor(new Class[0]);
 				this.addressResolver = (AddressResolver) c
 						.newInstance(new Object[0]);
+				if (this.addressResolver instanceof DnsAddressResolver) {
+					((DnsAddressResolver) this.addressResolver)
+							.init(configurationProperties);
+				}
 			} catch (Exception e) {
 				throw new PeerUnavailableException(
 						"can't find or instantiate AddressResolver implementation: "
@@ -1223,6 +1353,32 @@ public class SipStackImpl extends SIPTransactionStack implements
 				.getProperty("android.gov.nist.javax.sip.REENTRANT_LISTENER");
 		this.reEntrantListener = (rel != null && "true".equalsIgnoreCase(rel));
 
+		try {
+			this.eventScannerThreads = Integer.parseInt(configurationProperties.getProperty(
+					"android.gov.nist.javax.sip.EVENT_SCANNER_THREADS", "1"));
+			this.eventScannerQueueSize = Integer.parseInt(configurationProperties.getProperty(
+					"android.gov.nist.javax.sip.EVENT_SCANNER_QUEUE_SIZE", "0"));
+		} catch (NumberFormatException ex) {
+			logger.error(
+				"event scanner threads or queue size - bad value " + ex.getMessage());
+		}
+		String overloadPolicy = configurationProperties
+				.getProperty("android.gov.nist.javax.sip.EVENT_SCANNER_OVERLOAD_POLICY");
+		if (overloadPolicy != null) {
+			try {
+				this.eventScannerOverloadPolicy = EventScanner.OverloadPolicy
+						.valueOf(overloadPolicy.trim().toUpperCase());
+			} catch (IllegalArgumentException ex) {
+				logger.error(
+					"event scanner overload policy - bad value " + overloadPolicy);
+			}
+		}
+		if (eventScannerThreads > 1 || eventScannerQueueSize > 0) {
+			// The default scanner was started by the constructor.
+			this.eventScanner.forceStop();
+			this.eventScanner = createEventScanner();
+		}
+
 		// Check if a thread audit interval is specified
 		String interval = configurationProperties
 				.getProperty("android.gov.nist.javax.sip.THREAD_AUDIT_INTERVAL_IN_MILLISECS");
@@ -1279,6 +1435,10 @@ public class SipStackImpl extends SIPTransactionStack implements
 		StringMsgParser
 				.setComputeContentLengthFromMessage(computeContentLength);
 
+		super.lazyHeaderParsing = configurationProperties.getProperty(
+				"android.gov.nist.javax.sip.LAZY_HEADER_PARSING",
+				"false").equalsIgnoreCase("true");
+
 		String tlsClientProtocols = configurationProperties.getProperty(
 				"android.gov.nist.javax.sip.TLS_CLIENT_PROTOCOLS");
 		if (tlsClientProtocols != null)
@@ -1345,6 +1505,9 @@ public class SipStackImpl extends SIPTransactionStack implements
 						.toString());
 		bufferSizeInteger = new Integer(bufferSize).intValue();
 		super.setSendUdpBufferSize(bufferSizeInteger);
+
+		super.setUdpReceiveSockets(Integer.parseInt(configurationProperties.getProperty(
+				"android.gov.nist.javax.sip.UDP_RECEIVE_SOCKETS", "1")));
 		// Contribution for https://github.com/Mobicents/jain-sip/issues/40
 		super.setConnectionLingerTimer(Integer.parseInt(configurationProperties.getProperty(
 				"android.gov.nist.javax.sip.LINGER_TIMER", "8")));
@@ -1401,6 +1564,33 @@ public class SipStackImpl extends SIPTransactionStack implements
 						"Bad configuration value for android.gov.nist.javax.sip.NIO_MAX_SOCKET_IDLE_TIME=" + maxIdleTimeString, e);			
 		}
 		
+		String connectionsPerPeerString = configurationProperties.getProperty("android.gov.nist.javax.sip.NIO_CONNECTIONS_PER_PEER", "1");
+		try {
+			super.nioConnectionsPerPeer = Integer.parseInt(connectionsPerPeerString);
+		} catch (NumberFormatException e) {
+			logger.error("Bad configuration value for android.gov.nist.javax.sip.NIO_CONNECTIONS_PER_PEER=" + connectionsPerPeerString, e);
+		}
+		
+		String poolIdleTimeString = configurationProperties.getProperty("android.gov.nist.javax.sip.NIO_POOL_IDLE_TIME", "60000");
+		try {
+			super.nioPoolIdleTime = Long.parseLong(poolIdleTimeString);
+		} catch (NumberFormatException e) {
+			logger.error("Bad configuration value for android.gov.nist.javax.sip.NIO_POOL_IDLE_TIME=" + poolIdleTimeString, e);
+		}
+		
+		super.nioPreconnectOutboundProxy = Boolean.parseBoolean(configurationProperties.getProperty(
+				"android.gov.nist.javax.sip.NIO_PRECONNECT_OUTBOUND_PROXY", "false"));
+		
+		super.oioInlineParsing = Boolean.parseBoolean(configurationProperties.getProperty(
+				"android.gov.nist.javax.sip.OIO_INLINE_PARSING", "false"));
+		
+		String readerStackSizeString = configurationProperties.getProperty("android.gov.nist.javax.sip.OIO_READER_STACK_SIZE", "0");
+		try {
+			super.oioReaderStackSize = Long.parseLong(readerStackSizeString);
+		} catch (NumberFormatException e) {
+			logger.error("Bad configuration value for android.gov.nist.javax.sip.OIO_READER_STACK_SIZE=" + readerStackSizeString, e);
+		}
+		
 		String defaultTimerName = configurationProperties.getProperty("android.gov.nist.javax.sip.TIMER_CLASS_NAME",DefaultSipTimer.class.getName());
 		try {
 			setTimer((SipTimer)Class.forName(defaultTimerName).newInstance());
@@ -1728,7 +1918,7 @@ public class SipStackImpl extends SIPTransactionStack implements
 	public void start() throws ProviderDoesNotExistException, SipException {
 		// Start a new event scanner if one does not exist.
 		if (this.eventScanner == null) {
-			this.eventScanner = new EventScanner(this);
+			this.eventScanner = createEventScanner();
 		}
 
 	}
@@ -1764,6 +1954,11 @@ public class SipStackImpl extends SIPTransactionStack implements
 		return super.logRecordFactory;
 	}
 
+	private EventScanner createEventScanner() {
+		return new EventScanner(this, eventScannerThreads, eventScannerQueueSize,
+				eventScannerOverloadPolicy);
+	}
+
 	public EventScanner getEventScanner() {
 		return eventScanner;
 	}
@@ -33,10 +33,12 @@ package android.gov.nist.javax.sip;
 import android.gov.nist.javax.sip.header.Via;
 import android.gov.nist.javax.sip.message.SIPResponse;
 
-import java.security.MessageDigest;
+import java.security.SecureRandom;
 import java.util.*;
 import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * A few utilities that are used in various places by the stack. This is used to
@@ -47,18 +49,27 @@ import java.util.concurrent.Executors;
  * @version 1.2 $Revision: 1.24 $ $Date: 2010-10-28 03:20:31 $
  */
 public class Utils implements UtilsExt {
-	
-	private static int digesterPoolsSize = 20;
-
-    private static MessageDigest[] digesterPool = new MessageDigest[digesterPoolsSize];
 
     private static java.util.Random rand;
 
-    private static long counter = 0;
+    private static String signature ;
 
-    private static int callIDCounter;
+    /*
+     * The identifiers are 128 bits: 64 random bits, then a sequence number
+     * unique in this stack offset by a salt random to this process, which
+     * keeps them unique even when the random bits collide.
+     */
+    private static final long salt = new SecureRandom().nextLong();
 
-    private static String signature ;
+    // Each thread numbers its identifiers in a slot of its own
+    private static final AtomicLong slots = new AtomicLong();
+
+    private static final ThreadLocal<IdGenerator> idGenerator = new ThreadLocal<IdGenerator>() {
+        @Override
+        protected IdGenerator initialValue() {
+            return new IdGenerator();
+        }
+    };
 
     private static Utils instance = new Utils();
 
@@ -70,12 +81,6 @@ public class Utils implements UtilsExt {
             '7', '8', '9', 'a', 'b', 'c', 'd', 'e', 'f' };
 
     static {
-        try {
-        	for(int q=0; q<digesterPoolsSize; q++)
-        		digesterPool[q] = MessageDigest.getInstance("MD5");
-        } catch (Exception ex) {
-            throw new RuntimeException("Could not intialize Digester ", ex);
-        }
         rand = new java.util.Random(System.nanoTime());
         signature = toHexString(Integer.toString(Math.abs( rand.nextInt() % 1000 )).getBytes());
     }
@@ -153,18 +158,7 @@ public class Utils implements UtilsExt {
      * call identifier in advance of generating a message.
      */
     public String generateCallIdentifier(String address) {
-    	long random = rand.nextLong();
-    	int hash = (int) Math.abs(random%digesterPoolsSize);
-    	MessageDigest md = digesterPool[hash];
-    	
-    	synchronized (md) {
-    		String date = Long.toString(System.nanoTime() + System.currentTimeMillis() + callIDCounter++
-    				+ random);
-    		byte cid[] = md.digest(date.getBytes());
-
-    		String cidString = Utils.toHexString(cid);
-    		return cidString + "@" + address;
-    	}
+    	return idGenerator.get().nextCallId() + "@" + address;
     }
 
     /**
@@ -173,14 +167,9 @@ public class Utils implements UtilsExt {
      * be unique within a call.
      *
      * @return a string that can be used as a tag parameter.
-     *
-     * synchronized: needed for access to 'rand', else risk to generate same tag
-     * twice
      */
-    public synchronized String generateTag() {
-
-            return Integer.toHexString(rand.nextInt());
-
+    public String generateTag() {
+        return idGenerator.get().nextTag();
     }
 
     /**
@@ -191,16 +180,7 @@ public class Utils implements UtilsExt {
      *         used as a branch identifier.
      */
     public String generateBranchId() {
-    	//
-    	long num = rand.nextLong() + Utils.counter++  + System.currentTimeMillis() + System.nanoTime();
-    	int hash = (int) Math.abs(num%digesterPoolsSize);
-    	MessageDigest digester = digesterPool[hash];
-    	synchronized(digester) {
-    		byte bid[] = digester.digest(Long.toString(num).getBytes());
-    		// prepend with a magic cookie to indicate we are bis09 compatible.
-    		return SIPConstants.BRANCH_MAGIC_COOKIE + "-"
-    		+ this.signature + "-" + Utils.toHexString(bid);
-    	}
+    	return idGenerator.get().nextBranchId();
     }
 
     public boolean responseBelongsToUs(SIPResponse response) {
@@ -214,6 +194,70 @@ public class Utils implements UtilsExt {
         return signature;
     }
 
+    /**
+     * Generates the identifiers of a thread, into a buffer of its own.
+     */
+    private static final class IdGenerator {
+
+        private final long slot = slots.getAndIncrement() << 32;
+
+        private int sequence;
+
+        private final char[] id = new char[32];
+
+        // prepend the branch with a magic cookie to indicate we are bis09 compatible.
+        private final char[] branchId;
+
+        IdGenerator() {
+            String prefix = SIPConstants.BRANCH_MAGIC_COOKIE + "-" + signature + "-";
+            branchId = new char[prefix.length() + 32];
+            prefix.getChars(0, prefix.length(), branchId, 0);
+        }
+
+        String nextCallId() {
+            if (!putId(id, 0)) {
+                return rotate().nextCallId();
+            }
+            return new String(id);
+        }
+
+        String nextBranchId() {
+            if (!putId(branchId, branchId.length - 32)) {
+                return rotate().nextBranchId();
+            }
+            return new String(branchId);
+        }
+
+        String nextTag() {
+            putHex(id, 0, 8, ThreadLocalRandom.current().nextInt());
+            return new String(id, 0, 8);
+        }
+
+        private boolean putId(char[] buffer, int offset) {
+            if (sequence == -1) {
+                // used up the slot
+                return false;
+            }
+            long unique = salt + (slot | (sequence++ & 0xFFFFFFFFL));
+            putHex(buffer, offset, 16, ThreadLocalRandom.current().nextLong());
+            putHex(buffer, offset + 16, 16, unique);
+            return true;
+        }
+
+        private IdGenerator rotate() {
+            IdGenerator generator = new IdGenerator();
+            idGenerator.set(generator);
+            return generator;
+        }
+
+        private static void putHex(char[] buffer, int offset, int digits, long value) {
+            for (int i = offset + digits - 1; i >= offset; i--) {
+                buffer[i] = toHex[(int) value & 0x0F];
+                value >>>= 4;
+            }
+        }
+    }
+
     public static void main(String[] args) {
     	final HashSet branchIds = new HashSet();
     	Executor e = Executors.newFixedThreadPool(100);
@@ -35,9 +35,6 @@ public interface UtilsExt {
      * be unique within a call.
      *
      * @return a string that can be used as a tag parameter.
-     *
-     * synchronized: needed for access to 'rand', else risk to generate same tag
-     * twice
      * @since 2.0
      */
     public String generateTag();
@@ -42,6 +42,7 @@ import android.gov.nist.javax.sip.header.ContentLength;
 import android.gov.nist.javax.sip.header.ContentType;
 import android.gov.nist.javax.sip.header.ErrorInfo;
 import android.gov.nist.javax.sip.header.ErrorInfoList;
+import android.gov.nist.javax.sip.header.ExtensionHeaderImpl;
 import android.gov.nist.javax.sip.header.From;
 import android.gov.nist.javax.sip.header.InReplyTo;
 import android.gov.nist.javax.sip.header.MaxForwards;
@@ -79,11 +80,13 @@ import java.lang.reflect.Field;
 import java.net.InetAddress;
 import java.text.ParseException;
 import java.util.Collection;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.ListIterator;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
 
@@ -180,6 +183,13 @@ public abstract class SIPMessage extends MessageObject implements android.javax.
     // Table of headers indexed by name.
     protected Map<String, SIPHeader> headerTable;
 
+    /*
+     * Lower case names of the headers attached unparsed, see
+     * attachUnparsedHeader. Guarded by the headers lock, null when every
+     * header of the message is parsed.
+     */
+    private volatile Set<String> unparsedHeaderNames;
+
     /**
      * The application data pointer. This is un-interpreted by the stack. This is provided as a
      * convenient way of keeping book-keeping data for applications.
@@ -251,6 +261,7 @@ public abstract class SIPMessage extends MessageObject implements android.javax.
      */
     public LinkedList<String> getMessageAsEncodedStrings() {
         LinkedList<String> retval = new LinkedList<String>();
+        parseUnparsedHeaders(null);
         Iterator<SIPHeader> li = headers.iterator();
         while (li.hasNext()) {
             SIPHeader sipHeader = (SIPHeader) li.next();
@@ -272,6 +283,7 @@ public abstract class SIPMessage extends MessageObject implements android.javax.
      */
     protected StringBuilder encodeSIPHeaders(StringBuilder encoding) {
 //        StringBuilder encoding = new StringBuilder();
+        parseUnparsedHeaders(null);
         Iterator<SIPHeader> it = this.headers.iterator();
 
         while (it.hasNext()) {
@@ -403,6 +415,7 @@ public abstract class SIPMessage extends MessageObject implements android.javax.
         if (!template.getClass().equals(this.getClass()))
             throw new IllegalArgumentException("Bad class " + template.getClass());
         SIPMessage templateMessage = (SIPMessage) template;
+        templateMessage.parseUnparsedHeaders(null);
         Object[] templateHeaders = templateMessage.headers.toArray();
         for (int i = 0; i < templateHeaders.length; i++) {
             SIPHeader hdr = (SIPHeader) templateHeaders[i];
@@ -431,6 +444,7 @@ public abstract class SIPMessage extends MessageObject implements android.javax.
      */
     public String encode() {
         StringBuilder encoding = new StringBuilder();
+        parseUnparsedHeaders(null);
         Iterator<SIPHeader> it = this.headers.iterator();
 
         while (it.hasNext()) {
@@ -493,6 +507,7 @@ public abstract class SIPMessage extends MessageObject implements android.javax.
         }
 
         StringBuilder encoding = new StringBuilder();
+        parseUnparsedHeaders(null);
         synchronized (this.headers) {
             Iterator<SIPHeader> it = this.headers.iterator();
 
@@ -553,11 +568,22 @@ public abstract class SIPMessage extends MessageObject implements android.javax.
         retval.contentLengthHeader = null;
         retval.maxForwardsHeader = null;
         retval.forkId = null;        
+        retval.unparsedHeaderNames = null;
         if (this.headers != null) {
             retval.headers = new ConcurrentLinkedQueue<SIPHeader>();
-            for (Iterator<SIPHeader> iter = headers.iterator(); iter.hasNext();) {
-                SIPHeader hdr = (SIPHeader) iter.next();
-                retval.attachHeader((SIPHeader) hdr.clone());
+            synchronized (this.headers) {
+                for (Iterator<SIPHeader> iter = headers.iterator(); iter.hasNext();) {
+                    SIPHeader hdr = (SIPHeader) iter.next();
+                    if (hdr instanceof UnparsedHeader) {
+                        // Immutable, the copy is parsed on its own if needed.
+                        retval.headers.add(hdr);
+                    } else {
+                        retval.attachHeader((SIPHeader) hdr.clone());
+                    }
+                }
+                if (this.unparsedHeaderNames != null) {
+                    retval.unparsedHeaderNames = new HashSet<String>(this.unparsedHeaderNames);
+                }
             }
 
         }
@@ -599,6 +625,7 @@ public abstract class SIPMessage extends MessageObject implements android.javax.
         }
 
         sprint("List of headers : ");
+        parseUnparsedHeaders(null);
         sprint(headers.toString());
         sprint("messageContent = ");
         sprint("{");
@@ -730,6 +757,7 @@ public abstract class SIPMessage extends MessageObject implements android.javax.
         }
 
         String headerNameLowerCase = SIPHeaderNamesCache.toLowerCase(h.getName());
+        parseUnparsedHeaders(headerNameLowerCase);
         if (replaceFlag) {
             headerTable.remove(headerNameLowerCase);
         } else if (headerTable.containsKey(headerNameLowerCase) && !(h instanceof SIPHeaderList)) {
@@ -800,6 +828,7 @@ public abstract class SIPMessage extends MessageObject implements android.javax.
     public void removeHeader(String headerName, boolean top) {
 
         String headerNameLowerCase = SIPHeaderNamesCache.toLowerCase(headerName);
+        parseUnparsedHeaders(headerNameLowerCase);
         SIPHeader toRemove = (SIPHeader) headerTable.get(headerNameLowerCase);
         // nothing to do then we are done.
         if (toRemove == null)
@@ -858,6 +887,7 @@ public abstract class SIPMessage extends MessageObject implements android.javax.
         if (headerName == null)
             throw new NullPointerException("null arg");
         String headerNameLowerCase = SIPHeaderNamesCache.toLowerCase(headerName);
+        discardUnparsedHeaders(headerNameLowerCase);
         SIPHeader removed = (SIPHeader) headerTable.remove(headerNameLowerCase);
         // nothing to do then we are done.
         if (removed == null)
@@ -978,6 +1008,7 @@ public abstract class SIPMessage extends MessageObject implements android.javax.
      * @return an Iterator for the headers of this message.
      */
     public Iterator<SIPHeader> getHeaders() {
+        parseUnparsedHeaders(null);
         return headers.iterator();
     }
 
@@ -993,6 +1024,7 @@ public abstract class SIPMessage extends MessageObject implements android.javax.
     protected Header getHeaderLowerCase(String lowerCaseHeaderName) {
         if (lowerCaseHeaderName == null)
             throw new NullPointerException("bad name");
+        parseUnparsedHeaders(lowerCaseHeaderName);
         SIPHeader sipHeader = (SIPHeader) headerTable.get(lowerCaseHeaderName);
         if (sipHeader instanceof SIPHeaderList)
             return (Header) ((SIPHeaderList) sipHeader).getFirst();
@@ -1463,8 +1495,9 @@ public abstract class SIPMessage extends MessageObject implements android.javax.
     public ListIterator<SIPHeader> getHeaders(String headerName) {
         if (headerName == null)
             throw new NullPointerException("null headerName");
-        SIPHeader sipHeader = (SIPHeader) headerTable.get(SIPHeaderNamesCache
-                .toLowerCase(headerName));
+        String lowerCaseHeaderName = SIPHeaderNamesCache.toLowerCase(headerName);
+        parseUnparsedHeaders(lowerCaseHeaderName);
+        SIPHeader sipHeader = (SIPHeader) headerTable.get(lowerCaseHeaderName);
         // empty iterator
         if (sipHeader == null)
             return new LinkedList<SIPHeader>().listIterator();
@@ -1484,6 +1517,7 @@ public abstract class SIPMessage extends MessageObject implements android.javax.
      */
     public String getHeaderAsFormattedString(String name) {
         String lowerCaseName = SIPHeaderNamesCache.toLowerCase(name);
+        parseUnparsedHeaders(lowerCaseName);
         if (this.headerTable.containsKey(lowerCaseName)) {
             return this.headerTable.get(lowerCaseName).toString();
         } else {
@@ -1492,6 +1526,7 @@ public abstract class SIPMessage extends MessageObject implements android.javax.
     }
 
     public SIPHeader getSIPHeaderListLowerCase(String lowerCaseHeaderName) {
+        parseUnparsedHeaders(lowerCaseHeaderName);
         return headerTable.get(lowerCaseHeaderName);
     }
 
@@ -1503,8 +1538,9 @@ public abstract class SIPMessage extends MessageObject implements android.javax.
      */
     @SuppressWarnings("unchecked")
     private List<SIPHeader> getHeaderList(String headerName) {
-        SIPHeader sipHeader = (SIPHeader) headerTable.get(SIPHeaderNamesCache
-                .toLowerCase(headerName));
+        String lowerCaseHeaderName = SIPHeaderNamesCache.toLowerCase(headerName);
+        parseUnparsedHeaders(lowerCaseHeaderName);
+        SIPHeader sipHeader = (SIPHeader) headerTable.get(lowerCaseHeaderName);
         if (sipHeader == null)
             return null;
         else if (sipHeader instanceof SIPHeaderList)
@@ -1523,7 +1559,17 @@ public abstract class SIPMessage extends MessageObject implements android.javax.
      * @return true if the header is present in the message
      */
     public boolean hasHeader(String headerName) {
-        return headerTable.containsKey(SIPHeaderNamesCache.toLowerCase(headerName));
+        String lowerCaseHeaderName = SIPHeaderNamesCache.toLowerCase(headerName);
+        if (headerTable.containsKey(lowerCaseHeaderName)) {
+            return true;
+        }
+        if (unparsedHeaderNames != null) {
+            synchronized (headers) {
+                return unparsedHeaderNames != null
+                        && unparsedHeaderNames.contains(lowerCaseHeaderName);
+            }
+        }
+        return false;
     }
 
     /**
@@ -1641,6 +1687,150 @@ public abstract class SIPMessage extends MessageObject implements android.javax.
         }
     }
 
+    /**
+     * Attach a header line without parsing it. The line is parsed the first
+     * time the header is accessed, or when the message is encoded, cloned
+     * or its headers iterated. A malformed header is then kept as it came,
+     * as an extension header, so that it is still found (and hasHeader
+     * agrees with getHeader) though it is not reported to the parse
+     * exception listener. Used by the message parser in lazy header
+     * parsing mode.
+     *
+     * @param lowerCaseHeaderName -- lower case (long form) name of the header.
+     * @param headerLine -- the header line, without the line terminator.
+     */
+    public void attachUnparsedHeader(String lowerCaseHeaderName, String headerLine) {
+        synchronized (headers) {
+            if (headerTable.containsKey(lowerCaseHeaderName)) {
+                // Keep the order of the values of the header.
+                parseHeaderLine(headerLine);
+                return;
+            }
+            if (unparsedHeaderNames == null) {
+                unparsedHeaderNames = new HashSet<String>();
+            }
+            unparsedHeaderNames.add(lowerCaseHeaderName);
+            headers.add(new UnparsedHeader(lowerCaseHeaderName, headerLine));
+        }
+    }
+
+    /**
+     * Parse the headers attached unparsed, in place in the list of headers.
+     *
+     * @param lowerCaseHeaderName -- the name of the headers to parse or null
+     *        to parse all of them.
+     */
+    private void parseUnparsedHeaders(String lowerCaseHeaderName) {
+        if (unparsedHeaderNames == null) {
+            return;
+        }
+        synchronized (headers) {
+            Set<String> names = unparsedHeaderNames;
+            if (names == null) {
+                return;
+            }
+            if (lowerCaseHeaderName == null) {
+                names.clear();
+            } else if (!names.remove(lowerCaseHeaderName)) {
+                return;
+            }
+            if (names.isEmpty()) {
+                unparsedHeaderNames = null;
+            }
+            // Put the headers back one by one so that the parsed ones take
+            // the place of their line.
+            Object[] currentHeaders = headers.toArray();
+            headers.clear();
+            for (int i = 0; i < currentHeaders.length; i++) {
+                SIPHeader sipHeader = (SIPHeader) currentHeaders[i];
+                if (sipHeader instanceof UnparsedHeader) {
+                    UnparsedHeader unparsed = (UnparsedHeader) sipHeader;
+                    if (lowerCaseHeaderName == null
+                            || lowerCaseHeaderName.equals(unparsed.lowerCaseName)) {
+                        parseHeaderLine(unparsed.line);
+                        continue;
+                    }
+                }
+                headers.add(sipHeader);
+            }
+        }
+    }
+
+    /**
+     * Drop the headers of the given name attached unparsed.
+     */
+    private void discardUnparsedHeaders(String lowerCaseHeaderName) {
+        if (unparsedHeaderNames == null) {
+            return;
+        }
+        synchronized (headers) {
+            if (unparsedHeaderNames == null
+                    || !unparsedHeaderNames.remove(lowerCaseHeaderName)) {
+                return;
+            }
+            if (unparsedHeaderNames.isEmpty()) {
+                unparsedHeaderNames = null;
+            }
+            Iterator<SIPHeader> li = headers.iterator();
+            while (li.hasNext()) {
+                SIPHeader sipHeader = li.next();
+                if (sipHeader instanceof UnparsedHeader
+                        && lowerCaseHeaderName.equals(((UnparsedHeader) sipHeader).lowerCaseName)) {
+                    li.remove();
+                }
+            }
+        }
+    }
+
+    private void parseHeaderLine(String headerLine) {
+        SIPHeader sipHeader;
+        try {
+            sipHeader = ParserFactory.createParser(headerLine.concat("\n")).parse();
+        } catch (ParseException ex) {
+            // Malformed header, kept with its raw value under the name it
+            // came with.
+            int colon = headerLine.indexOf(':');
+            ExtensionHeaderImpl rawHeader = new ExtensionHeaderImpl(headerLine
+                    .substring(0, colon).trim());
+            rawHeader.setValue(headerLine.substring(colon + 1).trim());
+            sipHeader = rawHeader;
+        }
+        try {
+            attachHeader(sipHeader, false);
+        } catch (SIPDuplicateHeaderException ex) {
+            // Second value of a single valued header, dropped as the message
+            // parser does when there is no parse exception listener.
+        }
+    }
+
+    /**
+     * Place holder of a header attached unparsed, in the list of headers. It
+     * keeps the position of the header until it is parsed and never leaves
+     * this class: the pending headers are parsed before the list is walked.
+     */
+    private static final class UnparsedHeader extends SIPHeader {
+
+        private static final long serialVersionUID = 1L;
+
+        private final String lowerCaseName;
+
+        private final String line;
+
+        UnparsedHeader(String lowerCaseName, String line) {
+            super(lowerCaseName);
+            this.lowerCaseName = lowerCaseName;
+            this.line = line;
+        }
+
+        public StringBuilder encode(StringBuilder buffer) {
+            return buffer.append(line).append(NEWLINE);
+        }
+
+        protected StringBuilder encodeBody(StringBuilder buffer) {
+            return buffer.append(line.substring(line.indexOf(':') + 1).trim());
+        }
+    }
+
     /**
      * Get a list containing the unrecognized headers.
      *
@@ -1657,6 +1847,7 @@ public abstract class SIPMessage extends MessageObject implements android.javax.
      *         are present in the message.
      */
     public ListIterator<String> getHeaderNames() {
+        parseUnparsedHeaders(null);
         Iterator<SIPHeader> li = this.headers.iterator();
         LinkedList<String> retval = new LinkedList<String>();
         while (li.hasNext()) {
@@ -1677,6 +1868,8 @@ public abstract class SIPMessage extends MessageObject implements android.javax.
             return false;
         }
         SIPMessage otherMessage = (SIPMessage) other;
+        parseUnparsedHeaders(null);
+        otherMessage.parseUnparsedHeaders(null);
         Collection<SIPHeader> values = this.headerTable.values();
         Iterator<SIPHeader> it = values.iterator();
         if (headerTable.size() != otherMessage.headerTable.size()) {
@@ -703,7 +703,7 @@ Caused by: java.text.ParseException: Scheme for contact should be sips:sip:proxy
         // no need to iterate through all headers to create the response since we know which headers
         // we only want to keep and helps the lazy parsing to avoid going through all headers
         for(String headerName : headersToIncludeInResponse) {                	
-        	SIPHeader nextHeader = headerTable.get(headerName);
+        	SIPHeader nextHeader = getSIPHeaderListLowerCase(headerName);
         	if(nextHeader != null) {
         		if(!(nextHeader instanceof RecordRouteList) || (nextHeader instanceof RecordRouteList && mustCopyRR(statusCode))) {
         			try {
@@ -0,0 +1,44 @@
+/*
+* Conditions Of Use
+*
+* This software was developed by employees of the National Institute of
+* Standards and Technology (NIST), an agency of the Federal Government.
+* Pursuant to title 15 Untied States Code Section 105, works of NIST
+* employees are not subject to copyright protection in the United States
+* and are considered to be in the public domain.  As a result, a formal
+* license is not needed to use the software.
+*
+* This software is provided by NIST as a service and is expressly
+* provided "AS IS."  NIST MAKES NO WARRANTY OF ANY KIND, EXPRESS, IMPLIED
+* OR STATUTORY, INCLUDING, WITHOUT LIMITATION, THE IMPLIED WARRANTY OF
+* MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, NON-INFRINGEMENT
+* AND DATA ACCURACY.  NIST does not warrant or make any representations
+* regarding the use of the software or the results thereof, including but
+* not limited to the correctness, accuracy, reliability or usefulness of
+* the software.
+*
+* Permission to use this software is contingent upon your acceptance
+* of the terms of this agreement
+*
+* .
+*
+*/
+package android.gov.nist.javax.sip.parser;
+
+/**
+ * Creates the parser of one kind of header. One factory is registered in the
+ * ParserFactory per header name so that parsers are created with a plain
+ * constructor call instead of reflection.
+ *
+ * @see ParserFactory#addToParserTable(String, HeaderParserFactory)
+ */
+public interface HeaderParserFactory {
+
+    /**
+     * Create a parser for the given header line.
+     *
+     * @param line the header line, terminated by a new line.
+     * @return a parser for the header.
+     */
+    HeaderParser createParser(String line);
+}
@@ -47,4 +47,16 @@ public interface MessageParser {
 	 */
 	SIPMessage parseSIPMessage(byte[] msgBytes, boolean readBody, boolean strict, ParseExceptionListener exhandler) throws ParseException;
 
+	/**
+	 * parse the SIP Message held in msgBytes[offset, offset + length) into a SIPMessage object, without copying the region out of the buffer first
+	 * @param msgBytes a buffer holding the SIP Message received from the network
+	 * @param offset index of the first byte of the SIP Message
+	 * @param length number of bytes of the SIP Message
+	 * @param readBody If the content body should be read or not
+	 * @param exhandler Callback if an exception occurs during the parsing to notify back the stack 
+	 * @return a SIPMessage object that the stack can interact with
+	 * @throws ParseException if a parseexception occurs
+	 */
+	SIPMessage parseSIPMessage(byte[] msgBytes, int offset, int length, boolean readBody, boolean strict, ParseExceptionListener exhandler) throws ParseException;
+
 }
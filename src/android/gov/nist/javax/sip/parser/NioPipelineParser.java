@@ -28,10 +28,10 @@
  ******************************************************************************/
 package android.gov.nist.javax.sip.parser;
 
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
-import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.text.ParseException;
+import java.util.Arrays;
 import java.util.Queue;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
@@ -54,6 +54,11 @@ import android.gov.nist.javax.sip.stack.SIPTransactionStack;
  * message is detected or some DoS trigger terminates it due to excessive amount
  * of bytes per message or line.
  * 
+ * The FSM works on the raw bytes: they are appended to a single message buffer
+ * while header boundaries, Content-Length and Call-ID are found in one pass, so
+ * lines are never turned into Strings here. Once a message is complete its
+ * header block is handed to the message parser as a byte range of that buffer.
+ * 
  * Once parsed it will pass the message to the SIPMessageListener
  *
  * @see SIPMessageListener
@@ -63,7 +68,11 @@ public class NioPipelineParser {
 	
 	private static Logger logger = LoggerFactory.getLogger(NioPipelineParser.class);
 
-	private static final String CRLF = "\r\n";
+	private static final byte[] CONTENT_LENGTH = ContentLength.NAME_LOWER.getBytes();
+	private static final byte[] CALL_ID = CallID.NAME_LOWER.getBytes();
+	private static final int INITIAL_BUFFER_SIZE = 4 * 1024;
+	// Buffers grown past this by a big message are dropped once it is dispatched
+	private static final int MAX_RETAINED_BUFFER_SIZE = 64 * 1024;
 
     /**
      * The message listener that is registered with this parser. (The message
@@ -75,12 +84,9 @@ public class NioPipelineParser {
     private SIPTransactionStack sipStack;
     private MessageParser smp = null;
     boolean isRunning = false;
-	boolean currentStreamEnded = false;
 	boolean readingMessageBodyContents = false;
 	boolean readingHeaderLines = true;
-	boolean partialLineRead = false; // if we didn't receive enough bytes for a full line we expect the line to end in the next batch of bytes
-	String partialLine = "";
-	String callId;
+	boolean isPreviousLineCRLF = false;
 	
 	private ConcurrentHashMap<String, CallIDOrderingStructure> messagesOrderingMap = new ConcurrentHashMap<String, CallIDOrderingStructure>();
 	   
@@ -109,15 +115,18 @@ public class NioPipelineParser {
     }
 	
 	public static class UnparsedMessage {
-		String lines;
+		byte[] lines;
 		byte[] body;
-		public UnparsedMessage(String messageLines, byte[] body) {
+		public UnparsedMessage(byte[] messageLines, byte[] body) {
 			this.lines = messageLines;
 			this.body = body;
 		}
+		public UnparsedMessage(String messageLines, byte[] body) {
+			this(messageLines.getBytes(), body);
+		}
 		
 		public String toString() {
-			return super.toString() + "\n" + lines;
+			return super.toString() + "\n" + new String(lines);
 		}
 	}
 	
@@ -158,7 +167,7 @@ public class NioPipelineParser {
             	synchronized(smp) {
             		unparsedMessage = messagesForCallID.peek();
         			logger.debug( "\nUnparsed message before parser is:\n" + unparsedMessage);
-        			parsedSIPMessage = smp.parseSIPMessage(unparsedMessage.lines.getBytes(), false, false, null);        		
+        			parsedSIPMessage = smp.parseSIPMessage(unparsedMessage.lines, false, false, null);        		
         			if(parsedSIPMessage == null) {
         				// https://java.net/jira/browse/JSIP-503
             			logger.debug( "parsed message is null, probably because of end of stream, empty packets or socket closed "
@@ -184,7 +193,7 @@ public class NioPipelineParser {
             	// is called, the semaphore released and map cleaned up if need be
         		logger.warn("Problem parsing message " + unparsedMessage);
     		}catch (Exception e) {
-            	logger.error("Error occured processing message " + message, e);
+            	logger.error("Error occured processing message " + unparsedMessage, e);
                 // We do not break the TCP connection because other calls use the same socket here
             } finally {            
             	if(!messagePolled) {
@@ -223,8 +232,14 @@ public class NioPipelineParser {
 		
 	}
 	
-	StringBuffer message = new StringBuffer();
-	byte[] messageBody = null;
+	// Bytes of the message being read: header block, then body
+	byte[] messageBuffer = new byte[INITIAL_BUFFER_SIZE];
+	int messageLength = 0;
+	// Start of the header line being read (it may end in a later chunk)
+	int lineStart = 0;
+	int headersLength = 0;
+	int callIdStart = -1;
+	int callIdEnd = -1;
 	int contentLength = 0;
 	int contentReadSoFar = 0;
 	
@@ -233,137 +248,238 @@ public class NioPipelineParser {
 	 *  For TCP the key things to identify are message lines for the headers, parse the Content-Length header
 	 *  and then read the message body (aka message content). For TCP the Content-Length must be 100% accurate.
 	 */
-	private void readStream(InputStream inputStream) throws IOException {
-		boolean isPreviousLineCRLF = false;
-		while(true) { // We read continiously from the bytes we receive and only break where there are no more bytes in the inputStream passed to us
-			if(currentStreamEnded) break; // The stream ends when we have read all bytes in the chunk NIO passed to us
-			else {
-				if(readingHeaderLines) {// We are in state to read header lines right now
-					isPreviousLineCRLF = readMessageSipHeaderLines(inputStream, isPreviousLineCRLF);
-				}
-				if(readingMessageBodyContents) { // We've already read the headers an now we are reading the Contents of the SIP message (which doesn't generally have lines)
-					readMessageBody(inputStream);
-				}
+	private void readStream(byte[] bytes, int offset, int length) throws IOException {
+		int position = offset;
+		int end = offset + length;
+		isPreviousLineCRLF = false;
+		while(position < end) { // We read continiously from the bytes we receive and only break where there are no more bytes in the chunk passed to us
+			if(readingHeaderLines) {// We are in state to read header lines right now
+				position = readMessageSipHeaderLines(bytes, position, end);
+			}
+			if(readingMessageBodyContents) { // We've already read the headers an now we are reading the Contents of the SIP message (which doesn't generally have lines)
+				position = readMessageBody(bytes, position, end);
 			}
 		}
 	}
 	
-	private boolean readMessageSipHeaderLines(InputStream inputStream, boolean isPreviousLineCRLF) throws IOException {
-		boolean crlfReceived = false;
-		String line = readLine(inputStream); // This gives us a full line or if it didn't fit in the byte check it may give us part of the line
-		if(partialLineRead) {
-			partialLine = partialLine + line; // If we are reading partial line again we must concatenate it with the previous partial line to reconstruct the full line
-		} else {
-			line = partialLine + line; // If we reach the end of the line in this chunk we concatenate it with the partial line from the previous buffer to have a full line
-			partialLine = ""; // Reset the partial line so next time we will concatenate empty string instead of the obsolete partial line that we just took care of
-			if(!line.equals(CRLF)) { // CRLF indicates END of message headers by RFC
-				message.append(line); // Collect the line so far in the message buffer (line by line)
-                String lineIgnoreCase = line.toLowerCase();
-                // contribution from Alexander Saveliev compare to lower case as RFC 3261 states (7.3.1 Header Field Format) states that header fields are case-insensitive
-				if(lineIgnoreCase.startsWith(ContentLength.NAME_LOWER)) { // naive Content-Length header parsing to figure out how much bytes of message body must be read after the SIP headers
-					contentLength = Integer.parseInt(line.substring(
-							ContentLength.NAME_LOWER.length()+1).trim());
-				} else if(lineIgnoreCase.startsWith(CallID.NAME_LOWER)) { // naive Content-Length header parsing to figure out how much bytes of message body must be read after the SIP headers
-					callId = line.substring(
-							CallID.NAME_LOWER.length()+1).trim();
+	/*
+	 * Copies header bytes until the end of the header block or of the chunk, handling every
+	 * line as soon as its LF shows up. Returns the position of the first byte not consumed.
+	 */
+	private int readMessageSipHeaderLines(byte[] bytes, int position, int end) throws IOException {
+		while(position < end && readingHeaderLines) {
+			int lineEnd = position;
+			while(lineEnd < end && bytes[lineEnd] != '\n') {
+				lineEnd++;
+			}
+			boolean lineComplete = lineEnd < end;
+			int copyEnd = lineComplete ? lineEnd + 1 : end;
+			append(bytes, position, copyEnd - position);
+			position = copyEnd;
+			if(lineComplete) {
+				processHeaderLine();
+			}
+		}
+		return position;
+	}
+	
+	/*
+	 * Called once messageBuffer[lineStart, messageLength) holds a full line, LF included.
+	 */
+	private void processHeaderLine() {
+		int lineLength = messageLength - lineStart;
+		boolean emptyLine = lineLength == 1 
+				|| (lineLength == 2 && messageBuffer[lineStart] == '\r');
+		if(!emptyLine) { // CRLF indicates END of message headers by RFC
+			isPreviousLineCRLF = false;
+			// contribution from Alexander Saveliev compare to lower case as RFC 3261 states (7.3.1 Header Field Format) states that header fields are case-insensitive
+			int valueStart = headerValueStart(CONTENT_LENGTH, 'l');
+			if(valueStart > 0) { // Content-Length header parsing to figure out how much bytes of message body must be read after the SIP headers
+				contentLength = parseContentLength(valueStart, messageLength);
+			} else {
+				valueStart = headerValueStart(CALL_ID, 'i');
+				if(valueStart > 0) {
+					callIdStart = valueStart;
+					callIdEnd = messageLength;
 				}
-			} else {				
-				if(isPreviousLineCRLF) {
-            		// Handling keepalive ping (double CRLF) as defined per RFC 5626 Section 4.4.1
-                	// sending pong (single CRLF)
-                    logger.debug("KeepAlive Double CRLF received, sending single CRLF as defined per RFC 5626 Section 4.4.1");
-                    logger.debug("~~~ setting isPreviousLineCRLF=false");
+			}
+			lineStart = messageLength;
+			return;
+		}
+		if(isPreviousLineCRLF) {
+    		// Handling keepalive ping (double CRLF) as defined per RFC 5626 Section 4.4.1
+        	// sending pong (single CRLF)
+            logger.debug("KeepAlive Double CRLF received, sending single CRLF as defined per RFC 5626 Section 4.4.1");
+            logger.debug("~~~ setting isPreviousLineCRLF=false");
 
-                	crlfReceived = false;
+            isPreviousLineCRLF = false;
 
-                	try {
-						sipMessageListener.sendSingleCLRF();
-					} catch (Exception e) {						
-						logger.error("A problem occured while trying to send a single CLRF in response to a double CLRF", e);
-					}                	                	
-            	} else {
-            		crlfReceived = true;
-                	logger.debug("Received CRLF");
-                	if(sipMessageListener != null && 
-                			sipMessageListener instanceof ConnectionOrientedMessageChannel) {
-                		((ConnectionOrientedMessageChannel)sipMessageListener).cancelPingKeepAliveTimeoutTaskIfStarted();
-                	}
-            	}
-				if(message.length() > 0) { // if we havent read any headers yet we are between messages and ignore CRLFs
-					readingMessageBodyContents = true;
-					readingHeaderLines = false;
-					partialLineRead = false;
-					message.append(CRLF); // the parser needs CRLF at the end, otherwise fails TODO: Is that a bug?
-					logger.debug("Content Length parsed is " + contentLength);
+        	try {
+				sipMessageListener.sendSingleCLRF();
+			} catch (Exception e) {						
+				logger.error("A problem occured while trying to send a single CLRF in response to a double CLRF", e);
+			}                	                	
+    	} else {
+    		isPreviousLineCRLF = true;
+        	logger.debug("Received CRLF");
+        	if(sipMessageListener != null && 
+        			sipMessageListener instanceof ConnectionOrientedMessageChannel) {
+        		((ConnectionOrientedMessageChannel)sipMessageListener).cancelPingKeepAliveTimeoutTaskIfStarted();
+        	}
+    	}
+		if(lineStart > 0) { // if we havent read any headers yet we are between messages and ignore CRLFs
+			readingMessageBodyContents = true;
+			readingHeaderLines = false;
+			headersLength = messageLength;
+			logger.debug("Content Length parsed is " + contentLength);
 
-					contentReadSoFar = 0;
-					messageBody = new byte[contentLength];
+			contentReadSoFar = 0;
+			ensureCapacity(headersLength + contentLength);
+		} else {
+			messageLength = 0;
+			sizeCounter = maxMessageSize;
+		}
+	}
+	
+	/*
+	 * If the current line is the given header (long or compact form), returns the index of the 
+	 * first byte after the colon, -1 otherwise.
+	 */
+	private int headerValueStart(byte[] lowerCaseName, char compactName) {
+		int i = lineStart;
+		int end = messageLength;
+		if(end - i > lowerCaseName.length && matchesIgnoreCase(lowerCaseName, i)) {
+			i += lowerCaseName.length;
+		} else if((messageBuffer[i] | 0x20) == compactName) {
+			i++;
+		} else {
+			return -1;
+		}
+		while(i < end && (messageBuffer[i] == ' ' || messageBuffer[i] == '\t')) {
+			i++;
+		}
+		return i < end && messageBuffer[i] == ':' ? i + 1 : -1;
+	}
+	
+	private boolean matchesIgnoreCase(byte[] lowerCaseName, int from) {
+		for(int i = 0; i < lowerCaseName.length; i++) {
+			if((messageBuffer[from + i] | 0x20) != lowerCaseName[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	private int parseContentLength(int from, int to) {
+		int value = 0;
+		boolean digitsFound = false;
+		for(int i = from; i < to; i++) {
+			byte b = messageBuffer[i];
+			if(b >= '0' && b <= '9') {
+				value = value * 10 + (b - '0');
+				digitsFound = true;
+				if(value < 0) {
+					throw new NumberFormatException("Content-Length too large");
 				}
-			}			
+			} else if(b != ' ' && b != '\t' && b != '\r' && b != '\n') {
+				throw new NumberFormatException("Bad Content-Length: " + new String(messageBuffer, from, to - from));
+			}
+		}
+		if(!digitsFound) {
+			throw new NumberFormatException("Bad Content-Length: " + new String(messageBuffer, from, to - from));
 		}
-		return crlfReceived;
+		return value;
 	}
 
-	// This method must be called repeatedly until the inputStream returns -1 or some error conditions is triggered
-	private void readMessageBody(InputStream inputStream) throws IOException {
-		int bytesRead = 0;
-		if(contentLength>0) {
-			bytesRead = readChunk(inputStream, messageBody, contentReadSoFar, contentLength-contentReadSoFar);
-			if(bytesRead == -1) {
-				currentStreamEnded = true;
-				bytesRead = 0; // avoid passing by a -1 for a one-off bug when contentReadSoFar gets wrong
-			}
+	// This method must be called repeatedly until the chunk is consumed or some error conditions is triggered
+	private int readMessageBody(byte[] bytes, int position, int end) throws IOException {
+		int bytesRead = Math.min(contentLength - contentReadSoFar, end - position);
+		if(bytesRead > 0) {
+			append(bytes, position, bytesRead);
 		}
 		contentReadSoFar += bytesRead;
 		if(contentReadSoFar == contentLength) { // We have read the full message headers + body
-			sizeCounter = maxMessageSize;
 			readingHeaderLines = true;
 			readingMessageBodyContents = false;
-			final String msgLines = message.toString();
-			message = new StringBuffer();
-			final byte[] msgBodyBytes = messageBody;
-			final int finalContentLength = contentLength;
-			
-			
-			if(PostParseExecutorServices.getPostParseExecutor() != null) {
-				final String callId = this.callId;
-				if(callId == null || callId.trim().length() < 1) {
-					// http://code.google.com/p/jain-sip/issues/detail?id=18
-					// NIO Message with no Call-ID throws NPE
-					throw new IOException("received message with no Call-ID");
-				}
-                // http://dmy999.com/article/34/correct-use-of-concurrenthashmap
-                CallIDOrderingStructure orderingStructure = messagesOrderingMap.get(callId);
+			try {
+				dispatchMessage();
+			} finally {
+				resetMessage();
+			}
+		}
+		return position + bytesRead;
+	}
+	
+	private void dispatchMessage() throws IOException {
+		final byte[] msgBodyBytes = Arrays.copyOfRange(messageBuffer, headersLength, headersLength + contentLength);
+		
+		if(PostParseExecutorServices.getPostParseExecutor() != null) {
+			final String callId = callIdStart < 0 ? null : 
+				new String(messageBuffer, callIdStart, callIdEnd - callIdStart, "UTF-8").trim();
+			if(callId == null || callId.length() < 1) {
+				// http://code.google.com/p/jain-sip/issues/detail?id=18
+				// NIO Message with no Call-ID throws NPE
+				throw new IOException("received message with no Call-ID");
+			}
+            // http://dmy999.com/article/34/correct-use-of-concurrenthashmap
+            CallIDOrderingStructure orderingStructure = messagesOrderingMap.get(callId);
+            if(orderingStructure == null) {
+                CallIDOrderingStructure newCallIDOrderingStructure = new CallIDOrderingStructure();
+                orderingStructure = messagesOrderingMap.putIfAbsent(callId, newCallIDOrderingStructure);
                 if(orderingStructure == null) {
-                    CallIDOrderingStructure newCallIDOrderingStructure = new CallIDOrderingStructure();
-                    orderingStructure = messagesOrderingMap.putIfAbsent(callId, newCallIDOrderingStructure);
-                    if(orderingStructure == null) {
-                        orderingStructure = newCallIDOrderingStructure;       
-                        logger.debug("new CallIDOrderingStructure added for message " + message);
-                    }
+                    orderingStructure = newCallIDOrderingStructure;       
+                    logger.debug("new CallIDOrderingStructure added for call " + callId);
                 }
-                final CallIDOrderingStructure callIDOrderingStructure = orderingStructure;                                 
-                // we add the message to the pending queue of messages to be processed for that call id here 
-                // to avoid blocking other messages with a different call id
-                // that could be processed in parallel
-                callIDOrderingStructure.getMessagesForCallID().offer(new UnparsedMessage(msgLines, msgBodyBytes));                                                                                   
-                
-                PostParseExecutorServices.getPostParseExecutor().execute(new Dispatch(callIDOrderingStructure, callId)); // run in executor thread
-			} else {
-				SIPMessage sipMessage = null;
-				synchronized(smp) {
-					try {
-						sipMessage = smp.parseSIPMessage(msgLines.getBytes(), false, false, null);
-						sipMessage.setMessageContent(msgBodyBytes);
-					} catch (ParseException e) {
-						logger.error("Parsing problem", e);
-					}
+            }
+            final CallIDOrderingStructure callIDOrderingStructure = orderingStructure;                                 
+            // we add the message to the pending queue of messages to be processed for that call id here 
+            // to avoid blocking other messages with a different call id
+            // that could be processed in parallel
+            callIDOrderingStructure.getMessagesForCallID().offer(new UnparsedMessage(
+            		Arrays.copyOf(messageBuffer, headersLength), msgBodyBytes));                                                                                   
+            
+            PostParseExecutorServices.getPostParseExecutor().execute(new Dispatch(callIDOrderingStructure, callId)); // run in executor thread
+		} else {
+			SIPMessage sipMessage = null;
+			synchronized(smp) {
+				try {
+					// The header block is parsed in place, straight from the message buffer
+					sipMessage = smp.parseSIPMessage(messageBuffer, 0, headersLength, false, false, null);
+					sipMessage.setMessageContent(msgBodyBytes);
+				} catch (ParseException e) {
+					logger.error("Parsing problem", e);
 				}
-				this.contentLength = 0;
-				processSIPMessage(sipMessage);
 			}
+			processSIPMessage(sipMessage);
+		}
+	}
+	
+	private void resetMessage() {
+		sizeCounter = maxMessageSize;
+		messageLength = 0;
+		lineStart = 0;
+		headersLength = 0;
+		callIdStart = -1;
+		callIdEnd = -1;
+		contentLength = 0;
+		contentReadSoFar = 0;
+		if(messageBuffer.length > MAX_RETAINED_BUFFER_SIZE) {
+			messageBuffer = new byte[INITIAL_BUFFER_SIZE];
+		}
+	}
+	
+	private void append(byte[] bytes, int offset, int length) {
+		sizeCounter -= length;
+		checkLimits();
+		ensureCapacity(messageLength + length);
+		System.arraycopy(bytes, offset, messageBuffer, messageLength, length);
+		messageLength += length;
+	}
+	
+	private void ensureCapacity(int capacity) {
+		if(capacity > messageBuffer.length) {
+			messageBuffer = Arrays.copyOf(messageBuffer, Math.max(capacity, messageBuffer.length * 2));
 		}
-
 	}
 
 	public void processSIPMessage(SIPMessage message) {
@@ -375,9 +491,26 @@ public class NioPipelineParser {
 	}
 	
 	public synchronized void addBytes(byte[] bytes)  throws Exception{
-		currentStreamEnded = false;
-		ByteArrayInputStream inputStream = new ByteArrayInputStream(bytes);
-		readStream(inputStream);
+		readStream(bytes, 0, bytes.length);
+	}
+	
+	public synchronized void addBytes(byte[] bytes, int offset, int length)  throws Exception{
+		readStream(bytes, offset, length);
+	}
+	
+	/**
+	 * Consumes the remaining bytes of the buffer. Heap buffers are read in place, 
+	 * other buffers are copied once into the message buffer.
+	 */
+	public synchronized void addBytes(ByteBuffer byteBuffer)  throws Exception{
+		if(byteBuffer.hasArray()) {
+			readStream(byteBuffer.array(), byteBuffer.arrayOffset() + byteBuffer.position(), byteBuffer.remaining());
+			byteBuffer.position(byteBuffer.limit());
+		} else {
+			byte[] bytes = new byte[byteBuffer.remaining()];
+			byteBuffer.get(bytes);
+			readStream(bytes, 0, bytes.length);
+		}
 	}
 
 
@@ -440,78 +573,8 @@ public class NioPipelineParser {
         sipMessageListener = mlistener;
     }
     
-	private int readChunk(InputStream inputStream, byte[] where, int offset, int length) throws IOException {
-		int read =  inputStream.read(where, offset, length);
-		sizeCounter -= read;
-		checkLimits();
-		return read;
-	}
-	
-	private int readSingleByte(InputStream inputStream) throws IOException {
-		sizeCounter --;
-		checkLimits();
-		return inputStream.read();
-	}
-	
 	private void checkLimits() {
 		if(maxMessageSize > 0 && sizeCounter < 0) throw new RuntimeException("Max Message Size Exceeded " + maxMessageSize);
 	}
 
-    /**
-     * read a line of input. Note that we encode the result in UTF-8
-     */
-    private String readLine(InputStream inputStream) throws IOException {
-    	partialLineRead = false;
-        int counter = 0;
-        int increment = 1024;
-        int bufferSize = increment;
-        byte[] lineBuffer = new byte[bufferSize];
-        // handles RFC 5626 CRLF keepalive mechanism
-        byte[] crlfBuffer = new byte[2];
-        int crlfCounter = 0;
-        while (true) {
-            char ch;
-            int i = readSingleByte(inputStream);
-            if (i == -1) {
-                partialLineRead = true;
-                currentStreamEnded = true;
-                break;
-            } else
-                ch = (char) ( i & 0xFF);
-            
-            if (ch != '\r')
-                lineBuffer[counter++] = (byte) (i&0xFF);
-            else if (counter == 0)            	
-            	crlfBuffer[crlfCounter++] = (byte) '\r';
-                       
-            if (ch == '\n') {
-            	if(counter == 1 && crlfCounter > 0) {
-            		crlfBuffer[crlfCounter++] = (byte) '\n';            		
-            	} 
-            	break;            	
-            }
-            
-            if( counter == bufferSize ) {
-                byte[] tempBuffer = new byte[bufferSize + increment];
-                System.arraycopy((Object)lineBuffer,0, (Object)tempBuffer, 0, bufferSize);
-                bufferSize = bufferSize + increment;
-                lineBuffer = tempBuffer;
-                
-            }
-        }
-        if(counter == 1 && crlfCounter > 0) {
-        	return new String(crlfBuffer,0,crlfCounter,"UTF-8");
-        } else {
-        	String lineRead = new String(lineBuffer,0,counter,"UTF-8");
-                //In case \r\n are not in the same chunk, wait for the rest
-                //fixes https://github.com/RestComm/jain-sip/issues/48
-                if (crlfCounter == 1) {
-                    lineRead = lineRead + "\r";
-                }
-                return lineRead;
-        }
-        
-    }
-    
-
 }
\ No newline at end of file
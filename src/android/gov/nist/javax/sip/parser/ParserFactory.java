@@ -25,7 +25,6 @@
 */
 package android.gov.nist.javax.sip.parser;
 import android.gov.nist.core.InternalErrorHandler;
-import android.gov.nist.javax.sip.header.SIPHeaderNamesCache;
 import android.gov.nist.javax.sip.header.extensions.Join;
 import android.gov.nist.javax.sip.header.extensions.MinSE;
 import android.gov.nist.javax.sip.header.extensions.References;
@@ -81,6 +80,7 @@ import android.gov.nist.javax.sip.parser.ims.ServiceRouteParser;
 
 import java.lang.reflect.Constructor;
 import java.text.ParseException;
+import java.util.Iterator;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 
@@ -151,250 +151,522 @@ import android.javax.sip.header.WarningHeader;
  */
 public class ParserFactory {
 	//jeand : moving to concurrent structures to avoid blocking witnessed during profiling
-    private static Map<String,Class<? extends HeaderParser>> parserTable;
-    private static Class[] constructorArgs;
-    private static ConcurrentHashMap<Class, Constructor> parserConstructorCache;
+    private static Map<String,HeaderParserFactory> parserTable;
+    /*
+     * Read only snapshot of the parser table used for the lookups, rebuilt
+     * whenever a parser is added so that the parsing threads never lock.
+     */
+    private static volatile LookupTable lookupTable;
 
     static {
-        parserTable = new ConcurrentHashMap<String,Class<? extends HeaderParser>>(90);
-        parserConstructorCache = new ConcurrentHashMap<Class, Constructor>();
-        constructorArgs = new Class[1];
-        constructorArgs[0] = String.class;
-        parserTable.put(ReplyToHeader.NAME.toLowerCase(), ReplyToParser.class);
+        parserTable = new ConcurrentHashMap<String,HeaderParserFactory>(90);
+        parserTable.put(ReplyToHeader.NAME.toLowerCase(), new HeaderParserFactory() {
+            public HeaderParser createParser(String line) {
+                return new ReplyToParser(line);
+            }
+        });
 
-        parserTable.put(
-            InReplyToHeader.NAME.toLowerCase(),
-            InReplyToParser.class);
+        parserTable.put(InReplyToHeader.NAME.toLowerCase(), new HeaderParserFactory() {
+            public HeaderParser createParser(String line) {
+                return new InReplyToParser(line);
+            }
+        });
 
-        parserTable.put(
-            AcceptEncodingHeader.NAME.toLowerCase(),
-            AcceptEncodingParser.class);
+        parserTable.put(AcceptEncodingHeader.NAME.toLowerCase(), new HeaderParserFactory() {
+            public HeaderParser createParser(String line) {
+                return new AcceptEncodingParser(line);
+            }
+        });
 
-        parserTable.put(
-            AcceptLanguageHeader.NAME.toLowerCase(),
-            AcceptLanguageParser.class);
+        parserTable.put(AcceptLanguageHeader.NAME.toLowerCase(), new HeaderParserFactory() {
+            public HeaderParser createParser(String line) {
+                return new AcceptLanguageParser(line);
+            }
+        });
 
-        parserTable.put("t", ToParser.class);
-        parserTable.put(ToHeader.NAME.toLowerCase(), ToParser.class);
+        parserTable.put("t", new HeaderParserFactory() {
+            public HeaderParser createParser(String line) {
+                return new ToParser(line);
+            }
+        });
+        parserTable.put(ToHeader.NAME.toLowerCase(), parserTable.get("t"));
 
-        parserTable.put(FromHeader.NAME.toLowerCase(), FromParser.class);
-        parserTable.put("f", FromParser.class);
+        parserTable.put(FromHeader.NAME.toLowerCase(), new HeaderParserFactory() {
+            public HeaderParser createParser(String line) {
+                return new FromParser(line);
+            }
+        });
+        parserTable.put("f", parserTable.get(FromHeader.NAME.toLowerCase()));
 
-        parserTable.put(CSeqHeader.NAME.toLowerCase(), CSeqParser.class);
+        parserTable.put(CSeqHeader.NAME.toLowerCase(), new HeaderParserFactory() {
+            public HeaderParser createParser(String line) {
+                return new CSeqParser(line);
+            }
+        });
 
-        parserTable.put(ViaHeader.NAME.toLowerCase(), ViaParser.class);
-        parserTable.put("v", ViaParser.class);
+        parserTable.put(ViaHeader.NAME.toLowerCase(), new HeaderParserFactory() {
+            public HeaderParser createParser(String line) {
+                return new ViaParser(line);
+            }
+        });
+        parserTable.put("v", parserTable.get(ViaHeader.NAME.toLowerCase()));
 
-        parserTable.put(ContactHeader.NAME.toLowerCase(), ContactParser.class);
-        parserTable.put("m", ContactParser.class);
+        parserTable.put(ContactHeader.NAME.toLowerCase(), new HeaderParserFactory() {
+            public HeaderParser createParser(String line) {
+                return new ContactParser(line);
+            }
+        });
+        parserTable.put("m", parserTable.get(ContactHeader.NAME.toLowerCase()));
 
-        parserTable.put(
-            ContentTypeHeader.NAME.toLowerCase(),
-            ContentTypeParser.class);
-        parserTable.put("c", ContentTypeParser.class);
+        parserTable.put(ContentTypeHeader.NAME.toLowerCase(), new HeaderParserFactory() {
+            public HeaderParser createParser(String line) {
+                return new ContentTypeParser(line);
+            }
+        });
+        parserTable.put("c", parserTable.get(ContentTypeHeader.NAME.toLowerCase()));
 
-        parserTable.put(
-            ContentLengthHeader.NAME.toLowerCase(),
-            ContentLengthParser.class);
-        parserTable.put("l", ContentLengthParser.class);
+        parserTable.put(ContentLengthHeader.NAME.toLowerCase(), new HeaderParserFactory() {
+            public HeaderParser createParser(String line) {
+                return new ContentLengthParser(line);
+            }
+        });
+        parserTable.put("l", parserTable.get(ContentLengthHeader.NAME.toLowerCase()));
 
-        parserTable.put(
-            AuthorizationHeader.NAME.toLowerCase(),
-            AuthorizationParser.class);
+        parserTable.put(AuthorizationHeader.NAME.toLowerCase(), new HeaderParserFactory() {
+            public HeaderParser createParser(String line) {
+                return new AuthorizationParser(line);
+            }
+        });
 
-        parserTable.put(
-            WWWAuthenticateHeader.NAME.toLowerCase(),
-            WWWAuthenticateParser.class);
+        parserTable.put(WWWAuthenticateHeader.NAME.toLowerCase(), new HeaderParserFactory() {
+            public HeaderParser createParser(String line) {
+                return new WWWAuthenticateParser(line);
+            }
+        });
 
-        parserTable.put(CallIdHeader.NAME.toLowerCase(), CallIDParser.class);
-        parserTable.put("i", CallIDParser.class);
+        parserTable.put(CallIdHeader.NAME.toLowerCase(), new HeaderParserFactory() {
+            public HeaderParser createParser(String line) {
+                return new CallIDParser(line);
+            }
+        });
+        parserTable.put("i", parserTable.get(CallIdHeader.NAME.toLowerCase()));
 
-        parserTable.put(RouteHeader.NAME.toLowerCase(), RouteParser.class);
+        parserTable.put(RouteHeader.NAME.toLowerCase(), new HeaderParserFactory() {
+            public HeaderParser createParser(String line) {
+                return new RouteParser(line);
+            }
+        });
 
-        parserTable.put(
-            RecordRouteHeader.NAME.toLowerCase(),
-            RecordRouteParser.class);
+        parserTable.put(RecordRouteHeader.NAME.toLowerCase(), new HeaderParserFactory() {
+            public HeaderParser createParser(String line) {
+                return new RecordRouteParser(line);
+            }
+        });
 
-        parserTable.put(DateHeader.NAME.toLowerCase(), DateParser.class);
+        parserTable.put(DateHeader.NAME.toLowerCase(), new HeaderParserFactory() {
+            public HeaderParser createParser(String line) {
+                return new DateParser(line);
+            }
+        });
 
-        parserTable.put(
-            ProxyAuthorizationHeader.NAME.toLowerCase(),
-            ProxyAuthorizationParser.class);
+        parserTable.put(ProxyAuthorizationHeader.NAME.toLowerCase(), new HeaderParserFactory() {
+            public HeaderParser createParser(String line) {
+                return new ProxyAuthorizationParser(line);
+            }
+        });
 
-        parserTable.put(
-            ProxyAuthenticateHeader.NAME.toLowerCase(),
-            ProxyAuthenticateParser.class);
+        parserTable.put(ProxyAuthenticateHeader.NAME.toLowerCase(), new HeaderParserFactory() {
+            public HeaderParser createParser(String line) {
+                return new ProxyAuthenticateParser(line);
+            }
+        });
 
-        parserTable.put(
-            RetryAfterHeader.NAME.toLowerCase(),
-            RetryAfterParser.class);
+        parserTable.put(RetryAfterHeader.NAME.toLowerCase(), new HeaderParserFactory() {
+            public HeaderParser createParser(String line) {
+                return new RetryAfterParser(line);
+            }
+        });
 
-        parserTable.put(RequireHeader.NAME.toLowerCase(), RequireParser.class);
+        parserTable.put(RequireHeader.NAME.toLowerCase(), new HeaderParserFactory() {
+            public HeaderParser createParser(String line) {
+                return new RequireParser(line);
+            }
+        });
 
-        parserTable.put(
-            ProxyRequireHeader.NAME.toLowerCase(),
-            ProxyRequireParser.class);
+        parserTable.put(ProxyRequireHeader.NAME.toLowerCase(), new HeaderParserFactory() {
+            public HeaderParser createParser(String line) {
+                return new ProxyRequireParser(line);
+            }
+        });
 
-        parserTable.put(
-            TimeStampHeader.NAME.toLowerCase(),
-            TimeStampParser.class);
+        parserTable.put(TimeStampHeader.NAME.toLowerCase(), new HeaderParserFactory() {
+            public HeaderParser createParser(String line) {
+                return new TimeStampParser(line);
+            }
+        });
 
-        parserTable.put(
-            UnsupportedHeader.NAME.toLowerCase(),
-            UnsupportedParser.class);
+        parserTable.put(UnsupportedHeader.NAME.toLowerCase(), new HeaderParserFactory() {
+            public HeaderParser createParser(String line) {
+                return new UnsupportedParser(line);
+            }
+        });
 
-        parserTable.put(
-            UserAgentHeader.NAME.toLowerCase(),
-            UserAgentParser.class);
+        parserTable.put(UserAgentHeader.NAME.toLowerCase(), new HeaderParserFactory() {
+            public HeaderParser createParser(String line) {
+                return new UserAgentParser(line);
+            }
+        });
 
-        parserTable.put(
-            SupportedHeader.NAME.toLowerCase(),
-            SupportedParser.class);
+        parserTable.put(SupportedHeader.NAME.toLowerCase(), new HeaderParserFactory() {
+            public HeaderParser createParser(String line) {
+                return new SupportedParser(line);
+            }
+        });
         // bug fix by Steve Crosley
-        parserTable.put("k", SupportedParser.class);
+        parserTable.put("k", parserTable.get(SupportedHeader.NAME.toLowerCase()));
 
-        parserTable.put(ServerHeader.NAME.toLowerCase(), ServerParser.class);
+        parserTable.put(ServerHeader.NAME.toLowerCase(), new HeaderParserFactory() {
+            public HeaderParser createParser(String line) {
+                return new ServerParser(line);
+            }
+        });
 
-        parserTable.put(SubjectHeader.NAME.toLowerCase(), SubjectParser.class);
-        parserTable.put( "s", SubjectParser.class); // JvB: added
+        parserTable.put(SubjectHeader.NAME.toLowerCase(), new HeaderParserFactory() {
+            public HeaderParser createParser(String line) {
+                return new SubjectParser(line);
+            }
+        });
+        parserTable.put("s", parserTable.get(SubjectHeader.NAME.toLowerCase())); // JvB: added
 
-        parserTable.put(
-            SubscriptionStateHeader.NAME.toLowerCase(),
-            SubscriptionStateParser.class);
+        parserTable.put(SubscriptionStateHeader.NAME.toLowerCase(), new HeaderParserFactory() {
+            public HeaderParser createParser(String line) {
+                return new SubscriptionStateParser(line);
+            }
+        });
 
-        parserTable.put(
-            MaxForwardsHeader.NAME.toLowerCase(),
-            MaxForwardsParser.class);
+        parserTable.put(MaxForwardsHeader.NAME.toLowerCase(), new HeaderParserFactory() {
+            public HeaderParser createParser(String line) {
+                return new MaxForwardsParser(line);
+            }
+        });
 
-        parserTable.put(
-            MimeVersionHeader.NAME.toLowerCase(),
-            MimeVersionParser.class);
+        parserTable.put(MimeVersionHeader.NAME.toLowerCase(), new HeaderParserFactory() {
+            public HeaderParser createParser(String line) {
+                return new MimeVersionParser(line);
+            }
+        });
 
-        parserTable.put(
-            MinExpiresHeader.NAME.toLowerCase(),
-            MinExpiresParser.class);
+        parserTable.put(MinExpiresHeader.NAME.toLowerCase(), new HeaderParserFactory() {
+            public HeaderParser createParser(String line) {
+                return new MinExpiresParser(line);
+            }
+        });
 
-        parserTable.put(
-            OrganizationHeader.NAME.toLowerCase(),
-            OrganizationParser.class);
+        parserTable.put(OrganizationHeader.NAME.toLowerCase(), new HeaderParserFactory() {
+            public HeaderParser createParser(String line) {
+                return new OrganizationParser(line);
+            }
+        });
 
-        parserTable.put(
-            PriorityHeader.NAME.toLowerCase(),
-            PriorityParser.class);
+        parserTable.put(PriorityHeader.NAME.toLowerCase(), new HeaderParserFactory() {
+            public HeaderParser createParser(String line) {
+                return new PriorityParser(line);
+            }
+        });
 
-        parserTable.put(RAckHeader.NAME.toLowerCase(), RAckParser.class);
+        parserTable.put(RAckHeader.NAME.toLowerCase(), new HeaderParserFactory() {
+            public HeaderParser createParser(String line) {
+                return new RAckParser(line);
+            }
+        });
 
-        parserTable.put(RSeqHeader.NAME.toLowerCase(), RSeqParser.class);
+        parserTable.put(RSeqHeader.NAME.toLowerCase(), new HeaderParserFactory() {
+            public HeaderParser createParser(String line) {
+                return new RSeqParser(line);
+            }
+        });
 
-        parserTable.put(ReasonHeader.NAME.toLowerCase(), ReasonParser.class);
+        parserTable.put(ReasonHeader.NAME.toLowerCase(), new HeaderParserFactory() {
+            public HeaderParser createParser(String line) {
+                return new ReasonParser(line);
+            }
+        });
 
-        parserTable.put(WarningHeader.NAME.toLowerCase(), WarningParser.class);
+        parserTable.put(WarningHeader.NAME.toLowerCase(), new HeaderParserFactory() {
+            public HeaderParser createParser(String line) {
+                return new WarningParser(line);
+            }
+        });
 
-        parserTable.put(ExpiresHeader.NAME.toLowerCase(), ExpiresParser.class);
+        parserTable.put(ExpiresHeader.NAME.toLowerCase(), new HeaderParserFactory() {
+            public HeaderParser createParser(String line) {
+                return new ExpiresParser(line);
+            }
+        });
 
-        parserTable.put(EventHeader.NAME.toLowerCase(), EventParser.class);
-        parserTable.put("o", EventParser.class);
+        parserTable.put(EventHeader.NAME.toLowerCase(), new HeaderParserFactory() {
+            public HeaderParser createParser(String line) {
+                return new EventParser(line);
+            }
+        });
+        parserTable.put("o", parserTable.get(EventHeader.NAME.toLowerCase()));
 
-        parserTable.put(
-            ErrorInfoHeader.NAME.toLowerCase(),
-            ErrorInfoParser.class);
+        parserTable.put(ErrorInfoHeader.NAME.toLowerCase(), new HeaderParserFactory() {
+            public HeaderParser createParser(String line) {
+                return new ErrorInfoParser(line);
+            }
+        });
 
-        parserTable.put(
-            ContentLanguageHeader.NAME.toLowerCase(),
-            ContentLanguageParser.class);
+        parserTable.put(ContentLanguageHeader.NAME.toLowerCase(), new HeaderParserFactory() {
+            public HeaderParser createParser(String line) {
+                return new ContentLanguageParser(line);
+            }
+        });
 
-        parserTable.put(
-            ContentEncodingHeader.NAME.toLowerCase(),
-            ContentEncodingParser.class);
-        parserTable.put("e", ContentEncodingParser.class);
+        parserTable.put(ContentEncodingHeader.NAME.toLowerCase(), new HeaderParserFactory() {
+            public HeaderParser createParser(String line) {
+                return new ContentEncodingParser(line);
+            }
+        });
+        parserTable.put("e", parserTable.get(ContentEncodingHeader.NAME.toLowerCase()));
 
-        parserTable.put(
-            ContentDispositionHeader.NAME.toLowerCase(),
-            ContentDispositionParser.class);
+        parserTable.put(ContentDispositionHeader.NAME.toLowerCase(), new HeaderParserFactory() {
+            public HeaderParser createParser(String line) {
+                return new ContentDispositionParser(line);
+            }
+        });
 
-        parserTable.put(
-            CallInfoHeader.NAME.toLowerCase(),
-            CallInfoParser.class);
+        parserTable.put(CallInfoHeader.NAME.toLowerCase(), new HeaderParserFactory() {
+            public HeaderParser createParser(String line) {
+                return new CallInfoParser(line);
+            }
+        });
 
-        parserTable.put(
-            AuthenticationInfoHeader.NAME.toLowerCase(),
-            AuthenticationInfoParser.class);
+        parserTable.put(AuthenticationInfoHeader.NAME.toLowerCase(), new HeaderParserFactory() {
+            public HeaderParser createParser(String line) {
+                return new AuthenticationInfoParser(line);
+            }
+        });
 
-        parserTable.put(AllowHeader.NAME.toLowerCase(), AllowParser.class);
+        parserTable.put(AllowHeader.NAME.toLowerCase(), new HeaderParserFactory() {
+            public HeaderParser createParser(String line) {
+                return new AllowParser(line);
+            }
+        });
 
-        parserTable.put(
-            AllowEventsHeader.NAME.toLowerCase(),
-            AllowEventsParser.class);
-        parserTable.put("u", AllowEventsParser.class);
+        parserTable.put(AllowEventsHeader.NAME.toLowerCase(), new HeaderParserFactory() {
+            public HeaderParser createParser(String line) {
+                return new AllowEventsParser(line);
+            }
+        });
+        parserTable.put("u", parserTable.get(AllowEventsHeader.NAME.toLowerCase()));
 
-        parserTable.put(
-            AlertInfoHeader.NAME.toLowerCase(),
-            AlertInfoParser.class);
+        parserTable.put(AlertInfoHeader.NAME.toLowerCase(), new HeaderParserFactory() {
+            public HeaderParser createParser(String line) {
+                return new AlertInfoParser(line);
+            }
+        });
 
-        parserTable.put(AcceptHeader.NAME.toLowerCase(), AcceptParser.class);
+        parserTable.put(AcceptHeader.NAME.toLowerCase(), new HeaderParserFactory() {
+            public HeaderParser createParser(String line) {
+                return new AcceptParser(line);
+            }
+        });
 
-        parserTable.put(ReferToHeader.NAME.toLowerCase(), ReferToParser.class);
+        parserTable.put(ReferToHeader.NAME.toLowerCase(), new HeaderParserFactory() {
+            public HeaderParser createParser(String line) {
+                return new ReferToParser(line);
+            }
+        });
         // Was missing (bug noticed by Steve Crossley)
-        parserTable.put("r", ReferToParser.class);
+        parserTable.put("r", parserTable.get(ReferToHeader.NAME.toLowerCase()));
 
         // JvB: added to support RFC3903 PUBLISH
-        parserTable.put(SIPETagHeader.NAME.toLowerCase(), SIPETagParser.class);
-        parserTable.put(SIPIfMatchHeader.NAME.toLowerCase(), SIPIfMatchParser.class);
+        parserTable.put(SIPETagHeader.NAME.toLowerCase(), new HeaderParserFactory() {
+            public HeaderParser createParser(String line) {
+                return new SIPETagParser(line);
+            }
+        });
+        parserTable.put(SIPIfMatchHeader.NAME.toLowerCase(), new HeaderParserFactory() {
+            public HeaderParser createParser(String line) {
+                return new SIPIfMatchParser(line);
+            }
+        });
 
         //IMS headers
-        parserTable.put(PAccessNetworkInfoHeader.NAME.toLowerCase(), PAccessNetworkInfoParser.class);
-        parserTable.put(PAssertedIdentityHeader.NAME.toLowerCase(), PAssertedIdentityParser.class);
-        parserTable.put(PPreferredIdentityHeader.NAME.toLowerCase(), PPreferredIdentityParser.class);
-        parserTable.put(PChargingVectorHeader.NAME.toLowerCase(), PChargingVectorParser.class);
-        parserTable.put(PChargingFunctionAddressesHeader.NAME.toLowerCase(), PChargingFunctionAddressesParser.class);
-        parserTable.put(PMediaAuthorizationHeader.NAME.toLowerCase(), PMediaAuthorizationParser.class);
-        parserTable.put(PathHeader.NAME.toLowerCase(), PathParser.class);
-        parserTable.put(PrivacyHeader.NAME.toLowerCase(), PrivacyParser.class);
-        parserTable.put(ServiceRouteHeader.NAME.toLowerCase(), ServiceRouteParser.class);
-        parserTable.put(PVisitedNetworkIDHeader.NAME.toLowerCase(), PVisitedNetworkIDParser.class);
+        parserTable.put(PAccessNetworkInfoHeader.NAME.toLowerCase(), new HeaderParserFactory() {
+            public HeaderParser createParser(String line) {
+                return new PAccessNetworkInfoParser(line);
+            }
+        });
+        parserTable.put(PAssertedIdentityHeader.NAME.toLowerCase(), new HeaderParserFactory() {
+            public HeaderParser createParser(String line) {
+                return new PAssertedIdentityParser(line);
+            }
+        });
+        parserTable.put(PPreferredIdentityHeader.NAME.toLowerCase(), new HeaderParserFactory() {
+            public HeaderParser createParser(String line) {
+                return new PPreferredIdentityParser(line);
+            }
+        });
+        parserTable.put(PChargingVectorHeader.NAME.toLowerCase(), new HeaderParserFactory() {
+            public HeaderParser createParser(String line) {
+                return new PChargingVectorParser(line);
+            }
+        });
+        parserTable.put(PChargingFunctionAddressesHeader.NAME.toLowerCase(), new HeaderParserFactory() {
+            public HeaderParser createParser(String line) {
+                return new PChargingFunctionAddressesParser(line);
+            }
+        });
+        parserTable.put(PMediaAuthorizationHeader.NAME.toLowerCase(), new HeaderParserFactory() {
+            public HeaderParser createParser(String line) {
+                return new PMediaAuthorizationParser(line);
+            }
+        });
+        parserTable.put(PathHeader.NAME.toLowerCase(), new HeaderParserFactory() {
+            public HeaderParser createParser(String line) {
+                return new PathParser(line);
+            }
+        });
+        parserTable.put(PrivacyHeader.NAME.toLowerCase(), new HeaderParserFactory() {
+            public HeaderParser createParser(String line) {
+                return new PrivacyParser(line);
+            }
+        });
+        parserTable.put(ServiceRouteHeader.NAME.toLowerCase(), new HeaderParserFactory() {
+            public HeaderParser createParser(String line) {
+                return new ServiceRouteParser(line);
+            }
+        });
+        parserTable.put(PVisitedNetworkIDHeader.NAME.toLowerCase(), new HeaderParserFactory() {
+            public HeaderParser createParser(String line) {
+                return new PVisitedNetworkIDParser(line);
+            }
+        });
         
         // added for more P-header extensions for IMS :
-        parserTable.put(PServedUserHeader.NAME.toLowerCase(), PServedUserParser.class);
-        parserTable.put(PPreferredServiceHeader.NAME.toLowerCase(), PPreferredServiceParser.class);
-        parserTable.put(PAssertedServiceHeader.NAME.toLowerCase(), PAssertedServiceParser.class);
-        parserTable.put(PProfileKeyHeader.NAME.toLowerCase(), PProfileKeyParser.class);
-        parserTable.put(PUserDatabaseHeader.NAME.toLowerCase(), PUserDatabaseParser.class);
+        parserTable.put(PServedUserHeader.NAME.toLowerCase(), new HeaderParserFactory() {
+            public HeaderParser createParser(String line) {
+                return new PServedUserParser(line);
+            }
+        });
+        parserTable.put(PPreferredServiceHeader.NAME.toLowerCase(), new HeaderParserFactory() {
+            public HeaderParser createParser(String line) {
+                return new PPreferredServiceParser(line);
+            }
+        });
+        parserTable.put(PAssertedServiceHeader.NAME.toLowerCase(), new HeaderParserFactory() {
+            public HeaderParser createParser(String line) {
+                return new PAssertedServiceParser(line);
+            }
+        });
+        parserTable.put(PProfileKeyHeader.NAME.toLowerCase(), new HeaderParserFactory() {
+            public HeaderParser createParser(String line) {
+                return new PProfileKeyParser(line);
+            }
+        });
+        parserTable.put(PUserDatabaseHeader.NAME.toLowerCase(), new HeaderParserFactory() {
+            public HeaderParser createParser(String line) {
+                return new PUserDatabaseParser(line);
+            }
+        });
         
 
-        parserTable.put(PAssociatedURIHeader.NAME.toLowerCase(), PAssociatedURIParser.class);
-        parserTable.put(PCalledPartyIDHeader.NAME.toLowerCase(), PCalledPartyIDParser.class);
+        parserTable.put(PAssociatedURIHeader.NAME.toLowerCase(), new HeaderParserFactory() {
+            public HeaderParser createParser(String line) {
+                return new PAssociatedURIParser(line);
+            }
+        });
+        parserTable.put(PCalledPartyIDHeader.NAME.toLowerCase(), new HeaderParserFactory() {
+            public HeaderParser createParser(String line) {
+                return new PCalledPartyIDParser(line);
+            }
+        });
 
-        parserTable.put(SecurityServerHeader.NAME.toLowerCase(), SecurityServerParser.class);
-        parserTable.put(SecurityClientHeader.NAME.toLowerCase(), SecurityClientParser.class);
-        parserTable.put(SecurityVerifyHeader.NAME.toLowerCase(), SecurityVerifyParser.class);
+        parserTable.put(SecurityServerHeader.NAME.toLowerCase(), new HeaderParserFactory() {
+            public HeaderParser createParser(String line) {
+                return new SecurityServerParser(line);
+            }
+        });
+        parserTable.put(SecurityClientHeader.NAME.toLowerCase(), new HeaderParserFactory() {
+            public HeaderParser createParser(String line) {
+                return new SecurityClientParser(line);
+            }
+        });
+        parserTable.put(SecurityVerifyHeader.NAME.toLowerCase(), new HeaderParserFactory() {
+            public HeaderParser createParser(String line) {
+                return new SecurityVerifyParser(line);
+            }
+        });
 
 
         // Per RFC 3892 (pmusgrave)
-        parserTable.put(ReferredBy.NAME.toLowerCase(), ReferredByParser.class);
-        parserTable.put("b", ReferToParser.class);
+        parserTable.put(ReferredBy.NAME.toLowerCase(), new HeaderParserFactory() {
+            public HeaderParser createParser(String line) {
+                return new ReferredByParser(line);
+            }
+        });
+        parserTable.put("b", parserTable.get(ReferToHeader.NAME.toLowerCase()));
 
         // Per RFC4028 Session Timers (pmusgrave)
-        parserTable.put(SessionExpires.NAME.toLowerCase(), SessionExpiresParser.class);
-        parserTable.put("x", SessionExpiresParser.class);
-        parserTable.put(MinSE.NAME.toLowerCase(), MinSEParser.class);
+        parserTable.put(SessionExpires.NAME.toLowerCase(), new HeaderParserFactory() {
+            public HeaderParser createParser(String line) {
+                return new SessionExpiresParser(line);
+            }
+        });
+        parserTable.put("x", parserTable.get(SessionExpires.NAME.toLowerCase()));
+        parserTable.put(MinSE.NAME.toLowerCase(), new HeaderParserFactory() {
+            public HeaderParser createParser(String line) {
+                return new MinSEParser(line);
+            }
+        });
         // (RFC4028 does not give a short form header for MinSE)
 
         // Per RFC3891 (pmusgrave)
-        parserTable.put(Replaces.NAME.toLowerCase(), ReplacesParser.class);
+        parserTable.put(Replaces.NAME.toLowerCase(), new HeaderParserFactory() {
+            public HeaderParser createParser(String line) {
+                return new ReplacesParser(line);
+            }
+        });
 
         // Per RFC3911 (jean deruelle)
-        parserTable.put(Join.NAME.toLowerCase(), JoinParser.class);
+        parserTable.put(Join.NAME.toLowerCase(), new HeaderParserFactory() {
+            public HeaderParser createParser(String line) {
+                return new JoinParser(line);
+            }
+        });
         
         //http://tools.ietf.org/html/draft-worley-references-05
-        parserTable.put(References.NAME.toLowerCase(), ReferencesParser.class);
-        
+        parserTable.put(References.NAME.toLowerCase(), new HeaderParserFactory() {
+            public HeaderParser createParser(String line) {
+                return new ReferencesParser(line);
+            }
+        });
+
+        lookupTable = new LookupTable(parserTable);
     }
 
     /** 
     * This method is added to support parser extensibility.
     */
     public static void addToParserTable(String headerName, Class<? extends HeaderParser> parserClass) {
-       parserTable.put(headerName.toLowerCase(), parserClass);
+        try {
+            addToParserTable(headerName, new ReflectiveParserFactory(parserClass));
+        } catch (NoSuchMethodException ex) {
+            throw new IllegalArgumentException(parserClass.getName()
+                    + " has no public constructor taking the header line", ex);
+        }
+    }
+
+    /**
+     * Register the factory creating the parsers for the given header name.
+     * Prefer this to the class based method, the parser is then created
+     * without reflection.
+     */
+    public static synchronized void addToParserTable(String headerName, HeaderParserFactory parserFactory) {
+        parserTable.put(headerName.toLowerCase(), parserFactory);
+        lookupTable = new LookupTable(parserTable);
     }
 
     /**
@@ -402,33 +674,101 @@ public class ParserFactory {
      */
     public static HeaderParser createParser(String line)
         throws ParseException {
-        String headerName = Lexer.getHeaderName(line);
-        String headerValue = Lexer.getHeaderValue(line);
-        if (headerName == null || headerValue == null)
+        // The header name is looked up in place in the line, no lower
+        // cased or trimmed copy of it is made.
+        int colon = line == null ? -1 : line.indexOf(':');
+        if (colon < 1)
             throw new ParseException("The header name or value is null", 0);
+        int begin = 0;
+        int end = colon;
+        while (begin < end && line.charAt(begin) <= ' ')
+            begin++;
+        while (end > begin && line.charAt(end - 1) <= ' ')
+            end--;
+
+        HeaderParserFactory parserFactory = lookupTable.get(line, begin, end);
+        if (parserFactory != null) {
+            return parserFactory.createParser(line);
+        } else {
+            // Just generate a generic SIPHeader. We define
+            // parsers only for the above.
+            return new HeaderParser(line);
+        }
+    }
 
-        Class parserClass = (Class) parserTable.get(SIPHeaderNamesCache.toLowerCase(headerName));
-        if (parserClass != null) {
-            try {
-                Constructor cons = (Constructor) parserConstructorCache.get(parserClass);
-                if (cons == null) {
-                    cons = parserClass.getConstructor(constructorArgs);
-                    parserConstructorCache.putIfAbsent(parserClass, cons);
-                }
-                Object[] args = new Object[1];
-                args[0] = line;
-                HeaderParser retval = (HeaderParser) cons.newInstance(args);
-                return retval;
+    /**
+     * Factory for the parsers registered through the class based
+     * addToParserTable method.
+     */
+    private static class ReflectiveParserFactory implements HeaderParserFactory {
+        private final Constructor<? extends HeaderParser> constructor;
 
+        ReflectiveParserFactory(Class<? extends HeaderParser> parserClass)
+                throws NoSuchMethodException {
+            this.constructor = parserClass.getConstructor(String.class);
+        }
+
+        public HeaderParser createParser(String line) {
+            try {
+                return constructor.newInstance(line);
             } catch (Exception ex) {
                 InternalErrorHandler.handleException(ex);
                 return null; // to placate the compiler.
             }
+        }
+    }
+
+    /**
+     * Open addressing table of the header parser factories, keyed by the
+     * lower case header name. Lookups hash and compare the name straight
+     * out of the header line, ignoring ASCII case.
+     */
+    private static class LookupTable {
+        private final String[] names;
+        private final HeaderParserFactory[] factories;
+        private final int mask;
+
+        LookupTable(Map<String, HeaderParserFactory> table) {
+            int capacity = 16;
+            while (capacity < table.size() * 4)
+                capacity <<= 1;
+            names = new String[capacity];
+            factories = new HeaderParserFactory[capacity];
+            mask = capacity - 1;
+            Iterator<Map.Entry<String, HeaderParserFactory>> it = table.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<String, HeaderParserFactory> entry = it.next();
+                String name = entry.getKey();
+                int slot = hash(name, 0, name.length()) & mask;
+                while (names[slot] != null)
+                    slot = (slot + 1) & mask;
+                names[slot] = name;
+                factories[slot] = entry.getValue();
+            }
+        }
 
-        } else {
-            // Just generate a generic SIPHeader. We define
-            // parsers only for the above.
-            return new HeaderParser(line);
+        HeaderParserFactory get(String line, int begin, int end) {
+            int length = end - begin;
+            int slot = hash(line, begin, end) & mask;
+            String name;
+            while ((name = names[slot]) != null) {
+                if (name.length() == length
+                        && name.regionMatches(true, 0, line, begin, length))
+                    return factories[slot];
+                slot = (slot + 1) & mask;
+            }
+            return null;
+        }
+
+        private static int hash(String s, int begin, int end) {
+            int h = 0;
+            for (int i = begin; i < end; i++) {
+                char c = s.charAt(i);
+                if (c >= 'A' && c <= 'Z')
+                    c += 'a' - 'A';
+                h = 31 * h + c;
+            }
+            return h ^ (h >>> 16);
         }
     }
 }
@@ -32,6 +32,8 @@ package android.gov.nist.javax.sip.parser;
 
 import java.io.UnsupportedEncodingException;
 import java.text.ParseException;
+import java.util.HashSet;
+import java.util.Set;
 /*
  * Acknowledgement: 1/12/2007: Yanick Belanger rewrote the parsing loops to make them
  * simpler and quicker.
@@ -52,10 +54,19 @@ import android.gov.nist.javax.sip.header.ExtensionHeaderImpl;
 import android.gov.nist.javax.sip.header.NameMap;
 import android.gov.nist.javax.sip.header.RequestLine;
 import android.gov.nist.javax.sip.header.SIPHeader;
+import android.gov.nist.javax.sip.header.SIPHeaderNamesCache;
 import android.gov.nist.javax.sip.header.StatusLine;
 import android.gov.nist.javax.sip.message.SIPMessage;
 import android.gov.nist.javax.sip.message.SIPRequest;
 import android.gov.nist.javax.sip.message.SIPResponse;
+import android.javax.sip.header.CSeqHeader;
+import android.javax.sip.header.CallIdHeader;
+import android.javax.sip.header.ContentLengthHeader;
+import android.javax.sip.header.ContentTypeHeader;
+import android.javax.sip.header.FromHeader;
+import android.javax.sip.header.MaxForwardsHeader;
+import android.javax.sip.header.ToHeader;
+import android.javax.sip.header.ViaHeader;
 
 /**
  * Parse SIP message and parts of SIP messages such as URI's etc from memory and
@@ -81,6 +92,25 @@ import android.gov.nist.javax.sip.message.SIPResponse;
 public class StringMsgParser implements MessageParser {
 
     protected static boolean computeContentLengthFromMessage = false;
+
+    protected boolean lazyHeaderParsing = false;
+
+    /*
+     * Headers always parsed with the message in lazy header parsing mode:
+     * the ones used to match transactions and dialogs and to read the body.
+     */
+    private static final Set<String> eagerlyParsedHeaders = new HashSet<String>();
+
+    static {
+        eagerlyParsedHeaders.add(ViaHeader.NAME.toLowerCase());
+        eagerlyParsedHeaders.add(FromHeader.NAME.toLowerCase());
+        eagerlyParsedHeaders.add(ToHeader.NAME.toLowerCase());
+        eagerlyParsedHeaders.add(CallIdHeader.NAME.toLowerCase());
+        eagerlyParsedHeaders.add(CSeqHeader.NAME.toLowerCase());
+        eagerlyParsedHeaders.add(MaxForwardsHeader.NAME.toLowerCase());
+        eagerlyParsedHeaders.add(ContentLengthHeader.NAME.toLowerCase());
+        eagerlyParsedHeaders.add(ContentTypeHeader.NAME.toLowerCase());
+    }
     
     private static Logger logger = LoggerFactory.getLogger(StringMsgParser.class);
 
@@ -108,17 +138,39 @@ public class StringMsgParser implements MessageParser {
      * @see ParseExceptionListener
      */
     public SIPMessage parseSIPMessage(byte[] msgBuffer, boolean readBody, boolean strict, ParseExceptionListener parseExceptionListener) throws ParseException {
-        if (msgBuffer == null || msgBuffer.length == 0)
+        if (msgBuffer == null)
             return null;
+        return parseSIPMessage(msgBuffer, 0, msgBuffer.length, readBody, strict, parseExceptionListener);
+    }
 
-        int i = 0;
+    /**
+     * Parse a single SIP Message held in a region of a larger buffer (e.g. a
+     * pooled receive buffer), without copying the region out first.
+     *
+     * @param msgBuffer
+     *            the buffer holding the message.
+     * @param offset
+     *            index of the first byte of the message.
+     * @param length
+     *            number of bytes of the message.
+     * @return a SIPMessage structure (request or response) containing the
+     *         parsed SIP message.
+     * @exception ParseException
+     *                is thrown when an illegal message has been encountered
+     *                (and the rest of the buffer is discarded).
+     * @see #parseSIPMessage(byte[], boolean, boolean, ParseExceptionListener)
+     */
+    public SIPMessage parseSIPMessage(byte[] msgBuffer, int offset, int length, boolean readBody, boolean strict, ParseExceptionListener parseExceptionListener) throws ParseException {
+        if (msgBuffer == null || length == 0)
+            return null;
+
+        int end = offset + length;
+        int i = offset;
 
         // Squeeze out any leading control character.
-        try {
-            while (msgBuffer[i] < 0x20)
-                i++;
-        }
-        catch (ArrayIndexOutOfBoundsException e) {
+        while (i < end && msgBuffer[i] < 0x20)
+            i++;
+        if (i == end) {
             // Array contains only control char, return null.
         	logger.debug("handled only control char so returning null");
             return null;
@@ -134,11 +186,9 @@ public class StringMsgParser implements MessageParser {
             int lineStart = i;
 
             // Find the length of the line.
-            try {
-                while (msgBuffer[i] != '\r' && msgBuffer[i] != '\n')
-                    i++;
-            }
-            catch (ArrayIndexOutOfBoundsException e) {
+            while (i < end && msgBuffer[i] != '\r' && msgBuffer[i] != '\n')
+                i++;
+            if (i == end) {
                 // End of the message.
                 break;
             }
@@ -181,7 +231,7 @@ public class StringMsgParser implements MessageParser {
                 }
             }
 
-            if (msgBuffer[i] == '\r' && msgBuffer.length > i+1 && msgBuffer[i+1] == '\n')
+            if (msgBuffer[i] == '\r' && end > i+1 && msgBuffer[i+1] == '\n')
                 i++;
 
             i++;
@@ -190,18 +240,18 @@ public class StringMsgParser implements MessageParser {
         } while (currentLine.length() > 0); // End do - while
 
         if (message == null) throw new ParseException("Bad message", 0);
-        message.setSize(i);
+        message.setSize(i - offset);
 
         // Check for content legth header
         if (readBody && message.getContentLength() != null ) {
           if ( message.getContentLength().getContentLength() != 0) {
-        	  int bodyLength = msgBuffer.length - i;
+        	  int bodyLength = end - i;
 
               byte[] body = new byte[bodyLength];
               System.arraycopy(msgBuffer, i, body, 0, bodyLength);
               message.setMessageContent(body,!strict,computeContentLengthFromMessage,message.getContentLength().getContentLength());
            } else if (!computeContentLengthFromMessage && message.getContentLength().getContentLength() == 0 & strict) {
-        	   String last4Chars = new String(msgBuffer, msgBuffer.length - 4, 4);
+        	   String last4Chars = new String(msgBuffer, end - 4, 4);
          	   if(!"\r\n\r\n".equals(last4Chars)) {
                    throw new ParseException("Extraneous characters at the end of the message ",i);
                }
@@ -274,9 +324,25 @@ public class StringMsgParser implements MessageParser {
         if (header == null || header.length() == 0)
             return;
 
+        if (lazyHeaderParsing) {
+            // Compact forms are left to the parser, which knows their long
+            // name the headers are looked up with.
+            int colon = header.indexOf(':');
+            if (colon > 1) {
+                String headerName = SIPHeaderNamesCache.toLowerCase(header
+                        .substring(0, colon).trim());
+                if (headerName.length() > 1
+                        && !eagerlyParsedHeaders.contains(headerName)) {
+                    message.attachUnparsedHeader(headerName, header);
+                    return;
+                }
+            }
+        }
+
         HeaderParser headerParser = null;
         try {
-            headerParser = ParserFactory.createParser(header + "\n");
+            // The header lexers expect the line to be terminated.
+            headerParser = ParserFactory.createParser(header.concat("\n"));
         } catch (ParseException ex) {
             // https://java.net/jira/browse/JSIP-456
      	    if (parseExceptionListener != null) {
@@ -508,6 +574,19 @@ public class StringMsgParser implements MessageParser {
         StringMsgParser.computeContentLengthFromMessage = computeContentLengthFromMessage;
     }
 
+    /**
+     * In lazy header parsing mode only the headers needed to match the
+     * message to its transaction and dialog are parsed with the message, the
+     * others are parsed by the message the first time they are accessed.
+     *
+     * The stacks set it on their parsers from LAZY_HEADER_PARSING.
+     *
+     * @see SIPMessage#attachUnparsedHeader(String, String)
+     */
+    public void setLazyHeaderParsing(boolean lazyHeaderParsing) {
+        this.lazyHeaderParsing = lazyHeaderParsing;
+    }
+
 
 
     /**
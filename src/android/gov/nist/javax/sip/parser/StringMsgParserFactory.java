@@ -38,7 +38,11 @@ public class StringMsgParserFactory implements MessageParserFactory {
 	 * @see gov.nist.javax.sip.parser.MessageParserFactory#createMessageParser(gov.nist.javax.sip.stack.SIPTransactionStack)
 	 */
 	public MessageParser createMessageParser(SIPTransactionStack stack) {	
-		return new StringMsgParser();
+		StringMsgParser parser = new StringMsgParser();
+		if (stack != null) {
+			parser.setLazyHeaderParsing(stack.lazyHeaderParsing);
+		}
+		return parser;
 	}
 
 }
@@ -0,0 +1,294 @@
+/*
+ * Conditions Of Use
+ *
+ * This software was developed by employees of the National Institute of
+ * Standards and Technology (NIST), an agency of the Federal Government.
+ * Pursuant to title 15 Untied States Code Section 105, works of NIST
+ * employees are not subject to copyright protection in the United States
+ * and are considered to be in the public domain.  As a result, a formal
+ * license is not needed to use the software.
+ *
+ * This software is provided by NIST as a service and is expressly
+ * provided "AS IS."  NIST MAKES NO WARRANTY OF ANY KIND, EXPRESS, IMPLIED
+ * OR STATUTORY, INCLUDING, WITHOUT LIMITATION, THE IMPLIED WARRANTY OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, NON-INFRINGEMENT
+ * AND DATA ACCURACY.  NIST does not warrant or make any representations
+ * regarding the use of the software or the results thereof, including but
+ * not limited to the correctness, accuracy, reliability or usefulness of
+ * the software.
+ *
+ * Permission to use this software is contingent upon your acceptance
+ * of the terms of this agreement
+ *
+ * .
+ *
+ */
+package android.gov.nist.javax.sip.stack;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Asynchronous writer of the message trace. The threads sending and
+ * receiving messages only encode a record and put it in a bounded ring
+ * buffer; a background thread takes the records by batches and writes them
+ * to the trace file through a FileChannel, rolling over to a new file when
+ * the file grows too large. When the buffer is full the record is dropped
+ * and counted rather than holding back the message processing.
+ *
+ * The file is binary: a header (magic number and version) followed by the
+ * records, each one made of its length (int), a flags byte (1 when the
+ * stack sent the message), the time and the value of the Timestamp header
+ * (longs) and then the from, to, call id, transaction id, first line and
+ * message strings, each one as its length in bytes (int, -1 for null)
+ * followed by its UTF-8 bytes. Use TraceFileDecoder to turn it into the
+ * usual XML trace.
+ *
+ * @see TraceFileDecoder
+ */
+public class AsyncTraceWriter implements Runnable {
+
+    private static Logger logger = LoggerFactory.getLogger(AsyncTraceWriter.class);
+
+    /**
+     * First bytes of a trace file ("JSTR").
+     */
+    public static final int MAGIC = 0x4a535452;
+
+    public static final byte VERSION = 1;
+
+    public static final byte FLAG_SENDER = 1;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final int HEADER_LENGTH = 5;
+
+    private static final int MAX_BATCH = 512;
+
+    private final BlockingQueue<byte[]> pendingRecords;
+
+    private final File file;
+
+    private final long maxFileSize;
+
+    private final int maxFiles;
+
+    private final AtomicLong droppedRecords = new AtomicLong();
+
+    private final AtomicLong writtenRecords = new AtomicLong();
+
+    private final ByteBuffer batchBuffer = ByteBuffer.allocateDirect(64 * 1024);
+
+    private final Thread thread;
+
+    private FileChannel channel;
+
+    private long fileSize;
+
+    private volatile boolean closed;
+
+    /**
+     * Open the trace file and start the writer thread.
+     *
+     * @param fileName the trace file.
+     * @param append true to add to an existing file.
+     * @param capacity the maximum number of records waiting to be written.
+     * @param maxFileSize the size over which the file is rolled over, 0 to
+     *        never roll over.
+     * @param maxFiles the number of rolled over files kept (fileName.1 being
+     *        the most recent).
+     * @throws IOException if the file cannot be opened.
+     */
+    public AsyncTraceWriter(String fileName, boolean append, int capacity, long maxFileSize,
+            int maxFiles) throws IOException {
+        this.file = new File(fileName);
+        this.pendingRecords = new ArrayBlockingQueue<byte[]>(capacity);
+        this.maxFileSize = maxFileSize;
+        this.maxFiles = maxFiles;
+        openFile(append);
+        this.thread = new Thread(this);
+        this.thread.setDaemon(true);
+        this.thread.setName("AsyncTraceWriterThread");
+        this.thread.start();
+    }
+
+    /**
+     * Queue a message record for writing.
+     *
+     * @return false if the record was dropped because the buffer is full.
+     */
+    public boolean append(String message, String from, String to, long time, boolean sender,
+            String firstLine, String tid, String callId, long timeStampHeaderValue) {
+        if (closed) {
+            return false;
+        }
+        byte[][] strings = new byte[][] { bytes(from), bytes(to), bytes(callId), bytes(tid),
+                bytes(firstLine), bytes(message) };
+        int length = 1 + 8 + 8;
+        for (byte[] string : strings) {
+            length += 4 + (string == null ? 0 : string.length);
+        }
+        ByteBuffer record = ByteBuffer.allocate(4 + length);
+        record.putInt(length);
+        record.put(sender ? FLAG_SENDER : 0);
+        record.putLong(time);
+        record.putLong(timeStampHeaderValue);
+        for (byte[] string : strings) {
+            if (string == null) {
+                record.putInt(-1);
+            } else {
+                record.putInt(string.length);
+                record.put(string);
+            }
+        }
+        if (!pendingRecords.offer(record.array())) {
+            droppedRecords.incrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    private static byte[] bytes(String string) {
+        return string == null ? null : string.getBytes(UTF8);
+    }
+
+    public void run() {
+        List<byte[]> batch = new ArrayList<byte[]>(MAX_BATCH);
+        while (true) {
+            try {
+                byte[] record = pendingRecords.poll(100, TimeUnit.MILLISECONDS);
+                if (record == null) {
+                    if (closed) {
+                        break;
+                    }
+                    continue;
+                }
+                batch.add(record);
+                pendingRecords.drainTo(batch, MAX_BATCH - 1);
+                write(batch);
+            } catch (InterruptedException ex) {
+                if (closed) {
+                    break;
+                }
+            } catch (IOException ex) {
+                logger.error("Could not write the message trace to " + file, ex);
+            } finally {
+                batch.clear();
+            }
+        }
+        try {
+            channel.close();
+        } catch (IOException ex) {
+            logger.error("Could not close the message trace " + file, ex);
+        }
+    }
+
+    private void write(List<byte[]> batch) throws IOException {
+        for (byte[] record : batch) {
+            if (maxFileSize > 0 && fileSize + batchBuffer.position() + record.length > maxFileSize
+                    && fileSize + batchBuffer.position() > HEADER_LENGTH) {
+                flush();
+                rollOver();
+            }
+            if (record.length > batchBuffer.remaining()) {
+                flush();
+                if (record.length > batchBuffer.capacity()) {
+                    writeFully(ByteBuffer.wrap(record));
+                    writtenRecords.incrementAndGet();
+                    continue;
+                }
+            }
+            batchBuffer.put(record);
+            writtenRecords.incrementAndGet();
+        }
+        flush();
+    }
+
+    private void flush() throws IOException {
+        batchBuffer.flip();
+        writeFully(batchBuffer);
+        batchBuffer.clear();
+    }
+
+    private void writeFully(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            fileSize += channel.write(buffer);
+        }
+    }
+
+    private void rollOver() throws IOException {
+        channel.close();
+        if (maxFiles > 0) {
+            new File(file.getPath() + "." + maxFiles).delete();
+            for (int i = maxFiles - 1; i > 0; i--) {
+                File rolled = new File(file.getPath() + "." + i);
+                if (rolled.exists()) {
+                    rolled.renameTo(new File(file.getPath() + "." + (i + 1)));
+                }
+            }
+            file.renameTo(new File(file.getPath() + ".1"));
+        }
+        openFile(false);
+    }
+
+    private void openFile(boolean append) throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        channel = randomAccessFile.getChannel();
+        if (append && channel.size() > 0) {
+            fileSize = channel.size();
+            channel.position(fileSize);
+            return;
+        }
+        channel.truncate(0);
+        ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+        header.putInt(MAGIC).put(VERSION).flip();
+        fileSize = 0;
+        writeFully(header);
+    }
+
+    /**
+     * Write the pending records and stop the writer thread.
+     */
+    public void close() {
+        closed = true;
+        try {
+            thread.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return the number of records dropped because the buffer was full.
+     */
+    public long getDroppedRecordsCount() {
+        return droppedRecords.get();
+    }
+
+    /**
+     * @return the number of records written to the trace.
+     */
+    public long getWrittenRecordsCount() {
+        return writtenRecords.get();
+    }
+
+    /**
+     * @return the number of records waiting to be written.
+     */
+    public int getPendingRecordsCount() {
+        return pendingRecords.size();
+    }
+}
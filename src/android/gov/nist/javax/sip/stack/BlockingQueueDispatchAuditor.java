@@ -25,6 +25,8 @@
  */
 package android.gov.nist.javax.sip.stack;
 
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Queue;
 import java.util.Timer;
 import java.util.TimerTask;
@@ -38,10 +40,17 @@ public class BlockingQueueDispatchAuditor extends TimerTask {
   private static Logger logger = LoggerFactory.getLogger(BlockingQueueDispatchAuditor.class);
     private long totalReject = 0;
     private boolean started = false;
-    private Queue<? extends Runnable> queue;
+    private Collection<? extends Queue<? extends Runnable>> queues;
     private int timeout = 8000;
     public BlockingQueueDispatchAuditor(Queue<? extends Runnable> queue) {
-    	this.queue = queue;
+    	this.queues = Collections.singletonList(queue);
+    }
+
+    /**
+     * Audits several queues from a single timer thread.
+     */
+    public BlockingQueueDispatchAuditor(Collection<? extends Queue<? extends Runnable>> queues) {
+    	this.queues = queues;
     }
 
     public void start(int interval) {
@@ -71,15 +80,21 @@ public class BlockingQueueDispatchAuditor extends TimerTask {
     }
 
     public void run() {
+    	for (Queue<? extends Runnable> queue : this.queues) {
+    		audit(queue);
+    	}
+    }
+
+    private void audit(Queue<? extends Runnable> queue) {
     	try {
     		int removed = 0;
-    		synchronized(this.queue) {
-    			QueuedMessageDispatchBase runnable =(QueuedMessageDispatchBase) this.queue.peek();
+    		synchronized(queue) {
+    			QueuedMessageDispatchBase runnable =(QueuedMessageDispatchBase) queue.peek();
     			while(runnable != null) {
     				QueuedMessageDispatchBase d = (QueuedMessageDispatchBase) runnable;
     				if(System.currentTimeMillis() - d.getReceptionTime() > timeout) {
     					queue.poll();
-    					runnable = (QueuedMessageDispatchBase) this.queue.peek();
+    					runnable = (QueuedMessageDispatchBase) queue.peek();
     					removed ++;
     				} else {
     					runnable = null;
@@ -89,7 +104,7 @@ public class BlockingQueueDispatchAuditor extends TimerTask {
     		if(removed>0) {
     			totalReject+=removed;
 				logger.warn("Removed stuck messages=" + removed +
-						" total rejected=" + totalReject + " stil in queue=" + this.queue.size());
+						" total rejected=" + totalReject + " stil in queue=" + queue.size());
     		}
 
     	} catch (Exception e) {
@@ -25,7 +25,17 @@
  */
 package android.gov.nist.javax.sip.stack;
 
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -33,6 +43,16 @@ import org.slf4j.LoggerFactory;
 /**
  * Contributed by Alexander Saveliev, Avistar Communications for Issue http://java.net/jira/browse/JSIP-430
  * Allows to choose between direct vs non direct buffers
+ *
+ * The direct buffers are pooled: allocateDirect hands out a buffer of the
+ * size class (capacity rounded up to a multiple of SIZE_CLASS_GRANULARITY)
+ * of the requested capacity, reusing one given back through release when
+ * there is one. Buffers that are not released are simply left to the garbage
+ * collector, each one being a separate allocation. With leak detection on,
+ * the buffers garbage collected without having been released are reported
+ * along with where they were allocated. The buffers handed out are only
+ * accounted for while leak detection is on, as it is what tells when an
+ * unreleased one is gone.
  * 
  */
 public class ByteBufferFactory {
@@ -41,15 +61,190 @@ public class ByteBufferFactory {
 
     private static ByteBufferFactory instance = new ByteBufferFactory();
 
+    /**
+     * Pooled capacities are rounded up to a multiple of this.
+     */
+    public static final int SIZE_CLASS_GRANULARITY = 1024;
+
+    /**
+     * Larger buffers are not pooled.
+     */
+    public static final int MAX_POOLED_CAPACITY = 256 * 1024;
+
+    public static final long DEFAULT_MAX_POOLED_BYTES = 32 * 1024 * 1024;
+
     private boolean useDirect = true;
 
+    private volatile boolean pooling = true;
+
+    private volatile long maxPooledBytes = DEFAULT_MAX_POOLED_BYTES;
+
+    private volatile boolean leakDetection;
+
+    private final ConcurrentHashMap<Integer, ConcurrentLinkedQueue<ByteBuffer>> sizeClasses =
+            new ConcurrentHashMap<Integer, ConcurrentLinkedQueue<ByteBuffer>>();
+
+    private final AtomicLong liveBytes = new AtomicLong();
+
+    private final AtomicLong pooledBytes = new AtomicLong();
+
+    private final AtomicLong highWaterBytes = new AtomicLong();
+
+    private final AtomicLong poolHits = new AtomicLong();
+
+    private final AtomicLong poolMisses = new AtomicLong();
+
+    /*
+     * Leak detection: the buffers handed out and not released yet, weakly
+     * referenced along with their allocation stack trace, by identity hash
+     * code (keying them by the buffers themselves would keep them alive).
+     */
+    private final Map<Integer, List<LeakTracker>> trackedBuffers =
+            new HashMap<Integer, List<LeakTracker>>();
+
+    private final ReferenceQueue<ByteBuffer> leakedBuffers = new ReferenceQueue<ByteBuffer>();
+
+    private static class LeakTracker extends WeakReference<ByteBuffer> {
+        private final Integer key;
+        private final int capacity;
+        private final Throwable allocationTrace;
+
+        LeakTracker(ByteBuffer buffer, ReferenceQueue<ByteBuffer> queue) {
+            super(buffer, queue);
+            this.key = Integer.valueOf(System.identityHashCode(buffer));
+            this.capacity = buffer.capacity();
+            this.allocationTrace = new Throwable("Buffer of " + capacity
+                    + " bytes allocated here was never released");
+        }
+    }
+
     public static ByteBufferFactory getInstance() {
         return instance;
     }
 
     public ByteBuffer allocateDirect(int capacity) {
         logger.trace("Allocating direct buffer " + capacity);
-        return useDirect ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+        if (!useDirect) {
+            return ByteBuffer.allocate(capacity);
+        }
+        if (!pooling || capacity > MAX_POOLED_CAPACITY) {
+            return ByteBuffer.allocateDirect(capacity);
+        }
+        int sizeClass = sizeClass(capacity);
+        ByteBuffer buffer = null;
+        ConcurrentLinkedQueue<ByteBuffer> pooledBuffers = sizeClasses.get(sizeClass);
+        if (pooledBuffers != null) {
+            buffer = pooledBuffers.poll();
+        }
+        if (buffer != null) {
+            poolHits.incrementAndGet();
+            pooledBytes.addAndGet(-sizeClass);
+            buffer.clear();
+        } else {
+            poolMisses.incrementAndGet();
+            buffer = ByteBuffer.allocateDirect(sizeClass);
+        }
+        long total = pooledBytes.get();
+        if (leakDetection) {
+            reportLeaks();
+            track(buffer);
+            total += liveBytes.addAndGet(sizeClass);
+        }
+        long highWater = highWaterBytes.get();
+        while (total > highWater && !highWaterBytes.compareAndSet(highWater, total)) {
+            highWater = highWaterBytes.get();
+        }
+        return buffer;
+    }
+
+    /**
+     * Give back a buffer obtained from allocateDirect once it is no longer
+     * used, so it can be handed out again. The buffer must be released only
+     * once and not be used afterwards. Buffers that were not pooled are
+     * ignored.
+     *
+     * @param buffer the buffer to give back, may be null.
+     */
+    public void release(ByteBuffer buffer) {
+        if (buffer == null || !pooling || !buffer.isDirect() || buffer.capacity() > MAX_POOLED_CAPACITY
+                || buffer.capacity() % SIZE_CLASS_GRANULARITY != 0) {
+            return;
+        }
+        if (leakDetection) {
+            if (!untrack(buffer)) {
+                logger.warn("Releasing a buffer that is not in use (released twice?)",
+                        new Throwable());
+                return;
+            }
+            liveBytes.addAndGet(-buffer.capacity());
+        }
+        int sizeClass = buffer.capacity();
+        if (pooledBytes.addAndGet(sizeClass) > maxPooledBytes) {
+            pooledBytes.addAndGet(-sizeClass);
+            // Left to the garbage collector.
+            return;
+        }
+        ConcurrentLinkedQueue<ByteBuffer> pooledBuffers = sizeClasses.get(sizeClass);
+        if (pooledBuffers == null) {
+            ConcurrentLinkedQueue<ByteBuffer> newPooledBuffers = new ConcurrentLinkedQueue<ByteBuffer>();
+            pooledBuffers = sizeClasses.putIfAbsent(sizeClass, newPooledBuffers);
+            if (pooledBuffers == null) {
+                pooledBuffers = newPooledBuffers;
+            }
+        }
+        pooledBuffers.offer(buffer);
+    }
+
+    private static int sizeClass(int capacity) {
+        return Math.max(1, (capacity + SIZE_CLASS_GRANULARITY - 1) / SIZE_CLASS_GRANULARITY)
+                * SIZE_CLASS_GRANULARITY;
+    }
+
+    private void track(ByteBuffer buffer) {
+        Integer key = Integer.valueOf(System.identityHashCode(buffer));
+        synchronized (trackedBuffers) {
+            List<LeakTracker> trackers = trackedBuffers.get(key);
+            if (trackers == null) {
+                trackers = new ArrayList<LeakTracker>(1);
+                trackedBuffers.put(key, trackers);
+            }
+            trackers.add(new LeakTracker(buffer, leakedBuffers));
+        }
+    }
+
+    private boolean untrack(ByteBuffer buffer) {
+        Integer key = Integer.valueOf(System.identityHashCode(buffer));
+        synchronized (trackedBuffers) {
+            List<LeakTracker> trackers = trackedBuffers.get(key);
+            if (trackers != null) {
+                for (Iterator<LeakTracker> it = trackers.iterator(); it.hasNext();) {
+                    LeakTracker tracker = it.next();
+                    if (tracker.get() == buffer) {
+                        it.remove();
+                        tracker.clear();
+                        if (trackers.isEmpty()) {
+                            trackedBuffers.remove(key);
+                        }
+                        return true;
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    private void reportLeaks() {
+        LeakTracker tracker;
+        while ((tracker = (LeakTracker) leakedBuffers.poll()) != null) {
+            synchronized (trackedBuffers) {
+                List<LeakTracker> trackers = trackedBuffers.get(tracker.key);
+                if (trackers != null && trackers.remove(tracker) && trackers.isEmpty()) {
+                    trackedBuffers.remove(tracker.key);
+                }
+            }
+            liveBytes.addAndGet(-tracker.capacity);
+            logger.error("Direct buffer leaked", tracker.allocationTrace);
+        }
     }
 
     public ByteBuffer allocate(int capacity) {
@@ -61,4 +256,95 @@ public class ByteBufferFactory {
         logger.trace("Direct buffers are " + (useDirect ? "enabled" : "disabled"));
         this.useDirect = useDirect;
     }
+
+    /**
+     * Enable or disable the pooling of the direct buffers (enabled by
+     * default). Disabling it drops the pooled buffers.
+     */
+    public void setPooling(boolean pooling) {
+        this.pooling = pooling;
+        if (!pooling) {
+            clear();
+        }
+    }
+
+    /**
+     * Set the maximum number of bytes kept in the pool, buffers released
+     * beyond it are left to the garbage collector.
+     */
+    public void setMaxPooledBytes(long maxPooledBytes) {
+        this.maxPooledBytes = maxPooledBytes;
+    }
+
+    /**
+     * Enable the reporting of the buffers garbage collected without having
+     * been released, and of the buffers released twice. This records a stack
+     * trace per allocation so it is meant for debugging. The live bytes are
+     * counted from the time it is enabled.
+     */
+    public void setLeakDetection(boolean leakDetection) {
+        if (this.leakDetection == leakDetection) {
+            return;
+        }
+        synchronized (trackedBuffers) {
+            this.leakDetection = leakDetection;
+            trackedBuffers.clear();
+            while (leakedBuffers.poll() != null) {
+                // Tracked before, not to be reported.
+            }
+            liveBytes.set(0);
+        }
+    }
+
+    /**
+     * Drop all the pooled buffers.
+     */
+    public void clear() {
+        for (ConcurrentLinkedQueue<ByteBuffer> pooledBuffers : sizeClasses.values()) {
+            ByteBuffer buffer;
+            while ((buffer = pooledBuffers.poll()) != null) {
+                pooledBytes.addAndGet(-buffer.capacity());
+            }
+        }
+    }
+
+    /**
+     * @return the bytes of the pooled buffers handed out and not released
+     *         since leak detection was enabled, 0 when it is not.
+     */
+    public long getLiveBytes() {
+        if (leakDetection) {
+            reportLeaks();
+        }
+        return liveBytes.get();
+    }
+
+    /**
+     * @return the bytes of the buffers waiting in the pool.
+     */
+    public long getPooledBytes() {
+        return pooledBytes.get();
+    }
+
+    /**
+     * @return the highest number of live and pooled bytes seen, the live
+     *         bytes counting only while leak detection is on.
+     */
+    public long getHighWaterBytes() {
+        return highWaterBytes.get();
+    }
+
+    /**
+     * @return the number of direct buffers served from the pool.
+     */
+    public long getPoolHits() {
+        return poolHits.get();
+    }
+
+    /**
+     * @return the number of direct buffers that had to be allocated.
+     */
+    public long getPoolMisses() {
+        return poolMisses.get();
+    }
 }
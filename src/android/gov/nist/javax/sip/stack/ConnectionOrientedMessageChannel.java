@@ -31,6 +31,7 @@ import java.net.InetAddress;
 import java.net.Socket;
 import java.text.ParseException;
 import java.util.Iterator;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Semaphore;
 
 import org.slf4j.Logger;
@@ -48,6 +49,7 @@ import android.gov.nist.javax.sip.header.ViaList;
 import android.gov.nist.javax.sip.message.SIPMessage;
 import android.gov.nist.javax.sip.message.SIPRequest;
 import android.gov.nist.javax.sip.message.SIPResponse;
+import android.gov.nist.javax.sip.parser.NioPipelineParser;
 import android.gov.nist.javax.sip.parser.Pipeline;
 import android.gov.nist.javax.sip.parser.PipelinedMsgParser;
 import android.gov.nist.javax.sip.parser.SIPMessageListener;
@@ -520,6 +522,22 @@ public abstract class ConnectionOrientedMessageChannel extends MessageChannel im
     
   
 
+    /**
+     * Starts reading the connection: on a thread of the stack's shared
+     * reader pool when one is configured, else on a thread of its own.
+     */
+    protected void startReader(String threadName) {
+        ExecutorService readers = sipStack.getOioReaderExecutor();
+        if (readers != null) {
+            readers.execute(this);
+            return;
+        }
+        mythread = new Thread(this);
+        mythread.setDaemon(true);
+        mythread.setName(threadName);
+        mythread.start();
+    }
+
     /**
      * This gets invoked when thread.start is called from the constructor.
      * Implements a message loop - reading the tcp connection and processing
@@ -527,27 +545,39 @@ public abstract class ConnectionOrientedMessageChannel extends MessageChannel im
      */
     public void run() {
         Pipeline hispipe = null;
-        // Create a pipeline to connect to our message parser.
-        hispipe = new Pipeline(myClientInputStream, sipStack.readTimeout,
-                ((SIPTransactionStack) sipStack).getTimer());
-        // Create a pipelined message parser to read and parse
-        // messages that we write out to him.
-        myParser = new PipelinedMsgParser(sipStack, this, hispipe,
-                this.sipStack.getMaxMessageSize());
-        // Start running the parser thread.
-        myParser.processInput();
+        NioPipelineParser inlineParser = null;
         // bug fix by Emmanuel Proulx
         int bufferSize = 4096;
+        byte[] readBuffer = null;
+        if (sipStack.oioInlineParsing) {
+            // Parse on the reader thread itself: the parser copies what it is
+            // given, so a single read buffer does for the whole connection.
+            inlineParser = new NioPipelineParser(sipStack, this,
+                    this.sipStack.getMaxMessageSize());
+            readBuffer = new byte[bufferSize];
+        } else {
+            // Create a pipeline to connect to our message parser.
+            hispipe = new Pipeline(myClientInputStream, sipStack.readTimeout,
+                    ((SIPTransactionStack) sipStack).getTimer());
+            // Create a pipelined message parser to read and parse
+            // messages that we write out to him.
+            myParser = new PipelinedMsgParser(sipStack, this, hispipe,
+                    this.sipStack.getMaxMessageSize());
+            // Start running the parser thread.
+            myParser.processInput();
+        }
         ((ConnectionOrientedMessageProcessor)this.messageProcessor).useCount++;
         this.isRunning = true;
         try {
             while (true) {
                 try {
-                    byte[] msg = new byte[bufferSize];
+                    byte[] msg = readBuffer != null ? readBuffer : new byte[bufferSize];
                     int nbytes = myClientInputStream.read(msg, 0, bufferSize);
                     // no more bytes to read...
                     if (nbytes == -1) {
-                        hispipe.write("\r\n\r\n".getBytes("UTF-8"));
+                        if (hispipe != null) {
+                            hispipe.write("\r\n\r\n".getBytes("UTF-8"));
+                        }
                         try {
                             if (sipStack.maxConnections != -1) {
                                 synchronized (messageProcessor) {
@@ -555,19 +585,27 @@ public abstract class ConnectionOrientedMessageChannel extends MessageChannel im
                                 	messageProcessor.notify();
                                 }
                             }
-                            hispipe.close();
+                            if (hispipe != null) {
+                                hispipe.close();
+                            }
                             close();
                         } catch (IOException ioex) {
                         }
                         return;
                     }                    
                     
-                    hispipe.write(msg, 0, nbytes);
+                    if (inlineParser != null) {
+                        inlineParser.addBytes(msg, 0, nbytes);
+                    } else {
+                        hispipe.write(msg, 0, nbytes);
+                    }
 
                 } catch (IOException ex) {
                     // Terminate the message.
                     try {
-                        hispipe.write("\r\n\r\n".getBytes("UTF-8"));
+                        if (hispipe != null) {
+                            hispipe.write("\r\n\r\n".getBytes("UTF-8"));
+                        }
                     } catch (Exception e) {
                         // InternalErrorHandler.handleException(e);
                     }
@@ -583,7 +621,9 @@ public abstract class ConnectionOrientedMessageChannel extends MessageChannel im
                                 }
                             }
                             close();
-                            hispipe.close();
+                            if (hispipe != null) {
+                                hispipe.close();
+                            }
                         } catch (IOException ioex) {
                         }
                     } catch (Exception ex1) {
@@ -0,0 +1,163 @@
+/*
+ * Conditions Of Use
+ *
+ * This software was developed by employees of the National Institute of
+ * Standards and Technology (NIST), an agency of the Federal Government.
+ * Pursuant to title 15 Untied States Code Section 105, works of NIST
+ * employees are not subject to copyright protection in the United States
+ * and are considered to be in the public domain.  As a result, a formal
+ * license is not needed to use the software.
+ *
+ * This software is provided by NIST as a service and is expressly
+ * provided "AS IS."  NIST MAKES NO WARRANTY OF ANY KIND, EXPRESS, IMPLIED
+ * OR STATUTORY, INCLUDING, WITHOUT LIMITATION, THE IMPLIED WARRANTY OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, NON-INFRINGEMENT
+ * AND DATA ACCURACY.  NIST does not warrant or make any representations
+ * regarding the use of the software or the results thereof, including but
+ * not limited to the correctness, accuracy, reliability or usefulness of
+ * the software.
+ *
+ * Permission to use this software is contingent upon your acceptance
+ * of the terms of this agreement
+ *
+ * .
+ *
+ */
+package android.gov.nist.javax.sip.stack;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool of fixed size receive buffers for the UDP message processor.
+ * A buffer is taken from the pool by the reader thread, filled with one
+ * datagram, handed to a UDPMessageChannel for parsing and given back once
+ * the message has been dispatched, so steady state reception does not
+ * allocate a new buffer per packet.
+ *
+ * The buffers are heap buffers: the message parser works on a byte array,
+ * so the backing array of the buffer is handed to it as is (no copy).
+ * Buffers that are not released (e.g. dropped by the congestion auditor)
+ * are simply left to the garbage collector and replaced on demand.
+ *
+ */
+public class DatagramBufferPool {
+
+    /**
+     * Default maximum number of idle buffers kept around.
+     */
+    public static final int DEFAULT_MAX_POOLED_BUFFERS = 256;
+
+    private final int bufferSize;
+
+    private final int maxPooledBuffers;
+
+    private final ConcurrentLinkedQueue<ByteBuffer> pooledBuffers = new ConcurrentLinkedQueue<ByteBuffer>();
+
+    private final AtomicInteger pooledCount = new AtomicInteger();
+
+    private final AtomicLong poolHits = new AtomicLong();
+
+    private final AtomicLong allocations = new AtomicLong();
+
+    private final AtomicLong discarded = new AtomicLong();
+
+    /**
+     * Constructor.
+     *
+     * @param bufferSize
+     *            size in bytes of every buffer (the max datagram size).
+     * @param maxPooledBuffers
+     *            maximum number of idle buffers to keep, extra buffers released
+     *            to a full pool are discarded.
+     */
+    public DatagramBufferPool(int bufferSize, int maxPooledBuffers) {
+        this.bufferSize = bufferSize;
+        this.maxPooledBuffers = maxPooledBuffers;
+    }
+
+    /**
+     * Take a cleared buffer from the pool, allocating a new one if the pool
+     * is empty.
+     *
+     * @return a buffer ready to receive a datagram.
+     */
+    public ByteBuffer acquire() {
+        ByteBuffer buffer = pooledBuffers.poll();
+        if (buffer != null) {
+            pooledCount.decrementAndGet();
+            poolHits.incrementAndGet();
+            buffer.clear();
+            return buffer;
+        }
+        allocations.incrementAndGet();
+        return ByteBuffer.allocate(bufferSize);
+    }
+
+    /**
+     * Give a buffer back to the pool. Buffers that were not handed out by this
+     * pool are ignored.
+     *
+     * @param buffer
+     *            the buffer to give back.
+     */
+    public void release(ByteBuffer buffer) {
+        if (buffer == null || buffer.capacity() != bufferSize
+                || !buffer.hasArray()) {
+            return;
+        }
+        if (pooledCount.incrementAndGet() > maxPooledBuffers) {
+            pooledCount.decrementAndGet();
+            discarded.incrementAndGet();
+            return;
+        }
+        pooledBuffers.offer(buffer);
+    }
+
+    /**
+     * @return the size in bytes of the pooled buffers.
+     */
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * @return the number of idle buffers currently in the pool.
+     */
+    public int getPooledBuffersCount() {
+        return pooledCount.get();
+    }
+
+    /**
+     * @return the number of acquisitions that were served from the pool.
+     */
+    public long getPoolHits() {
+        return poolHits.get();
+    }
+
+    /**
+     * @return the number of buffers that had to be allocated.
+     */
+    public long getAllocations() {
+        return allocations.get();
+    }
+
+    /**
+     * @return the number of released buffers dropped because the pool was
+     *         full.
+     */
+    public long getDiscarded() {
+        return discarded.get();
+    }
+
+    /**
+     * Drop all the idle buffers.
+     */
+    public void clear() {
+        while (pooledBuffers.poll() != null) {
+            pooledCount.decrementAndGet();
+        }
+    }
+}
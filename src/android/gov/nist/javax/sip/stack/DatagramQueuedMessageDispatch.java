@@ -26,14 +26,29 @@
 package android.gov.nist.javax.sip.stack;
 
 import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
 
 
 public class DatagramQueuedMessageDispatch implements QueuedMessageDispatchBase {
-	public DatagramPacket packet;
+	/**
+	 * Received bytes, between position and limit. The buffer comes from the
+	 * processor's DatagramBufferPool unless the dispatch was built from a
+	 * DatagramPacket.
+	 */
+	public ByteBuffer buffer;
+	public InetAddress peerAddress;
+	public int peerPort;
 	long time;
-	public DatagramQueuedMessageDispatch(DatagramPacket packet, long time) {
+	public DatagramQueuedMessageDispatch(ByteBuffer buffer, InetAddress peerAddress, int peerPort, long time) {
 		this.time = time;
-		this.packet = packet;
+		this.buffer = buffer;
+		this.peerAddress = peerAddress;
+		this.peerPort = peerPort;
+	}
+	public DatagramQueuedMessageDispatch(DatagramPacket packet, long time) {
+		this(ByteBuffer.wrap(packet.getData(), packet.getOffset(), packet.getLength()),
+				packet.getAddress(), packet.getPort(), time);
 	}
 	public long getReceptionTime() {
 		return time;
@@ -302,15 +302,9 @@ public class DefaultRouter implements Router {
 
         // sipUri.removeParameter("transport");
 
-        int port;
-        if (sipUri.getPort() != -1) {
-            port = sipUri.getPort();
-        } else {
-            if (transport.equalsIgnoreCase(SIPConstants.TLS))
-                port = 5061;
-            else
-                port = 5060; // TCP or UDP
-        }
+        // Without a port, the address resolver sets the default one or
+        // looks up the SRV records (RFC 3263)
+        int port = sipUri.getPort();
         String host = sipUri.getMAddrParam() != null ? sipUri.getMAddrParam()
                 : sipUri.getHost();
         AddressResolver addressResolver = this.sipStack.getAddressResolver();
@@ -281,6 +281,19 @@ public abstract class MessageProcessor  {
     public abstract MessageChannel createMessageChannel(HostPort targetHostPort)
             throws IOException;
 
+    /**
+     * Create a message channel for the specified host/port, to send a
+     * message of the given call. The processors that open several
+     * connections to a peer keep the messages of a call on one of them.
+     *
+     * @param callId the Call-ID of the message, null if not known.
+     * @return New MessageChannel for this processor.
+     */
+    public MessageChannel createMessageChannel(HostPort targetHostPort, String callId)
+            throws IOException {
+        return createMessageChannel(targetHostPort);
+    }
+
     /**
      * Create a message channel for the specified host/port.
      *
@@ -74,6 +74,9 @@ public class NIOHandler {
     
     KeyedSemaphore keyedSemaphore = new KeyedSemaphore();
     
+    // Set while the connection pool opens an additional connection to a peer
+    private final ThreadLocal<Boolean> openNewConnection = new ThreadLocal<Boolean>();
+    
     protected static String makeKey(InetAddress addr, int port) {
         return addr.getHostAddress() + ":" + port;
 
@@ -98,6 +101,26 @@ public class NIOHandler {
     	}
     }
 
+    void setOpenNewConnection(boolean openNewConnection) {
+    	if(openNewConnection) {
+    		this.openNewConnection.set(Boolean.TRUE);
+    	} else {
+    		this.openNewConnection.remove();
+    	}
+    }
+    
+    private SocketChannel connect(InetSocketAddress address, InetAddress localAddress) throws IOException {
+    	long startTime = System.currentTimeMillis();
+    	boolean connected = false;
+    	try {
+    		SocketChannel channel = messageProcessor.blockingConnect(address, localAddress, 10000);
+    		connected = true;
+    		return channel;
+    	} finally {
+    		messageProcessor.getConnectionPool().connected(System.currentTimeMillis() - startTime, connected);
+    	}
+    }
+
     protected SocketChannel getSocket(String key) {
     	// no need to synchrnize here
         return (SocketChannel) socketTable.get(key);
@@ -189,6 +212,15 @@ public class NIOHandler {
         boolean newSocket = false;
         try {
         	clientSock = getSocket(key);
+        	if(messageProcessor.getConnectionPool().isParallel()) {
+        		// There may be several connections to the peer, keep to the one of the channel
+        		SocketChannel channelSock = messageChannel.getSocketChannel();
+        		if(channelSock != null && channelSock.isConnected() && channelSock.isOpen()
+        				&& receiverAddress.equals(channelSock.socket().getInetAddress())
+        				&& contactPort == channelSock.socket().getPort()) {
+        			clientSock = channelSock;
+        		}
+        	}
         	while (retry_count < max_retry) {
         		if(clientSock != null && (!clientSock.isConnected() || !clientSock.isOpen()) ) {
         			removeSocket(key);
@@ -205,7 +237,7 @@ public class NIOHandler {
         			// address (i.e. that of the stack). In version 1.2
         			// the IP address is on a per listening point basis.
         			try {
-        				clientSock = messageProcessor.blockingConnect(new InetSocketAddress(receiverAddress, contactPort), senderAddress, 10000);
+        				clientSock = connect(new InetSocketAddress(receiverAddress, contactPort), senderAddress);
         				if(messageChannel instanceof NioTlsMessageChannel) {
         					// Added for https://java.net/jira/browse/JSIP-483 
 	        				HandshakeCompletedListenerImpl listner = new HandshakeCompletedListenerImpl((NioTlsMessageChannel)messageChannel, clientSock);
@@ -274,7 +306,7 @@ public class NIOHandler {
         		clientSock = this.getSocket(key);
         		if (clientSock == null || !clientSock.isConnected() || !clientSock.isOpen()) {
     				logger.debug("inaddr = " + receiverAddress + " port = " + contactPort);
-        			clientSock = messageProcessor.blockingConnect(new InetSocketAddress(receiverAddress, contactPort), senderAddress, 10000);
+        			clientSock = connect(new InetSocketAddress(receiverAddress, contactPort), senderAddress);
         			newSocket = true;
         			messageChannel.peerPort = contactPort;
         			putSocket(key, clientSock);
@@ -361,7 +393,10 @@ public class NIOHandler {
     	SocketChannel channel = null;
     	keyedSemaphore.enterIOCriticalSection(key);
     	try {
-    		channel = getSocket(key);
+    		boolean newConnection = openNewConnection.get() != null;
+    		if(!newConnection) {
+    			channel = getSocket(key);
+    		}
     		if(channel != null && (!channel.isConnected() || !channel.isOpen())) {
 				logger.debug("Channel disconnected " + channel);
     			channel = null;
@@ -369,10 +404,10 @@ public class NIOHandler {
     		if(channel == null) { // this is where the threads will race
     			try {
 	    			SocketAddress sockAddr = new InetSocketAddress(inetAddress, port);
-	    			channel = messageProcessor.blockingConnect((InetSocketAddress) sockAddr, this.messageProcessor
-	    					.getIpAddress(), 10000);
+	    			channel = connect((InetSocketAddress) sockAddr, this.messageProcessor
+	    					.getIpAddress());
     				logger.debug("create channel = " + channel + "  " + inetAddress + " " + port);
-	    			if(channel != null && channel.isConnected()) {
+	    			if(channel != null && channel.isConnected() && !newConnection) {
 	    				putSocket(NIOHandler.makeKey(inetAddress, port), channel);
     					logger.debug("channel cached channel = " + channel);
 	    			}
@@ -382,7 +417,9 @@ public class NIOHandler {
 						inetAddress + " " + port + " " + this.messageProcessor.getIpAddress());
     				// new connection is bad.
     				// remove from our table the socket and its semaphore
-    				removeSocket(key);
+    				if(!newConnection) {
+    					removeSocket(key);
+    				}
     				throw new SocketException(e.getClass() + " " + e.getMessage() + " " + e.getCause() + " Problem connecting " +
     						inetAddress + " " + port + " " + this.messageProcessor.getIpAddress());
     			}
@@ -0,0 +1,474 @@
+/*
+ * Conditions Of Use
+ *
+ * This software was developed by employees of the National Institute of
+ * Standards and Technology (NIST), an agency of the Federal Government.
+ * Pursuant to title 15 Untied States Code Section 105, works of NIST
+ * employees are not subject to copyright protection in the United States
+ * and are considered to be in the public domain.  As a result, a formal
+ * license is not needed to use the software.
+ *
+ * This software is provided by NIST as a service and is expressly
+ * provided "AS IS."  NIST MAKES NO WARRANTY OF ANY KIND, EXPRESS, IMPLIED
+ * OR STATUTORY, INCLUDING, WITHOUT LIMITATION, THE IMPLIED WARRANTY OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, NON-INFRINGEMENT
+ * AND DATA ACCURACY.  NIST does not warrant or make any representations
+ * regarding the use of the software or the results thereof, including but
+ * not limited to the correctness, accuracy, reliability or usefulness of
+ * the software.
+ *
+ * Permission to use this software is contingent upon your acceptance
+ * of the terms of this agreement
+ *
+ * .
+ *
+ */
+package android.gov.nist.javax.sip.stack;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import android.javax.sip.address.Hop;
+
+/**
+ * The outbound connections of a NIO TCP (or TLS) message processor beyond the
+ * one message channel cached per peer.
+ * <ul>
+ * <li>Up to gov.nist.javax.sip.NIO_CONNECTIONS_PER_PEER connections are kept
+ * to each peer: when all the connections to a peer have data waiting to be
+ * written, a new call is sent on the least loaded one and another
+ * connection is opened in the background for the next calls, so that a
+ * slow or large write does not hold up the other messages to the peer. The
+ * messages of a call keep to the connection the call started on, so that
+ * they reach the peer in order. The connections added that way are closed
+ * once idle for gov.nist.javax.sip.NIO_POOL_IDLE_TIME.</li>
+ * <li>With gov.nist.javax.sip.NIO_PRECONNECT_OUTBOUND_PROXY, the connections
+ * to the outbound proxy are opened (and their TLS handshake done) in the
+ * background when the processor starts, instead of by the first request.</li>
+ * <li>The time taken to connect and the number of connections are
+ * reported.</li>
+ * </ul>
+ * The connections are opened on a couple of daemon threads, the selector
+ * thread and the threads sending messages never wait for them.
+ */
+public class NioConnectionPool {
+
+    private static Logger logger = LoggerFactory.getLogger(NioConnectionPool.class);
+
+    private final NioTcpMessageProcessor messageProcessor;
+
+    private final int connectionsPerPeer;
+
+    private final long idleTime;
+
+    // How long the connection of a call is remembered after its last message
+    private final long callBindingTime;
+
+    // The connections opened in addition to the cached message channel, by key
+    private final ConcurrentHashMap<String, List<NioTcpMessageChannel>> parallelChannels =
+            new ConcurrentHashMap<String, List<NioTcpMessageChannel>>();
+
+    // The connection each call was sent on, by key and Call-ID
+    private final ConcurrentHashMap<String, CallBinding> callChannels =
+            new ConcurrentHashMap<String, CallBinding>();
+
+    // The keys for which a connection is being opened
+    private final Set<String> openingKeys =
+            Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    private ThreadPoolExecutor connectExecutor;
+
+    private SIPStackTimerTask idleConnectionsAuditor;
+
+    private final AtomicLong connects = new AtomicLong();
+
+    private final AtomicLong failedConnects = new AtomicLong();
+
+    private final AtomicLong totalConnectTime = new AtomicLong();
+
+    private final AtomicLong maxConnectTime = new AtomicLong();
+
+    private final AtomicLong evictedConnections = new AtomicLong();
+
+    private static class CallBinding {
+        private final NioTcpMessageChannel channel;
+        private volatile long lastUsed = System.currentTimeMillis();
+
+        CallBinding(NioTcpMessageChannel channel) {
+            this.channel = channel;
+        }
+    }
+
+    public NioConnectionPool(NioTcpMessageProcessor messageProcessor, int connectionsPerPeer,
+            long idleTime) {
+        this.messageProcessor = messageProcessor;
+        this.connectionsPerPeer = Math.max(1, connectionsPerPeer);
+        this.idleTime = idleTime;
+        this.callBindingTime = idleTime > 0 ? idleTime : 60000;
+    }
+
+    /**
+     * @return true if more than one connection may be opened to a peer.
+     */
+    public boolean isParallel() {
+        return connectionsPerPeer > 1 && isPooled();
+    }
+
+    /*
+     * The WebSocket connections are left alone, they are opened by the
+     * browsers rather than by the stack.
+     */
+    private boolean isPooled() {
+        return !(messageProcessor instanceof NioWebSocketMessageProcessor);
+    }
+
+    void start() {
+        final String transport = messageProcessor.getTransport();
+        connectExecutor = new ThreadPoolExecutor(2, 2, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    private final AtomicInteger index = new AtomicInteger();
+
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable, "NioConnector-" + transport + "-"
+                                + index.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        connectExecutor.allowCoreThreadTimeOut(true);
+        SIPTransactionStack sipStack = messageProcessor.getSIPStack();
+        if (isParallel()) {
+            idleConnectionsAuditor = new SIPStackTimerTask() {
+                public void runTask() {
+                    if (idleTime > 0) {
+                        closeIdleConnections();
+                    }
+                    forgetIdleCalls();
+                }
+            };
+            sipStack.getTimer().scheduleWithFixedDelay(idleConnectionsAuditor, callBindingTime,
+                    callBindingTime);
+        }
+        if (sipStack.nioPreconnectOutboundProxy && isPooled() && sipStack.getRouter() != null) {
+            Hop outboundProxy = sipStack.getRouter().getOutboundProxy();
+            if (outboundProxy != null
+                    && outboundProxy.getTransport().equalsIgnoreCase(transport)) {
+                preconnect(outboundProxy.getHost(), outboundProxy.getPort());
+            }
+        }
+    }
+
+    void stop() {
+        if (idleConnectionsAuditor != null) {
+            messageProcessor.getSIPStack().getTimer().cancel(idleConnectionsAuditor);
+            idleConnectionsAuditor = null;
+        }
+        if (connectExecutor != null) {
+            connectExecutor.shutdownNow();
+        }
+        parallelChannels.clear();
+        callChannels.clear();
+    }
+
+    /**
+     * Open the connections to a peer in the background.
+     */
+    public void preconnect(final String host, final int port) {
+        connectExecutor.execute(new Runnable() {
+            public void run() {
+                try {
+                    InetAddress address = InetAddress.getByName(host);
+                    int targetPort = port > 0 ? port : messageProcessor.getDefaultTargetPort();
+                    logger.debug("Preconnecting to " + host + ":" + targetPort);
+                    NioTcpMessageChannel channel = (NioTcpMessageChannel) messageProcessor
+                            .createMessageChannel(address, targetPort);
+                    channel.startHandshake();
+                    String key = MessageChannel.getKey(address, targetPort,
+                            messageProcessor.getTransport());
+                    for (int i = 1; i < connectionsPerPeer && isParallel(); i++) {
+                        openConnection(key, address, targetPort);
+                    }
+                } catch (IOException ex) {
+                    logger.warn("Could not preconnect to " + host + ":" + port + ": " + ex);
+                }
+            }
+        });
+    }
+
+    /**
+     * Choose the connection to send a message to the peer on: the one its
+     * call was sent on so far, or for a new call the least loaded one,
+     * opening another one in the background if they are all busy.
+     *
+     * @param channel the message channel cached for the peer.
+     * @param callId the Call-ID of the message, null if not known.
+     */
+    MessageChannel select(String key, MessageChannel channel, InetAddress host, int port,
+            String callId) {
+        if (!(channel instanceof NioTcpMessageChannel)) {
+            return channel;
+        }
+        if (callId == null) {
+            return selectLeastLoaded(key, (NioTcpMessageChannel) channel, host, port);
+        }
+        String callKey = key + "/" + callId;
+        CallBinding binding = callChannels.get(callKey);
+        if (binding != null) {
+            if (isCurrent(key, binding.channel, channel)) {
+                binding.lastUsed = System.currentTimeMillis();
+                return binding.channel;
+            }
+            callChannels.remove(callKey, binding);
+        }
+        CallBinding newBinding = new CallBinding(
+                selectLeastLoaded(key, (NioTcpMessageChannel) channel, host, port));
+        binding = callChannels.putIfAbsent(callKey, newBinding);
+        return (binding != null ? binding : newBinding).channel;
+    }
+
+    /*
+     * Whether the connection of a call is still one of the connections to
+     * the peer, the cached one or a parallel one that was not closed.
+     */
+    private boolean isCurrent(String key, NioTcpMessageChannel bound, MessageChannel cached) {
+        if (bound == cached) {
+            return true;
+        }
+        List<NioTcpMessageChannel> channels = parallelChannels.get(key);
+        return channels != null && channels.contains(bound) && isReady(bound);
+    }
+
+    private NioTcpMessageChannel selectLeastLoaded(String key, NioTcpMessageChannel channel,
+            InetAddress host, int port) {
+        NioTcpMessageChannel selected = channel;
+        long selectedPending = messageProcessor.getPendingBytes(selected.getSocketChannel());
+        if (selectedPending == 0) {
+            return selected;
+        }
+        List<NioTcpMessageChannel> channels = parallelChannels.get(key);
+        int count = 1;
+        if (channels != null) {
+            for (NioTcpMessageChannel parallelChannel : channels) {
+                if (!isReady(parallelChannel)) {
+                    continue;
+                }
+                count++;
+                long pending = messageProcessor.getPendingBytes(parallelChannel.getSocketChannel());
+                if (pending < selectedPending) {
+                    selected = parallelChannel;
+                    selectedPending = pending;
+                    if (pending == 0) {
+                        return selected;
+                    }
+                }
+            }
+        }
+        if (count < connectionsPerPeer) {
+            openConnectionInBackground(key, host, port);
+        }
+        return selected;
+    }
+
+    private static boolean isReady(NioTcpMessageChannel channel) {
+        if (channel instanceof NioTlsMessageChannel
+                && !((NioTlsMessageChannel) channel).isHandshakeCompleted()) {
+            return false;
+        }
+        return channel.getSocketChannel() != null && channel.getSocketChannel().isConnected();
+    }
+
+    private void openConnectionInBackground(final String key, final InetAddress host,
+            final int port) {
+        if (!openingKeys.add(key)) {
+            return;
+        }
+        try {
+            connectExecutor.execute(new Runnable() {
+                public void run() {
+                    try {
+                        openConnection(key, host, port);
+                    } catch (IOException ex) {
+                        logger.debug("Could not open another connection to " + key + ": " + ex);
+                    } finally {
+                        openingKeys.remove(key);
+                    }
+                }
+            });
+        } catch (RuntimeException ex) {
+            openingKeys.remove(key);
+            throw ex;
+        }
+    }
+
+    private void openConnection(String key, InetAddress host, int port) throws IOException {
+        NioTcpMessageChannel channel = (NioTcpMessageChannel) messageProcessor
+                .constructParallelMessageChannel(host, port);
+        List<NioTcpMessageChannel> channels = parallelChannels.get(key);
+        if (channels == null) {
+            List<NioTcpMessageChannel> newChannels = new CopyOnWriteArrayList<NioTcpMessageChannel>();
+            channels = parallelChannels.putIfAbsent(key, newChannels);
+            if (channels == null) {
+                channels = newChannels;
+            }
+        }
+        channels.add(channel);
+        logger.debug("Opened connection " + channels.size() + " to " + key + ": " + channel);
+        channel.startHandshake();
+    }
+
+    /**
+     * Forget a connection that was closed.
+     */
+    void remove(ConnectionOrientedMessageChannel channel) {
+        List<NioTcpMessageChannel> channels = parallelChannels.get(channel.getKey());
+        if (channels != null) {
+            channels.remove(channel);
+        }
+        if (!callChannels.isEmpty()) {
+            Iterator<CallBinding> bindings = callChannels.values().iterator();
+            while (bindings.hasNext()) {
+                if (bindings.next().channel == channel) {
+                    bindings.remove();
+                }
+            }
+        }
+    }
+
+    private void closeIdleConnections() {
+        long now = System.currentTimeMillis();
+        for (Entry<String, List<NioTcpMessageChannel>> entry : parallelChannels.entrySet()) {
+            List<NioTcpMessageChannel> channels = entry.getValue();
+            for (NioTcpMessageChannel channel : channels) {
+                if (now - channel.getLastActivityTimestamp() > idleTime) {
+                    logger.debug("Closing idle connection " + channel);
+                    channels.remove(channel);
+                    evictedConnections.incrementAndGet();
+                    channel.close();
+                }
+            }
+            if (channels.isEmpty()) {
+                parallelChannels.remove(entry.getKey(), channels);
+            }
+        }
+    }
+
+    /*
+     * The calls that sent nothing for a while are free to use any connection
+     * again.
+     */
+    private void forgetIdleCalls() {
+        long now = System.currentTimeMillis();
+        Iterator<CallBinding> bindings = callChannels.values().iterator();
+        while (bindings.hasNext()) {
+            if (now - bindings.next().lastUsed > callBindingTime) {
+                bindings.remove();
+            }
+        }
+    }
+
+    /*
+     * Called by the NIOHandler once a connection attempt completed.
+     */
+    void connected(long connectTime, boolean success) {
+        if (!success) {
+            failedConnects.incrementAndGet();
+            return;
+        }
+        connects.incrementAndGet();
+        totalConnectTime.addAndGet(connectTime);
+        long max = maxConnectTime.get();
+        while (connectTime > max && !maxConnectTime.compareAndSet(max, connectTime)) {
+            max = maxConnectTime.get();
+        }
+    }
+
+    /**
+     * @return the number of connections opened.
+     */
+    public long getConnectsCount() {
+        return connects.get();
+    }
+
+    /**
+     * @return the number of connection attempts that failed.
+     */
+    public long getFailedConnectsCount() {
+        return failedConnects.get();
+    }
+
+    /**
+     * @return the average time taken to open a connection in milliseconds.
+     */
+    public long getAverageConnectTime() {
+        long count = connects.get();
+        return count == 0 ? 0 : totalConnectTime.get() / count;
+    }
+
+    /**
+     * @return the longest time taken to open a connection in milliseconds.
+     */
+    public long getMaxConnectTime() {
+        return maxConnectTime.get();
+    }
+
+    /**
+     * @return the number of connections open, in and out.
+     */
+    public int getConnectionsCount() {
+        int count = 0;
+        synchronized (NioTcpMessageChannel.channelMap) {
+            for (NioTcpMessageChannel channel : NioTcpMessageChannel.channelMap.values()) {
+                if (channel.getMessageProcessor() == messageProcessor) {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return the number of connections opened in addition to the one per
+     *         peer.
+     */
+    public int getParallelConnectionsCount() {
+        int count = 0;
+        for (List<NioTcpMessageChannel> channels : parallelChannels.values()) {
+            count += channels.size();
+        }
+        return count;
+    }
+
+    /**
+     * @return the number of connections to the given peer.
+     */
+    public int getConnectionsCount(InetAddress host, int port) {
+        String key = MessageChannel.getKey(host, port, messageProcessor.getTransport());
+        List<NioTcpMessageChannel> channels = parallelChannels.get(key);
+        return (messageProcessor.messageChannels.containsKey(key) ? 1 : 0)
+                + (channels == null ? 0 : channels.size());
+    }
+
+    /**
+     * @return the number of idle connections closed.
+     */
+    public long getEvictedConnectionsCount() {
+        return evictedConnections.get();
+    }
+}
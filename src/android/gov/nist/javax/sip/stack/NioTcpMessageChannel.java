@@ -108,11 +108,9 @@ public class NioTcpMessageChannel extends ConnectionOrientedMessageChannel {
 				throw new IOException("The socket is giving us empty TCP packets. " +
 					"This is usually an indication we are stuck and it is better to disconnect.");
 			
-			// Otherwise just add the bytes to queue
+			// Otherwise just add the bytes to queue (msg already holds exactly the bytes read)
 			
-			byte[] bytes = new byte[nbytes];
-			System.arraycopy(msg, 0, bytes, 0, nbytes);
-			addBytes(bytes);
+			addBytes(msg);
 			lastActivityTimeStamp = System.currentTimeMillis();
 
 		} catch (Exception ex) { // https://java.net/jira/browse/JSIP-464 make sure to close connections on all exceptions to avoid the stack to hang
@@ -205,6 +203,13 @@ public class NioTcpMessageChannel extends ConnectionOrientedMessageChannel {
 		return socketChannel;
 	}
 
+	/**
+	 * Get the connection ready to send messages on. Nothing to do for TCP, TLS
+	 * will override here to start the handshake.
+	 */
+	public void startHandshake() throws IOException {
+	}
+
 	@Override
 	protected void close(boolean removeSocket, boolean stopKeepAliveTask) {
 		try {
@@ -255,7 +260,9 @@ public class NioTcpMessageChannel extends ConnectionOrientedMessageChannel {
 		lastActivityTimeStamp = System.currentTimeMillis();
 		
 		NIOHandler nioHandler = ((NioTcpMessageProcessor) messageProcessor).nioHandler;
-		if(this.socketChannel != null && this.socketChannel.isConnected() && this.socketChannel.isOpen()) {
+		// With several connections to the peer the NIOHandler sends on the socket of the channel
+		if(this.socketChannel != null && this.socketChannel.isConnected() && this.socketChannel.isOpen()
+				&& !((NioTcpMessageProcessor) messageProcessor).getConnectionPool().isParallel()) {
 			nioHandler.putSocket(NIOHandler.makeKey(this.peerAddress, this.peerPort), this.socketChannel);
 		}
 		sendTCPMessage(msg, this.peerAddress, this.peerPort, isClient);
@@ -60,6 +60,7 @@ public class NioTcpMessageProcessor extends ConnectionOrientedMessageProcessor {
     private static Logger logger = LoggerFactory.getLogger(NioTcpMessageProcessor.class);
     protected Thread selectorThread;
     protected NIOHandler nioHandler;
+    protected NioConnectionPool connectionPool;
 
     protected ServerSocketChannel channel;
 
@@ -346,6 +347,14 @@ public class NioTcpMessageProcessor extends ConnectionOrientedMessageProcessor {
     public NioTcpMessageProcessor(InetAddress ipAddress,  SIPTransactionStack sipStack, int port) {
     	super(ipAddress, port, "TCP", sipStack);
     	nioHandler = new NIOHandler(sipStack, this);
+    	connectionPool = new NioConnectionPool(this, sipStack.nioConnectionsPerPeer, sipStack.nioPoolIdleTime);
+    }
+    
+    /**
+     * @return the pool of the outbound connections of this processor.
+     */
+    public NioConnectionPool getConnectionPool() {
+    	return connectionPool;
     }
     
     
@@ -353,6 +362,35 @@ public class NioTcpMessageProcessor extends ConnectionOrientedMessageProcessor {
         return new NioTcpMessageChannel(targetHost,
                                 port, sipStack, this);
     }
+    
+    /*
+     * Opens a new connection to the target even if one is cached already. The
+     * channel is not cached, it is kept by the connection pool.
+     */
+    ConnectionOrientedMessageChannel constructParallelMessageChannel(InetAddress targetHost, int port) throws IOException {
+    	nioHandler.setOpenNewConnection(true);
+    	try {
+    		return constructMessageChannel(targetHost, port);
+    	} finally {
+    		nioHandler.setOpenNewConnection(false);
+    	}
+    }
+    
+    /*
+     * The number of bytes queued for writing on the socket.
+     */
+    long getPendingBytes(SocketChannel socket) {
+    	long pending = 0;
+    	synchronized (pendingData) {
+    		List<ByteBuffer> queue = pendingData.get(socket);
+    		if (queue != null) {
+    			for (ByteBuffer buffer : queue) {
+    				pending += buffer.remaining();
+    			}
+    		}
+    	}
+    	return pending;
+    }
         
     /**
      * This private version is thread safe using proper critical session.
@@ -386,6 +424,11 @@ public class NioTcpMessageProcessor extends ConnectionOrientedMessageProcessor {
 
     @Override
     public MessageChannel createMessageChannel(HostPort targetHostPort) throws IOException {
+        return createMessageChannel(targetHostPort, null);
+    }
+
+    @Override
+    public MessageChannel createMessageChannel(HostPort targetHostPort, String callId) throws IOException {
 		logger.debug("NioTcpMessageProcessor::createMessageChannel: " + targetHostPort);
         MessageChannel retval = null;
     	try {
@@ -396,6 +439,10 @@ public class NioTcpMessageProcessor extends ConnectionOrientedMessageProcessor {
                     retval = createMessageChannel(key, 
                             targetHostPort.getInetAddress(), targetHostPort.getPort());  			
 		}    		
+    		if (connectionPool.isParallel()) {
+    			retval = connectionPool.select(key, retval,
+    					targetHostPort.getInetAddress(), targetHostPort.getPort(), callId);
+    		}
     	} finally {
 			logger.debug("MessageChannel::createMessageChannel - exit " + retval);
     	}
@@ -410,6 +457,9 @@ public class NioTcpMessageProcessor extends ConnectionOrientedMessageProcessor {
 	if (retval == null) {
             retval = createMessageChannel(key, targetHost, port);
 	}
+	if (connectionPool.isParallel()) {
+		retval = connectionPool.select(key, retval, targetHost, port, null);
+	}
 	return retval;
     }
 
@@ -419,6 +469,7 @@ public class NioTcpMessageProcessor extends ConnectionOrientedMessageProcessor {
     		ConnectionOrientedMessageChannel messageChannel) {
         logger.debug(Thread.currentThread() + " removing " + ((NioTcpMessageChannel)messageChannel).getSocketChannel() + " from processor " + getIpAddress()+ ":" + getPort() + "/" + getTransport());
     	pendingData.remove(((NioTcpMessageChannel)messageChannel).getSocketChannel());
+    	connectionPool.remove(messageChannel);
     	super.remove(messageChannel);
     }
     
@@ -445,6 +496,7 @@ public class NioTcpMessageProcessor extends ConnectionOrientedMessageProcessor {
         selectorThread = new Thread(createProcessorTask());
         selectorThread.start();
         selectorThread.setName("NioSelector-" + getTransport() + '-' + getIpAddress().getHostAddress() + '/' + getPort());
+        connectionPool.start();
     }
     
     protected ProcessorTask createProcessorTask() {
@@ -457,6 +509,7 @@ public class NioTcpMessageProcessor extends ConnectionOrientedMessageProcessor {
     		if(selector.isOpen())
     			selector.close();
     		
+    		connectionPool.stop();
     		nioHandler.stop();    		
     	} catch (Exception ex) {
     		logger.error("Problem closing channel " , ex);
@@ -84,6 +84,9 @@ public class NioTlsMessageChannel extends NioTcpMessageChannel implements NioTls
         SSLContext ctx = clientMode ?
                 ((NioTlsMessageProcessor)messageProcessor).sslClientCtx :
                 ((NioTlsMessageProcessor)messageProcessor).sslServerCtx;
+		if(sslStateMachine != null) {
+			sslStateMachine.releaseBuffers();
+		}
 		sslStateMachine = new SSLStateMachine(ctx.createSSLEngine(), this);
 
         sslStateMachine.sslEngine.setUseClientMode(clientMode);
@@ -113,6 +116,22 @@ public class NioTlsMessageChannel extends NioTcpMessageChannel implements NioTls
 		}
 	}
 	
+	@Override
+	protected void close(boolean removeSocket, boolean stopKeepAliveTask) {
+		super.close(removeSocket, stopKeepAliveTask);
+		if(sslStateMachine != null) {
+			sslStateMachine.releaseBuffers();
+		}
+	}
+	
+	@Override
+	public void startHandshake() throws IOException {
+		if(!handshakeCompleted) {
+			// Wrapping no data sends the client hello
+			sslStateMachine.wrap(ByteBuffer.wrap(new byte[0]), prepareEncryptedDataBuffer(), null);
+		}
+	}
+	
 	public ByteBuffer prepareEncryptedDataBuffer() {
 		return ByteBufferFactory.getInstance().allocateDirect(netBufferMax);
 	}
@@ -81,6 +81,9 @@ public class NioTlsWebSocketMessageChannel extends NioWebSocketMessageChannel im
         SSLContext ctx = clientMode ?
         		((NioTlsWebSocketMessageProcessor)messageProcessor).sslClientCtx:
                 ((NioTlsWebSocketMessageProcessor)messageProcessor).sslServerCtx;
+		if(sslStateMachine != null) {
+			sslStateMachine.releaseBuffers();
+		}
 		sslStateMachine = new SSLStateMachine(ctx.createSSLEngine(), this);
 
         sslStateMachine.sslEngine.setUseClientMode(clientMode);
@@ -98,6 +101,14 @@ public class NioTlsWebSocketMessageChannel extends NioWebSocketMessageChannel im
 
 	}
 	
+	@Override
+	protected void close(boolean removeSocket, boolean stopKeepAliveTask) {
+		super.close(removeSocket, stopKeepAliveTask);
+		if(sslStateMachine != null) {
+			sslStateMachine.releaseBuffers();
+		}
+	}
+	
 	public ByteBuffer prepareEncryptedDataBuffer() {
 		return ByteBufferFactory.getInstance().allocateDirect(netBufferMax);
 	}
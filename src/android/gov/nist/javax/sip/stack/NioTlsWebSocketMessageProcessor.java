@@ -63,6 +63,12 @@ public class NioTlsWebSocketMessageProcessor extends NioWebSocketMessageProcesso
 		return NioTlsWebSocketMessageChannel.create(sipStack, NioTlsWebSocketMessageProcessor.this, client);		
     }
 	
+    @Override
+    public MessageChannel createMessageChannel(HostPort targetHostPort, String callId) throws IOException {
+        // The connections are not pooled
+        return createMessageChannel(targetHostPort);
+    }
+
     @Override
     public MessageChannel createMessageChannel(HostPort targetHostPort) throws IOException {
 		logger.debug("NioTlsWebSocketMessageProcessor::createMessageChannel: " + targetHostPort);
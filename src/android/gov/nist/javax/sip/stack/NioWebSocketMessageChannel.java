@@ -49,7 +49,7 @@ public class NioWebSocketMessageChannel extends NioTcpMessageChannel{
 
 	private static Logger logger = LoggerFactory.getLogger(NioWebSocketMessageChannel.class);
 	
-	private WebSocketCodec codec = new WebSocketCodec(true, true);
+	private WebSocketCodec codec;
 	
 	boolean readingHttp = true;
 	String httpInput = "";
@@ -79,6 +79,7 @@ public class NioWebSocketMessageChannel extends NioTcpMessageChannel{
 		super(nioTcpMessageProcessor,socketChannel);
 		
 		this.stack=stack;
+		this.codec = new WebSocketCodec(true, true, stack.getMaxMessageSize());
 		messageProcessor = nioTcpMessageProcessor;
 		myClientInputStream = socketChannel.socket().getInputStream();
 	}
@@ -190,7 +191,7 @@ public class NioWebSocketMessageChannel extends NioTcpMessageChannel{
 		
 		client = true;
 		this.stack=sipStack;
-		this.codec = new WebSocketCodec(false, true);
+		this.codec = new WebSocketCodec(false, true, sipStack.getMaxMessageSize());
 	}
 	
 	@Override
@@ -37,6 +37,7 @@ import org.slf4j.LoggerFactory;
 
 import android.gov.nist.core.InternalErrorHandler;
 import android.gov.nist.core.NameValueList;
+import android.gov.nist.javax.sip.DnsAddressResolver;
 import android.gov.nist.javax.sip.ReleaseReferencesStrategy;
 import android.gov.nist.javax.sip.SIPConstants;
 import android.gov.nist.javax.sip.SipProviderImpl;
@@ -1098,6 +1099,7 @@ public class SIPClientTransactionImpl extends SIPTransactionImpl implements SIPC
       }
     } catch (IOException e) {
       this.raiseIOExceptionEvent();
+      reportUnreachableHop();
       raiseErrorEvent(SIPTransactionErrorEvent.TRANSPORT_ERROR);
     }
 
@@ -1110,6 +1112,12 @@ public class SIPClientTransactionImpl extends SIPTransactionImpl implements SIPC
 
     logger.debug("fireTimeoutTimer " + this);
 
+    if (TransactionState._CALLING == this.getInternalState()
+        || TransactionState._TRYING == this.getInternalState())
+    {
+      // Nothing was received from the next hop
+      reportUnreachableHop();
+    }
     SIPDialog dialog = (SIPDialog) this.getDialog();
     if (TransactionState._CALLING == this.getInternalState()
         || TransactionState._TRYING == this.getInternalState()
@@ -1675,6 +1683,16 @@ public class SIPClientTransactionImpl extends SIPTransactionImpl implements SIPC
     return dialog;
   }
 
+  /**
+   * Let the address resolver return an alternate target for the next
+   * requests, when it has any.
+   */
+  private void reportUnreachableHop() {
+    if (nextHop != null && sipStack.getAddressResolver() instanceof DnsAddressResolver) {
+      ((DnsAddressResolver) sipStack.getAddressResolver()).reportFailure(nextHop);
+    }
+  }
+
   /**
    * @see gov.nist.javax.sip.stack.SIPClientTransaction#setNextHop(javax.sip.address.Hop)
    */
@@ -32,7 +32,6 @@ import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.Serializable;
 import java.io.StringWriter;
-import java.net.InetAddress;
 import java.text.ParseException;
 import java.util.ArrayList;
 import java.util.HashSet;
@@ -349,9 +348,8 @@ public class SIPDialog implements android.javax.sip.Dialog, DialogExt {
                 throw new SipException(
                         "No listening point for this provider registered at "
                                 + hop);
-            InetAddress inetAddress = InetAddress.getByName(hop.getHost());
-            MessageChannel messageChannel = lp.getMessageProcessor()
-                    .createMessageChannel(inetAddress, hop.getPort());
+            MessageChannel messageChannel = sipStack.createMessageChannel(
+                    ackRequest, lp.getMessageProcessor(), hop);
                         messageChannel.sendMessage(ackRequest);
         }
 
@@ -2505,7 +2503,8 @@ public class SIPDialog implements android.javax.sip.Dialog, DialogExt {
         try {
             MessageChannel messageChannel = sipStack.createRawMessageChannel(
                     this.getSipProvider().getListeningPoint(hop.getTransport())
-                            .getIPAddress(), this.firstTransactionPort, hop);
+                            .getIPAddress(), this.firstTransactionPort, hop,
+                    dialogRequest.getCallId().getCallId());
 
             MessageChannel oldChannel = ((SIPClientTransaction) clientTransaction)
                     .getMessageChannel();
@@ -2547,7 +2546,8 @@ public class SIPDialog implements android.javax.sip.Dialog, DialogExt {
                 messageChannel = sipStack.createRawMessageChannel(this
                         .getSipProvider().getListeningPoint(
                                 outboundProxy.getTransport()).getIPAddress(),
-                        this.firstTransactionPort, outboundProxy);
+                        this.firstTransactionPort, outboundProxy,
+                        dialogRequest.getCallId().getCallId());
                 if (messageChannel != null)
                     ((SIPClientTransaction) clientTransaction)
                             .setEncapsulatedChannel(messageChannel);
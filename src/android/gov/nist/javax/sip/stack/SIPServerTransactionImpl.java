@@ -471,7 +471,8 @@ public class SIPServerTransactionImpl extends SIPTransactionImpl implements SIPS
 
                 MessageChannel messageChannel = ((SIPTransactionStack) getSIPStack())
                         .createRawMessageChannel(this.getSipProvider().getListeningPoint(
-                                hop.getTransport()).getIPAddress(), this.getPort(), hop);
+                                hop.getTransport()).getIPAddress(), this.getPort(), hop,
+                                transactionResponse.getCallId().getCallId());
                 if (messageChannel != null) {
                     messageChannel.sendMessage(transactionResponse);
                     lastResponseHost = host;
@@ -1154,7 +1155,9 @@ public class SIPServerTransactionImpl extends SIPTransactionImpl implements SIPS
 
                 MessageChannel messageChannel = ((SIPTransactionStack) getSIPStack())
                         .createRawMessageChannel(this.getSipProvider().getListeningPoint(
-                                hop.getTransport()).getIPAddress(), this.getPort(), hop);
+                                hop.getTransport()).getIPAddress(), this.getPort(), hop,
+                                originalRequest != null
+                                        ? originalRequest.getCallId().getCallId() : null);
                 if (messageChannel != null) {
                     // Issue 343 : we have to log the retransmission
                     try {
@@ -373,6 +373,9 @@ public abstract class SIPTransactionStack implements
     // Send UDP buffer size
     protected int sendUdpBufferSize;
 
+    // Number of UDP sockets bound to each UDP listening point
+    protected int udpReceiveSockets = 1;
+
     private int stackCongestionControlTimeout = 0;
 
     protected boolean isBackToBackUserAgent = false;
@@ -419,6 +422,20 @@ public abstract class SIPTransactionStack implements
     public MessageProcessorFactory messageProcessorFactory;
     
     public long nioSocketMaxIdleTime;
+    
+    public int nioConnectionsPerPeer = 1;
+    
+    public long nioPoolIdleTime = 60000;
+    
+    public boolean nioPreconnectOutboundProxy;
+    
+    public boolean oioInlineParsing;
+    
+    public boolean lazyHeaderParsing;
+    
+    public long oioReaderStackSize;
+    
+    private ExecutorService oioReaderExecutor;
 
     private ReleaseReferencesStrategy releaseReferencesStrategy = ReleaseReferencesStrategy.None;
 
@@ -477,6 +494,31 @@ public abstract class SIPTransactionStack implements
             }
         }
         return selfRoutingThreadpoolExecutor;
+    }
+    /**
+     * Executor running the read loops of the OIO TCP and TLS connections when
+     * OIO_INLINE_PARSING is set, null otherwise. A read loop blocks its thread
+     * for as long as the connection is open, so there is still one thread
+     * per connection; the threads are only reused once their connection
+     * closes, and are created with a stack of OIO_READER_STACK_SIZE bytes.
+     */
+    public synchronized ExecutorService getOioReaderExecutor() {
+        if (!oioInlineParsing) {
+            return null;
+        }
+        if (oioReaderExecutor == null) {
+            oioReaderExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+                private final AtomicInteger threadCount = new AtomicInteger();
+
+                public Thread newThread(Runnable pRunnable) {
+                    Thread thread = new Thread(null, pRunnable, String.format("%s-%d",
+                                    "OIOReaderThread", threadCount.getAndIncrement()), oioReaderStackSize);
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return oioReaderExecutor;
     }
       /**
      * Executor used to optimise the ReinviteSender Runnable in the sendRequest
@@ -1651,7 +1693,8 @@ public abstract class SIPTransactionStack implements
         HostPort targetHostPort = new HostPort();
         targetHostPort.setHost(targetHost);
         targetHostPort.setPort(nextHop.getPort());
-        MessageChannel returnChannel = mp.createMessageChannel(targetHostPort);
+        MessageChannel returnChannel = mp.createMessageChannel(targetHostPort,
+                request.getCallId() != null ? request.getCallId().getCallId() : null);
         return returnChannel;
 
     }
@@ -1986,6 +2029,13 @@ public abstract class SIPTransactionStack implements
             removeMessageProcessor(processorList[processorIndex]);
         }
         closeAllSockets();
+        // The read loops end as their sockets are closed.
+        synchronized (this) {
+            if (oioReaderExecutor != null) {
+                oioReaderExecutor.shutdown();
+                oioReaderExecutor = null;
+            }
+        }
         // Let the processing complete.
 
         if (this.timer != null)
@@ -2335,6 +2385,20 @@ public abstract class SIPTransactionStack implements
      */
     public MessageChannel createRawMessageChannel(String sourceIpAddress,
             int sourcePort, Hop nextHop) throws UnknownHostException {
+        return createRawMessageChannel(sourceIpAddress, sourcePort, nextHop, null);
+    }
+
+    /**
+     * Creates a new MessageChannel for a given Hop, to send a message of the
+     * given call.
+     *
+     * @param callId
+     *            - Call-ID of the message, null if not known.
+     *
+     * @see #createRawMessageChannel(String, int, Hop)
+     */
+    public MessageChannel createRawMessageChannel(String sourceIpAddress,
+            int sourcePort, Hop nextHop, String callId) throws UnknownHostException {
         Host targetHost;
         HostPort targetHostPort;
         Iterator processorIterator;
@@ -2364,7 +2428,7 @@ public abstract class SIPTransactionStack implements
                     // Create a channel to the target
                     // host/port
                     newChannel = nextProcessor
-                            .createMessageChannel(targetHostPort);
+                            .createMessageChannel(targetHostPort, callId);
                 } catch (UnknownHostException ex) {
                     logger.error("UnknownHostException", ex);
                     throw ex;
@@ -2808,6 +2872,27 @@ public abstract class SIPTransactionStack implements
         this.receiveUdpBufferSize = receiveUdpBufferSize;
     }
 
+    /**
+     * Number of sockets (each with its own reader thread and queue) bound to
+     * the ip:port of each UDP listening point. More than one needs
+     * SO_REUSEPORT support from the JVM and the OS.
+     *
+     * @return the number of UDP receive sockets per listening point.
+     */
+    public int getUdpReceiveSockets() {
+        return udpReceiveSockets;
+    }
+
+    /**
+     * Number of sockets (each with its own reader thread and queue) bound to
+     * the ip:port of each UDP listening point.
+     *
+     * @param udpReceiveSockets
+     */
+    public void setUdpReceiveSockets(int udpReceiveSockets) {
+        this.udpReceiveSockets = Math.max(1, udpReceiveSockets);
+    }
+
     /**
      * Size of the send UDP buffer. This property affects performance under
      * load. Bigger buffer is better under load.
@@ -62,6 +62,8 @@ public class SSLStateMachine {
 			new LinkedList<MessageSendItem>();
 	protected NioTlsChannelInterface channel;
 	protected ByteBuffer tlsRecordBuffer;
+	// the dst of the running unwrap, guarded by unwrapLock
+	private ByteBuffer appDataBuffer;
 	private Object unwrapLock = new Object();
 	private Object wrapLock = new Object();
 
@@ -73,8 +75,21 @@ public class SSLStateMachine {
 	public void wrapRemaining() throws IOException {
 		wrap(null, channel.prepareEncryptedDataBuffer(), null);
 	}
+	/**
+	 * Encrypt src, queued behind the data still pending, into dst and send
+	 * it. dst must be a buffer from the ByteBufferFactory and is given back
+	 * to it once done.
+	 */
 	public void wrap(ByteBuffer src, ByteBuffer dst, 
 			MessageSendCallback callback) throws IOException {
+		try {
+			wrapPending(src, dst, callback);
+		} finally {
+			ByteBufferFactory.getInstance().release(dst);
+		}
+	}
+	private void wrapPending(ByteBuffer src, ByteBuffer dst, 
+			MessageSendCallback callback) throws IOException {
 		synchronized (wrapLock) {
 			logger.debug("Wrapping " + src + ", buffers size " + pendingOutboundBuffers.size());
 			// Null src means we just have no ne data but still want to push any previously queued data
@@ -215,7 +230,7 @@ public class SSLStateMachine {
 
 			throw e;
 		} finally {
-
+			ByteBufferFactory.getInstance().release(encryptedDataBuffer);
 		}
 	}
 
@@ -239,6 +254,10 @@ public class SSLStateMachine {
 			logger.debug("Allocated record buffer for reading " + tlsRecordBuffer + " for src = " + src);
 		}
 	}
+	/*
+	 * The record buffer may still be the src of the running unwrap, it is
+	 * given back to the pool by unwrap once done with it.
+	 */
 	private void clearBuffer() {
 		tlsRecordBuffer = null;
 		logger.debug("Buffer cleared");
@@ -262,6 +281,21 @@ public class SSLStateMachine {
 		}
 	}
 	private void unwrap(ByteBuffer src, ByteBuffer dst) throws Exception {
+		synchronized (unwrapLock) {
+			ByteBuffer recordBuffer = tlsRecordBuffer;
+			appDataBuffer = dst;
+			try {
+				unwrapPending(src, dst);
+			} finally {
+				ByteBufferFactory.getInstance().release(appDataBuffer);
+				appDataBuffer = null;
+				if(recordBuffer != null && recordBuffer != tlsRecordBuffer) {
+					ByteBufferFactory.getInstance().release(recordBuffer);
+				}
+			}
+		}
+	}
+	private void unwrapPending(ByteBuffer src, ByteBuffer dst) throws Exception {
 		synchronized (unwrapLock) {
 
 			loop:while(true) {
@@ -293,7 +327,9 @@ public class SSLStateMachine {
 						+ " Packet buffer size: " + sslEngine.getSession().getPacketBufferSize()
 						+ " new buffer size: " + sslEngine.getSession().getPacketBufferSize() + dst.position());
 					ByteBuffer newBuf = channel.prepareAppDataBuffer(sslEngine.getSession().getPacketBufferSize());
+					ByteBufferFactory.getInstance().release(dst);
 					dst = newBuf;
+					appDataBuffer = dst;
 					logger.debug(" new outNetBuffer remaining: " +  dst.remaining()
 						+ " new outNetBuffer postion: " +  dst.position());
 					continue;
@@ -393,6 +429,18 @@ public class SSLStateMachine {
 		}
 	}
 
+	/**
+	 * Give back the buffer of a partially received TLS record to the
+	 * ByteBufferFactory, called when the channel is closed.
+	 */
+	public void releaseBuffers() {
+		synchronized (unwrapLock) {
+			ByteBuffer recordBuffer = tlsRecordBuffer;
+			tlsRecordBuffer = null;
+			ByteBufferFactory.getInstance().release(recordBuffer);
+		}
+	}
+
 	public void sendSSLMetadata(byte[] msg) throws IOException {
 		channel.sendEncryptedData(msg);
 	}
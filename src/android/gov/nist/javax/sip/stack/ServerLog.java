@@ -71,6 +71,20 @@ public class ServerLog implements ServerLogger {
      */
     private PrintWriter printWriter;
 
+    /**
+     * Writer of the binary trace used instead of the print writer when the
+     * trace is written asynchronously.
+     */
+    private volatile AsyncTraceWriter asyncTraceWriter;
+
+    private boolean asyncLogging;
+
+    private int asyncLogQueueSize = 8192;
+
+    private long maxLogFileSize;
+
+    private int maxLogFiles = 5;
+
     /**
      * Set auxililary information to log with this trace.
      */
@@ -97,6 +111,18 @@ public class ServerLog implements ServerLogger {
         String logLevel = configurationProperties.getProperty("android.gov.nist.javax.sip.TRACE_LEVEL");
         String logContent = configurationProperties.getProperty("android.gov.nist.javax.sip.LOG_MESSAGE_CONTENT");
         this.logContent = (logContent != null && logContent.equals("true"));
+        this.asyncLogging = "true".equalsIgnoreCase(configurationProperties
+                .getProperty("android.gov.nist.javax.sip.SERVER_LOG_ASYNC"));
+        try {
+            this.asyncLogQueueSize = Integer.parseInt(configurationProperties.getProperty(
+                    "android.gov.nist.javax.sip.SERVER_LOG_QUEUE_SIZE", "8192"));
+            this.maxLogFileSize = Long.parseLong(configurationProperties.getProperty(
+                    "android.gov.nist.javax.sip.SERVER_LOG_MAX_FILE_SIZE", "0"));
+            this.maxLogFiles = Integer.parseInt(configurationProperties.getProperty(
+                    "android.gov.nist.javax.sip.SERVER_LOG_MAX_FILES", "5"));
+        } catch (NumberFormatException ex) {
+            stackLogger.error("Bad value for the asynchronous server log - " + ex.getMessage());
+        }
         checkLogFile();
     }
 
@@ -117,6 +143,10 @@ public class ServerLog implements ServerLogger {
             printWriter.close();
             printWriter = null;
         }
+        if (asyncTraceWriter != null) {
+            asyncTraceWriter.close();
+            asyncTraceWriter = null;
+        }
     }
 
     public void checkLogFile() {
@@ -125,6 +155,12 @@ public class ServerLog implements ServerLogger {
             // disabled.
             return;
         }
+        if (asyncLogging) {
+            if (asyncTraceWriter == null) {
+                openAsyncTraceWriter();
+            }
+            return;
+        }
         try {
             File logFile = new File(logFileName);
             if (!logFile.exists()) {
@@ -210,6 +246,31 @@ public class ServerLog implements ServerLogger {
         }
     }
 
+    private synchronized void openAsyncTraceWriter() {
+        if (asyncTraceWriter != null) {
+            return;
+        }
+        boolean overwrite = Boolean.valueOf(configurationProperties
+                .getProperty("android.gov.nist.javax.sip.SERVER_LOG_OVERWRITE"));
+        try {
+            asyncTraceWriter = new AsyncTraceWriter(logFileName, !overwrite, asyncLogQueueSize,
+                    maxLogFileSize, maxLogFiles);
+        } catch (IOException ex) {
+            stackLogger.error("Could not open the message trace " + logFileName, ex);
+            // Do not try again for every message.
+            logFileName = null;
+        }
+    }
+
+    /**
+     * @return the number of message trace records dropped because the
+     *         asynchronous writer could not keep up.
+     */
+    public long getDroppedLogRecordsCount() {
+        AsyncTraceWriter writer = asyncTraceWriter;
+        return writer == null ? 0 : writer.getDroppedRecordsCount();
+    }
+
     /**
      * Global check for whether to log or not. To minimize the time return false here.
      *
@@ -255,6 +316,19 @@ public class ServerLog implements ServerLogger {
             String callId, String firstLine, String status, String tid, long time,
             long timestampVal) {
 
+        AsyncTraceWriter writer = asyncTraceWriter;
+        if (writer != null) {
+            writer.append(message, from, to, time, sender, firstLine, tid, callId,
+                    timestampVal);
+            if (!stackLogger.isInfoEnabled()) {
+                return;
+            }
+            LogRecord log = this.sipStack.logRecordFactory.createLogRecord(message, from, to,
+                    time, sender, firstLine, tid, callId, timestampVal);
+            if (log != null)
+                stackLogger.info(log.toString());
+            return;
+        }
         LogRecord log = this.sipStack.logRecordFactory.createLogRecord(message, from, to, time,
                 sender, firstLine, tid, callId, timestampVal);
         if (log != null)
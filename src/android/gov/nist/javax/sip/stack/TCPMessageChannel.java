@@ -104,9 +104,6 @@ public class TCPMessageChannel extends ConnectionOrientedMessageChannel {
         myAddress = msgProcessor.getIpAddress().getHostAddress();
         myClientInputStream = mySock.getInputStream();
         myClientOutputStream = mySock.getOutputStream();
-        mythread = new Thread(this);
-        mythread.setDaemon(true);
-        mythread.setName(threadName);
         this.peerPort = mySock.getPort();
         this.key = MessageChannel.getKey(peerAddress, peerPort, "TCP");
 
@@ -114,7 +111,7 @@ public class TCPMessageChannel extends ConnectionOrientedMessageChannel {
         // Bug report by Vishwashanti Raj Kadiayl
         super.messageProcessor = msgProcessor;
         // Can drop this after response is sent potentially.
-        mythread.start();
+        startReader(threadName);
     }
 
     /**
@@ -265,10 +262,7 @@ public class TCPMessageChannel extends ConnectionOrientedMessageChannel {
             mySock = sock;
             this.myClientInputStream = mySock.getInputStream();
             this.myClientOutputStream = mySock.getOutputStream();
-            Thread thread = new Thread(this);
-            thread.setDaemon(true);
-            thread.setName("TCPMessageChannelThread");
-            thread.start();
+            startReader("TCPMessageChannelThread");
        	} else {
    			logger.warn("There was an exception for the retry mechanism so not creating a new thread based on the new socket for incoming " + key);
        		mySock = sock;
@@ -355,10 +349,7 @@ public class TCPMessageChannel extends ConnectionOrientedMessageChannel {
 	            this.myClientInputStream = mySock.getInputStream();
 	            this.myClientOutputStream = mySock.getOutputStream();
 	            // start a new reader on this end of the pipe.
-	            Thread mythread = new Thread(this);
-	            mythread.setDaemon(true);
-	            mythread.setName("TCPMessageChannelThread");
-	            mythread.start();
+	            startReader("TCPMessageChannelThread");
             } else {
         		logger.warn("There was an exception for the retry mechanism so not creating a new thread based on the new socket for incoming " + key);
             	mySock = sock;
@@ -123,17 +123,13 @@ public class TLSMessageChannel extends ConnectionOrientedMessageChannel {
         myAddress = msgProcessor.getIpAddress().getHostAddress();
         myClientInputStream = mySock.getInputStream();
 
-        mythread = new Thread(this);
-        mythread.setDaemon(true);
-        mythread.setName(threadName);
-
         this.myPort = msgProcessor.getPort();
         this.peerPort = mySock.getPort();
         this.key = MessageChannel.getKey(peerAddress, peerPort, "TLS");
         // Bug report by Vishwashanti Raj Kadiayl
         super.messageProcessor = msgProcessor;
         // Can drop this after response is sent potentially.
-        mythread.start();
+        startReader(threadName);
     }
 
     /**
@@ -267,10 +263,7 @@ public class TLSMessageChannel extends ConnectionOrientedMessageChannel {
           		}
    	            mySock = sock;
    	            this.myClientInputStream = mySock.getInputStream();
-   	            Thread thread = new Thread(this);
-   	            thread.setDaemon(true);
-   	            thread.setName("TCPMessageChannelThread");
-   	            thread.start();
+   	            startReader("TCPMessageChannelThread");
           	} else {
       			logger.warn("There was an exception for the retry mechanism so not creating a new thread based on the new socket for incoming " + key);
           		mySock = sock;
@@ -362,10 +355,7 @@ public class TLSMessageChannel extends ConnectionOrientedMessageChannel {
 	            mySock = sock;
 	            this.myClientInputStream = mySock.getInputStream();
 	            // start a new reader on this end of the pipe.
-	            Thread mythread = new Thread(this);
-	            mythread.setDaemon(true);
-	            mythread.setName("TCPMessageChannelThread");
-	            mythread.start();
+	            startReader("TCPMessageChannelThread");
             } else {
         		logger.warn("There was an exception for the retry mechanism so not creating a new thread based on the new socket for incoming " + key);
             	mySock = sock;
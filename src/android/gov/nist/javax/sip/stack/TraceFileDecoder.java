@@ -0,0 +1,136 @@
+/*
+ * Conditions Of Use
+ *
+ * This software was developed by employees of the National Institute of
+ * Standards and Technology (NIST), an agency of the Federal Government.
+ * Pursuant to title 15 Untied States Code Section 105, works of NIST
+ * employees are not subject to copyright protection in the United States
+ * and are considered to be in the public domain.  As a result, a formal
+ * license is not needed to use the software.
+ *
+ * This software is provided by NIST as a service and is expressly
+ * provided "AS IS."  NIST MAKES NO WARRANTY OF ANY KIND, EXPRESS, IMPLIED
+ * OR STATUTORY, INCLUDING, WITHOUT LIMITATION, THE IMPLIED WARRANTY OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, NON-INFRINGEMENT
+ * AND DATA ACCURACY.  NIST does not warrant or make any representations
+ * regarding the use of the software or the results thereof, including but
+ * not limited to the correctness, accuracy, reliability or usefulness of
+ * the software.
+ *
+ * Permission to use this software is contingent upon your acceptance
+ * of the terms of this agreement
+ *
+ * .
+ *
+ */
+package android.gov.nist.javax.sip.stack;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+import android.gov.nist.javax.sip.LogRecordFactory;
+
+/**
+ * Offline decoder of the binary message trace written by AsyncTraceWriter.
+ * Prints the records in the XML format of the synchronous trace, so the
+ * output can be read with the trace viewer.
+ *
+ * <pre>
+ * java android.gov.nist.javax.sip.stack.TraceFileDecoder trace.log.2 trace.log.1 trace.log
+ * </pre>
+ *
+ * @see AsyncTraceWriter
+ */
+public class TraceFileDecoder {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final LogRecordFactory logRecordFactory;
+
+    public TraceFileDecoder() {
+        this(new DefaultMessageLogFactory());
+    }
+
+    /**
+     * @param logRecordFactory the factory formatting the records.
+     */
+    public TraceFileDecoder(LogRecordFactory logRecordFactory) {
+        this.logRecordFactory = logRecordFactory;
+    }
+
+    /**
+     * Decode a trace and print its records.
+     *
+     * @param trace the content of a trace file.
+     * @param out where to print the records.
+     * @return the number of records decoded.
+     * @throws IOException if the trace cannot be read or is not a trace.
+     */
+    public int decode(InputStream trace, PrintStream out) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(trace));
+        if (in.readInt() != AsyncTraceWriter.MAGIC) {
+            throw new IOException("Not a message trace");
+        }
+        byte version = in.readByte();
+        if (version != AsyncTraceWriter.VERSION) {
+            throw new IOException("Unsupported message trace version " + version);
+        }
+        int count = 0;
+        while (true) {
+            int length;
+            try {
+                length = in.readInt();
+            } catch (EOFException ex) {
+                return count;
+            }
+            byte[] bytes = new byte[length];
+            in.readFully(bytes);
+            ByteBuffer record = ByteBuffer.wrap(bytes);
+            boolean sender = (record.get() & AsyncTraceWriter.FLAG_SENDER) != 0;
+            long time = record.getLong();
+            long timeStampHeaderValue = record.getLong();
+            String from = readString(record);
+            String to = readString(record);
+            String callId = readString(record);
+            String tid = readString(record);
+            String firstLine = readString(record);
+            String message = readString(record);
+            out.println(logRecordFactory.createLogRecord(message, from, to, time, sender,
+                    firstLine, tid, callId, timeStampHeaderValue));
+            count++;
+        }
+    }
+
+    private static String readString(ByteBuffer record) {
+        int length = record.getInt();
+        if (length < 0) {
+            return null;
+        }
+        String string = new String(record.array(), record.position(), length, UTF8);
+        record.position(record.position() + length);
+        return string;
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length == 0) {
+            System.err.println("Usage: TraceFileDecoder traceFile...");
+            System.exit(1);
+        }
+        TraceFileDecoder decoder = new TraceFileDecoder();
+        for (String fileName : args) {
+            InputStream trace = new FileInputStream(fileName);
+            try {
+                decoder.decode(trace, System.out);
+            } finally {
+                trace.close();
+            }
+        }
+    }
+}
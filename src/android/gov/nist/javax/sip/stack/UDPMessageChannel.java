@@ -35,9 +35,11 @@ import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
 import java.net.Socket;
+import java.nio.ByteBuffer;
 import java.text.ParseException;
 import java.util.Arrays;
 import java.util.Hashtable;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.TimeUnit;
 
 import org.slf4j.Logger;
@@ -132,7 +134,12 @@ public class UDPMessageChannel extends MessageChannel implements
 
     protected int myPort;
 
-    private DatagramPacket incomingPacket;
+    private DatagramQueuedMessageDispatch incomingWork;
+
+    /**
+     * Queue this pooled channel takes its work from.
+     */
+    private BlockingQueue<DatagramQueuedMessageDispatch> receiveQueue;
 
     private long receptionTime;
 
@@ -179,7 +186,27 @@ public class UDPMessageChannel extends MessageChannel implements
      */
     protected UDPMessageChannel(SIPTransactionStack stack,
             UDPMessageProcessor messageProcessor, String threadName) {
+        this(stack, messageProcessor, threadName, messageProcessor.messageQueue);
+    }
+
+    /**
+     * Constructor - same as above, taking its work from one of the message
+     * queues of the processor.
+     *
+     * @param stack
+     *            is the shared SIPStack structure
+     * @param messageProcessor
+     *            is the creating message processor.
+     * @param threadName
+     *            name that will be affected to the underlying thread
+     * @param receiveQueue
+     *            the message queue this channel takes datagrams from
+     */
+    protected UDPMessageChannel(SIPTransactionStack stack,
+            UDPMessageProcessor messageProcessor, String threadName,
+            BlockingQueue<DatagramQueuedMessageDispatch> receiveQueue) {
         super.messageProcessor = messageProcessor;
+        this.receiveQueue = receiveQueue;
         this.sipStack = stack;
 
         // jeand : Create a new string message parser to parse the list of
@@ -206,13 +233,13 @@ public class UDPMessageChannel extends MessageChannel implements
      *            is the SIP sipStack.
      * @param messageProcessor
      *            is the creating message processor.
-     * @param packet
-     *            is the incoming datagram packet.
+     * @param work
+     *            is the incoming datagram.
      */
     protected UDPMessageChannel(SIPTransactionStack stack,
-            UDPMessageProcessor messageProcessor, DatagramPacket packet) {
+            UDPMessageProcessor messageProcessor, DatagramQueuedMessageDispatch work) {
 
-        this.incomingPacket = packet;
+        this.incomingWork = work;
         super.messageProcessor = messageProcessor;
         this.sipStack = stack;
 
@@ -267,7 +294,7 @@ public class UDPMessageChannel extends MessageChannel implements
 
         while (true) {
             // messages that we write out to him.
-            DatagramPacket packet = null;
+            DatagramQueuedMessageDispatch work = null;
 
             if (sipStack.threadPoolSize != -1) {
 
@@ -282,14 +309,13 @@ public class UDPMessageChannel extends MessageChannel implements
                 	threadHandle.ping();
 
                 try {
-                	DatagramQueuedMessageDispatch work = null;
                 	// adding condition to avoid looping and taking too much CPU if the 
                 	// auditing is not enabled
                 	if (threadHandle != null && sipStack.getThreadAuditor() !=null && sipStack.getThreadAuditor().isEnabled()) {
-                		work = udpMessageProcessor.messageQueue.poll(threadHandle
+                		work = receiveQueue.poll(threadHandle
 	                        .getPingIntervalInMillisecs(), TimeUnit.MILLISECONDS);
                 	} else {
-                		work = udpMessageProcessor.messageQueue.take();
+                		work = receiveQueue.take();
                 	}
 	                if (!udpMessageProcessor.isRunning) {
 	                    return;
@@ -297,8 +323,7 @@ public class UDPMessageChannel extends MessageChannel implements
 	                if (work == null) {
 	                	continue;
 	                } else {
-	                	packet = work.packet;
-		                this.incomingPacket = work.packet;						
+		                this.incomingWork = work;
 	                }	                	
                 } catch (InterruptedException ex) {
 					if (!udpMessageProcessor.isRunning) {
@@ -306,14 +331,21 @@ public class UDPMessageChannel extends MessageChannel implements
 					}
 				}
             } else {
-                packet = this.incomingPacket;
+                work = this.incomingWork;
             }
 
             // Process the packet. Catch and log any exception we may throw.
             try {
-                processIncomingDataPacket(packet);
+                processIncomingDataPacket(work);
             } catch (Exception e) {
-                logger.error("Error while processing incoming UDP packet" + Arrays.toString(packet.getData()), e);
+                logger.error("Error while processing incoming UDP packet" + Arrays.toString(
+                        Arrays.copyOfRange(work.buffer.array(), work.buffer.arrayOffset() + work.buffer.position(),
+                                work.buffer.arrayOffset() + work.buffer.limit())), e);
+            } finally {
+                // The message has been parsed (and its body copied), so the
+                // receive buffer can go back to the pool.
+                udpMessageProcessor.receiveBufferPool.release(work.buffer);
+                this.incomingWork = null;
             }
 
             if (sipStack.threadPoolSize == -1) {
@@ -325,33 +357,35 @@ public class UDPMessageChannel extends MessageChannel implements
     /**
      * Process an incoming datagram
      *
-     * @param packet
-     *            is the incoming datagram packet.
+     * @param work
+     *            is the incoming datagram.
      */
-    private void processIncomingDataPacket(DatagramPacket packet)
+    private void processIncomingDataPacket(DatagramQueuedMessageDispatch work)
             throws Exception {
-        this.peerAddress = packet.getAddress();
-        int packetLength = packet.getLength();
-        // Read bytes and put it in a eueue.
-        byte[] bytes = packet.getData();
-        byte[] msgBytes = new byte[packetLength];
-        System.arraycopy(bytes, 0, msgBytes, 0, packetLength);
+        InetAddress packetAddress = work.peerAddress;
+        int packetPort = work.peerPort;
+        this.peerAddress = packetAddress;
+        // The parser reads the bytes straight from the receive buffer.
+        ByteBuffer buffer = work.buffer;
+        byte[] bytes = buffer.array();
+        int offset = buffer.arrayOffset() + buffer.position();
+        int packetLength = buffer.remaining();
 
         // Do debug logging.
         logger.debug("UDPMessageChannel: processIncomingDataPacket : peerAddress = "
             + peerAddress.getHostAddress() + "/"
-            + packet.getPort() + " Length = " + packetLength);
+            + packetPort + " Length = " + packetLength);
 
         SIPMessage sipMessage = null;
         try {
             this.receptionTime = System.currentTimeMillis();
-            sipMessage = myParser.parseSIPMessage(msgBytes, true, false, this);
+            sipMessage = myParser.parseSIPMessage(bytes, offset, packetLength, true, false, this);
             /*@see Issue 292 */
             if (sipMessage instanceof SIPRequest) {
                 String sipVersion = ((SIPRequest)sipMessage).getRequestLine().getSipVersion();
                 if (! sipVersion.equals("SIP/2.0")) {
                      Response versionNotSupported = ((SIPRequest) sipMessage).createResponse(Response.VERSION_NOT_SUPPORTED, "Bad version " + sipVersion);
-                     this.sendMessage(versionNotSupported.toString().getBytes(),peerAddress,packet.getPort(),"UDP",false);
+                     this.sendMessage(versionNotSupported.toString().getBytes(),peerAddress,packetPort,"UDP",false);
                      return;
                 }
                 String method = ((SIPRequest) sipMessage).getMethod();
@@ -363,7 +397,7 @@ public class UDPMessageChannel extends MessageChannel implements
                     .createResponse(SIPResponse.BAD_REQUEST);
                     byte[] resp = sipResponse
                             .encodeAsBytes(this.getTransport());
-                    this.sendMessage(resp,peerAddress,packet.getPort(),"UDP",false);
+                    this.sendMessage(resp,peerAddress,packetPort,"UDP",false);
                     return;
 
                 }
@@ -371,13 +405,13 @@ public class UDPMessageChannel extends MessageChannel implements
 
         } catch (ParseException ex) {
             // myParser = null; // let go of the parser reference.
-            logger.debug("Rejecting message !  " + new String(msgBytes));
+            logger.debug("Rejecting message !  " + new String(bytes, offset, packetLength));
             logger.debug("error message " + ex.getMessage());
             logger.error("ParseException", ex);
 
             // JvB: send a 400 response for requests (except ACK)
             // Currently only UDP, @todo also other transports
-            String msgString = new String(msgBytes, 0, packetLength);
+            String msgString = new String(bytes, offset, packetLength);
             if (!msgString.startsWith("SIP/") && !msgString.startsWith("ACK ")) {
 
                 String badReqRes = createBadReqRes(msgString, ex);
@@ -386,7 +420,7 @@ public class UDPMessageChannel extends MessageChannel implements
                     logger.debug(badReqRes);
                     try {
                         this.sendMessage(badReqRes.getBytes(), peerAddress,
-                                packet.getPort(), "UDP", false);
+                                packetPort, "UDP", false);
                     } catch (IOException e) {
                         logger.error("IOException", e);
                     }
@@ -403,15 +437,14 @@ public class UDPMessageChannel extends MessageChannel implements
 
         if (sipMessage == null) {
         	logger.debug("Rejecting message !  + Null message parsed.");
-            String key = packet.getAddress().getHostAddress() + ":"
-                    + packet.getPort();
+            String key = packetAddress.getHostAddress() + ":"
+                    + packetPort;
             if (pingBackRecord.get(key) == null
                     && sipStack.getMinKeepAliveInterval() > 0) {
                 byte[] retval = "\r\n\r\n".getBytes();
                 DatagramPacket keepalive = new DatagramPacket(retval, 0,
-                        retval.length, packet.getAddress(), packet.getPort());
-                PingBackTimerTask task = new PingBackTimerTask(packet
-                        .getAddress().getHostAddress(), packet.getPort());
+                        retval.length, packetAddress, packetPort);
+                PingBackTimerTask task = new PingBackTimerTask(packetAddress.getHostAddress(), packetPort);
                 this.pingBackRecord.put(key, task);
                 this.sipStack.getTimer().schedule(task,
                         sipStack.getMinKeepAliveInterval() * 1000);
@@ -427,7 +460,7 @@ public class UDPMessageChannel extends MessageChannel implements
         if (sipMessage.getFrom() == null || sipMessage.getTo() == null
                 || sipMessage.getCallId() == null
                 || sipMessage.getCSeq() == null || topMostVia == null) {
-            String badmsg = new String(msgBytes);
+            String badmsg = new String(bytes, offset, packetLength);
             logger.error("bad message " + badmsg);
             logger.error(">>> Dropped Bad Msg " + "From = "
                 + sipMessage.getFrom() + "To = "
@@ -450,10 +483,10 @@ public class UDPMessageChannel extends MessageChannel implements
             this.peerPort = hop.getPort();
             this.peerProtocol = topMostVia.getTransport();
 
-            this.peerPacketSourceAddress = packet.getAddress();
-            this.peerPacketSourcePort = packet.getPort();
+            this.peerPacketSourceAddress = packetAddress;
+            this.peerPacketSourcePort = packetPort;
             try {
-                this.peerAddress = packet.getAddress();
+                this.peerAddress = packetAddress;
                 // Check to see if the received parameter matches
                 // the peer address and tag it appropriately.
                 
@@ -482,10 +515,10 @@ public class UDPMessageChannel extends MessageChannel implements
 
         } else {
 
-            this.peerPacketSourceAddress = packet.getAddress();
-            this.peerPacketSourcePort = packet.getPort();
-            this.peerAddress = packet.getAddress();
-            this.peerPort = packet.getPort();
+            this.peerPacketSourceAddress = packetAddress;
+            this.peerPacketSourcePort = packetPort;
+            this.peerAddress = packetAddress;
+            this.peerPort = packetPort;
             this.peerProtocol = topMostVia.getTransport();
         }
 
@@ -29,13 +29,21 @@
 package android.gov.nist.javax.sip.stack;
 
 import java.io.IOException;
+import java.lang.reflect.Field;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.SocketException;
+import java.net.SocketOption;
 import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.LinkedBlockingQueue;
 
@@ -44,6 +52,7 @@ import org.slf4j.LoggerFactory;
 
 import android.gov.nist.core.HostPort;
 import android.gov.nist.core.ThreadAuditor;
+import android.gov.nist.core.net.DefaultNetworkLayer;
 import android.gov.nist.javax.sip.SipStackImpl;
 import android.javax.sip.IOExceptionEvent;
 import android.javax.sip.SipListener;
@@ -52,6 +61,8 @@ import android.javax.sip.SipListener;
  * Sit in a loop and handle incoming udp datagram messages. For each Datagram
  * packet, a new UDPMessageChannel is created (upto the max thread pool size).
  * Each UDP message is processed in its own thread).
+ * Datagrams are received into buffers taken from a DatagramBufferPool and
+ * parsed in place; the buffer goes back to the pool once dispatched.
  *
  * @version 1.2 $Revision: 1.46 $ $Date: 2010-12-02 22:04:12 $
  *
@@ -78,12 +89,20 @@ public class UDPMessageProcessor extends MessageProcessor implements Runnable {
     private int port;
 
     /**
-     * Incoming messages are queued here.
+     * Incoming messages are queued here (the first of messageQueues).
      */
     protected BlockingQueue<DatagramQueuedMessageDispatch> messageQueue;
+
+    /**
+     * Incoming messages are queued here. With several receive sockets each
+     * worker has a queue of its own and a message always goes to the queue
+     * picked by its Call-ID, so the messages of a call are processed one
+     * at a time and in order.
+     */
+    protected List<BlockingQueue<DatagramQueuedMessageDispatch>> messageQueues;
     
     /**
-     * Auditing taks that checks for outdated requests in the queue
+     * Auditing taks that checks for outdated requests in the queues
      */
     BlockingQueueDispatchAuditor congestionAuditor;
 
@@ -99,6 +118,25 @@ public class UDPMessageProcessor extends MessageProcessor implements Runnable {
 
     protected DatagramSocket sock;
 
+    /**
+     * Channel behind sock when the receive path reads straight into pooled
+     * buffers, null when sock comes from a custom network layer.
+     */
+    protected DatagramChannel channel;
+
+    /**
+     * All the channels bound to our ip:port, channel being the first one.
+     * There is more than one only when UDP_RECEIVE_SOCKETS asks for it and
+     * the JVM exposes SO_REUSEPORT.
+     */
+    protected DatagramChannel[] receiveChannels;
+
+    /**
+     * Receive buffers, given back by the UDPMessageChannel once the message
+     * has been dispatched.
+     */
+    protected DatagramBufferPool receiveBufferPool;
+
     /**
      * A flag that is set to false to exit the message processor (suggestion by
      * Jeff Keyser).
@@ -109,6 +147,12 @@ public class UDPMessageProcessor extends MessageProcessor implements Runnable {
     
     private static final int LOWAT=2500;
 
+    /**
+     * Takes the STUN messages received on our socket, null when nobody asked
+     * for them (they are then dropped by the parser as any garbage).
+     */
+    private volatile StunMessageHandler stunMessageHandler;
+
     private int maxMessageSize = SipStackImpl.MAX_DATAGRAM_SIZE;
     private int exceptionsReportedCounter;
     private static final int MAX_EXCEPTIONS_TO_REPORT = 10;
@@ -128,18 +172,28 @@ public class UDPMessageProcessor extends MessageProcessor implements Runnable {
             this.maxMessageSize = sipStack.getMaxMessageSize();
         }
         logger.debug("Max Message size is " + maxMessageSize);
-        this.messageQueue = new LinkedBlockingQueue<DatagramQueuedMessageDispatch>();
-        // Contribution for https://github.com/Mobicents/jain-sip/issues/39
-        if(sipStack.getStackCongestionControlTimeout()>0) {
-        	this.congestionAuditor = new BlockingQueueDispatchAuditor(this.messageQueue);
-        	this.congestionAuditor.setTimeout(sipStack.getStackCongestionControlTimeout());
-        	this.congestionAuditor.start(2000);
-        }
 
         this.port = port;
+        this.receiveBufferPool = new DatagramBufferPool(maxMessageSize,
+                DatagramBufferPool.DEFAULT_MAX_POOLED_BUFFERS);
         try {
-            this.sock = sipStack.getNetworkLayer().createDatagramSocket(port,
-                    ipAddress);
+            boolean threadAuditorEnabled = sipStack.getThreadAuditor() != null
+                    && sipStack.getThreadAuditor().isEnabled();
+            // DatagramChannel.receive ignores SO_TIMEOUT, so keep the plain
+            // socket when the thread auditor needs the reader to wake up.
+            if (sipStack.getNetworkLayer() instanceof DefaultNetworkLayer
+                    && !ipAddress.isMulticastAddress() && !threadAuditorEnabled) {
+                this.receiveChannels = openReceiveChannels(ipAddress, port,
+                        sipStack.getUdpReceiveSockets());
+                this.channel = this.receiveChannels[0];
+                this.sock = this.channel.socket();
+                for (int i = 1; i < receiveChannels.length; i++) {
+                    receiveChannels[i].socket().setReceiveBufferSize(sipStack.getReceiveUdpBufferSize());
+                }
+            } else {
+                this.sock = sipStack.getNetworkLayer().createDatagramSocket(port,
+                        ipAddress);
+            }
             // Create a new datagram socket.
             sock.setReceiveBufferSize(sipStack.getReceiveUdpBufferSize());
             sock.setSendBufferSize(sipStack.getSendUdpBufferSize());
@@ -162,9 +216,81 @@ public class UDPMessageProcessor extends MessageProcessor implements Runnable {
 
             }
         } catch (Exception ex) {
-        	if(this.congestionAuditor != null) this.congestionAuditor.stop();
+        	if(this.receiveChannels != null) {
+        		for (DatagramChannel receiveChannel : this.receiveChannels) {
+        			receiveChannel.close();
+        		}
+        	}
             throw new IOException(ex);
         }
+
+        // Several receive sockets: one queue per worker, so that no two workers
+        // ever take messages of the same call.
+        int queuesCount = 1;
+        if (receiveChannels != null && receiveChannels.length > 1 && sipStack.threadPoolSize > 0) {
+            queuesCount = sipStack.threadPoolSize;
+        }
+        this.messageQueues = new ArrayList<BlockingQueue<DatagramQueuedMessageDispatch>>(queuesCount);
+        for (int i = 0; i < queuesCount; i++) {
+            this.messageQueues.add(new LinkedBlockingQueue<DatagramQueuedMessageDispatch>());
+        }
+        this.messageQueue = this.messageQueues.get(0);
+        // Contribution for https://github.com/Mobicents/jain-sip/issues/39
+        if(sipStack.getStackCongestionControlTimeout()>0) {
+        	this.congestionAuditor = new BlockingQueueDispatchAuditor(this.messageQueues);
+        	this.congestionAuditor.setTimeout(sipStack.getStackCongestionControlTimeout());
+        	this.congestionAuditor.start(2000);
+        }
+    }
+
+    /**
+     * Bind socketsCount channels to ipAddress:port. Extra sockets need
+     * SO_REUSEPORT (so the kernel spreads datagrams across them), which is
+     * looked up at runtime as it is not part of the Java 7 API: a single
+     * channel is bound when it is not available.
+     */
+    private static DatagramChannel[] openReceiveChannels(InetAddress ipAddress,
+            int port, int socketsCount) throws IOException {
+        SocketOption<Boolean> reusePort = socketsCount > 1 ? getReusePortOption() : null;
+        DatagramChannel first = DatagramChannel.open();
+        if (reusePort != null && first.supportedOptions().contains(reusePort)) {
+            first.setOption(reusePort, true);
+        } else {
+            if (socketsCount > 1) {
+                logger.warn("SO_REUSEPORT is not available, using a single UDP receive socket for "
+                        + ipAddress.getHostAddress() + ":" + port);
+            }
+            socketsCount = 1;
+        }
+        DatagramChannel[] channels = new DatagramChannel[socketsCount];
+        channels[0] = first;
+        try {
+            first.bind(new InetSocketAddress(ipAddress, port));
+            int boundPort = first.socket().getLocalPort();
+            for (int i = 1; i < socketsCount; i++) {
+                channels[i] = DatagramChannel.open();
+                channels[i].setOption(reusePort, true);
+                channels[i].bind(new InetSocketAddress(ipAddress, boundPort));
+            }
+        } catch (IOException ex) {
+            for (DatagramChannel channel : channels) {
+                if (channel != null) {
+                    channel.close();
+                }
+            }
+            throw ex;
+        }
+        return channels;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static SocketOption<Boolean> getReusePortOption() {
+        try {
+            Field field = StandardSocketOptions.class.getField("SO_REUSEPORT");
+            return (SocketOption<Boolean>) field.get(null);
+        } catch (Exception ex) {
+            return null;
+        }
     }
 
 
@@ -192,6 +318,19 @@ public class UDPMessageProcessor extends MessageProcessor implements Runnable {
         // Issue #184
         thread.setPriority(sipStack.getThreadPriority());
         thread.start();
+        // Readers for the extra SO_REUSEPORT sockets, if any.
+        for (int i = 1; receiveChannels != null && i < receiveChannels.length; i++) {
+            final int index = i;
+            Thread reader = new Thread(new Runnable() {
+                public void run() {
+                    receive(index);
+                }
+            });
+            reader.setDaemon(true);
+            reader.setName("MessageProcessorThread-UDP-" + getIpAddress().getHostAddress() + '/' + getPort() + '-' + i);
+            reader.setPriority(sipStack.getThreadPriority());
+            reader.start();
+        }
     }
 
     /**
@@ -205,12 +344,20 @@ public class UDPMessageProcessor extends MessageProcessor implements Runnable {
         if (sipStack.threadPoolSize != -1) {
             for (int i = 0; i < sipStack.threadPoolSize; i++) {
                 UDPMessageChannel channel = new UDPMessageChannel(sipStack,
-                        this, ((SipStackImpl)sipStack).getStackName() + "-UDPMessageChannelThread-" + i);
+                        this, ((SipStackImpl)sipStack).getStackName() + "-UDPMessageChannelThread-" + i,
+                        messageQueues.get(i % messageQueues.size()));
                 this.messageChannels.add(channel);
 
             }
         }
 
+        receive(0);
+    }
+
+    /**
+     * Receive loop of the reader thread of one of the receive sockets.
+     */
+    private void receive(int index) {
         // Ask the auditor to monitor this thread
         ThreadAuditor.ThreadHandle threadHandle = null;
         // Contribution for https://github.com/Mobicents/jain-sip/issues/39
@@ -218,18 +365,44 @@ public class UDPMessageProcessor extends MessageProcessor implements Runnable {
         	threadHandle = sipStack.getThreadAuditor().addCurrentThread();
         }
 
+        DatagramChannel channel = receiveChannels == null ? null : receiveChannels[index];
+        // Only used when receiving from the plain socket, the pooled buffer
+        // array is swapped in before each receive.
+        DatagramPacket packet = channel == null ? new DatagramPacket(new byte[0], 0) : null;
+
         // Somebody asked us to exit. if isRunnning is set to false.
         while (this.isRunning) {
 
+            ByteBuffer buffer = null;
             try {
                 // Let the thread auditor know we're up and running
             	if(threadHandle != null)
             		threadHandle.ping();
 
-                int bufsize = this.maxMessageSize;
-                byte message[] = new byte[bufsize];
-                DatagramPacket packet = new DatagramPacket(message, bufsize);
-                sock.receive(packet);
+                buffer = receiveBufferPool.acquire();
+                DatagramQueuedMessageDispatch work;
+                if (channel != null) {
+                    InetSocketAddress sender = (InetSocketAddress) channel.receive(buffer);
+                    buffer.flip();
+                    work = new DatagramQueuedMessageDispatch(buffer, sender.getAddress(),
+                            sender.getPort(), System.currentTimeMillis());
+                } else {
+                    packet.setData(buffer.array(), buffer.arrayOffset(), buffer.capacity());
+                    sock.receive(packet);
+                    buffer.limit(packet.getLength());
+                    work = new DatagramQueuedMessageDispatch(buffer, packet.getAddress(),
+                            packet.getPort(), System.currentTimeMillis());
+                }
+                StunMessageHandler stunHandler = stunMessageHandler;
+                if (stunHandler != null && isStunMessage(buffer)) {
+                    byte[] message = new byte[buffer.remaining()];
+                    buffer.get(message);
+                    stunHandler.handleStunMessage(this, message,
+                            new InetSocketAddress(work.peerAddress, work.peerPort));
+                    continue;
+                }
+                // From here on the channel owns the buffer.
+                buffer = null;
                 
                 // Count of # of packets in process.
                 // this.useCount++;
@@ -240,10 +413,10 @@ public class UDPMessageProcessor extends MessageProcessor implements Runnable {
                     // condition you will have to call notifyAll instead of
                     // notify below.
 
-                    this.messageQueue.offer(new DatagramQueuedMessageDispatch(packet, System.currentTimeMillis()));                 
+                    selectQueue(work).offer(work);                 
 
                 } else {
-                    new UDPMessageChannel(sipStack, this, packet);
+                    new UDPMessageChannel(sipStack, this, work);
                 }
                 exceptionsReportedCounter = 0;	// reset lock flooding checker
             }
@@ -260,14 +433,113 @@ public class UDPMessageProcessor extends MessageProcessor implements Runnable {
             	}
             }
             catch (IOException ex) {
+            	if( !isRunning ) {
+            		// Closing the channel interrupts a pending receive.
+                    logger.debug("UDPMessageProcessor: Stopping");
+                    return;
+            	}
         		reportSockeException(ex);		// report exception but try to continue to receive data ...
             }
             catch (Exception ex) {
         		reportSockeException(ex);		// report exception but try to continue to receive data ...
             }
+            finally {
+                if (buffer != null) {
+                    receiveBufferPool.release(buffer);
+                }
+            }
         }
     }
     
+    /**
+     * Pick the queue of a received message from its Call-ID, so that all the
+     * messages of a call are taken in order from the same queue whichever
+     * socket they came in on.
+     */
+    private BlockingQueue<DatagramQueuedMessageDispatch> selectQueue(DatagramQueuedMessageDispatch work) {
+        int queuesCount = messageQueues.size();
+        if (queuesCount == 1) {
+            return messageQueue;
+        }
+        int hash = callIdHash(work.buffer);
+        if (hash == 0) {
+            // No Call-ID (keepalive or garbage), keep it per sender.
+            hash = work.peerAddress.hashCode() * 31 + work.peerPort;
+        }
+        return messageQueues.get((hash & Integer.MAX_VALUE) % queuesCount);
+    }
+
+    /**
+     * Hash of the trimmed value of the first Call-ID (or compact "i")
+     * header found between the position and the limit of the buffer, 0 if
+     * there is none. Only the header block is scanned.
+     */
+    static int callIdHash(ByteBuffer buffer) {
+        byte[] bytes = buffer.array();
+        int end = buffer.arrayOffset() + buffer.limit();
+        int lineStart = buffer.arrayOffset() + buffer.position();
+        while (lineStart < end) {
+            int lineEnd = lineStart;
+            while (lineEnd < end && bytes[lineEnd] != '\n') {
+                lineEnd++;
+            }
+            if (lineEnd - lineStart <= 1) {
+                // Empty line: end of the headers.
+                return 0;
+            }
+            int colon = headerNameEnd(bytes, lineStart, lineEnd);
+            if (colon > 0) {
+                int hash = 0;
+                int valueEnd = lineEnd;
+                while (valueEnd > colon + 1 && bytes[valueEnd - 1] <= ' ') {
+                    valueEnd--;
+                }
+                int valueStart = colon + 1;
+                while (valueStart < valueEnd && bytes[valueStart] <= ' ') {
+                    valueStart++;
+                }
+                for (int i = valueStart; i < valueEnd; i++) {
+                    hash = 31 * hash + bytes[i];
+                }
+                return hash == 0 ? 1 : hash;
+            }
+            lineStart = lineEnd + 1;
+        }
+        return 0;
+    }
+
+    /**
+     * Index of the colon if the line is a Call-ID header, -1 otherwise.
+     */
+    private static int headerNameEnd(byte[] bytes, int lineStart, int lineEnd) {
+        int i = lineStart;
+        if (matchesIgnoreCase(bytes, i, lineEnd, CALL_ID)) {
+            i += CALL_ID.length;
+        } else if (i < lineEnd && (bytes[i] == 'i' || bytes[i] == 'I')) {
+            i++;
+        } else {
+            return -1;
+        }
+        while (i < lineEnd && (bytes[i] == ' ' || bytes[i] == '\t')) {
+            i++;
+        }
+        return i < lineEnd && bytes[i] == ':' ? i : -1;
+    }
+
+    private static final byte[] CALL_ID = { 'c', 'a', 'l', 'l', '-', 'i', 'd' };
+
+    private static boolean matchesIgnoreCase(byte[] bytes, int from, int end, byte[] lowerCaseName) {
+        if (end - from < lowerCaseName.length) {
+            return false;
+        }
+        for (int i = 0; i < lowerCaseName.length; i++) {
+            if ((bytes[from + i] | 0x20) != lowerCaseName[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     private void reportSockeException(Exception e) {
 		if( exceptionsReportedCounter < MAX_EXCEPTIONS_TO_REPORT ) {
 			exceptionsReportedCounter++;
@@ -307,6 +579,13 @@ public class UDPMessageProcessor extends MessageProcessor implements Runnable {
     public void stop() {
             this.isRunning = false;
             sock.close();        
+            for (int i = 1; receiveChannels != null && i < receiveChannels.length; i++) {
+                try {
+                    receiveChannels[i].close();
+                } catch (IOException ex) {
+                    logger.debug("Error closing UDP receive socket " + i, ex);
+                }
+            }
           // closing the channels
           for (Object messageChannel : messageChannels) {
 			((MessageChannel)messageChannel).close();
@@ -315,6 +594,65 @@ public class UDPMessageProcessor extends MessageProcessor implements Runnable {
           if(sipStack.getStackCongestionControlTimeout() > 0 && congestionAuditor != null) {
           	this.congestionAuditor.stop();
           }
+          receiveBufferPool.clear();
+    }
+
+    /**
+     * A STUN message (RFC 5389) starts with two zero bits and carries the
+     * magic cookie, which no SIP message can.
+     */
+    private static boolean isStunMessage(ByteBuffer buffer) {
+        int start = buffer.position();
+        return buffer.remaining() >= 20 && (buffer.get(start) & 0xC0) == 0
+                && buffer.getInt(start + 4) == 0x2112A442;
+    }
+
+    /**
+     * Set the handler of the STUN messages received on the socket of this
+     * processor, so that a STUN binding can be done from the very socket
+     * SIP uses. Null gives them back to the parser.
+     *
+     * @param stunMessageHandler the handler, or null.
+     */
+    public void setStunMessageHandler(StunMessageHandler stunMessageHandler) {
+        this.stunMessageHandler = stunMessageHandler;
+    }
+
+    /**
+     * Send a STUN message from the socket of this processor.
+     *
+     * @param message the encoded STUN message.
+     * @param destination the STUN server.
+     * @throws IOException if the message could not be sent.
+     */
+    public void sendStunMessage(byte[] message, InetSocketAddress destination) throws IOException {
+        sock.send(new DatagramPacket(message, message.length, destination));
+    }
+
+    /**
+     * Takes the STUN messages received on the socket of a UDP message processor.
+     */
+    public interface StunMessageHandler {
+
+        /**
+         * Called from the receive thread, which should not be held long.
+         *
+         * @param processor the processor the message was received on.
+         * @param message the STUN message.
+         * @param source where the message came from.
+         */
+        void handleStunMessage(UDPMessageProcessor processor, byte[] message,
+                InetSocketAddress source);
+
+    }
+
+    /**
+     * Pool of receive buffers, exposes the pool hit and allocation counters.
+     *
+     * @return the receive buffer pool of this processor.
+     */
+    public DatagramBufferPool getReceiveBufferPool() {
+        return receiveBufferPool;
     }
 
     /**
@@ -374,7 +712,12 @@ public class UDPMessageProcessor extends MessageProcessor implements Runnable {
      * Return true if there are any messages in use.
      */
     public boolean inUse() {
-    	return !messageQueue.isEmpty();
+    	for (BlockingQueue<DatagramQueuedMessageDispatch> queue : messageQueues) {
+    		if (!queue.isEmpty()) {
+    			return true;
+    		}
+    	}
+    	return false;
     }
 
 }
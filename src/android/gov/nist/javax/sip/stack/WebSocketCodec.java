@@ -25,8 +25,11 @@
  */
 package android.gov.nist.javax.sip.stack;
 
-import java.io.ByteArrayOutputStream;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -45,12 +48,19 @@ public class WebSocketCodec {
 
 	private static Logger logger = LoggerFactory.getLogger(WebSocketCodec.class);
 
-	private static final byte OPCODE_CONT = 0x0;
-	private static final byte OPCODE_TEXT = 0x1;
-	private static final byte OPCODE_BINARY = 0x2;
-	private static final byte OPCODE_CLOSE = 0x8;
-	private static final byte OPCODE_PING = 0x9;
-	private static final byte OPCODE_PONG = 0xA;
+	protected static final byte OPCODE_CONT = 0x0;
+	protected static final byte OPCODE_TEXT = 0x1;
+	protected static final byte OPCODE_BINARY = 0x2;
+	protected static final byte OPCODE_CLOSE = 0x8;
+	protected static final byte OPCODE_PING = 0x9;
+	protected static final byte OPCODE_PONG = 0xA;
+
+	private static final byte[] NO_PAYLOAD = new byte[0];
+
+	// Frames are buffered whole, refuse the ones that are unreasonably large
+	public static final int DEFAULT_MAX_FRAME_LENGTH = 1024 * 1024;
+
+	private static final int DEFAULT_BUFFER_SIZE = 66000;
 
 	// Websocket metadata
 	private int fragmentedFramesCount;
@@ -62,13 +72,14 @@ public class WebSocketCodec {
 	private final boolean allowExtensions;
 	private final boolean maskedPayload;
 	private boolean closeOpcodeReceived;
+	private final int maxFrameLength;
 
 	
 	// THe payload inside the websocket frame starts at this index
 	private int payloadStartIndex = -1;
 
 	// Buffering incomplete and overflowing frames
-	private byte[] buffer = new byte[66000];
+	private byte[] buffer = new byte[DEFAULT_BUFFER_SIZE];
 	private int writeIndex = 0;
 	private int readIndex;
 	
@@ -77,9 +88,19 @@ public class WebSocketCodec {
 
 
 	public WebSocketCodec(boolean maskedPayload, boolean allowExtensions) {
+		this(maskedPayload, allowExtensions, DEFAULT_MAX_FRAME_LENGTH);
+	}
+
+	/**
+	 * @param maxFrameLength the largest frame payload accepted, the default
+	 *        one if 0 or less. The receive buffer grows to hold such a frame
+	 *        and shrinks back once it has been decoded.
+	 */
+	public WebSocketCodec(boolean maskedPayload, boolean allowExtensions, int maxFrameLength) {
 
 		this.maskedPayload = maskedPayload;
 		this.allowExtensions = allowExtensions;
+		this.maxFrameLength = maxFrameLength > 0 ? maxFrameLength : DEFAULT_MAX_FRAME_LENGTH;
 	}
 	private byte readNextByte() {
 		if(readIndex >= writeIndex) {
@@ -101,7 +122,7 @@ public class WebSocketCodec {
 		readIndex = 0;
 		
 		// All TCP slow-start algorithms will be cut off right here without further analysis
-		if(writeIndex<4) {
+		if(writeIndex<2) {
 			logger.debug("Abort decode. Write index is at " + writeIndex);
 			return null;
 		}
@@ -146,7 +167,7 @@ public class WebSocketCodec {
 			} else if (framePayloadLen1 == 127) {
 				long value = 0;
 				for(int q=0;q<8;q++) {
-					value &= (0xff&readNextByte())<<(7-q);
+					value = (value << 8) | (0xff&readNextByte());
 				}
 				framePayloadLength = value;
 
@@ -161,6 +182,9 @@ public class WebSocketCodec {
 			if(framePayloadLength < 0) {
 				protocolViolation("Negative payload size: " + framePayloadLength);
 			}
+			if(framePayloadLength > maxFrameLength) {
+				protocolViolation("Payload size too large: " + framePayloadLength);
+			}
 
 			logger.debug("Decoding WebSocket Frame length=" + framePayloadLength);
 
@@ -182,6 +206,10 @@ public class WebSocketCodec {
 		// Check if we have enough data at all
 		if(writeIndex < totalPacketLength) {
 			logger.debug("Abort decode. Write index is at " + writeIndex + " and totalPacketLength is " + totalPacketLength);
+			if(totalPacketLength > buffer.length) {
+				// Make room for the frame, it couldn't be completed otherwise
+				buffer = Arrays.copyOf(buffer, (int) totalPacketLength);
+			}
 			return null; // wait for more data
 		}
 
@@ -190,15 +218,29 @@ public class WebSocketCodec {
 			unmask(buffer, payloadStartIndex, (int) (payloadStartIndex + framePayloadLength));
 		}
 
-		// Finally isolate the unmasked payload, the bytes are plaintext here
-		byte[] plainTextBytes = new byte[(int) framePayloadLength];
-		System.arraycopy(buffer, payloadStartIndex, plainTextBytes, 0, (int) framePayloadLength);
+		// Finally isolate the unmasked payload, the bytes are plaintext here. The payload
+		// of a fragment is handed over as is, the parser takes the message in chunks anyway
+		byte[] plainTextBytes;
+		if(frameOpcode == OPCODE_PING || frameOpcode == OPCODE_PONG) {
+			plainTextBytes = NO_PAYLOAD;
+		} else {
+			plainTextBytes = new byte[(int) framePayloadLength];
+			System.arraycopy(buffer, payloadStartIndex, plainTextBytes, 0, (int) framePayloadLength);
+			if(frameOpcode == OPCODE_CONT) {
+				fragmentedFramesCount = frameFinalFlag ? 0 : fragmentedFramesCount + 1;
+			} else if(!frameFinalFlag) {
+				fragmentedFramesCount = 1;
+			}
+		}
 		
 		// Now move the pending data to the begining of the buffer so we can continue having good stream
-		for(int q=1; q<writeIndex - totalPacketLength; q++) {
-			buffer[q] = buffer[(int)totalPacketLength + q];
-		}
+		System.arraycopy(buffer, (int) totalPacketLength, buffer, 0, writeIndex - (int) totalPacketLength);
 		writeIndex -= totalPacketLength;
+
+		// Do not hold on to the room made for a large frame
+		if(buffer.length > DEFAULT_BUFFER_SIZE && writeIndex <= DEFAULT_BUFFER_SIZE) {
+			buffer = Arrays.copyOf(buffer, DEFAULT_BUFFER_SIZE);
+		}
 		
 		logger.debug("writeIndex = " + writeIndex + " " + totalPacketLength);
 
@@ -212,10 +254,60 @@ public class WebSocketCodec {
 
 
 	protected static byte[] encode(byte[] msg, int rsv, boolean fin, boolean maskPayload, byte opcode) throws Exception {
-		ByteArrayOutputStream frame = new ByteArrayOutputStream();
+		byte[] frame = new byte[getFrameLength(msg.length, maskPayload)];
+		encode(ByteBuffer.wrap(frame), msg, 0, msg.length, rsv, fin, maskPayload, opcode);
+		return frame;
+	}
 
-		int length = msg.length;
+	/**
+	 * Encode a message as a text frame followed by as many continuation frames
+	 * as needed to keep each payload within fragmentSize. All the frames are
+	 * written into the one array returned.
+	 */
+	public static byte[] encodeFragmented(byte[] msg, int fragmentSize, boolean maskPayload) {
+		if(fragmentSize <= 0) {
+			throw new IllegalArgumentException("Bad fragment size " + fragmentSize);
+		}
+		int frameLength = 0;
+		int offset = 0;
+		do {
+			frameLength += getFrameLength(Math.min(fragmentSize, msg.length - offset), maskPayload);
+			offset += fragmentSize;
+		} while(offset < msg.length);
+
+		ByteBuffer frames = ByteBuffer.wrap(new byte[frameLength]);
+		offset = 0;
+		do {
+			int length = Math.min(fragmentSize, msg.length - offset);
+			encode(frames, msg, offset, length, 0, offset + length >= msg.length, maskPayload,
+					offset == 0 ? OPCODE_TEXT : OPCODE_CONT);
+			offset += length;
+		} while(offset < msg.length);
+		return frames.array();
+	}
 
+	/**
+	 * @return the size of the frame carrying payloadLength bytes.
+	 */
+	public static int getFrameLength(int payloadLength, boolean maskPayload) {
+		int headerLength;
+		if (payloadLength <= 125) {
+			headerLength = 2;
+		} else if (payloadLength <= 0xFFFF) {
+			headerLength = 4;
+		} else {
+			headerLength = 10;
+		}
+		return headerLength + (maskPayload ? 4 : 0) + payloadLength;
+	}
+
+	/**
+	 * Write a frame straight into dst, which must have getFrameLength() bytes
+	 * remaining. The payload is masked in dst, msg is left untouched. Use
+	 * OPCODE_CONT and fin for the fragments of a message.
+	 */
+	public static void encode(ByteBuffer dst, byte[] msg, int offset, int length, int rsv,
+			boolean fin, boolean maskPayload, byte opcode) {
 		logger.debug("Encoding WebSocket Frame opCode=" + opcode + " length=" + length);
 
 		int b0 = 0;
@@ -225,31 +317,26 @@ public class WebSocketCodec {
 		b0 |= rsv % 8 << 4;
 		b0 |= opcode % 128;
 
-
+		dst.put((byte) b0);
 		if (length <= 125) {
-			frame.write(b0);
-			byte b = (byte) (maskPayload ? 0x80 | (byte) length : (byte) length);
-			frame.write(b);
+			dst.put((byte) (maskPayload ? 0x80 | length : length));
 		} else if (length <= 0xFFFF) {
-			frame.write(b0);
-			frame.write(maskPayload ? 0xFE : 126);
-			frame.write(length >>> 8 & 0xFF);
-			frame.write(length & 0xFF);
+			dst.put((byte) (maskPayload ? 0xFE : 126));
+			dst.putShort((short) length);
 		} else {
-			frame.write(b0);
-			frame.write(maskPayload ? 0xFF : 127);
-			for(int q=0;q<8;q++) {
-				frame.write((0xFF)&(length>>q));
-			}
+			dst.put((byte) (maskPayload ? 0xFF : 127));
+			dst.putLong(length);
 		}
+		int payloadStart = dst.position();
 		if(maskPayload) {
-			byte[] mask = new byte[] {1,1,1,1};
-			frame.write(mask);
-			applyMask(msg, 0, msg.length, mask);
+			int mask = ThreadLocalRandom.current().nextInt();
+			dst.putInt(mask);
+			payloadStart += 4;
+			dst.put(msg, offset, length);
+			applyMask(dst, payloadStart, payloadStart + length, mask);
+		} else {
+			dst.put(msg, offset, length);
 		}
-		frame.write(msg);
-		return frame.toByteArray();
-
 	}
 
 	private void unmask(byte[] frame, int startIndex, int endIndex) {
@@ -257,9 +344,27 @@ public class WebSocketCodec {
 	}
 	
 	public static void applyMask(byte[] frame, int startIndex, int endIndex, byte[] mask) {
-		for (int i = 0; i < endIndex-startIndex; i++) {
-			frame[startIndex+i] = (byte) (frame[startIndex+i] ^ mask[i % 4]);
+		int maskInt = ((mask[0] & 0xFF) << 24) | ((mask[1] & 0xFF) << 16) | ((mask[2] & 0xFF) << 8) | (mask[3] & 0xFF);
+		applyMask(ByteBuffer.wrap(frame), startIndex, endIndex, maskInt);
+	}
+
+	/**
+	 * XOR the bytes between startIndex and endIndex with the masking key, the
+	 * first byte taking the first byte of the key. This works eight bytes at a
+	 * time.
+	 */
+	public static void applyMask(ByteBuffer frame, int startIndex, int endIndex, int mask) {
+		ByteOrder order = frame.order();
+		frame.order(ByteOrder.BIG_ENDIAN);
+		long longMask = ((mask & 0xFFFFFFFFL) << 32) | (mask & 0xFFFFFFFFL);
+		int i = startIndex;
+		for (; i + 8 <= endIndex; i += 8) {
+			frame.putLong(i, frame.getLong(i) ^ longMask);
+		}
+		for (int q = (i - startIndex) % 4; i < endIndex; i++, q++) {
+			frame.put(i, (byte) (frame.get(i) ^ (mask >>> (24 - 8 * (q % 4)))));
 		}
+		frame.order(order);
 	}
 
 	private void protocolViolation(String reason)  {
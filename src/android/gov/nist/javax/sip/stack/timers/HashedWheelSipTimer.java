@@ -0,0 +1,390 @@
+/*
+* Conditions Of Use
+*
+* This software was developed by employees of the National Institute of
+* Standards and Technology (NIST), an agency of the Federal Government.
+* Pursuant to title 15 Untied States Code Section 105, works of NIST
+* employees are not subject to copyright protection in the United States
+* and are considered to be in the public domain.  As a result, a formal
+* license is not needed to use the software.
+*
+* This software is provided by NIST as a service and is expressly
+* provided "AS IS."  NIST MAKES NO WARRANTY OF ANY KIND, EXPRESS, IMPLIED
+* OR STATUTORY, INCLUDING, WITHOUT LIMITATION, THE IMPLIED WARRANTY OF
+* MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, NON-INFRINGEMENT
+* AND DATA ACCURACY.  NIST does not warrant or make any representations
+* regarding the use of the software or the results thereof, including but
+* not limited to the correctness, accuracy, reliability or usefulness of
+* the software.
+*
+* Permission to use this software is contingent upon your acceptance
+* of the terms of this agreement
+*
+* .
+*
+*/
+package android.gov.nist.javax.sip.stack.timers;
+
+import java.util.Properties;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import android.gov.nist.core.NamingThreadFactory;
+import android.gov.nist.javax.sip.SipStackImpl;
+import android.gov.nist.javax.sip.stack.SIPStackTimerTask;
+
+/**
+ * SIP Timer implementation based on a hashed timing wheel: scheduling and
+ * cancelling a task are O(1) whatever the number of live tasks, at the price of
+ * a resolution of one tick.
+ * 
+ * The wheel is only touched by its worker thread. Tasks scheduled from other
+ * threads are queued and moved into their bucket on the next tick, cancelled
+ * tasks are unlinked from their bucket on the next tick as well so they do not
+ * linger until their deadline. Tasks run on the worker thread, like they do with
+ * the other timers.
+ * 
+ * Configuration properties:
+ * <ul>
+ * <li>android.gov.nist.javax.sip.timers.HASHED_WHEEL_TICK_DURATION : duration of a tick in
+ * milliseconds, default 10</li>
+ * <li>android.gov.nist.javax.sip.timers.HASHED_WHEEL_SIZE : number of buckets of the wheel,
+ * rounded up to a power of two, default 512</li>
+ * </ul>
+ * 
+ */
+public class HashedWheelSipTimer implements SipTimer {
+	private static Logger logger = LoggerFactory.getLogger(HashedWheelSipTimer.class);
+
+	public static final String TICK_DURATION_PROPERTY = "android.gov.nist.javax.sip.timers.HASHED_WHEEL_TICK_DURATION";
+	public static final String WHEEL_SIZE_PROPERTY = "android.gov.nist.javax.sip.timers.HASHED_WHEEL_SIZE";
+	public static final long DEFAULT_TICK_DURATION = 10;
+	public static final int DEFAULT_WHEEL_SIZE = 512;
+
+	private static final int PENDING = 0;
+	private static final int SCHEDULED = 1;
+	private static final int CANCELLED = 2;
+	private static final int EXPIRED = 3;
+
+	protected AtomicBoolean started = new AtomicBoolean(false);
+	protected SipStackImpl sipStackImpl;
+
+	private long tickDurationNanos;
+	private Bucket[] wheel;
+	private int mask;
+	private long startTime;
+	private long tick;
+	private Thread workerThread;
+	private final Queue<WheelTimeout> scheduledTimeouts = new ConcurrentLinkedQueue<WheelTimeout>();
+	private final Queue<WheelTimeout> cancelledTimeouts = new ConcurrentLinkedQueue<WheelTimeout>();
+
+	/**
+	 * A scheduled task, linked in the bucket of its deadline.
+	 */
+	private final class WheelTimeout {
+		private final SIPStackTimerTask task;
+		private final long periodNanos;
+		private final AtomicInteger state = new AtomicInteger(PENDING);
+		// deadline relative to startTime
+		private long deadline;
+		private long remainingRounds;
+		private Bucket bucket;
+		private WheelTimeout next;
+		private WheelTimeout prev;
+
+		private WheelTimeout(SIPStackTimerTask task, long deadline, long periodNanos) {
+			this.task = task;
+			this.deadline = deadline;
+			this.periodNanos = periodNanos;
+		}
+
+		private boolean cancel() {
+			int current = state.get();
+			while(current == PENDING || current == SCHEDULED) {
+				if(state.compareAndSet(current, CANCELLED)) {
+					// let the worker unlink it from its bucket on its next tick
+					cancelledTimeouts.offer(this);
+					return true;
+				}
+				current = state.get();
+			}
+			return false;
+		}
+
+		private void expire() {
+			try {
+				task.runTask();
+			} catch (Throwable e) {
+				logger.error("SIP stack timer task failed due to exception", e);
+			}
+		}
+	}
+
+	/**
+	 * Doubly linked list of the timeouts falling in one slot of the wheel.
+	 */
+	private static final class Bucket {
+		private WheelTimeout head;
+		private WheelTimeout tail;
+
+		private void add(WheelTimeout timeout) {
+			timeout.bucket = this;
+			if(head == null) {
+				head = tail = timeout;
+			} else {
+				tail.next = timeout;
+				timeout.prev = tail;
+				tail = timeout;
+			}
+		}
+
+		private WheelTimeout remove(WheelTimeout timeout) {
+			WheelTimeout next = timeout.next;
+			if(timeout.prev != null) {
+				timeout.prev.next = next;
+			}
+			if(timeout.next != null) {
+				timeout.next.prev = timeout.prev;
+			}
+			if(timeout == head) {
+				head = next;
+			}
+			if(timeout == tail) {
+				tail = timeout.prev;
+			}
+			timeout.prev = null;
+			timeout.next = null;
+			timeout.bucket = null;
+			return next;
+		}
+
+		private void clear() {
+			WheelTimeout timeout = head;
+			while(timeout != null) {
+				timeout = remove(timeout);
+			}
+		}
+	}
+
+	private final class Worker implements Runnable {
+		public void run() {
+			while(started.get()) {
+				long deadline = waitForNextTick();
+				if(deadline < 0) {
+					continue;
+				}
+				processCancelledTimeouts();
+				transferScheduledTimeouts();
+				expireTimeouts(wheel[(int) (tick & mask)], deadline);
+				tick++;
+			}
+			for(Bucket bucket : wheel) {
+				bucket.clear();
+			}
+			scheduledTimeouts.clear();
+			cancelledTimeouts.clear();
+		}
+
+		private long waitForNextTick() {
+			long deadline = tickDurationNanos * (tick + 1);
+			while(true) {
+				long currentTime = System.nanoTime() - startTime;
+				long sleepTimeMs = (deadline - currentTime + 999999) / 1000000;
+				if(sleepTimeMs <= 0) {
+					return currentTime;
+				}
+				try {
+					Thread.sleep(sleepTimeMs);
+				} catch (InterruptedException e) {
+					if(!started.get()) {
+						return -1;
+					}
+				}
+			}
+		}
+
+		private void processCancelledTimeouts() {
+			WheelTimeout timeout;
+			while((timeout = cancelledTimeouts.poll()) != null) {
+				if(timeout.bucket != null) {
+					timeout.bucket.remove(timeout);
+				}
+			}
+		}
+
+		private void transferScheduledTimeouts() {
+			// bounded so that a burst of new tasks cannot stall the wheel
+			for(int i = 0; i < 100000; i++) {
+				WheelTimeout timeout = scheduledTimeouts.poll();
+				if(timeout == null) {
+					break;
+				}
+				if(timeout.state.compareAndSet(PENDING, SCHEDULED)) {
+					addToWheel(timeout);
+				}
+			}
+		}
+
+		private void expireTimeouts(Bucket bucket, long deadline) {
+			WheelTimeout timeout = bucket.head;
+			// timeouts re-added to this bucket while expiring it wait for the next round
+			WheelTimeout last = bucket.tail;
+			while(timeout != null) {
+				WheelTimeout next = timeout == last ? null : timeout.next;
+				if(timeout.remainingRounds <= 0) {
+					bucket.remove(timeout);
+					if(timeout.deadline <= deadline) {
+						run(timeout, deadline);
+					} else {
+						// landed in this bucket while the wheel was behind, put it back where it belongs
+						addToWheel(timeout);
+					}
+				} else if(timeout.state.get() == CANCELLED) {
+					bucket.remove(timeout);
+				} else {
+					timeout.remainingRounds--;
+				}
+				timeout = next;
+			}
+		}
+
+		private void run(WheelTimeout timeout, long now) {
+			if(timeout.periodNanos > 0) {
+				if(timeout.state.get() != SCHEDULED) {
+					return;
+				}
+				timeout.expire();
+				// fixed delay: the next run is one period after the end of this one
+				if(timeout.state.get() == SCHEDULED) {
+					timeout.deadline = System.nanoTime() - startTime + timeout.periodNanos;
+					addToWheel(timeout);
+				}
+			} else if(timeout.state.compareAndSet(SCHEDULED, EXPIRED)) {
+				timeout.expire();
+			}
+		}
+	}
+
+	private void addToWheel(WheelTimeout timeout) {
+		long calculated = timeout.deadline / tickDurationNanos;
+		timeout.remainingRounds = (calculated - tick) / wheel.length;
+		// a deadline already in the past goes into the current bucket
+		long ticks = Math.max(calculated, tick);
+		wheel[(int) (ticks & mask)].add(timeout);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see gov.nist.javax.sip.stack.timers.SipTimer#schedule(gov.nist.javax.sip.stack.SIPStackTimerTask, long)
+	 */
+	public boolean schedule(SIPStackTimerTask task, long delay) {
+		return schedule(task, delay, 0);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see gov.nist.javax.sip.stack.timers.SipTimer#scheduleWithFixedDelay(gov.nist.javax.sip.stack.SIPStackTimerTask, long, long)
+	 */
+	public boolean scheduleWithFixedDelay(SIPStackTimerTask task, long delay,
+			long period) {
+		if(period <= 0) {
+			throw new IllegalArgumentException("period must be positive");
+		}
+		return schedule(task, delay, period);
+	}
+
+	private boolean schedule(SIPStackTimerTask task, long delay, long period) {
+		if(!started.get()) {
+			throw new IllegalStateException("The SIP Stack Timer has been stopped, no new tasks can be scheduled !");
+		}
+		long deadline = System.nanoTime() - startTime + TimeUnit.MILLISECONDS.toNanos(Math.max(delay, 0));
+		WheelTimeout timeout = new WheelTimeout(task, deadline, TimeUnit.MILLISECONDS.toNanos(period));
+		task.setSipTimerTask(timeout);
+		scheduledTimeouts.offer(timeout);
+		return true;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see gov.nist.javax.sip.stack.timers.SipTimer#cancel(gov.nist.javax.sip.stack.SIPStackTimerTask)
+	 */
+	public boolean cancel(SIPStackTimerTask task) {
+		Object timerTask = task.getSipTimerTask();
+		if(!(timerTask instanceof WheelTimeout)) {
+			return false;
+		}
+		WheelTimeout timeout = (WheelTimeout) timerTask;
+		if(!timeout.cancel()) {
+			return false;
+		}
+		task.cleanUpBeforeCancel();
+		task.setSipTimerTask(null);
+		return true;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see gov.nist.javax.sip.stack.timers.SipTimer#start(gov.nist.javax.sip.SipStackImpl, java.util.Properties)
+	 */
+	public void start(SipStackImpl sipStack, Properties configurationProperties) {
+		sipStackImpl = sipStack;
+		long tickDuration = Long.parseLong(configurationProperties.getProperty(
+				TICK_DURATION_PROPERTY, String.valueOf(DEFAULT_TICK_DURATION)));
+		int wheelSize = Integer.parseInt(configurationProperties.getProperty(
+				WHEEL_SIZE_PROPERTY, String.valueOf(DEFAULT_WHEEL_SIZE)));
+		if(tickDuration <= 0 || wheelSize <= 0 || wheelSize > (1 << 30)) {
+			throw new IllegalArgumentException("Bad hashed wheel timer configuration: tick duration "
+					+ tickDuration + " ms, wheel size " + wheelSize);
+		}
+		int normalizedWheelSize = 1;
+		while(normalizedWheelSize < wheelSize) {
+			normalizedWheelSize <<= 1;
+		}
+		tickDurationNanos = TimeUnit.MILLISECONDS.toNanos(tickDuration);
+		wheel = new Bucket[normalizedWheelSize];
+		for(int i = 0; i < wheel.length; i++) {
+			wheel[i] = new Bucket();
+		}
+		mask = wheel.length - 1;
+		tick = 0;
+		startTime = System.nanoTime();
+		started.set(true);
+		workerThread = new NamingThreadFactory("jain_sip_hashed_wheel_timer").newThread(new Worker());
+		workerThread.setDaemon(true);
+		workerThread.start();
+		logger.info("the sip stack timer " + this.getClass().getName() + " has been started with a tick of "
+				+ tickDuration + " ms and " + wheel.length + " buckets");
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see gov.nist.javax.sip.stack.timers.SipTimer#stop()
+	 */
+	public void stop() {
+		if(started.compareAndSet(true, false) && workerThread != null) {
+			workerThread.interrupt();
+		}
+		logger.info("the sip stack timer " + this.getClass().getName() + " has been stopped");
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see gov.nist.javax.sip.stack.timers.SipTimer#isStarted()
+	 */
+	public boolean isStarted() {
+		return started.get();
+	}
+
+	/**
+	 * @return the number of tasks waiting to be moved into the wheel
+	 */
+	public int getPendingTasksCount() {
+		return scheduledTimeouts.size();
+	}
+}
@@ -11,6 +11,8 @@
 
 package de.javawi.jstun.attribute;
 
+import java.nio.ByteBuffer;
+
 import de.javawi.jstun.util.*;
 
 public class ChangeRequest extends MessageAttribute {
@@ -59,6 +61,28 @@ public class ChangeRequest extends MessageAttribute {
 		return result;
 	}
 	
+	public int getLength() {
+		return 8;
+	}
+	
+	public void encode(ByteBuffer dst) {
+		dst.putShort((short) typeToInteger(type));
+		dst.putShort((short) 4);
+		dst.putShort((short) 0);
+		dst.put((byte) 0);
+		dst.put((byte) ((changeIP ? 4 : 0) | (changePort ? 2 : 0)));
+	}
+	
+	protected void decode(ByteBuffer src, int offset, int length) throws MessageAttributeParsingException {
+		if (length < 4) {
+			throw new MessageAttributeParsingException("Data array too short");
+		}
+		int status = src.get(offset + 3) & 0xFF;
+		if ((status & ~6) != 0) throw new MessageAttributeParsingException("Status parsing error");
+		changeIP = (status & 4) != 0;
+		changePort = (status & 2) != 0;
+	}
+	
 	public static ChangeRequest parse(byte[] data) throws MessageAttributeParsingException {
 		try {
 			if (data.length < 4) {
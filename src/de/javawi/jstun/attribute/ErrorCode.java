@@ -11,6 +11,8 @@
 
 package de.javawi.jstun.attribute;
 
+import java.nio.ByteBuffer;
+
 import de.javawi.jstun.util.Utility;
 import de.javawi.jstun.util.UtilityException;
 
@@ -62,6 +64,8 @@ public class ErrorCode extends MessageAttribute {
 		if ((length % 4) != 0) {
 			length += 4 - (length % 4);
 		}
+		// error code header
+		length += 4;
 		// message attribute header
 		length += 4;
 		byte[] result = new byte[length];
@@ -80,15 +84,30 @@ public class ErrorCode extends MessageAttribute {
 		return result;
 	}
 	
+	protected void decode(ByteBuffer src, int offset, int length) throws MessageAttributeParsingException {
+		if (length < 4) {
+			throw new MessageAttributeParsingException("Data array too short");
+		}
+		int classHeader = src.get(offset + 2) & 0x07;
+		if ((classHeader < 1) || (classHeader > 6)) throw new MessageAttributeParsingException("Class parsing error");
+		int number = src.get(offset + 3) & 0xFF;
+		if (number > 99) throw new MessageAttributeParsingException("Number parsing error");
+		try {
+			setResponseCode((classHeader * 100) + number);
+		} catch (MessageAttributeException mae) {
+			throw new MessageAttributeParsingException("Parsing error");
+		}
+	}
+	
 	public static ErrorCode parse(byte[] data) throws MessageAttributeParsingException {
 		try {
 			if (data.length < 4) {
 				throw new MessageAttributeParsingException("Data array too short");
 			}
-			byte classHeaderByte = data[3];
-			int classHeader = Utility.oneByteToInteger(classHeaderByte);
+			byte classHeaderByte = data[2];
+			int classHeader = Utility.oneByteToInteger(classHeaderByte) & 0x07;
 			if ((classHeader < 1) || (classHeader > 6)) throw new MessageAttributeParsingException("Class parsing error");
-			byte numberByte = data[4];
+			byte numberByte = data[3];
 			int number = Utility.oneByteToInteger(numberByte);
 			if ((number < 0) || (number > 99)) throw new MessageAttributeParsingException("Number parsing error");
 			int responseCode = (classHeader * 100) + number;
@@ -0,0 +1,88 @@
+/*
+ * This file is part of JSTUN. 
+ * 
+ * Copyright (c) 2005 Thomas King <king@t-king.de> - All rights
+ * reserved.
+ * 
+ * This software is licensed under either the GNU Public License (GPL),
+ * or the Apache 2.0 license. Copies of both license agreements are
+ * included in this distribution.
+ */
+
+package de.javawi.jstun.attribute;
+
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+
+public class Fingerprint extends MessageAttribute {
+	/*
+	 * RFC 5389 15.5: the CRC-32 of the message up to this attribute, which
+	 * must be the last one, XOR'ed with 0x5354554e. The length in the message
+	 * header covers the fingerprint when it is computed.
+	 */
+	private static final int XOR_VALUE = 0x5354554e;
+	private static final ThreadLocal<CRC32> CRC = new ThreadLocal<CRC32>() {
+		protected CRC32 initialValue() {
+			return new CRC32();
+		}
+	};
+	
+	int value;
+	
+	public Fingerprint() {
+		super(MessageAttribute.MessageAttributeType.Fingerprint);
+	}
+	
+	public int getValue() {
+		return value;
+	}
+	
+	public void setValue(int value) {
+		this.value = value;
+	}
+	
+	/**
+	 * @return the fingerprint of the bytes of the buffer between the given offsets.
+	 */
+	public static int compute(ByteBuffer buffer, int from, int to) {
+		CRC32 crc = CRC.get();
+		crc.reset();
+		if (buffer.hasArray()) {
+			crc.update(buffer.array(), buffer.arrayOffset() + from, to - from);
+		} else {
+			for (int i = from; i < to; i++) {
+				crc.update(buffer.get(i));
+			}
+		}
+		return (int) crc.getValue() ^ XOR_VALUE;
+	}
+	
+	public byte[] getBytes() {
+		byte[] result = new byte[8];
+		encode(ByteBuffer.wrap(result));
+		return result;
+	}
+	
+	public int getLength() {
+		return 8;
+	}
+	
+	public void encode(ByteBuffer dst) {
+		dst.putShort((short) typeToInteger(type));
+		dst.putShort((short) 4);
+		dst.putInt(value);
+	}
+	
+	protected void decode(ByteBuffer src, int offset, int length) throws MessageAttributeParsingException {
+		if (length < 4) {
+			throw new MessageAttributeParsingException("Data array too short");
+		}
+		value = src.getInt(offset);
+	}
+	
+	public static Fingerprint parse(byte[] data) throws MessageAttributeParsingException {
+		Fingerprint result = new Fingerprint();
+		result.decode(ByteBuffer.wrap(data), 0, data.length);
+		return result;
+	}
+}
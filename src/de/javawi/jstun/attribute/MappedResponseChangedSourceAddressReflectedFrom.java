@@ -11,11 +11,14 @@
 
 package de.javawi.jstun.attribute;
 
+import java.nio.ByteBuffer;
+
 import de.javawi.jstun.util.*;
 
 public class MappedResponseChangedSourceAddressReflectedFrom extends MessageAttribute {
 	int port;
-	Address address;
+	// IPv4 address, kept as an int so that it can be decoded in place
+	int address;
 	
 	/*  
 	 *  0                   1                   2                   3
@@ -28,13 +31,8 @@ public class MappedResponseChangedSourceAddressReflectedFrom extends MessageAttr
 	 */
 	public MappedResponseChangedSourceAddressReflectedFrom() {
 		super();
-		try {
-			port = 0;
-			address = new Address("0.0.0.0");
-		} catch (UtilityException ue) {
-			ue.getMessage();
-			ue.printStackTrace();
-		}
+		port = 0;
+		address = 0;
 	}
 	
 	public MappedResponseChangedSourceAddressReflectedFrom(MessageAttribute.MessageAttributeType type) {
@@ -46,7 +44,12 @@ public class MappedResponseChangedSourceAddressReflectedFrom extends MessageAttr
 	}
 	
 	public Address getAddress() {
-		return address;
+		try {
+			return new Address((address >>> 24) & 0xFF, (address >>> 16) & 0xFF, (address >>> 8) & 0xFF, address & 0xFF);
+		} catch (UtilityException ue) {
+			// octets are always in range
+			throw new IllegalStateException(ue);
+		}
 	}
 	
 	public void setPort(int port) throws MessageAttributeException {
@@ -57,7 +60,7 @@ public class MappedResponseChangedSourceAddressReflectedFrom extends MessageAttr
 	}
 	
 	public void setAddress(Address address) {
-		this.address = address;
+		this.address = address.toInt();
 	}
 	
 	public byte[] getBytes() throws UtilityException {
@@ -74,10 +77,36 @@ public class MappedResponseChangedSourceAddressReflectedFrom extends MessageAttr
 		// port
 		System.arraycopy(Utility.integerToTwoBytes(port), 0, result, 6, 2);
 		// address
-		System.arraycopy(address.getBytes(), 0, result, 8, 4);
+		result[8] = (byte) (address >>> 24);
+		result[9] = (byte) (address >>> 16);
+		result[10] = (byte) (address >>> 8);
+		result[11] = (byte) address;
 		return result;
 	}
 	
+	public int getLength() {
+		return 12;
+	}
+	
+	public void encode(ByteBuffer dst) {
+		dst.putShort((short) typeToInteger(type));
+		dst.putShort((short) 8);
+		dst.put((byte) 0);
+		dst.put((byte) 0x01);
+		dst.putShort((short) port);
+		dst.putInt(address);
+	}
+	
+	protected void decode(ByteBuffer src, int offset, int length) throws MessageAttributeParsingException {
+		if (length < 8) {
+			throw new MessageAttributeParsingException("Data array too short");
+		}
+		int family = src.get(offset + 1) & 0xFF;
+		if (family != 0x01) throw new MessageAttributeParsingException("Family " + family + " is not supported");
+		port = src.getShort(offset + 2) & 0xFFFF;
+		address = src.getInt(offset + 4);
+	}
+	
 	protected static MappedResponseChangedSourceAddressReflectedFrom parse(MappedResponseChangedSourceAddressReflectedFrom ma, byte[] data) throws MessageAttributeParsingException {
 		try {
 			if (data.length < 8) {
@@ -92,7 +121,7 @@ public class MappedResponseChangedSourceAddressReflectedFrom extends MessageAttr
 			int secondOctet = Utility.oneByteToInteger(data[5]);
 			int thirdOctet = Utility.oneByteToInteger(data[6]);
 			int fourthOctet = Utility.oneByteToInteger(data[7]);
-			ma.setAddress(new Address(firstOctet, secondOctet, thirdOctet, fourthOctet));
+			ma.address = (firstOctet << 24) | (secondOctet << 16) | (thirdOctet << 8) | fourthOctet;
 			return ma;
 		} catch (UtilityException ue) {
 			throw new MessageAttributeParsingException("Parsing error");
@@ -102,6 +131,6 @@ public class MappedResponseChangedSourceAddressReflectedFrom extends MessageAttr
 	}
 	
 	public String toString() {
-		return "Address " + address.toString() + ", Port " + port;
+		return "Address " + getAddress().toString() + ", Port " + port;
 	}
 }
\ No newline at end of file
@@ -11,6 +11,8 @@
 
 package de.javawi.jstun.attribute;
 
+import java.nio.ByteBuffer;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -49,7 +51,9 @@ public abstract class MessageAttribute implements MessageAttributeInterface {
 		if (type == MessageAttributeType.ErrorCode) return ERRORCODE;
 		if (type == MessageAttributeType.UnknownAttribute) return UNKNOWNATTRIBUTE;
 		if (type == MessageAttributeType.ReflectedFrom) return REFLECTEDFROM;
+		if (type == MessageAttributeType.XorMappedAddress) return XORMAPPEDADDRESS;
 		if (type == MessageAttributeType.Dummy) return DUMMY;
+		if (type == MessageAttributeType.Fingerprint) return FINGERPRINT;
 		return -1;
 	}
 	
@@ -65,7 +69,9 @@ public abstract class MessageAttribute implements MessageAttributeInterface {
 		if (type == ERRORCODE) return MessageAttributeType.ErrorCode;
 		if (type == UNKNOWNATTRIBUTE) return MessageAttributeType.UnknownAttribute;
 		if (type == REFLECTEDFROM) return MessageAttributeType.ReflectedFrom;
+		if (type == XORMAPPEDADDRESS) return MessageAttributeType.XorMappedAddress;
 		if (type == DUMMY) return MessageAttributeType.Dummy;
+		if (type == FINGERPRINT) return MessageAttributeType.Fingerprint;
 		return null;
 	}
 	
@@ -77,6 +83,67 @@ public abstract class MessageAttribute implements MessageAttributeInterface {
 		return length;
 	}
 	
+	/**
+	 * Writes the attribute at the position of the buffer. Attributes on the
+	 * hot path write themselves without building an intermediate array.
+	 */
+	public void encode(ByteBuffer dst) throws UtilityException {
+		dst.put(getBytes());
+	}
+	
+	/**
+	 * Reads the value of the attribute in place, for the attributes that can
+	 * be reused from one message to the next. The others go through their
+	 * array based parser and fail here like on any parsing error.
+	 */
+	protected void decode(ByteBuffer src, int offset, int length) throws MessageAttributeParsingException {
+		throw new MessageAttributeParsingException(type + " can not be decoded in place");
+	}
+	
+	/**
+	 * Reads the attribute whose type, length and value start at the given
+	 * offset of the buffer, without moving its position. The address, change
+	 * request, error code and fingerprint attributes are read into the
+	 * instance of their type found in <code>reusable</code>, if any.
+	 */
+	public static MessageAttribute decode(ByteBuffer src, int offset, MessageAttribute[] reusable) throws MessageAttributeParsingException {
+		int type = src.getShort(offset) & 0xFFFF;
+		int length = src.getShort(offset + 2) & 0xFFFF;
+		if (offset + 4 + length > src.limit()) {
+			throw new MessageAttributeParsingException("Data array too short");
+		}
+		MessageAttribute ma;
+		switch (type) {
+		case MAPPEDADDRESS: ma = reuse(reusable, MessageAttributeType.MappedAddress); if (ma == null) ma = new MappedAddress(); break;
+		case RESPONSEADDRESS: ma = reuse(reusable, MessageAttributeType.ResponseAddress); if (ma == null) ma = new ResponseAddress(); break;
+		case CHANGEREQUEST: ma = reuse(reusable, MessageAttributeType.ChangeRequest); if (ma == null) ma = new ChangeRequest(); break;
+		case SOURCEADDRESS: ma = reuse(reusable, MessageAttributeType.SourceAddress); if (ma == null) ma = new SourceAddress(); break;
+		case CHANGEDADDRESS: ma = reuse(reusable, MessageAttributeType.ChangedAddress); if (ma == null) ma = new ChangedAddress(); break;
+		case ERRORCODE: ma = reuse(reusable, MessageAttributeType.ErrorCode); if (ma == null) ma = new ErrorCode(); break;
+		case REFLECTEDFROM: ma = reuse(reusable, MessageAttributeType.ReflectedFrom); if (ma == null) ma = new ReflectedFrom(); break;
+		case XORMAPPEDADDRESS: ma = reuse(reusable, MessageAttributeType.XorMappedAddress); if (ma == null) ma = new XorMappedAddress(); break;
+		case FINGERPRINT: ma = reuse(reusable, MessageAttributeType.Fingerprint); if (ma == null) ma = new Fingerprint(); break;
+		default:
+			// rare attributes go through the array based parsers
+			byte[] data = new byte[4 + length];
+			for (int i = 0; i < data.length; i++) {
+				data[i] = src.get(offset + i);
+			}
+			return parseCommonHeader(data);
+		}
+		ma.decode(src, offset + 4, length);
+		return ma;
+	}
+	
+	private static MessageAttribute reuse(MessageAttribute[] reusable, MessageAttributeType type) {
+		if (reusable == null) {
+			return null;
+		}
+		MessageAttribute ma = reusable[type.ordinal()];
+		reusable[type.ordinal()] = null;
+		return ma;
+	}
+	
 	public static MessageAttribute parseCommonHeader(byte[] data) throws MessageAttributeParsingException {
 		try {			
 			byte[] typeArray = new byte[2];
@@ -100,6 +167,8 @@ public abstract class MessageAttribute implements MessageAttributeInterface {
 			case ERRORCODE: ma = ErrorCode.parse(valueArray); break;
 			case UNKNOWNATTRIBUTE: ma = UnknownAttribute.parse(valueArray); break;
 			case REFLECTEDFROM: ma = ReflectedFrom.parse(valueArray); break;
+			case XORMAPPEDADDRESS: ma = XorMappedAddress.parse(valueArray); break;
+			case FINGERPRINT: ma = Fingerprint.parse(valueArray); break;
 			default:
 				if (type <= 0x7fff) {
 					throw new UnknownMessageAttributeException("Unkown mandatory message attribute", intToType(type));
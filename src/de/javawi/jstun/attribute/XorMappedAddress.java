@@ -0,0 +1,61 @@
+/*
+ * This file is part of JSTUN. 
+ * 
+ * Copyright (c) 2005 Thomas King <king@t-king.de> - All rights
+ * reserved.
+ * 
+ * This software is licensed under either the GNU Public License (GPL),
+ * or the Apache 2.0 license. Copies of both license agreements are
+ * included in this distribution.
+ */
+
+package de.javawi.jstun.attribute;
+
+import java.nio.ByteBuffer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import de.javawi.jstun.header.MessageHeaderInterface;
+import de.javawi.jstun.util.UtilityException;
+
+/*
+ * RFC 5389 15.2: the mapped address, with the port XOR'ed with the most
+ * significant 16 bits of the magic cookie and the IPv4 address with the
+ * whole cookie. Port and address are kept in the clear.
+ */
+public class XorMappedAddress extends MappedResponseChangedSourceAddressReflectedFrom {
+	private static final Logger LOGGER = LoggerFactory.getLogger(XorMappedAddress.class);
+	
+	public XorMappedAddress() {
+		super(MessageAttribute.MessageAttributeType.XorMappedAddress);
+	}
+	
+	public byte[] getBytes() throws UtilityException {
+		byte[] result = new byte[12];
+		encode(ByteBuffer.wrap(result));
+		return result;
+	}
+	
+	public void encode(ByteBuffer dst) {
+		dst.putShort((short) typeToInteger(type));
+		dst.putShort((short) 8);
+		dst.put((byte) 0);
+		dst.put((byte) 0x01);
+		dst.putShort((short) (port ^ (MessageHeaderInterface.MAGICCOOKIE >>> 16)));
+		dst.putInt(address ^ MessageHeaderInterface.MAGICCOOKIE);
+	}
+	
+	protected void decode(ByteBuffer src, int offset, int length) throws MessageAttributeParsingException {
+		super.decode(src, offset, length);
+		port ^= MessageHeaderInterface.MAGICCOOKIE >>> 16;
+		address ^= MessageHeaderInterface.MAGICCOOKIE;
+	}
+	
+	public static MessageAttribute parse(byte[] data) throws MessageAttributeParsingException {
+		XorMappedAddress xma = new XorMappedAddress();
+		xma.decode(ByteBuffer.wrap(data), 0, data.length);
+		LOGGER.debug("Message Attribute: XOR Mapped Address parsed: " + xma.toString() + ".");
+		return xma;
+	}
+}
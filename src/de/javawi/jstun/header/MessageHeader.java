@@ -11,12 +11,15 @@
 
 package de.javawi.jstun.header;
 
-import java.util.Iterator;
-import java.util.TreeMap;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.concurrent.ThreadLocalRandom;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import de.javawi.jstun.attribute.Fingerprint;
 import de.javawi.jstun.attribute.MessageAttribute;
 import de.javawi.jstun.attribute.MessageAttributeParsingException;
 import de.javawi.jstun.util.Utility;
@@ -42,7 +45,10 @@ public class MessageHeader implements MessageHeaderInterface {
 	MessageHeaderType type;
 	byte[] id = new byte[16];
 	
-	TreeMap<MessageAttribute.MessageAttributeType, MessageAttribute> ma = new TreeMap<MessageAttribute.MessageAttributeType, MessageAttribute>();
+	// iterated in the order of the types, so FINGERPRINT always comes last
+	EnumMap<MessageAttribute.MessageAttributeType, MessageAttribute> ma = new EnumMap<MessageAttribute.MessageAttributeType, MessageAttribute>(MessageAttribute.MessageAttributeType.class);
+	// attributes of the previous message decoded, indexed by type, to be decoded into again
+	MessageAttribute[] reusable = new MessageAttribute[MessageAttribute.MessageAttributeType.values().length];
 	
 	public MessageHeader() {
 		super();
@@ -76,14 +82,20 @@ public class MessageHeader implements MessageHeaderInterface {
 	}
 	
 	public void generateTransactionID() throws UtilityException {
-		System.arraycopy(Utility.integerToTwoBytes((int)(Math.random() * 65536)), 0, id, 0, 2);
-		System.arraycopy(Utility.integerToTwoBytes((int)(Math.random() * 65536)), 0, id, 2, 2);
-		System.arraycopy(Utility.integerToTwoBytes((int)(Math.random() * 65536)), 0, id, 4, 2);
-		System.arraycopy(Utility.integerToTwoBytes((int)(Math.random() * 65536)), 0, id, 6, 2);
-		System.arraycopy(Utility.integerToTwoBytes((int)(Math.random() * 65536)), 0, id, 8, 2);
-		System.arraycopy(Utility.integerToTwoBytes((int)(Math.random() * 65536)), 0, id, 10, 2);
-		System.arraycopy(Utility.integerToTwoBytes((int)(Math.random() * 65536)), 0, id, 12, 2);
-		System.arraycopy(Utility.integerToTwoBytes((int)(Math.random() * 65536)), 0, id, 14, 2);
+		ThreadLocalRandom.current().nextBytes(id);
+	}
+	
+	/**
+	 * Generates a RFC 5389 transaction ID: the magic cookie followed by 96
+	 * random bits, so that RFC 5389 servers answer with XOR-MAPPED-ADDRESS.
+	 */
+	public void generateRfc5389TransactionID() throws UtilityException {
+		generateTransactionID();
+		ByteBuffer.wrap(id).putInt(MAGICCOOKIE);
+	}
+	
+	public boolean hasMagicCookie() {
+		return ByteBuffer.wrap(id).getInt() == MAGICCOOKIE;
 	}
 	
 	public byte[] getTransactionID() {
@@ -93,16 +105,7 @@ public class MessageHeader implements MessageHeaderInterface {
 	}
 	
 	public boolean equalTransactionID(MessageHeader header) {
-		byte[] idHeader = header.getTransactionID();
-		if (idHeader.length != 16) return false;
-		if ((idHeader[0] == id[0]) && (idHeader[1] == id[1]) && (idHeader[2] == id[2]) && (idHeader[3] == id[3]) && 
-			(idHeader[4] == id[4]) && (idHeader[5] == id[5]) && (idHeader[6] == id[6]) && (idHeader[7] == id[7]) && 
-			(idHeader[8] == id[8]) && (idHeader[9] == id[9]) && (idHeader[10] == id[10]) && (idHeader[11] == id[11]) &&
-			(idHeader[12] == id[12]) && (idHeader[13] == id[13]) && (idHeader[14] == id[14]) && (idHeader[15] == id[15])) {
-			return true;
-		} else {
-			return false;
-		}
+		return Arrays.equals(header.id, id);
 	}
 	
 	public void addMessageAttribute(MessageAttribute attri) {
@@ -114,31 +117,77 @@ public class MessageHeader implements MessageHeaderInterface {
 	}
 	
 	public byte[] getBytes() throws UtilityException {
+		byte[] result = new byte[getLength()];
+		encode(ByteBuffer.wrap(result));
+		return result;
+	}
+	
+	public int getLength() throws UtilityException {
 		int length = 20;
-		Iterator<MessageAttribute.MessageAttributeType> it = ma.keySet().iterator();
-		while (it.hasNext()) {
-			MessageAttribute attri = ma.get(it.next());
+		for (MessageAttribute attri : ma.values()) {
 			length += attri.getLength();
 		}
-		// add attribute size + attributes.getSize();
-		byte[] result = new byte[length];
-		System.arraycopy(Utility.integerToTwoBytes(typeToInteger(type)), 0, result, 0, 2);
-		System.arraycopy(Utility.integerToTwoBytes(length-20), 0, result, 2, 2);
-		System.arraycopy(id, 0, result, 4, 16);
-		
-		// arraycopy of attributes
-		int offset = 20;
-		it = ma.keySet().iterator();
-		while (it.hasNext()) {
-			MessageAttribute attri = ma.get(it.next());
-			System.arraycopy(attri.getBytes(), 0, result, offset, attri.getLength());
-			offset += attri.getLength();
+		return length;
+	}
+	
+	/**
+	 * Writes the message at the position of the buffer, which is left right
+	 * after it. A FINGERPRINT attribute, if added, gets computed on the way.
+	 */
+	public void encode(ByteBuffer dst) throws UtilityException {
+		int start = dst.position();
+		dst.putShort((short) typeToInteger(type));
+		dst.putShort((short) 0);
+		dst.put(id);
+		for (MessageAttribute attri : ma.values()) {
+			if (attri instanceof Fingerprint) {
+				dst.putShort(start + 2, (short) (dst.position() - start - 20 + attri.getLength()));
+				((Fingerprint) attri).setValue(Fingerprint.compute(dst, start, dst.position()));
+			}
+			attri.encode(dst);
+		}
+		if (!(ma.containsKey(MessageAttribute.MessageAttributeType.Fingerprint))) {
+			dst.putShort(start + 2, (short) (dst.position() - start - 20));
 		}
-		return result;
 	}
 	
-	public int getLength() throws UtilityException {
-		return getBytes().length;
+	/**
+	 * Reads the message at the position of the buffer into this header,
+	 * leaving the position right after it. The attributes decoded into the
+	 * last time are reused when the message has attributes of the same type,
+	 * so they must not be held on to across calls.
+	 */
+	public void decode(ByteBuffer src) throws MessageHeaderParsingException, MessageAttributeParsingException {
+		int start = src.position();
+		if (src.remaining() < 20) {
+			throw new MessageHeaderParsingException("Data array too short");
+		}
+		MessageHeaderType decodedType = integerToType(src.getShort(start) & 0xFFFF);
+		int length = src.getShort(start + 2) & 0xFFFF;
+		int end = start + 20 + length;
+		if (end > src.limit()) {
+			throw new MessageHeaderParsingException("Data array too short");
+		}
+		setType(decodedType);
+		src.position(start + 4);
+		src.get(id);
+		for (MessageAttribute attri : ma.values()) {
+			reusable[attri.getType().ordinal()] = attri;
+		}
+		ma.clear();
+		int offset = start + 20;
+		ByteBuffer attributes = src.duplicate();
+		attributes.limit(end);
+		while (offset + 4 <= end) {
+			MessageAttribute attri = MessageAttribute.decode(attributes, offset, reusable);
+			if (attri instanceof Fingerprint && ((Fingerprint) attri).getValue() != Fingerprint.compute(src, start, offset)) {
+				throw new MessageAttributeParsingException("Fingerprint mismatch");
+			}
+			addMessageAttribute(attri);
+			// RFC 5389 pads the values to a multiple of 4 bytes
+			offset += 4 + (((src.getShort(offset + 2) & 0xFFFF) + 3) & ~3);
+		}
+		src.position(end);
 	}
 	
 	public void parseAttributes(byte[] data) throws MessageAttributeParsingException {
@@ -167,19 +216,22 @@ public class MessageHeader implements MessageHeaderInterface {
 			MessageHeader mh = new MessageHeader();
 			byte[] typeArray = new byte[2];
 			System.arraycopy(data, 0, typeArray, 0, 2);
-			int type = Utility.twoBytesToInteger(typeArray);
-			switch (type) {
-				case BINDINGREQUEST: mh.setType(MessageHeaderType.BindingRequest); LOGGER.debug("Binding Request received."); break;
-				case BINDINGRESPONSE: mh.setType(MessageHeaderType.BindingResponse); LOGGER.debug("Binding Response received."); break;
-				case BINDINGERRORRESPONSE: mh.setType(MessageHeaderType.BindingErrorResponse); LOGGER.debug("Binding Error Response received."); break;
-				case SHAREDSECRETREQUEST: mh.setType(MessageHeaderType.SharedSecretRequest); LOGGER.debug("Shared Secret Request received."); break;
-				case SHAREDSECRETRESPONSE: mh.setType(MessageHeaderType.SharedSecretResponse); LOGGER.debug("Shared Secret Response received."); break;
-				case SHAREDSECRETERRORRESPONSE: mh.setType(MessageHeaderType.SharedSecretErrorResponse); LOGGER.debug("Shared Secret Error Response received.");break;
-				default: throw new MessageHeaderParsingException("Message type " + type + "is not supported"); 
-			}
+			mh.setType(integerToType(Utility.twoBytesToInteger(typeArray)));
 			return mh;
 		} catch (UtilityException ue) {
 			throw new MessageHeaderParsingException("Parsing error");
 		}
 	}
+	
+	private static MessageHeaderType integerToType(int type) throws MessageHeaderParsingException {
+		switch (type) {
+			case BINDINGREQUEST: LOGGER.debug("Binding Request received."); return MessageHeaderType.BindingRequest;
+			case BINDINGRESPONSE: LOGGER.debug("Binding Response received."); return MessageHeaderType.BindingResponse;
+			case BINDINGERRORRESPONSE: LOGGER.debug("Binding Error Response received."); return MessageHeaderType.BindingErrorResponse;
+			case SHAREDSECRETREQUEST: LOGGER.debug("Shared Secret Request received."); return MessageHeaderType.SharedSecretRequest;
+			case SHAREDSECRETRESPONSE: LOGGER.debug("Shared Secret Response received."); return MessageHeaderType.SharedSecretResponse;
+			case SHAREDSECRETERRORRESPONSE: LOGGER.debug("Shared Secret Error Response received."); return MessageHeaderType.SharedSecretErrorResponse;
+			default: throw new MessageHeaderParsingException("Message type " + type + "is not supported"); 
+		}
+	}
 }
\ No newline at end of file
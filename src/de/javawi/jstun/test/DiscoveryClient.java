@@ -0,0 +1,626 @@
+/*
+ * This file is part of JSTUN.
+ *
+ * Copyright (c) 2005 Thomas King <king@t-king.de> - All rights
+ * reserved.
+ *
+ * This software is licensed under either the GNU Public License (GPL),
+ * or the Apache 2.0 license. Copies of both license agreements are
+ * included in this distribution.
+ */
+
+package de.javawi.jstun.test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+
+import de.javawi.jstun.attribute.ChangeRequest;
+import de.javawi.jstun.attribute.ChangedAddress;
+import de.javawi.jstun.attribute.ErrorCode;
+import de.javawi.jstun.attribute.MappedResponseChangedSourceAddressReflectedFrom;
+import de.javawi.jstun.attribute.MessageAttribute;
+import de.javawi.jstun.attribute.MessageAttributeParsingException;
+import de.javawi.jstun.header.MessageHeader;
+import de.javawi.jstun.header.MessageHeaderParsingException;
+import de.javawi.jstun.util.UtilityException;
+
+/**
+ * Non-blocking counterpart of {@link DiscoveryTest}. All the discoveries share
+ * a single selector thread and each one uses a single <code>DatagramChannel</code>.
+ * Tests 1, 2 and 3 of RFC 3489 are sent at once and their responses are matched
+ * by transaction ID; test 1 is redone against the changed address only once
+ * test 2 is over, so that its response cannot open the NAT to test 2.
+ * The outcome is cached per local interface and STUN server for a while.
+ */
+public class DiscoveryClient {
+	private static final Logger LOGGER = LoggerFactory.getLogger(DiscoveryClient.class);
+
+	public static final long DEFAULT_TIME_TO_LIVE = 5 * 60 * 1000; // ms
+	// RFC 3489 9.3: retransmissions start at 100 ms, doubling up to 1.6 s, for 9.5 s
+	public static final int DEFAULT_TIMEOUT = 9500; // ms
+	private static final int INITIAL_RETRANSMISSION_TIMEOUT = 100; // ms
+	private static final int MAX_RETRANSMISSION_TIMEOUT = 1600; // ms
+	private static final int MAX_MESSAGE_SIZE = 576;
+
+	private final ConcurrentHashMap<String, CacheEntry> cache = new ConcurrentHashMap<String, CacheEntry>();
+	private final ConcurrentLinkedQueue<Discovery> newDiscoveries = new ConcurrentLinkedQueue<Discovery>();
+	private volatile long timeToLive = DEFAULT_TIME_TO_LIVE;
+	private volatile int timeout = DEFAULT_TIMEOUT;
+	private volatile boolean closed = false;
+	private Selector selector;
+
+	// Only touched by the selector thread
+	private final Map<ByteBuffer, Test> pendingTests = new HashMap<ByteBuffer, Test>();
+	private final List<Discovery> discoveries = new ArrayList<Discovery>();
+	private final ByteBuffer receiveBuffer = ByteBuffer.allocate(MAX_MESSAGE_SIZE);
+
+	private static final class CacheEntry {
+		final SettableFuture<DiscoveryInfo> future = SettableFuture.create();
+		volatile long expiresAt = Long.MAX_VALUE;
+	}
+
+	/**
+	 * @param timeToLive how long, in ms, a discovery outcome is reused.
+	 */
+	public void setTimeToLive(long timeToLive) {
+		this.timeToLive = timeToLive;
+	}
+
+	public long getTimeToLive() {
+		return timeToLive;
+	}
+
+	/**
+	 * @param timeout how long, in ms, each test is retransmitted before giving up.
+	 */
+	public void setTimeout(int timeout) {
+		this.timeout = timeout;
+	}
+
+	public int getTimeout() {
+		return timeout;
+	}
+
+	public ListenableFuture<DiscoveryInfo> discover(InetAddress localAddress, String stunServer, int stunPort) {
+		return discover(localAddress, 0, stunServer, stunPort);
+	}
+
+	/**
+	 * Starts a discovery unless a recent or ongoing one for the same local
+	 * address and STUN server exists, in which case its outcome is returned.
+	 * The name of the STUN server is resolved by the calling thread.
+	 */
+	public ListenableFuture<DiscoveryInfo> discover(InetAddress localAddress, int localPort, String stunServer, int stunPort) {
+		String key = keyOf(localAddress, localPort, stunServer, stunPort);
+		while (true) {
+			CacheEntry entry = cache.get(key);
+			if (entry != null && entry.expiresAt > System.currentTimeMillis()) {
+				return entry.future;
+			}
+			CacheEntry freshEntry = new CacheEntry();
+			if (entry == null ? cache.putIfAbsent(key, freshEntry) != null : !cache.replace(key, entry, freshEntry)) {
+				continue;
+			}
+			try {
+				InetSocketAddress serverAddress = new InetSocketAddress(InetAddress.getByName(stunServer), stunPort);
+				enqueue(new Discovery(key, freshEntry, localAddress, localPort, stunServer, serverAddress));
+			} catch (IOException ioe) {
+				cache.remove(key, freshEntry);
+				freshEntry.future.setException(ioe);
+			}
+			return freshEntry.future;
+		}
+	}
+
+	/**
+	 * @return the outcome of a recent discovery, null if there is none yet.
+	 */
+	public DiscoveryInfo getCachedInfo(InetAddress localAddress, String stunServer, int stunPort) {
+		CacheEntry entry = cache.get(keyOf(localAddress, 0, stunServer, stunPort));
+		if (entry == null || !entry.future.isDone() || entry.expiresAt <= System.currentTimeMillis()) {
+			return null;
+		}
+		try {
+			return entry.future.get();
+		} catch (Exception failed) {
+			return null;
+		}
+	}
+
+	/**
+	 * Forgets the outcomes of the discoveries made from the given local
+	 * address, e.g. after its network changed.
+	 */
+	public void invalidate(InetAddress localAddress) {
+		String prefix = localAddress.getHostAddress() + ":";
+		for (Iterator<String> keys = cache.keySet().iterator(); keys.hasNext();) {
+			if (keys.next().startsWith(prefix)) {
+				keys.remove();
+			}
+		}
+	}
+
+	public synchronized void close() {
+		closed = true;
+		if (selector != null) {
+			selector.wakeup();
+		}
+	}
+
+	private static String keyOf(InetAddress localAddress, int localPort, String stunServer, int stunPort) {
+		return localAddress.getHostAddress() + ":" + localPort + "/" + stunServer + ":" + stunPort;
+	}
+
+	private synchronized void enqueue(Discovery discovery) throws IOException {
+		if (closed) {
+			throw new IOException("Discovery client closed");
+		}
+		if (selector == null) {
+			start();
+		}
+		newDiscoveries.add(discovery);
+		selector.wakeup();
+	}
+
+	private void start() throws IOException {
+		selector = Selector.open();
+		Thread thread = new Thread(new Runnable() {
+
+			public void run() {
+				try {
+					loop();
+				} catch (Throwable t) {
+					LOGGER.error("STUN discovery loop failed", t);
+				} finally {
+					shutdown();
+				}
+			}
+
+		}, "StunDiscovery");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	private void loop() throws IOException {
+		while (!closed) {
+			long now = System.currentTimeMillis();
+			long nextDeadline = Long.MAX_VALUE;
+			for (Test test : pendingTests.values()) {
+				nextDeadline = Math.min(nextDeadline, Math.min(test.nextTransmission, test.giveUpAt));
+			}
+			if (nextDeadline == Long.MAX_VALUE) {
+				selector.select();
+			} else if (nextDeadline > now) {
+				selector.select(nextDeadline - now);
+			} else {
+				selector.selectNow();
+			}
+			Discovery discovery;
+			while ((discovery = newDiscoveries.poll()) != null) {
+				begin(discovery);
+			}
+			Iterator<SelectionKey> selectedKeys = selector.selectedKeys().iterator();
+			while (selectedKeys.hasNext()) {
+				SelectionKey key = selectedKeys.next();
+				selectedKeys.remove();
+				if (key.isValid() && key.isReadable()) {
+					receive((Discovery) key.attachment());
+				}
+			}
+			retransmit(System.currentTimeMillis());
+		}
+	}
+
+	private void shutdown() {
+		synchronized (this) {
+			closed = true;
+		}
+		for (Discovery discovery : new ArrayList<Discovery>(discoveries)) {
+			fail(discovery, new IOException("Discovery client closed"));
+		}
+		Discovery discovery;
+		while ((discovery = newDiscoveries.poll()) != null) {
+			fail(discovery, new IOException("Discovery client closed"));
+		}
+		try {
+			selector.close();
+		} catch (IOException ignore) {
+		}
+	}
+
+	private void begin(Discovery discovery) {
+		try {
+			DatagramChannel channel = DatagramChannel.open();
+			discovery.channel = channel;
+			channel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+			channel.bind(new InetSocketAddress(discovery.localAddress, discovery.localPort));
+			channel.configureBlocking(false);
+			channel.register(selector, SelectionKey.OP_READ, discovery);
+			discovery.info.setLocalPort(channel.socket().getLocalPort());
+			discoveries.add(discovery);
+
+			long now = System.currentTimeMillis();
+			discovery.test1 = send(discovery, new ChangeRequest(), discovery.serverAddress, "Test 1", now);
+			ChangeRequest changeIPAndPort = new ChangeRequest();
+			changeIPAndPort.setChangeIP();
+			changeIPAndPort.setChangePort();
+			discovery.test2 = send(discovery, changeIPAndPort, discovery.serverAddress, "Test 2", now);
+			ChangeRequest changePort = new ChangeRequest();
+			changePort.setChangePort();
+			discovery.test3 = send(discovery, changePort, discovery.serverAddress, "Test 3", now);
+		} catch (IOException ioe) {
+			fail(discovery, ioe);
+		} catch (UtilityException ue) {
+			fail(discovery, new IOException(ue));
+		}
+	}
+
+	private Test send(Discovery discovery, ChangeRequest changeRequest, InetSocketAddress destination, String name, long now) throws UtilityException {
+		MessageHeader sendMH = new MessageHeader(MessageHeader.MessageHeaderType.BindingRequest);
+		ByteBuffer transactionID;
+		do {
+			sendMH.generateRfc5389TransactionID();
+			transactionID = ByteBuffer.wrap(sendMH.getTransactionID());
+		} while (pendingTests.containsKey(transactionID));
+		sendMH.addMessageAttribute(changeRequest);
+
+		Test test = new Test(discovery, name, transactionID, sendMH.getBytes(), destination);
+		test.giveUpAt = now + timeout;
+		test.nextTransmission = now;
+		pendingTests.put(transactionID, test);
+		transmit(test, now);
+		return test;
+	}
+
+	private void transmit(Test test, long now) {
+		try {
+			test.discovery.channel.send(ByteBuffer.wrap(test.request), test.destination);
+			LOGGER.debug(test.name + ": Binding Request sent.");
+		} catch (IOException ioe) {
+			// lost, as far as the retransmissions are concerned
+			LOGGER.debug(test.name + ": Binding Request could not be sent: " + ioe.getMessage());
+		}
+		test.nextTransmission = now + test.retransmissionTimeout;
+		test.retransmissionTimeout = Math.min(test.retransmissionTimeout * 2, MAX_RETRANSMISSION_TIMEOUT);
+	}
+
+	private void retransmit(long now) {
+		List<Test> timedOut = null;
+		for (Test test : pendingTests.values()) {
+			if (now >= test.giveUpAt) {
+				if (timedOut == null) {
+					timedOut = new ArrayList<Test>();
+				}
+				timedOut.add(test);
+			} else if (now >= test.nextTransmission) {
+				transmit(test, now);
+			}
+		}
+		if (timedOut != null) {
+			for (Test test : timedOut) {
+				if (pendingTests.remove(test.transactionID) == test) {
+					LOGGER.debug(test.name + ": No response. Maximum retry limit exceed. Give up.");
+					test.state = Test.TIMED_OUT;
+					evaluate(test.discovery);
+				}
+			}
+		}
+	}
+
+	private void receive(Discovery discovery) {
+		while (true) {
+			receiveBuffer.clear();
+			SocketAddress source;
+			try {
+				source = discovery.channel.receive(receiveBuffer);
+			} catch (IOException ioe) {
+				// e.g. an ICMP port unreachable of an earlier datagram
+				LOGGER.debug("Could not receive a response: " + ioe.getMessage());
+				return;
+			}
+			if (source == null) {
+				return;
+			}
+			if (receiveBuffer.position() < 20) {
+				continue;
+			}
+			Test test = pendingTests.get(ByteBuffer.wrap(receiveBuffer.array(), 4, 16));
+			if (test == null || test.discovery != discovery) {
+				continue;
+			}
+			receiveBuffer.flip();
+			try {
+				MessageHeader receiveMH = new MessageHeader();
+				receiveMH.decode(receiveBuffer);
+				if (receiveMH.getType() != MessageHeader.MessageHeaderType.BindingResponse
+						&& receiveMH.getType() != MessageHeader.MessageHeaderType.BindingErrorResponse) {
+					continue;
+				}
+				pendingTests.remove(test.transactionID);
+				test.response = receiveMH;
+				test.source = (InetSocketAddress) source;
+				test.state = Test.ANSWERED;
+			} catch (MessageHeaderParsingException mhpe) {
+				LOGGER.debug(test.name + ": Unparsable response: " + mhpe.getMessage());
+				continue;
+			} catch (MessageAttributeParsingException mape) {
+				LOGGER.debug(test.name + ": Unparsable response: " + mape.getMessage());
+				continue;
+			} catch (RuntimeException malformed) {
+				LOGGER.debug(test.name + ": Malformed response.");
+				continue;
+			}
+			evaluate(discovery);
+			if (discovery.finished) {
+				return;
+			}
+		}
+	}
+
+	/*
+	 * Walks the decision tree of RFC 3489 10.1 as far as the tests done so far
+	 * allow, the same way DiscoveryTest does one test after the other.
+	 */
+	private void evaluate(Discovery discovery) {
+		if (discovery.finished) {
+			return;
+		}
+		DiscoveryInfo di = discovery.info;
+		try {
+			Test test1 = discovery.test1;
+			if (test1.state == Test.PENDING) {
+				return;
+			}
+			if (test1.state == Test.TIMED_OUT) {
+				di.setBlockedUDP();
+				LOGGER.debug("Node is not capable of UDP communication.");
+				finish(discovery);
+				return;
+			}
+			if (discovery.ma == null) {
+				if (hasError(discovery, test1)) {
+					return;
+				}
+				discovery.ma = mappedAddressOf(test1.response);
+				ChangedAddress ca = (ChangedAddress) test1.response.getMessageAttribute(MessageAttribute.MessageAttributeType.ChangedAddress);
+				if ((discovery.ma == null) || (ca == null)) {
+					di.setError(700,
+							"The server is sending an incomplete response (Mapped Address and Changed Address message attributes are missing). The client should not retry.");
+					LOGGER.debug("Response does not contain a Mapped Address or Changed Address message attribute.");
+					finish(discovery);
+					return;
+				}
+				discovery.changedAddress = new InetSocketAddress(ca.getAddress().getInetAddress(), ca.getPort());
+				di.setPublicIP(discovery.ma.getAddress().getInetAddress());
+				int localPort = discovery.channel.socket().getLocalPort();
+				if ((discovery.ma.getPort() == localPort) && (discovery.ma.getAddress().getInetAddress().equals(discovery.channel.socket().getLocalAddress()))) {
+					LOGGER.debug("Node is not natted.");
+					di.setPublicPort(localPort);
+					discovery.nodeNatted = false;
+				} else {
+					di.setPublicPort(discovery.ma.getPort());
+					LOGGER.debug("Node is natted.");
+				}
+			}
+
+			// the responses to tests 2 and 3 count only if they come from where they should
+			Test test2 = discovery.test2;
+			if (test2.state == Test.ANSWERED && !test2.source.equals(discovery.changedAddress)) {
+				reopen(test2);
+			}
+			Test test3 = discovery.test3;
+			if (test3.state == Test.ANSWERED && !test3.source.equals(new InetSocketAddress(discovery.serverAddress.getAddress(), discovery.changedAddress.getPort()))) {
+				reopen(test3);
+			}
+
+			if (test2.state == Test.PENDING) {
+				return;
+			}
+			if (test2.state == Test.ANSWERED) {
+				if (hasError(discovery, test2)) {
+					return;
+				}
+				if (!discovery.nodeNatted) {
+					di.setOpenAccess();
+					LOGGER.debug("Node has open access to the Internet (or, at least the node is behind a full-cone NAT without translation).");
+				} else {
+					di.setFullCone();
+					LOGGER.debug("Node is behind a full-cone NAT.");
+				}
+				finish(discovery);
+				return;
+			}
+			if (!discovery.nodeNatted) {
+				di.setSymmetricUDPFirewall();
+				LOGGER.debug("Node is behind a symmetric UDP firewall.");
+				finish(discovery);
+				return;
+			}
+
+			// redo test 1 with address and port as offered in the changed-address message attribute
+			Test test1Redo = discovery.test1Redo;
+			if (test1Redo == null) {
+				discovery.test1Redo = send(discovery, new ChangeRequest(), discovery.changedAddress, "Test 1 redo with changed address", System.currentTimeMillis());
+				return;
+			}
+			if (test1Redo.state == Test.PENDING) {
+				return;
+			}
+			if (test1Redo.state == Test.TIMED_OUT) {
+				finish(discovery);
+				return;
+			}
+			if (!discovery.test1RedoChecked) {
+				if (hasError(discovery, test1Redo)) {
+					return;
+				}
+				MappedResponseChangedSourceAddressReflectedFrom ma2 = mappedAddressOf(test1Redo.response);
+				if (ma2 == null) {
+					di.setError(700, "The server is sending an incomplete response (Mapped Address message attribute is missing). The client should not retry.");
+					LOGGER.debug("Response does not contain a Mapped Address message attribute.");
+					finish(discovery);
+					return;
+				}
+				if ((discovery.ma.getPort() != ma2.getPort()) || (!(discovery.ma.getAddress().getInetAddress().equals(ma2.getAddress().getInetAddress())))) {
+					di.setSymmetric();
+					LOGGER.debug("Node is behind a symmetric NAT.");
+					finish(discovery);
+					return;
+				}
+				discovery.test1RedoChecked = true;
+			}
+
+			if (test3.state == Test.PENDING) {
+				return;
+			}
+			if (test3.state == Test.ANSWERED) {
+				if (hasError(discovery, test3)) {
+					return;
+				}
+				di.setRestrictedCone();
+				LOGGER.debug("Node is behind a restricted NAT.");
+			} else {
+				di.setPortRestrictedCone();
+				LOGGER.debug("Node is behind a port restricted NAT.");
+			}
+			finish(discovery);
+		} catch (UtilityException ue) {
+			fail(discovery, new IOException(ue));
+		} catch (UnknownHostException uhe) {
+			fail(discovery, uhe);
+		}
+	}
+
+	// RFC 5389 servers may only send the XOR'ed form
+	private static MappedResponseChangedSourceAddressReflectedFrom mappedAddressOf(MessageHeader response) {
+		MessageAttribute ma = response.getMessageAttribute(MessageAttribute.MessageAttributeType.MappedAddress);
+		if (ma == null) {
+			ma = response.getMessageAttribute(MessageAttribute.MessageAttributeType.XorMappedAddress);
+		}
+		return (MappedResponseChangedSourceAddressReflectedFrom) ma;
+	}
+
+	private boolean hasError(Discovery discovery, Test test) {
+		ErrorCode ec = (ErrorCode) test.response.getMessageAttribute(MessageAttribute.MessageAttributeType.ErrorCode);
+		if (ec == null) {
+			return false;
+		}
+		discovery.info.setError(ec.getResponseCode(), ec.getReason());
+		LOGGER.debug("Message header contains an Errorcode message attribute.");
+		finish(discovery);
+		return true;
+	}
+
+	private void reopen(Test test) {
+		LOGGER.debug(test.name + ": Response from unexpected address " + test.source + " ignored.");
+		test.state = Test.PENDING;
+		test.response = null;
+		test.source = null;
+		if (System.currentTimeMillis() < test.giveUpAt) {
+			pendingTests.put(test.transactionID, test);
+		} else {
+			test.state = Test.TIMED_OUT;
+		}
+	}
+
+	private void finish(Discovery discovery) {
+		close(discovery);
+		discovery.entry.expiresAt = System.currentTimeMillis() + timeToLive;
+		discovery.entry.future.set(discovery.info);
+	}
+
+	private void fail(Discovery discovery, IOException cause) {
+		close(discovery);
+		cache.remove(discovery.key, discovery.entry);
+		discovery.entry.future.setException(cause);
+	}
+
+	private void close(Discovery discovery) {
+		discovery.finished = true;
+		discoveries.remove(discovery);
+		for (Test test : Arrays.asList(discovery.test1, discovery.test2, discovery.test1Redo, discovery.test3)) {
+			if (test != null) {
+				pendingTests.remove(test.transactionID);
+			}
+		}
+		if (discovery.channel != null) {
+			try {
+				discovery.channel.close();
+			} catch (IOException ignore) {
+			}
+		}
+	}
+
+	private static final class Discovery {
+		final String key;
+		final CacheEntry entry;
+		final InetAddress localAddress;
+		final int localPort;
+		final InetSocketAddress serverAddress;
+		final DiscoveryInfo info;
+		DatagramChannel channel;
+		Test test1, test2, test1Redo, test3;
+		MappedResponseChangedSourceAddressReflectedFrom ma;
+		InetSocketAddress changedAddress;
+		boolean nodeNatted = true;
+		boolean test1RedoChecked = false;
+		boolean finished = false;
+
+		Discovery(String key, CacheEntry entry, InetAddress localAddress, int localPort, String stunServer, InetSocketAddress serverAddress) {
+			this.key = key;
+			this.entry = entry;
+			this.localAddress = localAddress;
+			this.localPort = localPort;
+			this.serverAddress = serverAddress;
+			this.info = new DiscoveryInfo(localAddress, stunServer);
+		}
+	}
+
+	private static final class Test {
+		static final int PENDING = 0;
+		static final int ANSWERED = 1;
+		static final int TIMED_OUT = 2;
+
+		final Discovery discovery;
+		final String name;
+		final ByteBuffer transactionID;
+		final byte[] request;
+		final InetSocketAddress destination;
+		int state = PENDING;
+		int retransmissionTimeout = INITIAL_RETRANSMISSION_TIMEOUT;
+		long nextTransmission;
+		long giveUpAt;
+		MessageHeader response;
+		InetSocketAddress source;
+
+		Test(Discovery discovery, String name, ByteBuffer transactionID, byte[] request, InetSocketAddress destination) {
+			this.discovery = discovery;
+			this.name = name;
+			this.transactionID = transactionID;
+			this.request = request;
+			this.destination = destination;
+		}
+	}
+}
@@ -73,6 +73,10 @@ public class Address {
 		return result;
 	}
 	
+	public int toInt() {
+		return (firstOctet << 24) | (secondOctet << 16) | (thirdOctet << 8) | fourthOctet;
+	}
+	
 	public InetAddress getInetAddress() throws UtilityException, UnknownHostException {
 		byte[] address = new byte[4];
 		address[0] = Utility.integerToOneByte(firstOctet);
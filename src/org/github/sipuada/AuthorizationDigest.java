@@ -9,8 +9,11 @@ package org.github.sipuada;
  * This software is licensed under the Apache License 2.0.
  */
 
+import java.nio.charset.Charset;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  * Used to calculate the message digest for user authorization. Use getDigest() depending on the values specified by the provider.
@@ -19,6 +22,35 @@ import java.security.NoSuchAlgorithmException;
  * 
  */
 public class AuthorizationDigest {
+
+	public static final String MD5 = "MD5";
+	public static final String SHA_256 = "SHA-256";
+	public static final String SESSION_SUFFIX = "-sess";
+	public static final String QOP_AUTH = "auth";
+	public static final String QOP_AUTH_INT = "auth-int";
+
+	private static final Charset CHARSET = Charset.forName("UTF-8");
+	private static final byte[] SEPARATOR = { ':' };
+	private static final byte[] NO_BODY = new byte[0];
+	private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+	private static final ThreadLocal<MessageDigest> md5Digests = new ThreadLocal<MessageDigest>() {
+
+		@Override
+		protected MessageDigest initialValue() {
+			return createMessageDigest(MD5);
+		}
+
+	};
+
+	private static final ThreadLocal<MessageDigest> sha256Digests = new ThreadLocal<MessageDigest>() {
+
+		@Override
+		protected MessageDigest initialValue() {
+			return createMessageDigest(SHA_256);
+		}
+
+	};
+
 	/**
 	 * Calculate a Digest string using the specified values. Use this if qop field does not exist or is not "auth". For further information, see
 	 * http://www.straub.as/java/servlet/digest.html
@@ -35,34 +67,10 @@ public class AuthorizationDigest {
 	 *            the URI of the local SIP user's SIP domain
 	 * @param nonce
 	 *            the nonce sent in the authorization challenge
-	 * @return the calculated Digest String, or nonce, if an exception occurred
+	 * @return the calculated Digest String
 	 */
 	public static String getDigest(String user, String realm, String password, String method, String uri, String nonce) {
-		String digest1 = user + ":" + realm + ":" + password;
-		String digest2 = method + ":" + uri;
-
-		try {
-			MessageDigest digestOne = MessageDigest.getInstance("md5");
-			digestOne.update(digest1.getBytes());
-			String hexDigestOne = getHexString(digestOne.digest());
-
-			MessageDigest digestTwo = MessageDigest.getInstance("md5");
-			digestTwo.update(digest2.getBytes());
-			String hexDigestTwo = getHexString(digestTwo.digest());
-
-			String digest3 = hexDigestOne + ":" + nonce + ":" + hexDigestTwo;
-
-			MessageDigest digestThree = MessageDigest.getInstance("md5");
-			digestThree.update(digest3.getBytes());
-			String hexDigestThree = getHexString(digestThree.digest());
-
-			return hexDigestThree;
-		} catch (NoSuchAlgorithmException e) {
-			e.printStackTrace();
-		} catch (Exception e) {
-			e.printStackTrace();
-		}
-		return null;
+		return getDigest(MD5, user, realm, password, method, uri, nonce, null, null, null, null);
 	}
 
 	/**
@@ -87,34 +95,155 @@ public class AuthorizationDigest {
 	 *            the cnonce sent in the authorization challenge
 	 * @param qop
 	 *            the qop sent in the authorization challenge
-	 * @return the calculated Digest String, or nonce, if an exception occurred
+	 * @return the calculated Digest String
 	 */
 	public static String getDigest(String user, String realm, String password, String method, String uri, String nonce, String nc, String cnonce, String qop) {
-		String digest1 = user + ":" + realm + ":" + password;
-		String digest2 = method + ":" + uri;
+		return getDigest(MD5, user, realm, password, method, uri, nonce, nc, cnonce, qop, null);
+	}
 
-		try {
-			MessageDigest digestOne = MessageDigest.getInstance("md5");
-			digestOne.update(digest1.getBytes());
-			String hexDigestOne = getHexString(digestOne.digest());
+	/**
+	 * Calculate a Digest string as described in RFC 2617 and RFC 7616. Supports the MD5 and SHA-256 algorithms (and their "-sess" variants) as well as
+	 * the "auth" and "auth-int" qop values.
+	 * 
+	 * @param algorithm
+	 *            the algorithm sent in the authorization challenge, MD5 if null
+	 * @param user
+	 *            the local SIP user to authorize
+	 * @param realm
+	 *            the realm sent in the authorization challenge
+	 * @param password
+	 *            the local SIP user's password
+	 * @param method
+	 *            the SIP method, INVITE or REGISTER
+	 * @param uri
+	 *            the URI of the local SIP user's SIP domain
+	 * @param nonce
+	 *            the nonce sent in the authorization challenge
+	 * @param nc
+	 *            the nonce count as 8 hex digits, or null if qop is null
+	 * @param cnonce
+	 *            the client nonce, or null if qop is null
+	 * @param qop
+	 *            the chosen qop, or null if the challenge offered none
+	 * @param body
+	 *            the message body, only used if qop is "auth-int"
+	 * @return the calculated Digest String, or null if the algorithm is not supported
+	 */
+	public static String getDigest(String algorithm, String user, String realm, String password, String method, String uri, String nonce,
+			String nc, String cnonce, String qop, byte[] body) {
+		return getDigestFromHA1(algorithm, getHA1(algorithm, user, realm, password), method, uri, nonce, nc, cnonce, qop, body);
+	}
 
-			MessageDigest digestTwo = MessageDigest.getInstance("md5");
-			digestTwo.update(digest2.getBytes());
-			String hexDigestTwo = getHexString(digestTwo.digest());
+	/**
+	 * Calculate a Digest string as getDigest() does, from an already calculated H(user:realm:password).
+	 * 
+	 * @param algorithm
+	 *            the algorithm sent in the authorization challenge, MD5 if null
+	 * @param hexDigestOne
+	 *            the H(user:realm:password) of the local SIP user, as returned by getHA1()
+	 * @param method
+	 *            the SIP method, INVITE or REGISTER
+	 * @param uri
+	 *            the URI of the local SIP user's SIP domain
+	 * @param nonce
+	 *            the nonce sent in the authorization challenge
+	 * @param nc
+	 *            the nonce count as 8 hex digits, or null if qop is null
+	 * @param cnonce
+	 *            the client nonce, or null if qop is null
+	 * @param qop
+	 *            the chosen qop, or null if the challenge offered none
+	 * @param body
+	 *            the message body, only used if qop is "auth-int"
+	 * @return the calculated Digest String, or null if the algorithm is not supported
+	 */
+	public static String getDigestFromHA1(String algorithm, String hexDigestOne, String method, String uri, String nonce,
+			String nc, String cnonce, String qop, byte[] body) {
+		MessageDigest messageDigest = getMessageDigest(algorithm);
+		if (messageDigest == null || hexDigestOne == null) {
+			return null;
+		}
+		if (isSessionAlgorithm(algorithm)) {
+			hexDigestOne = hash(messageDigest, hexDigestOne, nonce, cnonce);
+		}
 
-			String digest3 = hexDigestOne + ":" + nonce + ":" + nc + ":" + cnonce + ":" + qop + ":" + hexDigestTwo;
+		String hexDigestTwo;
+		if (QOP_AUTH_INT.equalsIgnoreCase(qop)) {
+			messageDigest.reset();
+			String hexBody = getHexString(messageDigest.digest(body == null ? NO_BODY : body));
+			hexDigestTwo = hash(messageDigest, method, uri, hexBody);
+		} else {
+			hexDigestTwo = hash(messageDigest, method, uri);
+		}
 
-			MessageDigest digestThree = MessageDigest.getInstance("md5");
-			digestThree.update(digest3.getBytes());
-			String hexDigestThree = getHexString(digestThree.digest());
+		if (qop == null) {
+			return hash(messageDigest, hexDigestOne, nonce, hexDigestTwo);
+		}
+		return hash(messageDigest, hexDigestOne, nonce, nc, cnonce, qop, hexDigestTwo);
+	}
 
-			return hexDigestThree;
-		} catch (NoSuchAlgorithmException e) {
-			e.printStackTrace();
-		} catch (Exception e) {
-			e.printStackTrace();
+	/**
+	 * Calculate the H(user:realm:password) part of a Digest string.
+	 * 
+	 * @param algorithm
+	 *            the algorithm sent in the authorization challenge, MD5 if null
+	 * @param user
+	 *            the local SIP user to authorize
+	 * @param realm
+	 *            the realm sent in the authorization challenge
+	 * @param password
+	 *            the local SIP user's password
+	 * @return the calculated hash as a Hex string, or null if the algorithm is not supported
+	 */
+	public static String getHA1(String algorithm, String user, String realm, String password) {
+		MessageDigest messageDigest = getMessageDigest(algorithm);
+		if (messageDigest == null) {
+			return null;
 		}
-		return null;
+		return hash(messageDigest, user, realm, password);
+	}
+
+	/**
+	 * The H(user:realm:password) values of a single user agent, by algorithm, user and realm. No password is kept, so the
+	 * cache must be cleared whenever the password it was filled with changes.
+	 */
+	public static class HA1Cache {
+
+		private final ConcurrentMap<String, String> hexDigestsOne = new ConcurrentHashMap<>();
+
+		/**
+		 * Fetch from cache, or calculate, the H(user:realm:password) part of a Digest string.
+		 * 
+		 * @return the calculated hash as a Hex string, or null if the algorithm is not supported
+		 */
+		public String getHA1(String algorithm, String user, String realm, String password) {
+			String key = baseAlgorithm(algorithm) + ':' + user + ':' + realm;
+			String hexDigestOne = hexDigestsOne.get(key);
+			if (hexDigestOne == null) {
+				hexDigestOne = AuthorizationDigest.getHA1(algorithm, user, realm, password);
+				if (hexDigestOne != null) {
+					hexDigestsOne.put(key, hexDigestOne);
+				}
+			}
+			return hexDigestOne;
+		}
+
+		public void clear() {
+			hexDigestsOne.clear();
+		}
+
+	}
+
+	/**
+	 * Checks whether getDigest() can handle the algorithm sent in an authorization challenge.
+	 * 
+	 * @param algorithm
+	 *            the algorithm sent in the authorization challenge, MD5 if null
+	 * @return true if the algorithm is supported
+	 */
+	public static boolean isSupportedAlgorithm(String algorithm) {
+		String baseAlgorithm = baseAlgorithm(algorithm);
+		return baseAlgorithm.equals(MD5) || baseAlgorithm.equals(SHA_256);
 	}
 
 	/**
@@ -125,11 +254,59 @@ public class AuthorizationDigest {
 	 * @return the converted Hex string
 	 */
 	public static String getHexString(byte[] b) {
-		String result = "";
+		char[] result = new char[b.length * 2];
 		for (int i = 0; i < b.length; i++) {
-			result += Integer.toString((b[i] & 0xff) + 0x100, 16).substring(1);
+			result[i * 2] = HEX_DIGITS[(b[i] >> 4) & 0x0f];
+			result[i * 2 + 1] = HEX_DIGITS[b[i] & 0x0f];
+		}
+		return new String(result);
+	}
+
+	private static String hash(MessageDigest messageDigest, String... values) {
+		messageDigest.reset();
+		for (int i = 0; i < values.length; i++) {
+			if (i > 0) {
+				messageDigest.update(SEPARATOR);
+			}
+			if (values[i] != null) {
+				messageDigest.update(values[i].getBytes(CHARSET));
+			}
+		}
+		return getHexString(messageDigest.digest());
+	}
+
+	private static boolean isSessionAlgorithm(String algorithm) {
+		return algorithm != null && algorithm.toLowerCase().endsWith(SESSION_SUFFIX);
+	}
+
+	private static String baseAlgorithm(String algorithm) {
+		if (algorithm == null) {
+			return MD5;
+		}
+		String baseAlgorithm = algorithm.trim().toUpperCase();
+		if (baseAlgorithm.endsWith(SESSION_SUFFIX.toUpperCase())) {
+			baseAlgorithm = baseAlgorithm.substring(0, baseAlgorithm.length() - SESSION_SUFFIX.length());
 		}
-		return result;
+		return baseAlgorithm;
+	}
+
+	private static MessageDigest getMessageDigest(String algorithm) {
+		String baseAlgorithm = baseAlgorithm(algorithm);
+		if (baseAlgorithm.equals(MD5)) {
+			return md5Digests.get();
+		} else if (baseAlgorithm.equals(SHA_256)) {
+			return sha256Digests.get();
+		}
+		return null;
+	}
+
+	private static MessageDigest createMessageDigest(String algorithm) {
+		try {
+			return MessageDigest.getInstance(algorithm);
+		} catch (NoSuchAlgorithmException e) {
+			e.printStackTrace();
+		}
+		return null;
 	}
 
 }
@@ -0,0 +1,346 @@
+package org.github.sipuada;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.github.sipuada.events.CallEvent;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.eventbus.Subscribe;
+
+public class CallEventRouter {
+
+	private static final String ANY_CALL = "";
+	private static final int MAX_EVENTS_PER_TURN = 32;
+
+	private static final ConcurrentMap<Class<?>, Map<Class<?>, List<Method>>> subscriberMethodsCache =
+			new ConcurrentHashMap<>();
+
+	private final Logger logger = LoggerFactory.getLogger(CallEventRouter.class);
+
+	private final String name;
+	private final Executor executor;
+	private final ConcurrentMap<String, ConcurrentMap<Class<?>, List<Handler>>> callIdToHandlers =
+			new ConcurrentHashMap<>();
+	private final ConcurrentMap<Object, Registration> subscriberToRegistration =
+			new ConcurrentHashMap<>();
+	private final ConcurrentMap<String, CallQueue> callIdToQueue = new ConcurrentHashMap<>();
+
+	private final AtomicLong queuedEvents = new AtomicLong();
+	private final AtomicLong dispatchedEvents = new AtomicLong();
+	private final AtomicLong deadEvents = new AtomicLong();
+	private final AtomicLong handlerInvocations = new AtomicLong();
+	private final AtomicLong totalHandlerNanos = new AtomicLong();
+	private final AtomicLong maxHandlerNanos = new AtomicLong();
+
+	private static class Handler {
+
+		private final Object subscriber;
+		private final Method method;
+
+		private Handler(Object subscriber, Method method) {
+			this.subscriber = subscriber;
+			this.method = method;
+		}
+
+	}
+
+	private static class Registration {
+
+		private final String callId;
+		private final Map<Class<?>, Handler[]> handlers;
+
+		private Registration(String callId, Map<Class<?>, Handler[]> handlers) {
+			this.callId = callId;
+			this.handlers = handlers;
+		}
+
+	}
+
+	private class CallQueue implements Runnable {
+
+		private final String callId;
+		private final Queue<Object> events = new LinkedList<>();
+		private boolean running;
+		private boolean retired;
+
+		private CallQueue(String callId) {
+			this.callId = callId;
+		}
+
+		@Override
+		public void run() {
+			for (int turn = 0; turn < MAX_EVENTS_PER_TURN; turn++) {
+				Object event;
+				synchronized (this) {
+					event = events.poll();
+					if (event == null) {
+						running = false;
+						retired = true;
+						callIdToQueue.remove(callId, this);
+						return;
+					}
+				}
+				queuedEvents.decrementAndGet();
+				dispatch(callId, event);
+			}
+			synchronized (this) {
+				if (events.isEmpty()) {
+					running = false;
+					retired = true;
+					callIdToQueue.remove(callId, this);
+					return;
+				}
+			}
+			submit(this);
+		}
+
+	}
+
+	public CallEventRouter(String routerName, Executor dispatchExecutor) {
+		name = routerName;
+		executor = dispatchExecutor;
+	}
+
+	public void register(Object subscriber) {
+		register(null, subscriber);
+	}
+
+	public synchronized void register(String callId, Object subscriber) {
+		String key = keyOf(callId);
+		Map<Class<?>, List<Method>> subscriberMethods = findSubscriberMethods(subscriber.getClass());
+		Map<Class<?>, Handler[]> handlers = new HashMap<>();
+		for (Map.Entry<Class<?>, List<Method>> entry : subscriberMethods.entrySet()) {
+			List<Method> methods = entry.getValue();
+			Handler[] eventTypeHandlers = new Handler[methods.size()];
+			for (int i = 0; i < eventTypeHandlers.length; i++) {
+				eventTypeHandlers[i] = new Handler(subscriber, methods.get(i));
+			}
+			handlers.put(entry.getKey(), eventTypeHandlers);
+		}
+		if (subscriberToRegistration.putIfAbsent(subscriber,
+				new Registration(key, handlers)) != null) {
+			return;
+		}
+		ConcurrentMap<Class<?>, List<Handler>> eventTypeToHandlers = callIdToHandlers.get(key);
+		if (eventTypeToHandlers == null) {
+			ConcurrentMap<Class<?>, List<Handler>> newEventTypeToHandlers =
+					new ConcurrentHashMap<>();
+			eventTypeToHandlers = callIdToHandlers.putIfAbsent(key, newEventTypeToHandlers);
+			if (eventTypeToHandlers == null) {
+				eventTypeToHandlers = newEventTypeToHandlers;
+			}
+		}
+		for (Map.Entry<Class<?>, Handler[]> entry : handlers.entrySet()) {
+			List<Handler> eventTypeHandlers = eventTypeToHandlers.get(entry.getKey());
+			if (eventTypeHandlers == null) {
+				List<Handler> newEventTypeHandlers = new CopyOnWriteArrayList<>();
+				eventTypeHandlers = eventTypeToHandlers.putIfAbsent(entry.getKey(),
+					newEventTypeHandlers);
+				if (eventTypeHandlers == null) {
+					eventTypeHandlers = newEventTypeHandlers;
+				}
+			}
+			Collections.addAll(eventTypeHandlers, entry.getValue());
+		}
+	}
+
+	public synchronized void unregister(Object subscriber) {
+		Registration registration = subscriber == null ? null
+			: subscriberToRegistration.remove(subscriber);
+		if (registration == null) {
+			throw new IllegalArgumentException("missing event subscriber for an annotated"
+				+ " method. Is " + subscriber + " registered?");
+		}
+		ConcurrentMap<Class<?>, List<Handler>> eventTypeToHandlers =
+				callIdToHandlers.get(registration.callId);
+		if (eventTypeToHandlers == null) {
+			return;
+		}
+		for (Map.Entry<Class<?>, Handler[]> entry : registration.handlers.entrySet()) {
+			List<Handler> eventTypeHandlers = eventTypeToHandlers.get(entry.getKey());
+			if (eventTypeHandlers != null) {
+				for (Handler handler : entry.getValue()) {
+					eventTypeHandlers.remove(handler);
+				}
+				if (eventTypeHandlers.isEmpty()) {
+					eventTypeToHandlers.remove(entry.getKey(), eventTypeHandlers);
+				}
+			}
+		}
+		if (eventTypeToHandlers.isEmpty()) {
+			callIdToHandlers.remove(registration.callId, eventTypeToHandlers);
+		}
+	}
+
+	public void post(Object event) {
+		String key = event instanceof CallEvent
+			? keyOf(((CallEvent) event).getCallId()) : ANY_CALL;
+		while (true) {
+			CallQueue queue = callIdToQueue.get(key);
+			if (queue == null) {
+				CallQueue newQueue = new CallQueue(key);
+				queue = callIdToQueue.putIfAbsent(key, newQueue);
+				if (queue == null) {
+					queue = newQueue;
+				}
+			}
+			boolean shouldSubmit;
+			synchronized (queue) {
+				if (queue.retired) {
+					continue;
+				}
+				queue.events.add(event);
+				queuedEvents.incrementAndGet();
+				shouldSubmit = !queue.running;
+				queue.running = true;
+			}
+			if (shouldSubmit) {
+				submit(queue);
+			}
+			return;
+		}
+	}
+
+	private void submit(CallQueue queue) {
+		try {
+			executor.execute(queue);
+		} catch (RejectedExecutionException dispatcherAlreadyShutdown) {
+			synchronized (queue) {
+				queuedEvents.addAndGet(-queue.events.size());
+				queue.events.clear();
+				queue.running = false;
+				queue.retired = true;
+				callIdToQueue.remove(queue.callId, queue);
+			}
+			logger.debug("{}: events of call {} discarded as the dispatcher is shut down.",
+				name, queue.callId);
+		}
+	}
+
+	private void dispatch(String key, Object event) {
+		List<Handler> handlers = new ArrayList<>();
+		collectHandlers(key, event.getClass(), handlers);
+		if (!key.equals(ANY_CALL)) {
+			collectHandlers(ANY_CALL, event.getClass(), handlers);
+		}
+		dispatchedEvents.incrementAndGet();
+		if (handlers.isEmpty()) {
+			deadEvents.incrementAndGet();
+			logger.error("Dead event: {}.", event.getClass());
+			return;
+		}
+		for (Handler handler : handlers) {
+			if (!subscriberToRegistration.containsKey(handler.subscriber)) {
+				continue;
+			}
+			long startedAt = System.nanoTime();
+			try {
+				handler.method.invoke(handler.subscriber, event);
+			} catch (InvocationTargetException handlerCrashed) {
+				logger.error("{}: could not dispatch event {} to {}.", name, event,
+					handler.method, handlerCrashed.getCause());
+			} catch (IllegalAccessException unexpectedException) {
+				logger.error("{}: could not dispatch event {} to {}.", name, event,
+					handler.method, unexpectedException);
+			}
+			long elapsed = System.nanoTime() - startedAt;
+			handlerInvocations.incrementAndGet();
+			totalHandlerNanos.addAndGet(elapsed);
+			long currentMax = maxHandlerNanos.get();
+			while (elapsed > currentMax && !maxHandlerNanos.compareAndSet(currentMax, elapsed)) {
+				currentMax = maxHandlerNanos.get();
+			}
+		}
+	}
+
+	private void collectHandlers(String key, Class<?> eventType, List<Handler> handlers) {
+		Map<Class<?>, List<Handler>> eventTypeToHandlers = callIdToHandlers.get(key);
+		if (eventTypeToHandlers != null) {
+			List<Handler> eventTypeHandlers = eventTypeToHandlers.get(eventType);
+			if (eventTypeHandlers != null) {
+				handlers.addAll(eventTypeHandlers);
+			}
+		}
+	}
+
+	private static Map<Class<?>, List<Method>> findSubscriberMethods(Class<?> subscriberClass) {
+		Map<Class<?>, List<Method>> subscriberMethods = subscriberMethodsCache.get(subscriberClass);
+		if (subscriberMethods != null) {
+			return subscriberMethods;
+		}
+		subscriberMethods = new HashMap<>();
+		for (Class<?> clazz = subscriberClass; clazz != null
+				&& clazz != Object.class; clazz = clazz.getSuperclass()) {
+			for (Method method : clazz.getDeclaredMethods()) {
+				if (!method.isAnnotationPresent(Subscribe.class) || method.isSynthetic()) {
+					continue;
+				}
+				Class<?>[] parameterTypes = method.getParameterTypes();
+				if (parameterTypes.length != 1) {
+					throw new IllegalArgumentException(String.format("Method %s has @Subscribe"
+						+ " annotation but requires %d arguments. Event subscriber methods"
+						+ " must require a single argument.", method, parameterTypes.length));
+				}
+				method.setAccessible(true);
+				List<Method> methods = subscriberMethods.get(parameterTypes[0]);
+				if (methods == null) {
+					methods = new ArrayList<>();
+					subscriberMethods.put(parameterTypes[0], methods);
+				}
+				methods.add(method);
+			}
+		}
+		Map<Class<?>, List<Method>> cachedMethods = subscriberMethodsCache
+			.putIfAbsent(subscriberClass, subscriberMethods);
+		return cachedMethods != null ? cachedMethods : subscriberMethods;
+	}
+
+	private String keyOf(String callId) {
+		return callId == null ? ANY_CALL : callId;
+	}
+
+	public long getDispatchQueueDepth() {
+		return queuedEvents.get();
+	}
+
+	public int getActiveCallQueues() {
+		return callIdToQueue.size();
+	}
+
+	public long getDispatchedEvents() {
+		return dispatchedEvents.get();
+	}
+
+	public long getDeadEvents() {
+		return deadEvents.get();
+	}
+
+	public double getAverageHandlerLatencyMillis() {
+		long invocations = handlerInvocations.get();
+		if (invocations == 0) {
+			return 0;
+		}
+		return totalHandlerNanos.get() / (invocations * (double) TimeUnit.MILLISECONDS.toNanos(1));
+	}
+
+	public double getMaxHandlerLatencyMillis() {
+		return maxHandlerNanos.get() / (double) TimeUnit.MILLISECONDS.toNanos(1);
+	}
+
+}
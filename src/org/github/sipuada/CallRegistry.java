@@ -0,0 +1,202 @@
+package org.github.sipuada;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.javax.sip.ClientTransaction;
+import android.javax.sip.Dialog;
+import android.javax.sip.ServerTransaction;
+
+public class CallRegistry {
+
+	public enum CallState {
+		INVITE_PENDING, INVITE_ANSWERABLE, ESTABLISHED
+	}
+
+	public static class CallRecord {
+
+		private final String callId;
+		private final SipUserAgent userAgent;
+		private final String subscriberId;
+		private final CallState state;
+		private final ClientTransaction clientTransaction;
+		private final ServerTransaction serverTransaction;
+		private final Dialog dialog;
+
+		private CallRecord(String callId, SipUserAgent userAgent, String subscriberId,
+				CallState state, ClientTransaction clientTransaction,
+				ServerTransaction serverTransaction, Dialog dialog) {
+			this.callId = callId;
+			this.userAgent = userAgent;
+			this.subscriberId = subscriberId;
+			this.state = state;
+			this.clientTransaction = clientTransaction;
+			this.serverTransaction = serverTransaction;
+			this.dialog = dialog;
+		}
+
+		private CallRecord withoutOperation() {
+			return new CallRecord(callId, userAgent, subscriberId, state, null, null, null);
+		}
+
+		public String getCallId() {
+			return callId;
+		}
+
+		public SipUserAgent getUserAgent() {
+			return userAgent;
+		}
+
+		public String getSubscriberId() {
+			return subscriberId;
+		}
+
+		public CallState getState() {
+			return state;
+		}
+
+		public ClientTransaction getClientTransaction() {
+			return clientTransaction;
+		}
+
+		public ServerTransaction getServerTransaction() {
+			return serverTransaction;
+		}
+
+		public Dialog getDialog() {
+			return dialog;
+		}
+
+	}
+
+	private final ConcurrentMap<String, CallRecord> calls = new ConcurrentHashMap<>();
+	private final ConcurrentMap<SipUserAgent, AtomicInteger> userAgentLoads = new ConcurrentHashMap<>();
+
+	public void inviteIsPending(String callId, SipUserAgent userAgent,
+			String subscriberId, ClientTransaction clientTransaction) {
+		store(new CallRecord(callId, userAgent, subscriberId,
+			CallState.INVITE_PENDING, clientTransaction, null, null));
+	}
+
+	public void inviteIsAnswerable(String callId, SipUserAgent userAgent,
+			String subscriberId, ServerTransaction serverTransaction) {
+		store(new CallRecord(callId, userAgent, subscriberId,
+			CallState.INVITE_ANSWERABLE, null, serverTransaction, null));
+	}
+
+	public void callIsEstablished(String callId, SipUserAgent userAgent,
+			String subscriberId, Dialog dialog) {
+		store(new CallRecord(callId, userAgent, subscriberId,
+			CallState.ESTABLISHED, null, null, dialog));
+	}
+
+	public CallRecord claimPendingInvite(String callId) {
+		return claim(callId, CallState.INVITE_PENDING);
+	}
+
+	public CallRecord claimAnswerableInvite(String callId) {
+		return claim(callId, CallState.INVITE_ANSWERABLE);
+	}
+
+	public CallRecord claimEstablishedCall(String callId) {
+		return claim(callId, CallState.ESTABLISHED);
+	}
+
+	public CallRecord getEstablishedCall(String callId) {
+		CallRecord record = calls.get(callId);
+		if (record == null || record.state != CallState.ESTABLISHED || record.dialog == null) {
+			return null;
+		}
+		return record;
+	}
+
+	public CallRecord getCall(String callId) {
+		return calls.get(callId);
+	}
+
+	public SipUserAgent getUserAgent(String callId) {
+		CallRecord record = calls.get(callId);
+		return record == null ? null : record.userAgent;
+	}
+
+	public CallRecord finish(String callId) {
+		CallRecord record = calls.remove(callId);
+		if (record != null) {
+			adjustLoad(record.userAgent, -1);
+		}
+		return record;
+	}
+
+	public List<CallRecord> finishAll(SipUserAgent userAgent) {
+		List<CallRecord> finished = new ArrayList<>();
+		for (CallRecord record : calls.values()) {
+			if (record.userAgent == userAgent && calls.remove(record.callId, record)) {
+				adjustLoad(userAgent, -1);
+				finished.add(record);
+			}
+		}
+		userAgentLoads.remove(userAgent);
+		return finished;
+	}
+
+	public List<CallRecord> snapshot() {
+		return new ArrayList<>(calls.values());
+	}
+
+	public int getActiveCallCount(SipUserAgent userAgent) {
+		AtomicInteger load = userAgentLoads.get(userAgent);
+		return load == null ? 0 : Math.max(0, load.get());
+	}
+
+	public boolean hasActiveCalls(SipUserAgent userAgent) {
+		return getActiveCallCount(userAgent) > 0;
+	}
+
+	public int size() {
+		return calls.size();
+	}
+
+	public void clear() {
+		calls.clear();
+		userAgentLoads.clear();
+	}
+
+	private void store(CallRecord record) {
+		CallRecord previous = calls.put(record.callId, record);
+		if (previous == null) {
+			adjustLoad(record.userAgent, 1);
+		} else if (previous.userAgent != record.userAgent) {
+			adjustLoad(previous.userAgent, -1);
+			adjustLoad(record.userAgent, 1);
+		}
+	}
+
+	private CallRecord claim(String callId, CallState expectedState) {
+		while (true) {
+			CallRecord record = calls.get(callId);
+			if (record == null || record.state != expectedState || (record.clientTransaction == null
+					&& record.serverTransaction == null && record.dialog == null)) {
+				return null;
+			}
+			if (calls.replace(callId, record, record.withoutOperation())) {
+				return record;
+			}
+		}
+	}
+
+	private void adjustLoad(SipUserAgent userAgent, int delta) {
+		AtomicInteger load = userAgentLoads.get(userAgent);
+		if (load == null) {
+			AtomicInteger newLoad = new AtomicInteger();
+			load = userAgentLoads.putIfAbsent(userAgent, newLoad);
+			if (load == null) {
+				load = newLoad;
+			}
+		}
+		load.addAndGet(delta);
+	}
+
+}
@@ -0,0 +1,148 @@
+package org.github.sipuada;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.javax.sip.header.WWWAuthenticateHeader;
+
+public class DigestChallengeCache {
+
+	public static final long DEFAULT_NONCE_LIFETIME_MILLIS = 5 * 60 * 1000;
+
+	public static class Challenge {
+
+		private final String realm;
+		private final String nonce;
+		private final String algorithm;
+		private final String qop;
+		private final String opaque;
+		private final String callId;
+		private final long receivedAt = System.currentTimeMillis();
+		private final AtomicInteger nonceCount = new AtomicInteger();
+
+		private Challenge(String realm, String nonce, String algorithm,
+				String qop, String opaque, String callId) {
+			this.realm = realm;
+			this.nonce = nonce;
+			this.algorithm = algorithm;
+			this.qop = qop;
+			this.opaque = opaque;
+			this.callId = callId;
+		}
+
+		public String getRealm() {
+			return realm;
+		}
+
+		public String getNonce() {
+			return nonce;
+		}
+
+		public String getAlgorithm() {
+			return algorithm;
+		}
+
+		public String getQop() {
+			return qop;
+		}
+
+		public String getOpaque() {
+			return opaque;
+		}
+
+		public String getCallId() {
+			return callId;
+		}
+
+		public int nextNonceCount() {
+			return nonceCount.incrementAndGet();
+		}
+
+		public String generateCNonce() {
+			return Long.toHexString(ThreadLocalRandom.current().nextLong());
+		}
+
+	}
+
+	private final long nonceLifetimeMillis;
+	private final ConcurrentMap<String, ConcurrentMap<String, Challenge>> challenges =
+			new ConcurrentHashMap<>();
+
+	public DigestChallengeCache() {
+		this(DEFAULT_NONCE_LIFETIME_MILLIS);
+	}
+
+	public DigestChallengeCache(long nonceLifetimeMillis) {
+		this.nonceLifetimeMillis = nonceLifetimeMillis;
+	}
+
+	public Challenge challenged(String toHeaderValue, WWWAuthenticateHeader authenticateHeader,
+			String callId) {
+		ConcurrentMap<String, Challenge> realmToChallenge = challenges.get(toHeaderValue);
+		if (realmToChallenge == null) {
+			ConcurrentMap<String, Challenge> newRealmToChallenge = new ConcurrentHashMap<>();
+			realmToChallenge = challenges.putIfAbsent(toHeaderValue, newRealmToChallenge);
+			if (realmToChallenge == null) {
+				realmToChallenge = newRealmToChallenge;
+			}
+		}
+		String realm = authenticateHeader.getRealm();
+		String nonce = authenticateHeader.getNonce();
+		Challenge knownChallenge = realmToChallenge.get(realm);
+		if (knownChallenge != null && knownChallenge.nonce.equals(nonce)
+				&& (callId == null || callId.equals(knownChallenge.callId))) {
+			//Same nonce sent again: keep counting from where we were
+			//so the server does not take the next request as a replay.
+			return knownChallenge;
+		}
+		Challenge challenge = new Challenge(realm, nonce, authenticateHeader.getAlgorithm(),
+			chooseQop(authenticateHeader.getQop()), authenticateHeader.getOpaque(), callId);
+		realmToChallenge.put(realm, challenge);
+		return challenge;
+	}
+
+	public List<Challenge> getChallenges(String toHeaderValue) {
+		List<Challenge> freshChallenges = new ArrayList<>();
+		ConcurrentMap<String, Challenge> realmToChallenge = challenges.get(toHeaderValue);
+		if (realmToChallenge == null) {
+			return freshChallenges;
+		}
+		long now = System.currentTimeMillis();
+		Iterator<Challenge> iterator = realmToChallenge.values().iterator();
+		while (iterator.hasNext()) {
+			Challenge challenge = iterator.next();
+			if (now - challenge.receivedAt > nonceLifetimeMillis) {
+				iterator.remove();
+			} else {
+				freshChallenges.add(challenge);
+			}
+		}
+		return freshChallenges;
+	}
+
+	public void clear() {
+		challenges.clear();
+	}
+
+	private String chooseQop(String offeredQops) {
+		if (offeredQops == null || offeredQops.trim().isEmpty()) {
+			return null;
+		}
+		boolean authIntOffered = false;
+		for (String offeredQop : offeredQops.split(",")) {
+			String qop = offeredQop.trim();
+			if (qop.equalsIgnoreCase(AuthorizationDigest.QOP_AUTH)) {
+				return AuthorizationDigest.QOP_AUTH;
+			} else if (qop.equalsIgnoreCase(AuthorizationDigest.QOP_AUTH_INT)) {
+				authIntOffered = true;
+			}
+		}
+		return authIntOffered ? AuthorizationDigest.QOP_AUTH_INT : null;
+	}
+
+}
@@ -0,0 +1,270 @@
+package org.github.sipuada;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.github.sipuada.SipuadaScheduler.ScheduledTask;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import android.javax.sip.RequestEvent;
+import android.javax.sip.address.SipURI;
+import android.javax.sip.address.URI;
+import android.javax.sip.header.CSeqHeader;
+import android.javax.sip.message.Request;
+
+public class IncomingRequestElection {
+
+	public static final long DEFAULT_ELECTION_WINDOW_MILLIS = 150;
+	private static final long DECIDED_ELECTION_RETENTION_MILLIS = 32000;
+
+	private final Logger logger = LoggerFactory.getLogger(IncomingRequestElection.class);
+
+	private final SipuadaScheduler scheduler;
+	private volatile ElectionPolicy policy;
+	private volatile long electionWindowMillis = DEFAULT_ELECTION_WINDOW_MILLIS;
+
+	private final Map<String, Election> ongoingElections = new HashMap<>();
+	private final Set<String> decidedElections = new HashSet<>();
+
+	private final AtomicLong electionsHeld = new AtomicLong();
+	private final AtomicLong immediateElections = new AtomicLong();
+	private final AtomicLong lateNominations = new AtomicLong();
+	private final AtomicLong totalElectionLatencyNanos = new AtomicLong();
+	private final AtomicLong maxElectionLatencyNanos = new AtomicLong();
+
+	public interface ElectionPolicy {
+
+		ElectionCandidate electBestCandidate(List<ElectionCandidate> candidates);
+
+	}
+
+	public static class ElectionCandidate {
+
+		private final SipUserAgent userAgentCandidate;
+		private final RequestEvent requestEvent;
+
+		public ElectionCandidate(SipUserAgent userAgent, RequestEvent event) {
+			userAgentCandidate = userAgent;
+			requestEvent = event;
+		}
+
+		public SipUserAgent getUserAgentCandidate() {
+			return userAgentCandidate;
+		}
+
+		public RequestEvent getRequestEvent() {
+			return requestEvent;
+		}
+
+	}
+
+	public static class DefaultElectionPolicy implements ElectionPolicy {
+
+		private final CallRegistry callRegistry;
+		private volatile String preferredTransport;
+
+		public DefaultElectionPolicy(CallRegistry callRegistry) {
+			this.callRegistry = callRegistry;
+		}
+
+		public void setPreferredTransport(String transport) {
+			preferredTransport = transport;
+		}
+
+		@Override
+		public ElectionCandidate electBestCandidate(List<ElectionCandidate> candidates) {
+			List<ElectionCandidate> bestCandidates = new LinkedList<>();
+			int bestScore = Integer.MIN_VALUE;
+			for (ElectionCandidate candidate : candidates) {
+				int score = scoreCandidate(candidate);
+				if (score > bestScore) {
+					bestScore = score;
+					bestCandidates.clear();
+				}
+				if (score == bestScore) {
+					bestCandidates.add(candidate);
+				}
+			}
+			return bestCandidates.get(ThreadLocalRandom.current()
+				.nextInt(bestCandidates.size()));
+		}
+
+		private int scoreCandidate(ElectionCandidate candidate) {
+			SipUserAgent userAgent = candidate.getUserAgentCandidate();
+			int score = 0;
+			URI requestUri = candidate.getRequestEvent().getRequest().getRequestURI();
+			if (requestUri instanceof SipURI && userAgent.getLocalIp()
+					.equals(((SipURI) requestUri).getHost())) {
+				score += 1 << 20;
+			}
+			if (userAgent.getTransport().equalsIgnoreCase(preferredTransport)) {
+				score += 1 << 19;
+			}
+			int load = callRegistry.getActiveCallCount(userAgent);
+			score -= Math.min(load, (1 << 19) - 1);
+			return score;
+		}
+
+	}
+
+	private class Election {
+
+		private final String electionId;
+		private final long startedAt = System.nanoTime();
+		private final List<ElectionCandidate> candidates = new LinkedList<>();
+		private ScheduledTask deadline;
+
+		private Election(String electionId) {
+			this.electionId = electionId;
+		}
+
+	}
+
+	public IncomingRequestElection(SipuadaScheduler sipuadaScheduler, ElectionPolicy electionPolicy) {
+		policy = electionPolicy;
+		scheduler = sipuadaScheduler;
+	}
+
+	public void setElectionPolicy(ElectionPolicy electionPolicy) {
+		policy = electionPolicy;
+	}
+
+	public void setElectionWindowMillis(long windowMillis) {
+		electionWindowMillis = windowMillis;
+	}
+
+	public long getElectionWindowMillis() {
+		return electionWindowMillis;
+	}
+
+	public void nominate(SipUserAgent userAgent, String callId,
+			RequestEvent requestEvent, int eligibleUserAgents) {
+		Request request = requestEvent.getRequest();
+		String method = request.getMethod();
+		CSeqHeader cseqHeader = (CSeqHeader) request.getHeader(CSeqHeader.NAME);
+		final String electionCallId = callId;
+		final String electionId = String.format("(%s:%s:%d)", method, callId,
+			cseqHeader == null ? -1 : cseqHeader.getSeqNumber());
+		Election concludedElection = null;
+		synchronized (this) {
+			if (decidedElections.contains(electionId)) {
+				lateNominations.incrementAndGet();
+				logger.debug("{}:{}/{}'s UAS nominated itself too late to process an incoming {} request.",
+					userAgent.getLocalIp(), userAgent.getLocalPort(), userAgent.getTransport(), method);
+				return;
+			}
+			Election election = ongoingElections.get(electionId);
+			if (election == null) {
+				election = new Election(electionId);
+				ongoingElections.put(electionId, election);
+			}
+			election.candidates.add(new ElectionCandidate(userAgent, requestEvent));
+			if (election.candidates.size() >= eligibleUserAgents || electionWindowMillis <= 0) {
+				if (election.deadline != null) {
+					election.deadline.cancel();
+				}
+				concludedElection = markElectionDecided(election);
+				immediateElections.incrementAndGet();
+			} else if (election.deadline == null) {
+				election.deadline = scheduler.schedule(electionCallId, new Runnable() {
+
+					@Override
+					public void run() {
+						Election expiredElection;
+						synchronized (IncomingRequestElection.this) {
+							expiredElection = ongoingElections.get(electionId);
+							if (expiredElection == null) {
+								return;
+							}
+							markElectionDecided(expiredElection);
+						}
+						conclude(expiredElection);
+					}
+
+				}, electionWindowMillis);
+			}
+		}
+		if (concludedElection != null) {
+			conclude(concludedElection);
+		}
+	}
+
+	private Election markElectionDecided(final Election election) {
+		ongoingElections.remove(election.electionId);
+		decidedElections.add(election.electionId);
+		scheduler.schedule(null, new Runnable() {
+
+			@Override
+			public void run() {
+				synchronized (IncomingRequestElection.this) {
+					decidedElections.remove(election.electionId);
+				}
+			}
+
+		}, DECIDED_ELECTION_RETENTION_MILLIS);
+		return election;
+	}
+
+	private void conclude(Election election) {
+		ElectionCandidate bestCandidate = policy.electBestCandidate
+			(Collections.unmodifiableList(election.candidates));
+		long latency = System.nanoTime() - election.startedAt;
+		electionsHeld.incrementAndGet();
+		totalElectionLatencyNanos.addAndGet(latency);
+		long currentMax = maxElectionLatencyNanos.get();
+		while (latency > currentMax && !maxElectionLatencyNanos.compareAndSet(currentMax, latency)) {
+			currentMax = maxElectionLatencyNanos.get();
+		}
+		SipUserAgent userAgent = bestCandidate.getUserAgentCandidate();
+		RequestEvent requestEvent = bestCandidate.getRequestEvent();
+		logger.debug("{}:{}/{}'s UAS was elected among {} candidate(s) in {} us to process an incoming {} request!",
+			userAgent.getLocalIp(), userAgent.getLocalPort(), userAgent.getTransport(),
+			election.candidates.size(), TimeUnit.NANOSECONDS.toMicros(latency),
+			requestEvent.getRequest().getMethod());
+		userAgent.doProcessRequest(requestEvent);
+	}
+
+	public long getElectionsHeld() {
+		return electionsHeld.get();
+	}
+
+	public long getImmediateElections() {
+		return immediateElections.get();
+	}
+
+	public long getLateNominations() {
+		return lateNominations.get();
+	}
+
+	public double getAverageElectionLatencyMillis() {
+		long elections = electionsHeld.get();
+		if (elections == 0) {
+			return 0;
+		}
+		return totalElectionLatencyNanos.get() / (elections * 1000000.0);
+	}
+
+	public double getMaxElectionLatencyMillis() {
+		return maxElectionLatencyNanos.get() / 1000000.0;
+	}
+
+	public synchronized void shutdown() {
+		for (Election election : ongoingElections.values()) {
+			if (election.deadline != null) {
+				election.deadline.cancel();
+			}
+		}
+		ongoingElections.clear();
+		decidedElections.clear();
+	}
+
+}
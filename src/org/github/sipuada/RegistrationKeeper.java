@@ -0,0 +1,202 @@
+package org.github.sipuada;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.github.sipuada.SipuadaScheduler.ScheduledTask;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+public class RegistrationKeeper {
+
+	public static final double DEFAULT_REFRESH_FRACTION = 0.8;
+	public static final double DEFAULT_JITTER_FRACTION = 0.1;
+	public static final int DEFAULT_MAX_REFRESHES_PER_SECOND = 50;
+	public static final int MIN_RETRY_DELAY_SECONDS = 30;
+	public static final int MAX_RETRY_DELAY_SECONDS = 1800;
+
+	private final Logger logger = LoggerFactory.getLogger(RegistrationKeeper.class);
+
+	private final SipuadaScheduler scheduler;
+	private volatile double refreshFraction = DEFAULT_REFRESH_FRACTION;
+	private volatile double jitterFraction = DEFAULT_JITTER_FRACTION;
+	private volatile long refreshIntervalNanos;
+	private final AtomicLong nextRefreshSlot = new AtomicLong(System.nanoTime());
+	private final ConcurrentMap<String, Registration> identityToRegistration = new ConcurrentHashMap<>();
+
+	public interface Refresher {
+
+		boolean refreshRegistration(int expires);
+
+	}
+
+	private class Registration implements Runnable {
+
+		private final String identity;
+		private final Refresher refresher;
+		private final int expires;
+		private final int failures;
+		private final long nextRefreshAt;
+		private ScheduledTask task;
+		private volatile boolean slotReserved;
+
+		private Registration(String identity, Refresher refresher,
+				int expires, int failures, long delayMillis) {
+			this.identity = identity;
+			this.refresher = refresher;
+			this.expires = expires;
+			this.failures = failures;
+			this.nextRefreshAt = System.currentTimeMillis() + delayMillis;
+		}
+
+		@Override
+		public void run() {
+			if (identityToRegistration.get(identity) != this) {
+				return;
+			}
+			if (!slotReserved) {
+				long slotDelayNanos = acquireRefreshSlot();
+				if (slotDelayNanos > 0) {
+					//Too many refreshes due right now: wait for our turn.
+					slotReserved = true;
+					reschedule(this, TimeUnit.NANOSECONDS.toMillis(slotDelayNanos));
+					return;
+				}
+			}
+			slotReserved = false;
+			logger.debug("Refreshing registration of {} ({}s).", identity, expires);
+			boolean couldDispatchOperation = false;
+			try {
+				couldDispatchOperation = refresher.refreshRegistration(expires);
+			} catch (Throwable unexpectedException) {
+				logger.error("Registration refresh of {} crashed.", identity, unexpectedException);
+			}
+			if (!couldDispatchOperation) {
+				refreshFailed(identity, expires);
+			}
+		}
+
+	}
+
+	public RegistrationKeeper(SipuadaScheduler sipuadaScheduler) {
+		scheduler = sipuadaScheduler;
+		setMaxRefreshesPerSecond(DEFAULT_MAX_REFRESHES_PER_SECOND);
+	}
+
+	public void setRefreshFraction(double fraction) {
+		if (fraction <= 0 || fraction >= 1) {
+			throw new IllegalArgumentException("Refresh fraction must be within (0, 1).");
+		}
+		refreshFraction = fraction;
+	}
+
+	public void setJitterFraction(double fraction) {
+		if (fraction < 0 || fraction >= 1) {
+			throw new IllegalArgumentException("Jitter fraction must be within [0, 1).");
+		}
+		jitterFraction = fraction;
+	}
+
+	public void setMaxRefreshesPerSecond(int maxRefreshesPerSecond) {
+		refreshIntervalNanos = maxRefreshesPerSecond <= 0 ? 0
+			: TimeUnit.SECONDS.toNanos(1) / maxRefreshesPerSecond;
+	}
+
+	public void registrationGranted(String identity, int grantedExpires, Refresher refresher) {
+		if (grantedExpires <= 0) {
+			cancel(identity);
+			return;
+		}
+		double fraction = refreshFraction;
+		double jitter = jitterFraction * (ThreadLocalRandom.current().nextDouble() * 2 - 1);
+		double refreshAt = Math.min(Math.max(fraction + jitter, 0.1), 0.95);
+		long delayMillis = (long) (grantedExpires * refreshAt * 1000);
+		schedule(new Registration(identity, refresher, grantedExpires, 0, delayMillis));
+	}
+
+	public void refreshFailed(String identity, int expires) {
+		Registration failedRegistration = identityToRegistration.get(identity);
+		if (failedRegistration == null) {
+			return;
+		}
+		int failures = failedRegistration.failures + 1;
+		long retryDelaySeconds = Math.min((long) MIN_RETRY_DELAY_SECONDS << Math.min(failures - 1, 16),
+			MAX_RETRY_DELAY_SECONDS);
+		long delayMillis = (long) (retryDelaySeconds * 1000
+			* (1 + jitterFraction * ThreadLocalRandom.current().nextDouble()));
+		logger.info("Registration refresh of {} failed ({} in a row); retrying in {} ms.",
+			identity, failures, delayMillis);
+		schedule(new Registration(identity, failedRegistration.refresher,
+			expires, failures, delayMillis));
+	}
+
+	public void cancel(String identity) {
+		Registration registration = identityToRegistration.remove(identity);
+		if (registration != null) {
+			synchronized (registration) {
+				if (registration.task != null) {
+					registration.task.cancel();
+				}
+			}
+		}
+	}
+
+	public Map<String, Long> getNextRefreshTimes() {
+		Map<String, Long> nextRefreshTimes = new HashMap<>();
+		for (Registration registration : identityToRegistration.values()) {
+			nextRefreshTimes.put(registration.identity, registration.nextRefreshAt);
+		}
+		return Collections.unmodifiableMap(nextRefreshTimes);
+	}
+
+	public int getKeptRegistrationsCount() {
+		return identityToRegistration.size();
+	}
+
+	public void shutdown() {
+		for (String identity : identityToRegistration.keySet()) {
+			cancel(identity);
+		}
+	}
+
+	private void schedule(Registration registration) {
+		Registration previousRegistration = identityToRegistration.put(registration.identity,
+			registration);
+		if (previousRegistration != null && previousRegistration != registration) {
+			synchronized (previousRegistration) {
+				if (previousRegistration.task != null) {
+					previousRegistration.task.cancel();
+				}
+			}
+		}
+		reschedule(registration, registration.nextRefreshAt - System.currentTimeMillis());
+	}
+
+	private void reschedule(Registration registration, long delayMillis) {
+		synchronized (registration) {
+			registration.task = scheduler.schedule(null, registration, delayMillis);
+		}
+	}
+
+	private long acquireRefreshSlot() {
+		long interval = refreshIntervalNanos;
+		if (interval == 0) {
+			return 0;
+		}
+		while (true) {
+			long now = System.nanoTime();
+			long slot = nextRefreshSlot.get();
+			long grantedSlot = Math.max(slot, now);
+			if (nextRefreshSlot.compareAndSet(slot, grantedSlot + interval)) {
+				return grantedSlot - now;
+			}
+		}
+	}
+
+}
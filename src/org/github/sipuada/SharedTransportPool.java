@@ -0,0 +1,453 @@
+package org.github.sipuada;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TooManyListenersException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.github.sipuada.exceptions.SipuadaException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import android.gov.nist.javax.sip.SipStackExt;
+import android.gov.nist.javax.sip.Utils;
+import android.javax.sip.ClientTransaction;
+import android.javax.sip.Dialog;
+import android.javax.sip.DialogTerminatedEvent;
+import android.javax.sip.IOExceptionEvent;
+import android.javax.sip.InvalidArgumentException;
+import android.javax.sip.ListeningPoint;
+import android.javax.sip.ObjectInUseException;
+import android.javax.sip.RequestEvent;
+import android.javax.sip.ResponseEvent;
+import android.javax.sip.ServerTransaction;
+import android.javax.sip.SipException;
+import android.javax.sip.SipFactory;
+import android.javax.sip.SipListener;
+import android.javax.sip.SipProvider;
+import android.javax.sip.SipStack;
+import android.javax.sip.TimeoutEvent;
+import android.javax.sip.TransactionTerminatedEvent;
+import android.javax.sip.TransportNotSupportedException;
+import android.javax.sip.address.SipURI;
+import android.javax.sip.address.URI;
+import android.javax.sip.header.FromHeader;
+import android.javax.sip.header.ToHeader;
+import android.javax.sip.message.Request;
+
+public class SharedTransportPool {
+
+	private static final String STACK_NAME_PREFIX = "SipuadaSharedTransportv0";
+
+	private final Logger logger = LoggerFactory.getLogger(SharedTransportPool.class);
+
+	private final ConcurrentMap<String, SharedTransport> addressToTransport = new ConcurrentHashMap<>();
+	private final SipuadaScheduler scheduler;
+	private final ExecutorService eventDispatcher;
+	private final RegistrationKeeper registrationKeeper;
+
+	private class SharedTransport implements SipListener {
+
+		private final String address;
+		private final SipStack stack;
+		private final ListeningPoint listeningPoint;
+		private final SipProvider provider;
+		private final ConcurrentMap<String, SipUserAgent> identityToUserAgent = new ConcurrentHashMap<>();
+		private final ConcurrentMap<String, Set<SipUserAgent>> usernameToUserAgents = new ConcurrentHashMap<>();
+		private int references;
+
+		private SharedTransport(String address, SipStack stack, ListeningPoint listeningPoint,
+				SipProvider provider) {
+			this.address = address;
+			this.stack = stack;
+			this.listeningPoint = listeningPoint;
+			this.provider = provider;
+		}
+
+		@Override
+		public void processRequest(RequestEvent requestEvent) {
+			Request request = requestEvent.getRequest();
+			ToHeader toHeader = (ToHeader) request.getHeader(ToHeader.NAME);
+			SipUserAgent userAgent = findUserAgent(toHeader == null ? null
+				: toHeader.getAddress().getURI(), request.getRequestURI());
+			if (userAgent == null) {
+				logger.warn("{}: no identity matches incoming {} request to {}; discarding it.",
+					address, request.getMethod(), request.getRequestURI());
+				return;
+			}
+			userAgent.processRequest(requestEvent);
+		}
+
+		@Override
+		public void processResponse(ResponseEvent responseEvent) {
+			FromHeader fromHeader = (FromHeader) responseEvent.getResponse()
+				.getHeader(FromHeader.NAME);
+			SipUserAgent userAgent = findUserAgent(fromHeader == null ? null
+				: fromHeader.getAddress().getURI(), null);
+			if (userAgent == null) {
+				logger.warn("{}: no identity matches incoming response {}; discarding it.",
+					address, responseEvent.getResponse().getStatusCode());
+				return;
+			}
+			userAgent.processResponse(responseEvent);
+		}
+
+		@Override
+		public void processTimeout(TimeoutEvent timeoutEvent) {
+			SipUserAgent userAgent = timeoutEvent.isServerTransaction()
+				? findUserAgent(timeoutEvent.getServerTransaction())
+				: findUserAgent(timeoutEvent.getClientTransaction());
+			if (userAgent != null) {
+				userAgent.processTimeout(timeoutEvent);
+			}
+		}
+
+		@Override
+		public void processIOException(IOExceptionEvent exceptionEvent) {
+			Object source = exceptionEvent.getSource();
+			SipUserAgent userAgent = null;
+			if (source instanceof ClientTransaction) {
+				userAgent = findUserAgent((ClientTransaction) source);
+			} else if (source instanceof ServerTransaction) {
+				userAgent = findUserAgent((ServerTransaction) source);
+			} else if (source instanceof Dialog && ((Dialog) source).getLocalParty() != null) {
+				userAgent = findUserAgent(((Dialog) source).getLocalParty().getURI(), null);
+			}
+			if (userAgent != null) {
+				userAgent.processIOException(exceptionEvent);
+				return;
+			}
+			//Not tied to a transaction: it concerns whoever talks to that peer.
+			boolean delivered = false;
+			for (SipUserAgent peerUserAgent : identityToUserAgent.values()) {
+				if (isPeerOf(peerUserAgent, exceptionEvent.getHost(), exceptionEvent.getPort())) {
+					peerUserAgent.processIOException(exceptionEvent);
+					delivered = true;
+				}
+			}
+			if (!delivered) {
+				logger.warn("{}: transport error with {}:{} concerns no identity; discarding it.",
+					address, exceptionEvent.getHost(), exceptionEvent.getPort());
+			}
+		}
+
+		@Override
+		public void processTransactionTerminated(TransactionTerminatedEvent transactionTerminatedEvent) {
+			SipUserAgent userAgent = transactionTerminatedEvent.isServerTransaction()
+				? findUserAgent(transactionTerminatedEvent.getServerTransaction())
+				: findUserAgent(transactionTerminatedEvent.getClientTransaction());
+			if (userAgent != null) {
+				userAgent.processTransactionTerminated(transactionTerminatedEvent);
+			}
+		}
+
+		@Override
+		public void processDialogTerminated(DialogTerminatedEvent dialogTerminatedEvent) {
+			Dialog dialog = dialogTerminatedEvent.getDialog();
+			SipUserAgent userAgent = dialog == null || dialog.getLocalParty() == null ? null
+				: findUserAgent(dialog.getLocalParty().getURI(), null);
+			if (userAgent != null) {
+				userAgent.processDialogTerminated(dialogTerminatedEvent);
+			}
+		}
+
+		private SipUserAgent findUserAgent(ServerTransaction serverTransaction) {
+			if (serverTransaction == null || serverTransaction.getRequest() == null) {
+				return null;
+			}
+			Request request = serverTransaction.getRequest();
+			ToHeader toHeader = (ToHeader) request.getHeader(ToHeader.NAME);
+			return findUserAgent(toHeader == null ? null : toHeader.getAddress().getURI(),
+				request.getRequestURI());
+		}
+
+		private SipUserAgent findUserAgent(ClientTransaction clientTransaction) {
+			if (clientTransaction == null || clientTransaction.getRequest() == null) {
+				return null;
+			}
+			FromHeader fromHeader = (FromHeader) clientTransaction.getRequest()
+				.getHeader(FromHeader.NAME);
+			return findUserAgent(fromHeader == null ? null : fromHeader.getAddress().getURI(), null);
+		}
+
+		private SipUserAgent findUserAgent(URI identityUri, URI requestUri) {
+			if (identityUri instanceof SipURI) {
+				SipURI sipUri = (SipURI) identityUri;
+				SipUserAgent userAgent = identityToUserAgent
+					.get(identityOf(sipUri.getUser(), sipUri.getHost()));
+				if (userAgent != null) {
+					return userAgent;
+				}
+			}
+			//Requests within a dialog target our Contact, which carries
+			//the username but the local address instead of the domain.
+			String domain = identityUri instanceof SipURI ? ((SipURI) identityUri).getHost() : null;
+			if (requestUri instanceof SipURI && ((SipURI) requestUri).getUser() != null) {
+				SipUserAgent userAgent = findUserAgent(((SipURI) requestUri).getUser(), domain);
+				if (userAgent != null) {
+					return userAgent;
+				}
+			}
+			if (identityUri instanceof SipURI && ((SipURI) identityUri).getUser() != null) {
+				return findUserAgent(((SipURI) identityUri).getUser(), domain);
+			}
+			return null;
+		}
+
+		/*
+		 * The user agent with that username, as long as there is a single one
+		 * or a single one whose domain is the one given.
+		 */
+		private SipUserAgent findUserAgent(String username, String domain) {
+			Set<SipUserAgent> userAgents = usernameToUserAgents.get(username.toLowerCase());
+			if (userAgents == null) {
+				return null;
+			}
+			SipUserAgent match = null;
+			synchronized (userAgents) {
+				if (userAgents.size() == 1) {
+					return userAgents.iterator().next();
+				}
+				for (SipUserAgent userAgent : userAgents) {
+					if (domain != null && domain.equalsIgnoreCase(hostOf(userAgent.getPrimaryHost()))) {
+						if (match != null) {
+							match = null;
+							break;
+						}
+						match = userAgent;
+					}
+				}
+			}
+			if (match == null && !userAgents.isEmpty()) {
+				logger.warn("{}: username {} is shared by several identities; cannot tell which"
+					+ " one {} is meant for.", address, username, domain);
+			}
+			return match;
+		}
+
+	}
+
+	public SharedTransportPool() {
+		this(new SipuadaScheduler(), Math.max(2, Runtime.getRuntime().availableProcessors()));
+	}
+
+	public SharedTransportPool(SipuadaScheduler sipuadaScheduler, int eventDispatcherThreads) {
+		scheduler = sipuadaScheduler;
+		registrationKeeper = new RegistrationKeeper(scheduler);
+		eventDispatcher = Executors.newFixedThreadPool(eventDispatcherThreads, new ThreadFactory() {
+
+			private final AtomicInteger index = new AtomicInteger(1);
+
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "SipuadaSharedEventDispatcher-"
+					+ index.getAndIncrement());
+				thread.setDaemon(true);
+				return thread;
+			}
+
+		});
+	}
+
+	public SipuadaScheduler getScheduler() {
+		return scheduler;
+	}
+
+	public ExecutorService getEventDispatcher() {
+		return eventDispatcher;
+	}
+
+	public RegistrationKeeper getRegistrationKeeper() {
+		return registrationKeeper;
+	}
+
+	public synchronized ListeningPoint acquireListeningPoint(String localIp, int localPort,
+			String transport) throws TransportNotSupportedException, InvalidArgumentException {
+		String address = addressOf(localIp, localPort, transport);
+		SharedTransport sharedTransport = addressToTransport.get(address);
+		if (sharedTransport == null) {
+			sharedTransport = createSharedTransport(address, localIp, localPort, transport);
+			addressToTransport.put(address, sharedTransport);
+		}
+		sharedTransport.references++;
+		return sharedTransport.listeningPoint;
+	}
+
+	public SipStack getSipStack(ListeningPoint listeningPoint) {
+		SharedTransport sharedTransport = addressToTransport.get(addressOf(listeningPoint));
+		return sharedTransport == null ? null : sharedTransport.stack;
+	}
+
+	public SipProvider getSipProvider(ListeningPoint listeningPoint) {
+		SharedTransport sharedTransport = addressToTransport.get(addressOf(listeningPoint));
+		return sharedTransport == null ? null : sharedTransport.provider;
+	}
+
+	/**
+	 * Binds the user agent to the shared transport of its listening point, which must
+	 * have been acquired for it. Should that fail, the listening point is released.
+	 */
+	public synchronized void attach(SipUserAgent userAgent) {
+		String address = addressOf(userAgent);
+		SharedTransport sharedTransport = addressToTransport.get(address);
+		if (sharedTransport == null) {
+			throw new SipuadaException("No shared transport bound to "
+				+ address + ".", null);
+		}
+		String identity = identityOf(userAgent.getUsername(), userAgent.getPrimaryHost());
+		if (sharedTransport.identityToUserAgent.putIfAbsent(identity, userAgent) != null) {
+			release(address, sharedTransport);
+			throw new SipuadaException("Identity " + identity + " is already bound to "
+				+ sharedTransport.address + ".", null);
+		}
+		String username = userAgent.getUsername().toLowerCase();
+		Set<SipUserAgent> userAgents = sharedTransport.usernameToUserAgents.get(username);
+		if (userAgents == null) {
+			userAgents = new HashSet<>();
+			sharedTransport.usernameToUserAgents.put(username, userAgents);
+		}
+		synchronized (userAgents) {
+			userAgents.add(userAgent);
+		}
+	}
+
+	public synchronized void detach(SipUserAgent userAgent) {
+		String address = addressOf(userAgent);
+		SharedTransport sharedTransport = addressToTransport.get(address);
+		if (sharedTransport == null) {
+			return;
+		}
+		sharedTransport.identityToUserAgent.remove(identityOf(userAgent.getUsername(),
+			userAgent.getPrimaryHost()), userAgent);
+		String username = userAgent.getUsername().toLowerCase();
+		Set<SipUserAgent> userAgents = sharedTransport.usernameToUserAgents.get(username);
+		if (userAgents != null) {
+			synchronized (userAgents) {
+				userAgents.remove(userAgent);
+				if (userAgents.isEmpty()) {
+					sharedTransport.usernameToUserAgents.remove(username);
+				}
+			}
+		}
+		release(address, sharedTransport);
+	}
+
+	/**
+	 * Gives back a listening point acquired for a user agent that could not be attached.
+	 */
+	public synchronized void releaseListeningPoint(ListeningPoint listeningPoint) {
+		String address = addressOf(listeningPoint);
+		SharedTransport sharedTransport = addressToTransport.get(address);
+		if (sharedTransport != null) {
+			release(address, sharedTransport);
+		}
+	}
+
+	private void release(String address, SharedTransport sharedTransport) {
+		if (--sharedTransport.references <= 0) {
+			addressToTransport.remove(address);
+			destroySharedTransport(sharedTransport);
+		}
+	}
+
+	public int getSharedTransportsCount() {
+		return addressToTransport.size();
+	}
+
+	public Set<String> getSharedAddresses() {
+		return Collections.unmodifiableSet(addressToTransport.keySet());
+	}
+
+	public int getAttachedIdentitiesCount() {
+		int identities = 0;
+		for (SharedTransport sharedTransport : addressToTransport.values()) {
+			identities += sharedTransport.identityToUserAgent.size();
+		}
+		return identities;
+	}
+
+	public synchronized void shutdown() {
+		for (SharedTransport sharedTransport : addressToTransport.values()) {
+			destroySharedTransport(sharedTransport);
+		}
+		addressToTransport.clear();
+		registrationKeeper.shutdown();
+		scheduler.shutdown();
+		eventDispatcher.shutdown();
+	}
+
+	private SharedTransport createSharedTransport(String address, String localIp, int localPort,
+			String transport) throws TransportNotSupportedException, InvalidArgumentException {
+		Properties properties = new Properties();
+		properties.setProperty("android.javax.sip.STACK_NAME", String.format("%s_%s",
+			STACK_NAME_PREFIX, Utils.getInstance().generateTag()));
+		try {
+			SipStack stack = SipFactory.getInstance().createSipStack(properties);
+			((SipStackExt) stack).setAddressResolver(Sipuada.ADDRESS_RESOLVER);
+			ListeningPoint listeningPoint = stack.createListeningPoint(localIp, localPort, transport);
+			SipProvider provider = stack.createSipProvider(listeningPoint);
+			SharedTransport sharedTransport = new SharedTransport(address, stack,
+				listeningPoint, provider);
+			provider.addSipListener(sharedTransport);
+			stack.start();
+			logger.info("Shared transport created at {}.", address);
+			return sharedTransport;
+		} catch (TooManyListenersException | SipException unexpectedException) {
+			logger.error("Unexpected problem: {}.", unexpectedException.getMessage(),
+					unexpectedException.getCause());
+			throw new SipuadaException("Unexpected problem: "
+					+ unexpectedException.getMessage(), unexpectedException);
+		}
+	}
+
+	private void destroySharedTransport(SharedTransport sharedTransport) {
+		try {
+			sharedTransport.stack.deleteSipProvider(sharedTransport.provider);
+			sharedTransport.stack.deleteListeningPoint(sharedTransport.listeningPoint);
+		} catch (ObjectInUseException ignore) {
+			ignore.printStackTrace();
+		}
+		sharedTransport.stack.stop();
+		logger.info("Shared transport at {} destroyed.", sharedTransport.address);
+	}
+
+	private static String addressOf(String localIp, int localPort, String transport) {
+		return String.format("%s:%d/%s", localIp, localPort, transport.toUpperCase());
+	}
+
+	private static String addressOf(ListeningPoint listeningPoint) {
+		return addressOf(listeningPoint.getIPAddress(), listeningPoint.getPort(),
+			listeningPoint.getTransport());
+	}
+
+	private static String addressOf(SipUserAgent userAgent) {
+		return addressOf(userAgent.getLocalIp(), userAgent.getLocalPort(), userAgent.getTransport());
+	}
+
+	private static boolean isPeerOf(SipUserAgent userAgent, String peerHost, int peerPort) {
+		String primaryHost = userAgent.getPrimaryHost();
+		if (peerHost == null || !peerHost.equalsIgnoreCase(hostOf(primaryHost))) {
+			return false;
+		}
+		int separator = primaryHost.lastIndexOf(':');
+		return separator < 0 || peerPort <= 0
+			|| primaryHost.substring(separator + 1).equals(Integer.toString(peerPort));
+	}
+
+	private static String hostOf(String primaryHost) {
+		int separator = primaryHost.lastIndexOf(':');
+		return separator < 0 ? primaryHost : primaryHost.substring(0, separator);
+	}
+
+	private static String identityOf(String username, String primaryHost) {
+		return String.format("%s@%s", username, primaryHost).toLowerCase();
+	}
+
+}
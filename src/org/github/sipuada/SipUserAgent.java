@@ -1,22 +1,18 @@
 package org.github.sipuada;
 
 import java.util.Collections;
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Iterator;
-import java.util.LinkedList;
-import java.util.List;
 import java.util.Locale;
 import java.util.Map;
-import java.util.Set;
-import java.util.Timer;
-import java.util.TimerTask;
 import java.util.TooManyListenersException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
 
+import org.github.sipuada.CallRegistry.CallRecord;
 import org.github.sipuada.Constants.RequestMethod;
 import org.github.sipuada.SipuadaApi.BasicRequestCallback;
 import org.github.sipuada.SipuadaApi.CallInvitationCallback;
 import org.github.sipuada.SipuadaApi.SipuadaListener;
+import org.github.sipuada.SipuadaScheduler.ScheduledTask;
 import org.github.sipuada.events.CallInvitationAccepted;
 import org.github.sipuada.events.CallInvitationArrived;
 import org.github.sipuada.events.CallInvitationCanceled;
@@ -42,13 +38,13 @@ import org.github.sipuada.plugins.SipuadaPlugin;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.google.common.eventbus.DeadEvent;
 import com.google.common.eventbus.EventBus;
 import com.google.common.eventbus.Subscribe;
 
 import android.gov.nist.javax.sip.Utils;
 import android.javax.sip.ClientTransaction;
 import android.javax.sip.Dialog;
+import android.javax.sip.DialogState;
 import android.javax.sip.DialogTerminatedEvent;
 import android.javax.sip.IOExceptionEvent;
 import android.javax.sip.PeerUnavailableException;
@@ -60,6 +56,7 @@ import android.javax.sip.SipListener;
 import android.javax.sip.SipProvider;
 import android.javax.sip.Timeout;
 import android.javax.sip.TimeoutEvent;
+import android.javax.sip.Transaction;
 import android.javax.sip.TransactionTerminatedEvent;
 import android.javax.sip.address.AddressFactory;
 import android.javax.sip.address.URI;
@@ -86,17 +83,9 @@ public class SipUserAgent implements SipListener {
 	private final Logger logger = LoggerFactory.getLogger(SipUserAgent.class);
 
 	private final EventBus sipuadaEventBus;
-	private final EventBus internalEventBus = new EventBus();
-	private final Map<String, Object> eventBusSubscribers = Collections
-			.synchronizedMap(new HashMap<String, Object>());
-	private final Map<String, String> callIdToEventBusSubscriberId =
-			Collections.synchronizedMap(new HashMap<String, String>());
-	private final Map<String, List<ClientTransaction>> cancelableInviteOperations =
-			Collections.synchronizedMap(new HashMap<String, List<ClientTransaction>>());
-	private final Map<String, List<ServerTransaction>> answerableInviteOperations =
-			Collections.synchronizedMap(new HashMap<String, List<ServerTransaction>>());
-	private final Map<String, List<Dialog>> establishedCalls =
-			Collections.synchronizedMap(new HashMap<String, List<Dialog>>());
+	private final SipuadaScheduler scheduler;
+	private final CallEventRouter internalEventBus;
+	private final Map<String, Object> eventBusSubscribers = new ConcurrentHashMap<>();
 
 	private final SipProvider provider;
 	private final SipuadaListener listener;
@@ -111,43 +100,58 @@ public class SipUserAgent implements SipListener {
 	private final int localPort;
 	private final String transport;
 
-	private final Map<String, SipUserAgent> callIdToActiveUserAgent;
-	private final Map<SipUserAgent, Set<String>> activeUserAgentCallIds;
+	private final CallRegistry callRegistry;
 
 	private final Map<String, CallIdHeader> registerCallIds;
 	private final boolean intolerantModeEnabled;
 	private final int maxTolerableTimeout = 10;
 	private final int minTolerableTimeout = 2;
 	private float currentTolerableTimeout = (maxTolerableTimeout + minTolerableTimeout) / 2;
+	private volatile Map<String, Integer> registeredContactExpires = Collections.emptyMap();
 
-	public SipUserAgent(String name, EventBus eventBus, SipProvider sipProvider, SipuadaListener sipuadaListener,
+	public SipUserAgent(String name, EventBus eventBus, SipuadaScheduler sipuadaScheduler,
+			Executor eventDispatcher, SipProvider sipProvider, SipuadaListener sipuadaListener,
 			Map<RequestMethod, SipuadaPlugin> plugins, String username, String primaryHost, String password,
-			String localIp, String localPort, String transport, Map<String, SipUserAgent> callIdToActiveUserAgent,
-			Map<SipUserAgent, Set<String>> activeUserAgentCallIds, Map<String, CallIdHeader> globalRegisterCallIds,
+			String localIp, String localPort, String transport, CallRegistry callRegistry,
+			Map<String, CallIdHeader> globalRegisterCallIds,
 			Map<URI, Long> globalRegisterCSeqs, boolean intolerantModeIsEnabled) {
+		this(name, eventBus, sipuadaScheduler, eventDispatcher, sipProvider, sipuadaListener, plugins,
+			username, primaryHost, password, localIp, localPort, transport, callRegistry,
+			globalRegisterCallIds, globalRegisterCSeqs, intolerantModeIsEnabled, true);
+	}
+
+	public SipUserAgent(String name, EventBus eventBus, SipuadaScheduler sipuadaScheduler,
+			Executor eventDispatcher, SipProvider sipProvider, SipuadaListener sipuadaListener,
+			Map<RequestMethod, SipuadaPlugin> plugins, String username, String primaryHost, String password,
+			String localIp, String localPort, String transport, CallRegistry callRegistry,
+			Map<String, CallIdHeader> globalRegisterCallIds, Map<URI, Long> globalRegisterCSeqs,
+			boolean intolerantModeIsEnabled, boolean listenToProvider) {
 		stackName = name;
 		sipuadaEventBus = eventBus;
+		scheduler = sipuadaScheduler;
+		internalEventBus = new CallEventRouter(name, eventDispatcher);
 		provider = sipProvider;
 		listener = sipuadaListener;
 		registerCallIds = globalRegisterCallIds;
 		intolerantModeEnabled = intolerantModeIsEnabled;
-		internalEventBus.register(this);
 		try {
 			SipFactory factory = SipFactory.getInstance();
 			MessageFactory messenger = factory.createMessageFactory();
 			HeaderFactory headerMaker = factory.createHeaderFactory();
 			AddressFactory addressMaker = factory.createAddressFactory();
-			uac = new SipUserAgentClient(stackName, internalEventBus, provider, plugins, messenger, headerMaker, addressMaker,
+			uac = new SipUserAgentClient(stackName, internalEventBus, scheduler, provider, plugins, messenger, headerMaker, addressMaker,
 					globalRegisterCSeqs, username, primaryHost, password, localIp, localPort, transport);
-			uas = new SipUserAgentServer(stackName, internalEventBus, provider, plugins, messenger, headerMaker, addressMaker,
+			uas = new SipUserAgentServer(stackName, internalEventBus, scheduler, provider, plugins, messenger, headerMaker, addressMaker,
 					username, localIp, localPort, transport);
 		} catch (PeerUnavailableException ignore){
 			ignore.printStackTrace();
 		}
-		try {
-			provider.addSipListener(this);
-		} catch (TooManyListenersException ignore) {
-			ignore.printStackTrace();
+		if (listenToProvider) {
+			try {
+				provider.addSipListener(this);
+			} catch (TooManyListenersException ignore) {
+				ignore.printStackTrace();
+			}
 		}
 		registeredPlugins = plugins;
 		this.username = username;
@@ -155,8 +159,7 @@ public class SipUserAgent implements SipListener {
 		this.localIp = localIp;
 		this.localPort = Integer.parseInt(localPort);
 		this.transport = transport;
-		this.callIdToActiveUserAgent = callIdToActiveUserAgent;
-		this.activeUserAgentCallIds = activeUserAgentCallIds;
+		this.callRegistry = callRegistry;
 		initSipuadaListener();
 	}
 
@@ -164,6 +167,22 @@ public class SipUserAgent implements SipListener {
 		return provider;
 	}
 
+	public CallEventRouter getEventRouter() {
+		return internalEventBus;
+	}
+
+	protected String getUsername() {
+		return username;
+	}
+
+	protected String getPrimaryHost() {
+		return primaryHost;
+	}
+
+	public Map<String, Integer> getRegisteredContactExpires() {
+		return registeredContactExpires;
+	}
+
 	protected String getLocalIp() {
 		return localIp;
 	}
@@ -181,7 +200,7 @@ public class SipUserAgent implements SipListener {
 		Request request = requestEvent.getRequest();
 		CallIdHeader callIdHeader = ((CallIdHeader) request.getHeader(CallIdHeader.NAME));
 		String callId = callIdHeader.getCallId();
-		if (callIdToActiveUserAgent.containsKey(callId) && callIdToActiveUserAgent.get(callId) == this) {
+		if (callRegistry.getUserAgent(callId) == this) {
 			logger.debug("{}:{}/{}'s UAS will avoid election and process an incoming {} request right away.",
 					localIp, localPort, transport, requestEvent.getRequest().getMethod());
 			doProcessRequest(requestEvent);
@@ -233,12 +252,32 @@ public class SipUserAgent implements SipListener {
 //				.isServerTransaction() ? transactionTerminatedEvent
 //						.getServerTransaction() : transactionTerminatedEvent
 //						.getClientTransaction()));
+		Transaction transaction = transactionTerminatedEvent.isServerTransaction()
+			? transactionTerminatedEvent.getServerTransaction()
+			: transactionTerminatedEvent.getClientTransaction();
+		Request request = transaction.getRequest();
+		Dialog dialog = transaction.getDialog();
+		if (request != null && request.getMethod().equals(Request.INVITE)
+				&& (dialog == null || dialog.getState() != DialogState.CONFIRMED)) {
+			// The call failed, its offer/answer exchange is over
+			expireOfferAnswerExchange(((CallIdHeader) request
+				.getHeader(CallIdHeader.NAME)).getCallId());
+		}
 	}
 
 	@Override
 	public void processDialogTerminated(DialogTerminatedEvent dialogTerminatedEvent) {
 //		logger.warn("<DIALOG terminated event>: " + dialogTerminatedEvent
 //				.getDialog());
+		Dialog dialog = dialogTerminatedEvent.getDialog();
+		if (dialog != null && dialog.getCallId() != null) {
+			expireOfferAnswerExchange(dialog.getCallId().getCallId());
+		}
+	}
+
+	private void expireOfferAnswerExchange(String callId) {
+		uac.expireOfferAnswerExchange(callId);
+		uas.expireOfferAnswerExchange(callId);
 	}
 
 	private void initSipuadaListener() {
@@ -264,7 +303,7 @@ public class SipUserAgent implements SipListener {
 					}
 
 				};
-				internalEventBus.register(inviteCancelerEventBusSubscriber);
+				internalEventBus.register(callId, inviteCancelerEventBusSubscriber);
 				boolean currentlyBusy = listener.onCallInvitationArrived(username, primaryHost, callId,
 					event.getRemoteUser(), event.getRemoteDomain(), event.shouldExpectEarlyMedia());
 				if (currentlyBusy) {
@@ -363,7 +402,7 @@ public class SipUserAgent implements SipListener {
 					}
 
 				};
-				internalEventBus.register(earlyMediaTearDownEventSubscriber);
+				internalEventBus.register(callId, earlyMediaTearDownEventSubscriber);
 				try {
 					boolean sessionProperlySetup = SessionManager.performSessionSetup
 						(sessionPlugin, callId, SessionType.EARLY, SipUserAgent.this);
@@ -383,73 +422,23 @@ public class SipUserAgent implements SipListener {
 
 	private void inviteOperationIsAnswerable(String eventBusSubscriberId,
 			String callId, ServerTransaction serverTransaction) {
-		callIdToActiveUserAgent.put(callId, this);
-		synchronized (activeUserAgentCallIds) {
-			if (!activeUserAgentCallIds.containsKey(this)) {
-				activeUserAgentCallIds.put(this, Collections
-						.synchronizedSet(new HashSet<String>()));
-			}
-			activeUserAgentCallIds.get(this).add(callId);
-		}
-		callIdToEventBusSubscriberId.put(callId, eventBusSubscriberId);
-		synchronized (answerableInviteOperations) {
-			if (!answerableInviteOperations.containsKey(eventBusSubscriberId)) {
-				answerableInviteOperations.put(eventBusSubscriberId, Collections
-					.synchronizedList(new LinkedList<ServerTransaction>()));
-			}
-		}
-		answerableInviteOperations.get(eventBusSubscriberId).add(serverTransaction);
+		callRegistry.inviteIsAnswerable(callId, this, eventBusSubscriberId, serverTransaction);
 	}
 
 	private void wipeAnswerableInviteOperation(String callId,
 			String eventBusSubscriberId, boolean shouldTerminate) {
-		callIdToActiveUserAgent.remove(callId);
-		synchronized (activeUserAgentCallIds) {
-			Set<String> activeCallIds = activeUserAgentCallIds.get(this);
-			if (activeCallIds != null) {
-				activeCallIds.remove(callId);
-				if (activeCallIds.isEmpty()) {
-					activeUserAgentCallIds.remove(this);
-				}
-			}
-		}
-		String foundSubscriberId = callIdToEventBusSubscriberId.remove(callId);
-		if (foundSubscriberId == null ||
-				!foundSubscriberId.equals(eventBusSubscriberId)) {
+		CallRecord answerableInvite = finishCallRecord(callId);
+		if (answerableInvite == null || !eventBusSubscriberId
+				.equals(answerableInvite.getSubscriberId())) {
 			//No data relation should have been assigned for this callId
 			//in the first place, so we wouldn't have any links to remove.
 			//Otherwise state is pretty inconsistent.
 			return;
 		}
-		synchronized (answerableInviteOperations) {
-			List<ServerTransaction> operations = answerableInviteOperations
-					.get(eventBusSubscriberId);
-			if (operations == null) {
-				//No data relation should have been assigned for this callId
-				//in the first place, so we wouldn't have any links to remove.
-				return;
-			}
-			synchronized (operations) {
-				Iterator<ServerTransaction> iterator = operations.iterator();
-				while (iterator.hasNext()) {
-					ServerTransaction serverTransaction = iterator.next();
-					Request request = serverTransaction.getRequest();
-					CallIdHeader callIdHeader = (CallIdHeader) request
-							.getHeader(CallIdHeader.NAME);
-					String transactionCallId = callIdHeader.getCallId();
-					if (transactionCallId.equals(callId)) {
-						if (shouldTerminate) {
-							inviteOperationFinished(eventBusSubscriberId, callId);
-							uas.doTerminateCanceledInvite(request, serverTransaction);
-						}
-						iterator.remove();
-						break;
-					}
-				}
-				if (operations.isEmpty()) {
-					answerableInviteOperations.remove(eventBusSubscriberId);
-				}
-			}
+		ServerTransaction serverTransaction = answerableInvite.getServerTransaction();
+		if (serverTransaction != null && shouldTerminate) {
+			inviteOperationFinished(eventBusSubscriberId, callId);
+			uas.doTerminateCanceledInvite(serverTransaction.getRequest(), serverTransaction);
 		}
 	}
 
@@ -480,6 +469,7 @@ public class SipUserAgent implements SipListener {
 			public void onEvent(RegistrationSuccess event) {
 				if (event.getCallId().equals(callId)) {
 					internalEventBus.unregister(eventBusSubscribers.remove(eventBusSubscriberId));
+					registeredContactExpires = event.getContactExpires();
 					callback.onRequestSuccess(username, primaryHost, event.getContactBindings());
 				}
 			}
@@ -493,7 +483,7 @@ public class SipUserAgent implements SipListener {
 			}
 
 		};
-		internalEventBus.register(eventBusSubscriber);
+		internalEventBus.register(callId, eventBusSubscriber);
 		eventBusSubscribers.put(eventBusSubscriberId, eventBusSubscriber);
 		boolean expectRemoteAnswer = false;
 		if (expires == 0) {
@@ -507,7 +497,7 @@ public class SipUserAgent implements SipListener {
 			internalEventBus.unregister(eventBusSubscriber);
 		} else {
 			if (intolerantModeEnabled) {
-				final Timer timeoutTimer = new Timer();
+				final ScheduledTask[] timeoutTask = new ScheduledTask[1];
 				final Object eventBusTimeoutSubscriber = new Object() {
 
 					@Subscribe
@@ -515,14 +505,13 @@ public class SipUserAgent implements SipListener {
 						if (event.getCallId().equals(callId)) {
 							internalEventBus.unregister(this);
 							currentTolerableTimeout = maxTolerableTimeout;
-							timeoutTimer.cancel();
+							timeoutTask[0].cancel();
 						}
 					}
 
 				};
-				internalEventBus.register(eventBusTimeoutSubscriber);
 				final float tolerableTimeoutAtTheTime = currentTolerableTimeout;
-				timeoutTimer.schedule(new TimerTask() {
+				timeoutTask[0] = scheduler.schedule(callId, new Runnable() {
 
 					@Override
 					public void run() {
@@ -537,6 +526,7 @@ public class SipUserAgent implements SipListener {
 					}
 
 				}, (long) currentTolerableTimeout * 1000);
+				internalEventBus.register(callId, eventBusTimeoutSubscriber);
 			}
 		}
 		return expectRemoteAnswer;
@@ -572,7 +562,7 @@ public class SipUserAgent implements SipListener {
 			public void onEvent(CallInvitationDeclined event) {
 				if (event.getCallId().equals(callId)) {
 					inviteOperationFinished(eventBusSubscriberId, callId);
-					wipeCancelableInviteOperation(callId, eventBusSubscriberId);
+					wipeCancelableInviteOperation(callId, eventBusSubscriberId, true);
 					callback.onCallInvitationDeclined(username, primaryHost, event.getReason());
 				}
 			}
@@ -582,7 +572,7 @@ public class SipUserAgent implements SipListener {
 				Dialog dialog = event.getDialog();
 				if (event.getCallId().equals(callId)) {
 					inviteOperationFinished(eventBusSubscriberId, callId);
-					wipeCancelableInviteOperation(callId, eventBusSubscriberId);
+					wipeCancelableInviteOperation(callId, eventBusSubscriberId, false);
 					listener.onCallEstablished(username, primaryHost, callId);
 					callEstablished(eventBusSubscriberId, callId, dialog);
 				}
@@ -592,13 +582,13 @@ public class SipUserAgent implements SipListener {
 			public void onEvent(CallInvitationFailed event) {
 				if (event.getCallId().equals(callId)) {
 					inviteOperationFinished(eventBusSubscriberId, callId);
-					wipeCancelableInviteOperation(callId, eventBusSubscriberId);
+					wipeCancelableInviteOperation(callId, eventBusSubscriberId, true);
 					listener.onCallInvitationFailed(username, primaryHost, event.getReason(), callId);
 				}
 			}
 
 		};
-		internalEventBus.register(eventBusSubscriber);
+		internalEventBus.register(callId, eventBusSubscriber);
 		eventBusSubscribers.put(eventBusSubscriberId, eventBusSubscriber);
 		boolean expectRemoteAnswer = uac.sendInviteRequest(remoteUser, remoteDomain, callIdHeader);
 		if (!expectRemoteAnswer) {
@@ -610,74 +600,23 @@ public class SipUserAgent implements SipListener {
 
 	private void inviteOperationIsCancelable(String eventBusSubscriberId,
 			String callId, ClientTransaction clientTransaction) {
-		callIdToActiveUserAgent.put(callId, this);
-		synchronized (activeUserAgentCallIds) {
-			if (!activeUserAgentCallIds.containsKey(this)) {
-				activeUserAgentCallIds.put(this, Collections
-						.synchronizedSet(new HashSet<String>()));
-			}
-			activeUserAgentCallIds.get(this).add(callId);
-		}
-		callIdToEventBusSubscriberId.put(callId, eventBusSubscriberId);
-		synchronized (cancelableInviteOperations) {
-			if (!cancelableInviteOperations.containsKey(eventBusSubscriberId)) {
-				cancelableInviteOperations.put(eventBusSubscriberId, Collections
-					.synchronizedList(new LinkedList<ClientTransaction>()));
-			}
-		}
-		cancelableInviteOperations.get(eventBusSubscriberId).add(clientTransaction);
+		callRegistry.inviteIsPending(callId, this, eventBusSubscriberId, clientTransaction);
 	}
 
 	private void wipeCancelableInviteOperation(String callId,
-			String eventBusSubscriberId) {
+			String eventBusSubscriberId, boolean callIsOver) {
 		if (callId == null) {
 			//No data relation should have been assigned for this callId
 			//in the first place, so we wouldn't have any links to remove.
 			return;
 		}
-		callIdToActiveUserAgent.remove(callId);
-		synchronized (activeUserAgentCallIds) {
-			Set<String> activeCallIds = activeUserAgentCallIds.get(this);
-			if (activeCallIds != null) {
-				activeCallIds.remove(callId);
-				if (activeCallIds.isEmpty()) {
-					activeUserAgentCallIds.remove(this);
-				}
-			}
-		}
-		String foundSubscriberId = callIdToEventBusSubscriberId.remove(callId);
-		if (foundSubscriberId == null ||
-				!foundSubscriberId.equals(eventBusSubscriberId)) {
-			//No data relation should have been assigned for this callId
-			//in the first place, so we wouldn't have any links to remove.
-			//Otherwise state is pretty inconsistent.
-			return;
+		if (callIsOver) {
+			finishCallRecord(callId);
 		}
-		synchronized (cancelableInviteOperations) {
-			List<ClientTransaction> operations = cancelableInviteOperations
-					.get(eventBusSubscriberId);
-			if (operations == null) {
-				//No data relation should have been assigned for this callId
-				//in the first place, so we wouldn't have any links to remove.
-				return;
-			}
-			synchronized (operations) {
-				Iterator<ClientTransaction> iterator = operations.iterator();
-				while (iterator.hasNext()) {
-					ClientTransaction clientTransaction = iterator.next();
-					Request request = clientTransaction.getRequest();
-					CallIdHeader callIdHeader = (CallIdHeader) request
-							.getHeader(CallIdHeader.NAME);
-					String transactionCallId = callIdHeader.getCallId();
-					if (transactionCallId.equals(callId)) {
-						iterator.remove();
-						break;
-					}
-				}
-				if (operations.isEmpty()) {
-					cancelableInviteOperations.remove(eventBusSubscriberId);
-				}
-			}
+		else {
+			//The call goes on as an established one: a CANCEL still waiting
+			//to be sent must be left to send the BYE in its place.
+			callRegistry.finish(callId);
 		}
 	}
 
@@ -689,163 +628,91 @@ public class SipUserAgent implements SipListener {
 	}
 
 	public boolean cancelInviteRequest(final String callId) {
-		final String eventBusSubscriberId = callIdToEventBusSubscriberId.get(callId);
-		if (eventBusSubscriberId == null) {
+		CallRecord pendingInvite = callRegistry.claimPendingInvite(callId);
+		if (pendingInvite == null) {
 			logger.error("Cannot cancel invitation.\nINVITE request with callId " +
 					"'{}' not found.", callId);
 			return false;
 		}
-		synchronized (cancelableInviteOperations) {
-			List<ClientTransaction> operations = cancelableInviteOperations
-					.get(eventBusSubscriberId);
-			if (operations == null) {
-				logger.error("Cannot cancel invitation.\nINVITE request with callId " +
-						"'{}' not found.", callId);
-				return false;
-			}
-			synchronized (operations) {
-				Iterator<ClientTransaction> iterator = operations.iterator();
-				try {
-					while (iterator.hasNext()) {
-						ClientTransaction clientTransaction = iterator.next();
-						Request request = clientTransaction.getRequest();
-						CallIdHeader callIdHeader = (CallIdHeader) request
-								.getHeader(CallIdHeader.NAME);
-						String transactionCallId = callIdHeader.getCallId();
-						if (transactionCallId.equals(callId)) {
-							iterator.remove();
-							Object eventBusSubscriber = new Object() {
-
-								@Subscribe
-								public void onEvent(CallInvitationCanceled event) {
-									if (event.getCallId().equals(callId)) {
-										inviteOperationFinished(eventBusSubscriberId, callId);
-										internalEventBus.unregister(this);
-										listener.onCallInvitationCanceled(username, primaryHost,
-											event.getReason(), callId);
-									}
-								}
+		final String eventBusSubscriberId = pendingInvite.getSubscriberId();
+		Object eventBusSubscriber = new Object() {
 
-								@Subscribe
-								public void onEvent(CallInvitationFailed event) {
-									if (event.getCallId().equals(callId)) {
-										internalEventBus.unregister(this);
-										listener.onCallInvitationFailed(username, primaryHost,
-											event.getReason(), callId);
-									}
-								}
+			@Subscribe
+			public void onEvent(CallInvitationCanceled event) {
+				if (event.getCallId().equals(callId)) {
+					inviteOperationFinished(eventBusSubscriberId, callId);
+					internalEventBus.unregister(this);
+					listener.onCallInvitationCanceled(username, primaryHost,
+						event.getReason(), callId);
+				}
+			}
 
-							};
-							internalEventBus.register(eventBusSubscriber);
-							return uac.sendCancelRequest(clientTransaction);
-						}
-					}
-				} finally {
-					if (operations.isEmpty()) {
-						cancelableInviteOperations.remove(eventBusSubscriberId);
-					}
+			@Subscribe
+			public void onEvent(CallInvitationFailed event) {
+				if (event.getCallId().equals(callId)) {
+					internalEventBus.unregister(this);
+					listener.onCallInvitationFailed(username, primaryHost,
+						event.getReason(), callId);
 				}
 			}
-		}
-		logger.error("Cannot cancel invitation.\nINVITE request with callId " +
-				"'{}' not found.", callId);
-		return false;
+
+		};
+		internalEventBus.register(callId, eventBusSubscriber);
+		return uac.sendCancelRequest(pendingInvite.getClientTransaction());
 	}
 
-	public synchronized boolean answerInviteRequest(final String callId,
+	public boolean answerInviteRequest(final String callId,
 			final boolean acceptCallInvitation) {
-		final String eventBusSubscriberId = callIdToEventBusSubscriberId.get(callId);
-		if (eventBusSubscriberId == null) {
+		CallRecord answerableInvite = callRegistry.claimAnswerableInvite(callId);
+		if (answerableInvite == null) {
 			logger.error("Cannot {} invitation.\nINVITE request with callId '{}' " +
 					"not found.", acceptCallInvitation ? "accept" : "decline", callId);
 			return false;
 		}
-		synchronized (answerableInviteOperations) {
-			List<ServerTransaction> operations = answerableInviteOperations.get(eventBusSubscriberId);
-			if (operations == null) {
-				logger.error("Cannot {} invitation.\nINVITE request with callId '{}' " +
-						"not found.", acceptCallInvitation ? "accept" : "decline", callId);
-				return false;
-			}
-			synchronized (operations) {
-				Iterator<ServerTransaction> iterator = operations.iterator();
-				try {
-					while (iterator.hasNext()) {
-						ServerTransaction serverTransaction = iterator.next();
-						Request request = serverTransaction.getRequest();
-						CallIdHeader callIdHeader = (CallIdHeader) request
-								.getHeader(CallIdHeader.NAME);
-						String transactionCallId = callIdHeader.getCallId();
-						if (transactionCallId.equals(callId)) {
-							iterator.remove();
-							Object eventBusSubscriber = new Object() {
-
-								@Subscribe
-								public void onEvent(EstablishedCallStarted event) {
-									if (acceptCallInvitation &&
-											event.getCallId().equals(callId)) {
-										internalEventBus.unregister(this);
-										listener.onCallEstablished(username, primaryHost, callId);
-										callEstablished(eventBusSubscriberId, callId,
-											event.getDialog());
-									}
-								}
+		final String eventBusSubscriberId = answerableInvite.getSubscriberId();
+		ServerTransaction serverTransaction = answerableInvite.getServerTransaction();
+		Request request = serverTransaction.getRequest();
+		Object eventBusSubscriber = new Object() {
 
-								@Subscribe
-								public void onEvent(CallInvitationFailed event) {
-									if (event.getCallId().equals(callId)) {
-										internalEventBus.unregister(this);
-										listener.onCallInvitationFailed(username, primaryHost,
-											event.getReason(), callId);
-									}
-								}
+			@Subscribe
+			public void onEvent(EstablishedCallStarted event) {
+				if (acceptCallInvitation &&
+						event.getCallId().equals(callId)) {
+					internalEventBus.unregister(this);
+					listener.onCallEstablished(username, primaryHost, callId);
+					callEstablished(eventBusSubscriberId, callId,
+						event.getDialog());
+				}
+			}
 
-							};
-							internalEventBus.register(eventBusSubscriber);
-							RequestMethod method = RequestMethod.UNKNOWN;
-							try {
-								method = RequestMethod.valueOf(request.getMethod());
-							} catch (IllegalArgumentException ignore) {
-								ignore.printStackTrace();
-							};
-							if (acceptCallInvitation) {
-								return uas.sendAcceptResponse(method, request, serverTransaction);
-							}
-							else {
-								return uas.sendRejectResponse(method, request, serverTransaction);
-							}
-						}
-					}
-				} finally {
-					if (operations.isEmpty()) {
-						answerableInviteOperations.remove(eventBusSubscriberId);
-					}
+			@Subscribe
+			public void onEvent(CallInvitationFailed event) {
+				if (event.getCallId().equals(callId)) {
+					internalEventBus.unregister(this);
+					listener.onCallInvitationFailed(username, primaryHost,
+						event.getReason(), callId);
 				}
 			}
+
+		};
+		internalEventBus.register(callId, eventBusSubscriber);
+		RequestMethod method = RequestMethod.UNKNOWN;
+		try {
+			method = RequestMethod.valueOf(request.getMethod());
+		} catch (IllegalArgumentException ignore) {
+			ignore.printStackTrace();
+		};
+		if (acceptCallInvitation) {
+			return uas.sendAcceptResponse(method, request, serverTransaction);
+		}
+		else {
+			return uas.sendRejectResponse(method, request, serverTransaction);
 		}
-		logger.error("Cannot {} invitation.\nINVITE request with callId '{}' " +
-				"not found.", acceptCallInvitation ? "accept" : "decline", callId);
-		return false;
 	}
 
 	private void callEstablished(final String eventBusSubscriberId,
 			final String callId, final Dialog dialog) {
-		callIdToActiveUserAgent.put(callId, this);
-		synchronized (activeUserAgentCallIds) {
-			if (!activeUserAgentCallIds.containsKey(this)) {
-				activeUserAgentCallIds.put(this, Collections
-						.synchronizedSet(new HashSet<String>()));
-			}
-			activeUserAgentCallIds.get(this).add(callId);
-		}
-		callIdToEventBusSubscriberId.put(callId, eventBusSubscriberId);
-		synchronized (establishedCalls) {
-			if (!establishedCalls.containsKey(eventBusSubscriberId)) {
-				establishedCalls.put(eventBusSubscriberId, Collections
-						.synchronizedList(new LinkedList<Dialog>()));
-			}
-		}
-		establishedCalls.get(eventBusSubscriberId).add(dialog);
+		callRegistry.callIsEstablished(callId, this, eventBusSubscriberId, dialog);
 		final SipuadaPlugin sessionPlugin = registeredPlugins.get(RequestMethod.INVITE);
 		Object eventBusSubscriber = new Object() {
 
@@ -902,7 +769,7 @@ public class SipUserAgent implements SipListener {
 			}
 
 		};
-		internalEventBus.register(eventBusSubscriber);
+		internalEventBus.register(callId, eventBusSubscriber);
 		if (sessionPlugin != null) {
 			final int delayToPerformSessionSetup;
 			if (sessionPlugin.isSessionOngoing(callId, SessionType.EARLY)) {
@@ -910,120 +777,55 @@ public class SipUserAgent implements SipListener {
 			} else {
 				delayToPerformSessionSetup = 0;
 			}
-			new Thread(new Runnable() {
+			scheduler.schedule(callId, new Runnable() {
 
 				@Override
 				public void run() {
 					try {
-						Thread.sleep(delayToPerformSessionSetup);
-						try {
-							boolean sessionProperlySetup = SessionManager
-								.performSessionSetup(sessionPlugin, callId,
-									SessionType.REGULAR, SipUserAgent.this);
-							if (!sessionProperlySetup) {
-								String error = "Plug-in signaled session setup failure"
-									+ " in context of call";
-								logger.error(String.format("%s {}.", error), callId);
-								listener.onCallFailure(username, primaryHost,
-									String.format("%s %s.", error, callId), callId);
-							}
-						} catch (Throwable unexpectedException) {
-							logger.error("Bad plug-in crashed while trying to perform "
-								+ "session setup in context of call {}.", callId,
-								unexpectedException);
+						boolean sessionProperlySetup = SessionManager
+							.performSessionSetup(sessionPlugin, callId,
+								SessionType.REGULAR, SipUserAgent.this);
+						if (!sessionProperlySetup) {
+							String error = "Plug-in signaled session setup failure"
+								+ " in context of call";
+							logger.error(String.format("%s {}.", error), callId);
 							listener.onCallFailure(username, primaryHost,
-								"Bad plug-in crashed while trying to perform session "
-								+ "setup in context of call " + callId + ".", callId);
+								String.format("%s %s.", error, callId), callId);
 						}
-					} catch (InterruptedException ignore) {
-						ignore.printStackTrace();
+					} catch (Throwable unexpectedException) {
+						logger.error("Bad plug-in crashed while trying to perform "
+							+ "session setup in context of call {}.", callId,
+							unexpectedException);
+						listener.onCallFailure(username, primaryHost,
+							"Bad plug-in crashed while trying to perform session "
+							+ "setup in context of call " + callId + ".", callId);
 					}
 				}
 
-			}).start();
+			}, delayToPerformSessionSetup);
 		}
 	}
 
 	public void wipeEstablishedCall(String callId,
 			String eventBusSubscriberId) {
-		callIdToActiveUserAgent.remove(callId);
-		synchronized (activeUserAgentCallIds) {
-			Set<String> activeCallIds = activeUserAgentCallIds.get(this);
-			if (activeCallIds != null) {
-				activeCallIds.remove(callId);
-				if (activeCallIds.isEmpty()) {
-					activeUserAgentCallIds.remove(this);
-				}
-			}
-		}
-		String foundSubscriberId = callIdToEventBusSubscriberId.remove(callId);
-		if (foundSubscriberId == null ||
-				!foundSubscriberId.equals(eventBusSubscriberId)) {
-			//No data relation should have been assigned for this callId
-			//in the first place, so we wouldn't have any links to remove.
-			//Otherwise state is pretty inconsistent.
-			return;
-		}
-		synchronized (establishedCalls) {
-			List<Dialog> calls = establishedCalls.get(eventBusSubscriberId);
-			if (calls == null) {
-				//No data relation should have been assigned for this callId
-				//in the first place, so we wouldn't have any links to remove.
-				return;
-			}
-			synchronized (calls) {
-				Iterator<Dialog> iterator = calls.iterator();
-				try {
-					while (iterator.hasNext()) {
-						Dialog dialog = iterator.next();
-						if (dialog.getCallId().getCallId().equals(callId)) {
-							iterator.remove();
-							break;
-						}
-					}
-				} finally {
-					if (calls.isEmpty()) {
-						establishedCalls.remove(eventBusSubscriberId);
-					}
-				}
-			}
-		}
+		finishCallRecord(callId);
+	}
+
+	private CallRecord finishCallRecord(String callId) {
+		CallRecord finishedCall = callRegistry.finish(callId);
+		//Whatever was still scheduled in context of this call is moot now.
+		scheduler.cancelAll(callId);
+		return finishedCall;
 	}
 
 	public boolean finishCall(String callId) {
-		String eventBusSubscriberId = callIdToEventBusSubscriberId.get(callId);
-		if (eventBusSubscriberId == null) {
+		CallRecord establishedCall = callRegistry.claimEstablishedCall(callId);
+		if (establishedCall == null) {
 			logger.error("Cannot finish call.\nEstablished call with callId " +
 					"'{}' not found.", callId);
 			return false;
 		}
-		synchronized (establishedCalls) {
-			List<Dialog> calls = establishedCalls.get(eventBusSubscriberId);
-			if (calls == null) {
-				logger.error("Cannot finish call.\nEstablished call with callId " +
-						"'{}' not found.", callId);
-				return false;
-			}
-			synchronized (calls) {
-				Iterator<Dialog> iterator = calls.iterator();
-				try {
-					while (iterator.hasNext()) {
-						Dialog dialog = iterator.next();
-						if (dialog.getCallId().getCallId().equals(callId)) {
-							iterator.remove();
-							return uac.sendByeRequest(dialog);
-						}
-					}
-				} finally {
-					if (calls.isEmpty()) {
-						establishedCalls.remove(eventBusSubscriberId);
-					}
-				}
-			}
-		}
-		logger.error("Cannot finish call.\nEstablished call with callId " +
-				"'{}' not found.", callId);
-		return false;
+		return uac.sendByeRequest(establishedCall.getDialog());
 	}
 
 	public boolean sendMessageRequest(String remoteUser, String remoteDomain, String content,
@@ -1048,7 +850,7 @@ public class SipUserAgent implements SipListener {
 			}
 
 		};
-		internalEventBus.register(eventBusSubscriber);
+		internalEventBus.register(callId, eventBusSubscriber);
 		eventBusSubscribers.put(eventBusSubscriberId, eventBusSubscriber);
 		boolean expectRemoteAnswer = uac.sendMessageRequest(remoteUser, remoteDomain,
 			callIdHeader, content, contentType, additionalHeaders);
@@ -1060,8 +862,8 @@ public class SipUserAgent implements SipListener {
 
 	public boolean sendMessageRequest(final String callId, String content, String contentType,
 			final BasicRequestCallback callback, String... additionalHeaders) {
-		String eventBusSubscriberId = callIdToEventBusSubscriberId.get(callId);
-		if (eventBusSubscriberId == null) {
+		CallRecord establishedCall = callRegistry.getEstablishedCall(callId);
+		if (establishedCall == null || establishedCall.getUserAgent() != this) {
 			logger.error("Cannot send message.\nEstablished call with callId " + "'{}' not found.", callId);
 			return false;
 		}
@@ -1083,78 +885,27 @@ public class SipUserAgent implements SipListener {
 			}
 
 		};
-		internalEventBus.register(eventBusInfoSubscriber);
+		internalEventBus.register(callId, eventBusInfoSubscriber);
 		eventBusSubscribers.put(eventBusSubscriberInfoId, eventBusInfoSubscriber);
-		synchronized (establishedCalls) {
-			List<Dialog> calls = establishedCalls.get(eventBusSubscriberId);
-			if (calls == null) {
-				logger.error("Cannot send message.\nEstablished call with callId " + "'{}' not found.", callId);
-				return false;
-			}
-			synchronized (calls) {
-				Iterator<Dialog> iterator = calls.iterator();
-				while (iterator.hasNext()) {
-					Dialog dialog = iterator.next();
-					if (dialog.getCallId().getCallId().equals(callId)) {
-						return uac.sendMessageRequest(dialog, content, contentType, additionalHeaders);
-					}
-				}
-			}
-		}
-		logger.error("Cannot send message.\nEstablished call with callId " + "'{}' not found.", callId);
-		return false;
+		return uac.sendMessageRequest(establishedCall.getDialog(), content, contentType, additionalHeaders);
 	}
 
 	public boolean sendUpdateRequest(final String callId, String... additionalHeaders) {
-		String eventBusSubscriberId = callIdToEventBusSubscriberId.get(callId);
-		if (eventBusSubscriberId == null) {
+		CallRecord establishedCall = callRegistry.getEstablishedCall(callId);
+		if (establishedCall == null || establishedCall.getUserAgent() != this) {
 			logger.error("Cannot send update.\nEstablished call with callId " + "'{}' not found.", callId);
 			return false;
 		}
-		synchronized (establishedCalls) {
-			List<Dialog> calls = establishedCalls.get(eventBusSubscriberId);
-			if (calls == null) {
-				logger.error("Cannot send update.\nEstablished call with callId " + "'{}' not found.", callId);
-				return false;
-			}
-			synchronized (calls) {
-				Iterator<Dialog> iterator = calls.iterator();
-				while (iterator.hasNext()) {
-					Dialog dialog = iterator.next();
-					if (dialog.getCallId().getCallId().equals(callId)) {
-						return uac.sendUpdateRequest(dialog, additionalHeaders);
-					}
-				}
-			}
-		}
-		logger.error("Cannot send update.\nEstablished call with callId " + "'{}' not found.", callId);
-		return false;
+		return uac.sendUpdateRequest(establishedCall.getDialog(), additionalHeaders);
 	}
 
 	public boolean sendReinviteRequest(final String callId) {
-		String eventBusSubscriberId = callIdToEventBusSubscriberId.get(callId);
-		if (eventBusSubscriberId == null) {
+		CallRecord establishedCall = callRegistry.getEstablishedCall(callId);
+		if (establishedCall == null || establishedCall.getUserAgent() != this) {
 			logger.error("Cannot send reinvite.\nEstablished call with callId " + "'{}' not found.", callId);
 			return false;
 		}
-		synchronized (establishedCalls) {
-			List<Dialog> calls = establishedCalls.get(eventBusSubscriberId);
-			if (calls == null) {
-				logger.error("Cannot send reinvite.\nEstablished call with callId " + "'{}' not found.", callId);
-				return false;
-			}
-			synchronized (calls) {
-				Iterator<Dialog> iterator = calls.iterator();
-				while (iterator.hasNext()) {
-					Dialog dialog = iterator.next();
-					if (dialog.getCallId().getCallId().equals(callId)) {
-						return uac.sendReinviteRequest(dialog);
-					}
-				}
-			}
-		}
-		logger.error("Cannot send reinvite.\nEstablished call with callId " + "'{}' not found.", callId);
-		return false;
+		return uac.sendReinviteRequest(establishedCall.getDialog());
 	}
 
 //	@Subscribe
@@ -1181,9 +932,4 @@ public class SipUserAgent implements SipListener {
 //		});
 //	}
 
-	@Subscribe
-	public void onEvent(DeadEvent deadEvent) {
-		logger.error("Dead event: {}.", deadEvent.getEvent().getClass());
-	}
-
 }
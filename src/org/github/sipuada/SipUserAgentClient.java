@@ -10,13 +10,11 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.ListIterator;
 import java.util.Map;
-import java.util.Map.Entry;
 import java.util.Set;
-import java.util.Timer;
-import java.util.TimerTask;
 
 import org.github.sipuada.Constants.RequestMethod;
 import org.github.sipuada.Constants.ResponseClass;
+import org.github.sipuada.DigestChallengeCache.Challenge;
 import org.github.sipuada.events.CallInvitationAccepted;
 import org.github.sipuada.events.CallInvitationCanceled;
 import org.github.sipuada.events.CallInvitationDeclined;
@@ -41,8 +39,6 @@ import org.github.sipuada.plugins.SipuadaPlugin;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.google.common.eventbus.EventBus;
-
 import android.gov.nist.javax.sip.Utils;
 import android.gov.nist.javax.sip.address.SipUri;
 import android.javax.sip.ClientTransaction;
@@ -97,7 +93,8 @@ public class SipUserAgentClient {
 	private final Logger logger = LoggerFactory.getLogger(SipUserAgentClient.class);
 
 	private final String stackName;
-	private final EventBus bus;
+	private final CallEventRouter bus;
+	private final SipuadaScheduler scheduler;
 	private final SipProvider provider;
 	private final MessageFactory messenger;
 	private final HeaderFactory headerMaker;
@@ -110,21 +107,23 @@ public class SipUserAgentClient {
 	private final String localIp;
 	private final int localPort;
 	private final String transport;
-	private final Map<String, Map<String, String>> authNoncesCache = new HashMap<>();
-	private final Map<String, Map<String, String>> proxyAuthNoncesCache = new HashMap<>();
-	private final Map<String, Map<String, String>> proxyAuthCallIdCache = new HashMap<>();
+	private final DigestChallengeCache authChallenges = new DigestChallengeCache();
+	private final DigestChallengeCache proxyAuthChallenges = new DigestChallengeCache();
+	//Only ever filled with the password above, which cannot change.
+	private final AuthorizationDigest.HA1Cache credentialsCache = new AuthorizationDigest.HA1Cache();
 	private long localCSeq = 0;
 	private final List<Address> configuredRouteSet = new LinkedList<>();
 	private final Map<URI, Long> registerCSeqs;
 
 	private final URI registerRequestUri;
 
-	public SipUserAgentClient(String name, EventBus eventBus, SipProvider sipProvider,
-			Map<RequestMethod, SipuadaPlugin> plugins, MessageFactory messageFactory,
-			HeaderFactory headerFactory, AddressFactory addressFactory,
+	public SipUserAgentClient(String name, CallEventRouter eventBus, SipuadaScheduler sipuadaScheduler,
+			SipProvider sipProvider, Map<RequestMethod, SipuadaPlugin> plugins,
+			MessageFactory messageFactory, HeaderFactory headerFactory, AddressFactory addressFactory,
 			Map<URI, Long> globalRegisterCSeqs, String... credentialsAndAddress) {
 		stackName = name;
 		bus = eventBus;
+		scheduler = sipuadaScheduler;
 		provider = sipProvider;
 		messenger = messageFactory;
 		headerMaker = headerFactory;
@@ -584,7 +583,7 @@ public class SipUserAgentClient {
 			putOfferIntoRequestIfApplicable(callId, sessionManager
 				.isSessionOngoing(callId, SessionType.EARLY) ?
 				SessionType.EARLY : SessionType.REGULAR, request);
-			new Thread(new Runnable() {
+			scheduler.execute(callId, new Runnable() {
 
 				@Override
 				public void run() {
@@ -609,7 +608,7 @@ public class SipUserAgentClient {
 					}
 				}
 
-			}).start();
+			});
 			return true;
 		} catch (ParseException requestCouldNotBeBuilt) {
 			logger.error("Could not properly create mandatory headers for "
@@ -740,7 +739,7 @@ public class SipUserAgentClient {
 				}
 			} catch (Throwable ignore) {}
 			final boolean pluginAnswerSuccessfullyGenerated = pluginAnswerGenerated;
-			new Thread(new Runnable() {
+			scheduler.execute(callId, new Runnable() {
 
 				@Override
 				public void run() {
@@ -784,7 +783,7 @@ public class SipUserAgentClient {
 					bus.post(new CallInvitationRinging(callId, clientTransaction));
 				}
 
-			}).start();
+			});
 			return true;
 		} catch (ParseException requestCouldNotBeBuilt) {
 			logger.error("Could not properly create mandatory headers for " +
@@ -925,7 +924,7 @@ public class SipUserAgentClient {
 			} else if (isPayloadSenderRequest(method, content, contentTypeHeader)) {
 				request.setContent(content, contentTypeHeader);
 			}
-			new Thread(new Runnable() {
+			scheduler.execute(callId, new Runnable() {
 
 				@Override
 				public void run() {
@@ -950,7 +949,7 @@ public class SipUserAgentClient {
 					}
 				}
 
-			}).start();
+			});
 			return true;
 		} catch (ParseException requestCouldNotBeBuilt) {
 			logger.error("Could not properly create mandatory headers for "
@@ -1023,8 +1022,9 @@ public class SipUserAgentClient {
 			//No need for caller to wait for remote responses.
 			return false;
 		}
-		final Timer timer = new Timer();
-		timer.schedule(new TimerTask() {
+		final String callId = ((CallIdHeader) cancelRequest
+			.getHeader(CallIdHeader.NAME)).getCallId();
+		scheduler.schedule(callId, new Runnable() {
 
 			@Override
 			public void run() {
@@ -1047,15 +1047,16 @@ public class SipUserAgentClient {
 									requestCouldNotBeSent.getMessage(),
 									requestCouldNotBeSent.getCause().getMessage());
 						}
-						timer.cancel();
 						break;
 					case TransactionState._COMPLETED:
 					case TransactionState._TERMINATED:
-						timer.cancel();
 						sendByeRequest(clientTransaction.getDialog());
+						break;
+					default:
+						scheduler.schedule(callId, this, 180);
 				}
 			}
-		}, 180, 180);
+		}, 180);
 		//Caller must expect remote responses.
 		return true;
 	}
@@ -1110,6 +1111,10 @@ public class SipUserAgentClient {
 		}
 	}
 
+	protected void expireOfferAnswerExchange(String callId) {
+		sessionManager.expireOfferAnswerExchangeMessages(callId);
+	}
+
 	protected void processFatalTransportError(IOExceptionEvent exceptionEvent) {
 		logger.debug("Fatal transport error occurred - translated into response " +
 				"with code {}.", Response.SERVICE_UNAVAILABLE);
@@ -1406,33 +1411,23 @@ public class SipUserAgentClient {
 		while (wwwAuthenticateHeaders != null && wwwAuthenticateHeaders.hasNext()) {
 			WWWAuthenticateHeader wwwAuthenticateHeader =
 					(WWWAuthenticateHeader) wwwAuthenticateHeaders.next();
-			String realm = wwwAuthenticateHeader.getRealm();
-			String nonce = wwwAuthenticateHeader.getNonce();
+			Challenge challenge = authChallenges.challenged(toHeaderValue,
+					wwwAuthenticateHeader, null);
 			worthAuthenticating = addAuthorizationHeader(request, hostUri,
-					toHeaderValue, username, password, realm, nonce);
-			if (!authNoncesCache.containsKey(toHeaderValue)) {
-				authNoncesCache.put(toHeaderValue, new HashMap<String, String>());
-			}
-			authNoncesCache.get(toHeaderValue).put(realm, nonce);
+					username, password, challenge);
 		}
 		ListIterator<?> proxyAuthenticateHeaders = response
 				.getHeaders(ProxyAuthenticateHeader.NAME);
 		while (proxyAuthenticateHeaders != null && proxyAuthenticateHeaders.hasNext()) {
 			ProxyAuthenticateHeader proxyAuthenticateHeader =
 					(ProxyAuthenticateHeader) proxyAuthenticateHeaders.next();
-			String realm = proxyAuthenticateHeader.getRealm();
-			String nonce = proxyAuthenticateHeader.getNonce();
-			worthAuthenticating = addProxyAuthorizationHeader(request, hostUri,
-					toHeaderValue, username, password, realm, nonce);
-			if (!proxyAuthNoncesCache.containsKey(toHeaderValue)) {
-				proxyAuthNoncesCache.put(toHeaderValue, new HashMap<String, String>());
-				proxyAuthCallIdCache.put(toHeaderValue, new HashMap<String, String>());
-			}
-			proxyAuthNoncesCache.get(toHeaderValue).put(realm, nonce);
 			CallIdHeader callIdHeader = (CallIdHeader) request
 					.getHeader(CallIdHeader.NAME);
 			String callId = callIdHeader.getCallId();
-			proxyAuthCallIdCache.get(toHeaderValue).put(realm, callId);
+			Challenge challenge = proxyAuthChallenges.challenged(toHeaderValue,
+					proxyAuthenticateHeader, callId);
+			worthAuthenticating = addProxyAuthorizationHeader(request, hostUri,
+					username, password, challenge);
 		}
 		int attempt = (Integer) clientTransaction.getApplicationData();
 		if (attempt >= 3) {
@@ -1757,8 +1752,8 @@ public class SipUserAgentClient {
 			final int retryAfterSeconds = retryAfterHeader.getRetryAfter();
 			int durationSeconds = retryAfterHeader.getDuration();
 			if (durationSeconds == 0 || durationSeconds > 300) {
-				Timer timer = new Timer();
-				timer.schedule(new TimerTask() {
+				String callId = ((CallIdHeader) request.getHeader(CallIdHeader.NAME)).getCallId();
+				scheduler.schedule(callId, new Runnable() {
 
 					@Override
 					public void run() {
@@ -1815,7 +1810,8 @@ public class SipUserAgentClient {
 		String callId = ((CallIdHeader) request.getHeader(CallIdHeader.NAME)).getCallId();
 		if (ResponseClass.SUCCESS == Constants.getResponseClass(statusCode)) {
 			logger.info("{} response to REGISTER arrived.", statusCode);
-			bus.post(new RegistrationSuccess(callId, response.getHeaders(ContactHeader.NAME)));
+			bus.post(new RegistrationSuccess(callId, response.getHeaders(ContactHeader.NAME),
+				(ExpiresHeader) response.getHeader(ExpiresHeader.NAME)));
 		}
 	}
 
@@ -2131,42 +2127,21 @@ public class SipUserAgentClient {
 		if (tryAddingAuthorizationHeaders) {
 			logger.debug("About to try adding authorization headers before sending " +
 					"this {} request.", request.getMethod());
-			if (authNoncesCache.containsKey(toHeaderValue)) {
-				Map<String, String> probableRealms = new HashMap<>();
-				for (Entry<String, String> entry :
-					authNoncesCache.get(toHeaderValue).entrySet()) {
-					String realm = entry.getKey();
-					String remoteHost = toHeaderValue.split("@")[1];
-					if (realm.contains(remoteHost)) {
-						String nonce = entry.getValue();
-						probableRealms.put(realm, nonce);
-					}
-				}
-				for (String realm : probableRealms.keySet()) {
-					addAuthorizationHeader(request, hostUri, toHeaderValue,
-							username, password, realm, probableRealms.get(realm));
+			String remoteHost = toHeaderValue.split("@")[1];
+			for (Challenge challenge : authChallenges.getChallenges(toHeaderValue)) {
+				if (challenge.getRealm().contains(remoteHost)) {
+					addAuthorizationHeader(request, hostUri,
+							username, password, challenge);
 				}
 			}
-			if (proxyAuthNoncesCache.containsKey(toHeaderValue)) {
-				Map<String, String> probableRealms = new HashMap<>();
-				for (Entry<String, String> entry :
-					proxyAuthNoncesCache.get(toHeaderValue).entrySet()) {
-					String realm = entry.getKey();
-					String remoteHost = toHeaderValue.split("@")[1];
-					if (realm.contains(remoteHost)) {
-						String nonce = entry.getValue();
-						probableRealms.put(realm, nonce);
-					}
-				}
-				for (String realm : probableRealms.keySet()) {
-					CallIdHeader callIdHeader = (CallIdHeader) request
-							.getHeader(CallIdHeader.NAME);
-					String thisCallId = callIdHeader.getCallId();
-					String savedCallId = proxyAuthCallIdCache.get(toHeaderValue).get(realm);
-					if (thisCallId.equals(savedCallId)) {
-						addProxyAuthorizationHeader(request, hostUri, toHeaderValue,
-								username, password, realm, probableRealms.get(realm));
-					}
+			CallIdHeader callIdHeader = (CallIdHeader) request
+					.getHeader(CallIdHeader.NAME);
+			String thisCallId = callIdHeader.getCallId();
+			for (Challenge challenge : proxyAuthChallenges.getChallenges(toHeaderValue)) {
+				if (challenge.getRealm().contains(remoteHost)
+						&& thisCallId.equals(challenge.getCallId())) {
+					addProxyAuthorizationHeader(request, hostUri,
+							username, password, challenge);
 				}
 			}
 		}
@@ -2240,20 +2215,15 @@ public class SipUserAgentClient {
 	}
 
 	private boolean addAuthorizationHeader(Request request, URI hostUri,
-			String toHeaderValue, String username, String password,
-			String realm, String nonce) {
-		String responseDigest = AuthorizationDigest.getDigest(username, realm,
-				password, request.getMethod(), hostUri.toString(), nonce);
+			String username, String password, Challenge challenge) {
 		AuthorizationHeader authorizationHeader;
 		try {
 			authorizationHeader = headerMaker
 					.createAuthorizationHeader("Digest");
-			authorizationHeader.setAlgorithm("MD5");
-			authorizationHeader.setURI(hostUri);
-			authorizationHeader.setUsername(username);
-			authorizationHeader.setRealm(realm);
-			authorizationHeader.setNonce(nonce);
-			authorizationHeader.setResponse(responseDigest);
+			if (!fillCredentials(authorizationHeader, request, hostUri,
+					username, password, challenge)) {
+				return false;
+			}
 		} catch (ParseException parseException) {
 			logger.warn("Authorization header could not be added to authenticate " +
 					"a {} request: {}.", request.getMethod(), parseException.getMessage());
@@ -2267,22 +2237,15 @@ public class SipUserAgentClient {
 	}
 
 	private boolean addProxyAuthorizationHeader(Request request, URI hostUri,
-			String toHeaderValue, String username, String password,
-			String realm, String nonce) {
-		String responseDigest = AuthorizationDigest.getDigest(username, realm,
-				password, request.getMethod(), hostUri.toString(), nonce);
+			String username, String password, Challenge challenge) {
 		ProxyAuthorizationHeader proxyAuthorizationHeader;
 		try {
 			proxyAuthorizationHeader = headerMaker
 					.createProxyAuthorizationHeader("Digest");
-			proxyAuthorizationHeader.setAlgorithm("MD5");
-			if (hostUri != null) {
-				proxyAuthorizationHeader.setURI(hostUri);
-			}
-			proxyAuthorizationHeader.setUsername(username);
-			proxyAuthorizationHeader.setRealm(realm);
-			proxyAuthorizationHeader.setNonce(nonce);
-			proxyAuthorizationHeader.setResponse(responseDigest);
+			if (!fillCredentials(proxyAuthorizationHeader, request, hostUri,
+					username, password, challenge)) {
+				return false;
+			}
 		} catch (ParseException parseException) {
 			logger.warn("ProxyAuthorization header could not be added to authenticate " +
 					"a {} request: {}.", request.getMethod(), parseException.getMessage());
@@ -2295,5 +2258,40 @@ public class SipUserAgentClient {
 		return true;
 	}
 
-}
+	private boolean fillCredentials(AuthorizationHeader authorizationHeader, Request request,
+			URI hostUri, String username, String password, Challenge challenge)
+					throws ParseException {
+		String algorithm = challenge.getAlgorithm() == null
+				? AuthorizationDigest.MD5 : challenge.getAlgorithm();
+		if (!AuthorizationDigest.isSupportedAlgorithm(algorithm)) {
+			logger.warn("Cannot authenticate a {} request: {} algorithm not supported.",
+					request.getMethod(), algorithm);
+			return false;
+		}
+		String qop = challenge.getQop();
+		String nonceCount = null, cnonce = null;
+		if (qop != null) {
+			int nc = challenge.nextNonceCount();
+			nonceCount = String.format("%08x", nc);
+			cnonce = challenge.generateCNonce();
+			authorizationHeader.setQop(qop);
+			authorizationHeader.setNonceCount(nc);
+			authorizationHeader.setCNonce(cnonce);
+		}
+		String responseDigest = AuthorizationDigest.getDigestFromHA1(algorithm,
+				credentialsCache.getHA1(algorithm, username, challenge.getRealm(), password),
+				request.getMethod(), hostUri.toString(), challenge.getNonce(),
+				nonceCount, cnonce, qop, request.getRawContent());
+		authorizationHeader.setAlgorithm(algorithm);
+		authorizationHeader.setURI(hostUri);
+		authorizationHeader.setUsername(username);
+		authorizationHeader.setRealm(challenge.getRealm());
+		authorizationHeader.setNonce(challenge.getNonce());
+		if (challenge.getOpaque() != null) {
+			authorizationHeader.setOpaque(challenge.getOpaque());
+		}
+		authorizationHeader.setResponse(responseDigest);
+		return true;
+	}
 
+}
@@ -27,8 +27,6 @@ import org.github.sipuada.plugins.SipuadaPlugin;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.google.common.eventbus.EventBus;
-
 import android.gov.nist.javax.sip.Utils;
 import android.javax.sip.Dialog;
 import android.javax.sip.InvalidArgumentException;
@@ -64,7 +62,8 @@ public class SipUserAgentServer {
 	private final Logger logger = LoggerFactory.getLogger(SipUserAgentServer.class);
 
 	private final String stackName;
-	private final EventBus bus;
+	private final CallEventRouter bus;
+	private final SipuadaScheduler scheduler;
 	private final SipProvider provider;
 	private final MessageFactory messenger;
 	private final HeaderFactory headerMaker;
@@ -76,12 +75,13 @@ public class SipUserAgentServer {
 	private final int localPort;
 	private final String transport;
 
-	public SipUserAgentServer(String name, EventBus eventBus, SipProvider sipProvider,
-			Map<RequestMethod, SipuadaPlugin> plugins, MessageFactory messageFactory,
-			HeaderFactory headerFactory, AddressFactory addressFactory,
+	public SipUserAgentServer(String name, CallEventRouter eventBus, SipuadaScheduler sipuadaScheduler,
+			SipProvider sipProvider, Map<RequestMethod, SipuadaPlugin> plugins,
+			MessageFactory messageFactory, HeaderFactory headerFactory, AddressFactory addressFactory,
 			String... credentialsAndAddress) {
 		stackName = name;
 		bus = eventBus;
+		scheduler = sipuadaScheduler;
 		provider = sipProvider;
 		messenger = messageFactory;
 		headerMaker = headerFactory;
@@ -356,20 +356,15 @@ public class SipUserAgentServer {
 		bus.post(new EstablishedCallStarted(callId, dialog));
 		logger.info("New call established: {}.", callId);
 		if (sendByeRightAway) {
-			new Thread(new Runnable() {
+			scheduler.schedule(callId, new Runnable() {
 
 				@Override
 				public void run() {
-					try {
-						Thread.sleep(3000);
-					} catch (InterruptedException ignore) {
-						ignore.printStackTrace();
-					}
 					bus.post(new FinishEstablishedCall
 						("Media types negotiation failed.", callId));
 				}
 
-			}).start();
+			}, 3000);
 		}
 	}
 
@@ -488,6 +483,10 @@ public class SipUserAgentServer {
 		throw new RequestCouldNotBeAddressed();
 	}
 
+	protected void expireOfferAnswerExchange(String callId) {
+		sessionManager.expireOfferAnswerExchangeMessages(callId);
+	}
+
 	public void processRetransmission(TimeoutEvent retransmissionEvent) {
 		if (retransmissionEvent.isServerTransaction()) {
 			ServerTransaction serverTransaction = retransmissionEvent.getServerTransaction();
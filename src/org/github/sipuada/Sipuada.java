@@ -2,9 +2,12 @@ package org.github.sipuada;
 
 import java.net.Inet4Address;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.InterfaceAddress;
 import java.net.NetworkInterface;
 import java.net.SocketException;
+import java.net.UnknownHostException;
+import java.text.ParseException;
 import java.util.Collections;
 import java.util.Enumeration;
 import java.util.HashMap;
@@ -17,11 +20,17 @@ import java.util.NoSuchElementException;
 import java.util.Properties;
 import java.util.Random;
 import java.util.Set;
-import java.util.Timer;
-import java.util.TimerTask;
-
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.github.sipuada.CallRegistry.CallRecord;
 import org.github.sipuada.Constants.RequestMethod;
 import org.github.sipuada.Constants.Transport;
+import org.github.sipuada.IncomingRequestElection.DefaultElectionPolicy;
 import org.github.sipuada.Sipuada.RegisterOperation.OperationMethod;
 import org.github.sipuada.events.UserAgentNominatedForIncomingRequest;
 import org.github.sipuada.exceptions.InternalJainSipException;
@@ -32,18 +41,30 @@ import org.slf4j.LoggerFactory;
 
 import com.google.common.eventbus.EventBus;
 import com.google.common.eventbus.Subscribe;
+import com.google.common.util.concurrent.ListenableFuture;
+
+import de.javawi.jstun.test.DiscoveryClient;
+import de.javawi.jstun.test.DiscoveryInfo;
 
+import android.gov.nist.javax.sip.DnsAddressResolver;
+import android.gov.nist.javax.sip.ListeningPointImpl;
+import android.gov.nist.javax.sip.SipStackExt;
 import android.gov.nist.javax.sip.Utils;
+import android.gov.nist.javax.sip.address.AddressFactoryImpl;
+import android.gov.nist.javax.sip.stack.HopImpl;
+import android.gov.nist.javax.sip.stack.MessageProcessor;
+import android.gov.nist.javax.sip.stack.UDPMessageProcessor;
 import android.javax.sip.InvalidArgumentException;
 import android.javax.sip.ListeningPoint;
 import android.javax.sip.ObjectInUseException;
 import android.javax.sip.PeerUnavailableException;
-import android.javax.sip.RequestEvent;
 import android.javax.sip.SipException;
 import android.javax.sip.SipFactory;
 import android.javax.sip.SipProvider;
 import android.javax.sip.SipStack;
 import android.javax.sip.TransportNotSupportedException;
+import android.javax.sip.address.AddressFactory;
+import android.javax.sip.address.SipURI;
 import android.javax.sip.address.URI;
 import android.javax.sip.header.CallIdHeader;
 
@@ -51,6 +72,16 @@ public class Sipuada implements SipuadaApi {
 
 	private static final String STACK_NAME_PREFIX = "SipuadaUserAgentv0";
 	private static final int DEFAULT_REGISTRATION_LIFESPAN_SECONDS = 3600;
+	private static final int DEFAULT_SIP_PORT = 5060;
+	private static final AddressFactory ADDRESS_FACTORY = new AddressFactoryImpl();
+	private static final int DEFAULT_EVENT_DISPATCHER_THREADS = Math.max(2,
+			Runtime.getRuntime().availableProcessors());
+	// Shared by all the stacks so that they share the cached DNS records.
+	static final DnsAddressResolver ADDRESS_RESOLVER = generateAddressResolver();
+	// Shared by all the instances so that the NAT of each interface is discovered once.
+	static final DiscoveryClient NAT_DISCOVERY = new DiscoveryClient();
+	// Shared by all the instances so that each socket is bound once.
+	static final StunBindingClient STUN_BINDING = new StunBindingClient();
 
 	private final Logger logger = LoggerFactory.getLogger(Sipuada.class);
 
@@ -68,6 +99,9 @@ public class Sipuada implements SipuadaApi {
 			.synchronizedMap(new HashMap<String, CallIdHeader>());
 	private final Map<URI, Long> registerCSeqs = Collections
 			.synchronizedMap(new HashMap<URI, Long>());
+	// Local "ip:port" addresses unregistered since the last full registration.
+	private final Set<String> unregisteredLocalAddresses = Collections
+			.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
 	private final Map<RequestMethod, Boolean> registerOperationsInProgress = Collections
 			.synchronizedMap(new HashMap<RequestMethod, Boolean>());
 	{
@@ -78,22 +112,47 @@ public class Sipuada implements SipuadaApi {
 	private final List<RegisterOperation> postponedRegisterOperations = Collections
 			.synchronizedList(new LinkedList<RegisterOperation>());
 
-	private final Map<String, SipUserAgent> callIdToActiveUserAgent = Collections
-			.synchronizedMap(new HashMap<String, SipUserAgent>());
-	private final Map<SipUserAgent, Set<String>> activeUserAgentCallIds = Collections
-			.synchronizedMap(new HashMap<SipUserAgent, Set<String>>());
+	private final CallRegistry callRegistry = new CallRegistry();
 
-	private final Map<String, Set<ElectionCandidate>> electionIdToCandidates = Collections
-			.synchronizedMap(new HashMap<String, Set<ElectionCandidate>>());
-	private final Map<String, Boolean> electionStarted = new HashMap<>();
-	private Timer electionTimer;
+	private final DefaultElectionPolicy defaultElectionPolicy =
+			new DefaultElectionPolicy(callRegistry);
+	private final SharedTransportPool transportPool;
+	private final SipuadaScheduler scheduler;
+	private final ExecutorService eventDispatcher;
+	private final IncomingRequestElection incomingRequestElection;
+	private final RegistrationKeeper registrationKeeper;
 
 	private boolean intolerantModeEnabled = false;
+	private volatile int stunPort;
+	private volatile String stunServer;
+
+	private final RegistrationKeeper.Refresher registrationRefresher = new RegistrationKeeper.Refresher() {
+
+		@Override
+		public boolean refreshRegistration(int expires) {
+			return registerAddresses(new BasicRequestCallback() {
+
+				@Override
+				public void onRequestSuccess(String localUser, String localUserDomain,
+						Object... registeredContacts) {
+					logger.debug("Registration of {}@{} refreshed.", localUser, localUserDomain);
+				}
+
+				@Override
+				public void onRequestFailed(String localUser, String localUserDomain, String reason) {
+					logger.warn("Registration of {}@{} could not be refreshed: {}.",
+						localUser, localUserDomain, reason);
+				}
+
+			}, expires, true);
+		}
+
+	};
 
 	protected static class RegisterOperation {
 
 		public enum OperationMethod {
-			REGISTER_ADDRESSES, UNREGISTER_ADDRESSES, CLEAR_ADDRESSES,
+			REGISTER_ADDRESSES, REFRESH_ADDRESSES, UNREGISTER_ADDRESSES, CLEAR_ADDRESSES,
 			INCLUDE_USER_AGENTS, EXCLUDE_USER_AGENTS, OVERWRITE_USER_AGENTS
 		}
 
@@ -112,26 +171,6 @@ public class Sipuada implements SipuadaApi {
 
 	}
 
-	protected class ElectionCandidate {
-
-		private final SipUserAgent userAgentCandidate;
-		private final RequestEvent requestEvent;
-
-		public ElectionCandidate(SipUserAgent userAgent, RequestEvent event) {
-			userAgentCandidate = userAgent;
-			requestEvent = event;
-		}
-
-		public SipUserAgent getUserAgentCandidate() {
-			return userAgentCandidate;
-		}
-
-		public RequestEvent getRequestEvent() {
-			return requestEvent;
-		}
-
-	}
-
 	public Sipuada(SipuadaListener sipuadaListener, final String sipUsername,
 			final String sipPrimaryHost, String sipPassword,
 			String... localAddresses) throws SipuadaException {
@@ -141,6 +180,37 @@ public class Sipuada implements SipuadaApi {
 	public Sipuada(boolean intolerantModeIsEnabled, SipuadaListener sipuadaListener,
 			final String sipUsername, final String sipPrimaryHost, String sipPassword,
 			String... localAddresses) throws SipuadaException {
+		this(null, intolerantModeIsEnabled, sipuadaListener, sipUsername, sipPrimaryHost,
+			sipPassword, localAddresses);
+	}
+
+	public Sipuada(SharedTransportPool sharedTransportPool, boolean intolerantModeIsEnabled,
+			SipuadaListener sipuadaListener, final String sipUsername, final String sipPrimaryHost,
+			String sipPassword, String... localAddresses) throws SipuadaException {
+		transportPool = sharedTransportPool;
+		if (transportPool != null) {
+			scheduler = transportPool.getScheduler();
+			eventDispatcher = transportPool.getEventDispatcher();
+		} else {
+			scheduler = new SipuadaScheduler();
+			eventDispatcher = Executors.newFixedThreadPool(DEFAULT_EVENT_DISPATCHER_THREADS,
+					new ThreadFactory() {
+
+				private final AtomicInteger index = new AtomicInteger(1);
+
+				@Override
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "SipuadaEventDispatcher-"
+						+ index.getAndIncrement());
+					thread.setDaemon(true);
+					return thread;
+				}
+
+			});
+		}
+		incomingRequestElection = new IncomingRequestElection(scheduler, defaultElectionPolicy);
+		registrationKeeper = transportPool != null ? transportPool.getRegistrationKeeper()
+			: new RegistrationKeeper(scheduler);
 		eventBus.register(this);
 		intolerantModeEnabled = intolerantModeIsEnabled;
 		listener = sipuadaListener;
@@ -155,11 +225,9 @@ public class Sipuada implements SipuadaApi {
 				localIp = localAddress.split(":")[0];
 				localPort = localAddress.split(":")[1].split("/")[0];
 				transport = localAddress.split("/")[1];
-				SipStack stack = generateSipStack();
-				ListeningPoint listeningPoint = stack.createListeningPoint(localIp,
-						Integer.parseInt(localPort), transport);
+				ListeningPoint listeningPoint = generateListeningPoint(localIp,
+						Integer.parseInt(localPort), transport, listeningPointToStack);
 				listeningPoints.add(listeningPoint);
-				listeningPointToStack.put(listeningPoint, stack);
 			} catch (IndexOutOfBoundsException malformedAddress) {
 				logger.error("Malformed address: {}.", localAddress);
 				throw new SipuadaException("Malformed address provided: " + localAddress,
@@ -182,6 +250,19 @@ public class Sipuada implements SipuadaApi {
 			logger.error("No local address provided.");
 			throw new SipuadaException("No local address provided.", null);
 		}
+		//Only a domain without a port is looked up through NAPTR and SRV records.
+		int portSeparator = primaryHost.lastIndexOf(':');
+		boolean portGiven = portSeparator > primaryHost.lastIndexOf(']');
+		String primaryHostname = portGiven ? primaryHost.substring(0, portSeparator)
+			: primaryHost;
+		boolean numericHost = primaryHostname.indexOf(':') >= 0
+			|| primaryHostname.matches("[0-9.]+");
+		if (!portGiven && !numericHost) {
+			for (ListeningPoint listeningPoint : listeningPoints) {
+				ADDRESS_RESOLVER.prefetch(new HopImpl(primaryHostname, -1,
+					listeningPoint.getTransport()));
+			}
+		}
 
 		String mostVotedTransport = Transport.UNKNOWN.toString();
 		int mostVotesToATransport = 0;
@@ -204,13 +285,10 @@ public class Sipuada implements SipuadaApi {
 				}
 			}
 			Set<SipUserAgent> userAgents = transportToUserAgents.get(transport);
-			SipProvider sipProvider;
-			final String stackName;
+			SipUserAgent userAgent;
 			try {
 				SipStack stack = listeningPointToStack.get(listeningPoint);
-				sipProvider = stack.createSipProvider(listeningPoint);
-				stack.start();
-				stackName = stack.getStackName();
+				userAgent = generateUserAgent(stack, listeningPoint);
 			} catch (ObjectInUseException unexpectedException) {
 				logger.error("Unexpected problem: {}.", unexpectedException.getMessage(),
 						unexpectedException.getCause());
@@ -222,14 +300,7 @@ public class Sipuada implements SipuadaApi {
 				throw new SipuadaException("Unexpected problem: "
 						+ unexpectedException.getMessage(), unexpectedException);
 			}
-			SipUserAgent userAgent = new SipUserAgent(stackName, eventBus, sipProvider, sipuadaListener,
-					registeredPlugins, sipUsername, sipPrimaryHost, sipPassword,
-					listeningPoint.getIPAddress(), Integer.toString(listeningPoint.getPort()),
-					rawTransport, callIdToActiveUserAgent, activeUserAgentCallIds,
-					registerCallIds, registerCSeqs, intolerantModeEnabled);
 			userAgents.add(userAgent);
-			activeUserAgentCallIds.put(userAgent, Collections
-					.synchronizedSet(new HashSet<String>()));
 			transportVotes.put(transport, transportVotes.get(transport) + 1);
 			int votesToThisTransport = transportVotes.get(transport);
 			if (votesToThisTransport > mostVotesToATransport) {
@@ -281,19 +352,173 @@ public class Sipuada implements SipuadaApi {
 			logger.info("Sipuada created. Default transport: {}. UA: {}",
 					defaultTransport, userAgentsDump.toString());
 		}
+		defaultElectionPolicy.setPreferredTransport(defaultTransport);
 	}
 
 	public void setIntolerantModeEnabled(boolean intolerantModeIsEnabled) {
 		intolerantModeEnabled = intolerantModeIsEnabled;
 	}
 
+	/**
+	 * Once set, the NAT in front of each UDP user agent is discovered in the
+	 * background and, unless the NAT is symmetric, the address it maps the
+	 * socket of the user agent to is registered as Contact instead of the
+	 * local one. TCP and TLS user agents keep their local address.
+	 */
+	public void setStunServer(String stunServer, int stunPort) {
+		this.stunPort = stunPort;
+		this.stunServer = stunServer;
+		if (stunServer == null) {
+			return;
+		}
+		Set<Transport> transports = transportToUserAgents.keySet();
+		synchronized (transportToUserAgents) {
+			for (Transport transport : transports) {
+				Set<SipUserAgent> userAgents = transportToUserAgents.get(transport);
+				synchronized (userAgents) {
+					for (SipUserAgent userAgent : userAgents) {
+						if (isUdp(userAgent)) {
+							discoverNat(userAgent);
+							bindSocket(userAgent);
+						}
+					}
+				}
+			}
+		}
+	}
+
+	private DiscoveryInfo discoverNat(SipUserAgent userAgent) {
+		String server = stunServer;
+		if (server == null) {
+			return null;
+		}
+		try {
+			ListenableFuture<DiscoveryInfo> discovery = NAT_DISCOVERY.discover(InetAddress
+				.getByName(userAgent.getLocalIp()), server, stunPort);
+			return discovery.isDone() ? discovery.get() : null;
+		} catch (UnknownHostException | InterruptedException | ExecutionException failure) {
+			logger.debug("Could not discover the NAT of {} through {}: {}.",
+				userAgent.getLocalIp(), server, failure.getMessage());
+			return null;
+		}
+	}
+
+	// Binding from the socket of the user agent itself, as only that tells the
+	// port the NAT maps it to.
+	private InetSocketAddress bindSocket(SipUserAgent userAgent) {
+		String server = stunServer;
+		if (server == null) {
+			return null;
+		}
+		ListeningPoint listeningPoint = userAgent.getProvider()
+			.getListeningPoint(ListeningPoint.UDP);
+		if (!(listeningPoint instanceof ListeningPointImpl)) {
+			return null;
+		}
+		MessageProcessor processor = ((ListeningPointImpl) listeningPoint).getMessageProcessor();
+		if (!(processor instanceof UDPMessageProcessor)) {
+			return null;
+		}
+		ListenableFuture<InetSocketAddress> binding = STUN_BINDING
+			.bind((UDPMessageProcessor) processor, server, stunPort);
+		try {
+			return binding.isDone() ? binding.get() : null;
+		} catch (InterruptedException | ExecutionException failure) {
+			logger.debug("Could not bind {} through {}: {}.", localAddressOf(userAgent),
+				server, failure.getMessage());
+			return null;
+		}
+	}
+
+	// The Contact stays local until both the NAT discovery and the binding are done.
+	private String getContactAddress(SipUserAgent userAgent) {
+		if (!isUdp(userAgent)) {
+			return localAddressOf(userAgent);
+		}
+		DiscoveryInfo natInfo = discoverNat(userAgent);
+		if (natInfo == null || natInfo.isError() || natInfo.isBlockedUDP()
+				|| natInfo.isSymmetric()) {
+			return localAddressOf(userAgent);
+		}
+		InetSocketAddress publicAddress = bindSocket(userAgent);
+		if (publicAddress == null) {
+			return localAddressOf(userAgent);
+		}
+		return String.format("%s:%d", publicAddress.getAddress().getHostAddress(),
+			publicAddress.getPort());
+	}
+
+	private static boolean isUdp(SipUserAgent userAgent) {
+		return ListeningPoint.UDP.equalsIgnoreCase(userAgent.getTransport());
+	}
+
+	private ListeningPoint generateListeningPoint(String localIp, int localPort, String transport,
+			Map<ListeningPoint, SipStack> listeningPointToStack)
+					throws TransportNotSupportedException, InvalidArgumentException {
+		if (transportPool != null) {
+			ListeningPoint listeningPoint = transportPool
+				.acquireListeningPoint(localIp, localPort, transport);
+			listeningPointToStack.put(listeningPoint, transportPool.getSipStack(listeningPoint));
+			return listeningPoint;
+		}
+		SipStack stack = generateSipStack();
+		ListeningPoint listeningPoint = stack.createListeningPoint(localIp, localPort, transport);
+		listeningPointToStack.put(listeningPoint, stack);
+		return listeningPoint;
+	}
+
+	private SipUserAgent generateUserAgent(SipStack stack, ListeningPoint listeningPoint)
+			throws ObjectInUseException, SipException {
+		SipProvider sipProvider;
+		if (transportPool != null) {
+			sipProvider = transportPool.getSipProvider(listeningPoint);
+		} else {
+			sipProvider = stack.createSipProvider(listeningPoint);
+			stack.start();
+		}
+		SipUserAgent userAgent;
+		try {
+			userAgent = new SipUserAgent(stack.getStackName(), eventBus, scheduler,
+				eventDispatcher, sipProvider, listener, registeredPlugins, username, primaryHost,
+				password, listeningPoint.getIPAddress(), Integer.toString(listeningPoint.getPort()),
+				listeningPoint.getTransport().toUpperCase(), callRegistry, registerCallIds,
+				registerCSeqs, intolerantModeEnabled, transportPool == null);
+		} catch (RuntimeException unexpectedException) {
+			if (transportPool != null) {
+				transportPool.releaseListeningPoint(listeningPoint);
+			}
+			throw unexpectedException;
+		}
+		if (transportPool != null) {
+			transportPool.attach(userAgent);
+		}
+		return userAgent;
+	}
+
+	/*
+	 * The stacks are given the resolver already built, so they do not
+	 * configure it: it takes the DNS_* properties from the system ones.
+	 */
+	private static DnsAddressResolver generateAddressResolver() {
+		DnsAddressResolver addressResolver = new DnsAddressResolver();
+		try {
+			addressResolver.init(System.getProperties());
+		} catch (NumberFormatException invalidProperty) {
+			LoggerFactory.getLogger(Sipuada.class).error("Invalid DNS property: {}.",
+				invalidProperty.getMessage());
+		}
+		return addressResolver;
+	}
+
 	private SipStack generateSipStack() {
 		Properties properties = new Properties();
 		properties.setProperty("android.javax.sip.STACK_NAME", String.format("%s_%s",
 			STACK_NAME_PREFIX, Utils.getInstance().generateTag()));
 		SipFactory factory = SipFactory.getInstance();
 		try {
-			return factory.createSipStack(properties);
+			SipStack stack = factory.createSipStack(properties);
+			((SipStackExt) stack).setAddressResolver(ADDRESS_RESOLVER);
+			return stack;
 		} catch (PeerUnavailableException unexpectedException) {
 			logger.error("Unexpected problem: {}.", unexpectedException.getMessage(),
 					unexpectedException.getCause());
@@ -303,51 +528,109 @@ public class Sipuada implements SipuadaApi {
 	}
 
 	@Subscribe
-	public synchronized void electBestUserAgentForIncomingRequest(UserAgentNominatedForIncomingRequest event) {
-		String method = event.getRequestEvent().getRequest().getMethod();
-		String callId = event.getCallId();
-		final String electionId = String.format("(%s:%s)", method, callId);
-		if (!electionStarted.containsKey(electionId) || !electionStarted.get(electionId)) {
-			if (electionTimer != null) {
-				electionTimer.cancel();
+	public void electBestUserAgentForIncomingRequest(UserAgentNominatedForIncomingRequest event) {
+		// Only the user agents listening on the transport the request came in on
+		// can receive copies of it, those of the other transports never nominate.
+		int eligibleUserAgents = 1;
+		Transport transport = Transport.UNKNOWN;
+		try {
+			transport = Transport.valueOf(event.getCandidateUserAgent()
+				.getTransport().toUpperCase());
+		} catch (IllegalArgumentException ignore) {}
+		synchronized (transportToUserAgents) {
+			Set<SipUserAgent> userAgents = transportToUserAgents.get(transport);
+			if (userAgents != null) {
+				synchronized (userAgents) {
+					eligibleUserAgents = Math.max(1, userAgents.size());
+				}
+			}
+		}
+		incomingRequestElection.nominate(event.getCandidateUserAgent(), event.getCallId(),
+			event.getRequestEvent(), eligibleUserAgents);
+	}
+
+	public IncomingRequestElection getIncomingRequestElection() {
+		return incomingRequestElection;
+	}
+
+	public SipuadaScheduler getScheduler() {
+		return scheduler;
+	}
+
+	public RegistrationKeeper getRegistrationKeeper() {
+		return registrationKeeper;
+	}
+
+	public Long getNextRegistrationRefreshTime() {
+		return registrationKeeper.getNextRefreshTimes().get(getIdentity());
+	}
+
+	private String getIdentity() {
+		return String.format("%s@%s", username, primaryHost);
+	}
+
+	private int computeGrantedExpires(SipUserAgent userAgent,
+			List<String> registeredAddresses, int requestedExpires) {
+		int grantedExpires = -1;
+		for (Map.Entry<String, Integer> binding : userAgent
+				.getRegisteredContactExpires().entrySet()) {
+			int bindingExpires = binding.getValue() == null ? -1 : binding.getValue();
+			if (bindingExpires <= 0) {
+				continue;
+			}
+			SipURI bindingUri = parseSipUri(binding.getKey());
+			if (bindingUri == null) {
+				continue;
 			}
-			synchronized (electionIdToCandidates) {
-				if (!electionIdToCandidates.containsKey(electionId)) {
-					electionIdToCandidates.put(electionId, Collections
-							.synchronizedSet(new HashSet<ElectionCandidate>()));
+			for (String registeredAddress : registeredAddresses) {
+				if (bindsAddress(bindingUri, registeredAddress) && (grantedExpires < 0
+						|| bindingExpires < grantedExpires)) {
+					grantedExpires = bindingExpires;
 				}
-				electionIdToCandidates.get(electionId)
-					.add(new ElectionCandidate(event.getCandidateUserAgent(),
-							event.getRequestEvent()));
 			}
-			electionTimer = new Timer();
-			electionTimer.schedule(new TimerTask() {
+		}
+		return grantedExpires > 0 ? grantedExpires : requestedExpires;
+	}
 
-				@Override
-				public void run() {
-					electionStarted.put(electionId, true);
-					Set<ElectionCandidate> electionCandidates = electionIdToCandidates.get(electionId);
-					synchronized (electionCandidates) {
-						Iterator<ElectionCandidate> candidatesIterator = electionCandidates.iterator();
-						ElectionCandidate bestCandidate = candidatesIterator.next();
-						int randomNumber = (new Random()).nextInt(electionCandidates.size());
-						while (candidatesIterator.hasNext() && randomNumber > 0) {
-							bestCandidate = candidatesIterator.next();
-							randomNumber--;
+	private SipURI parseSipUri(String uri) {
+		try {
+			URI parsedUri = ADDRESS_FACTORY.createURI(uri);
+			return parsedUri instanceof SipURI ? (SipURI) parsedUri : null;
+		} catch (ParseException malformedUri) {
+			logger.debug("Malformed contact binding {} ignored.", uri);
+			return null;
+		}
+	}
+
+	/*
+	 * Whether the binding is a Contact of ours for the given "ip:port" address.
+	 */
+	private boolean bindsAddress(SipURI bindingUri, String address) {
+		int separator = address.lastIndexOf(':');
+		String host = separator < 0 ? address : address.substring(0, separator);
+		int port = separator < 0 ? -1 : Integer.parseInt(address.substring(separator + 1));
+		int bindingPort = bindingUri.getPort();
+		return username.equals(bindingUri.getUser()) && host.equalsIgnoreCase(bindingUri.getHost())
+			&& (port < 0 || port == (bindingPort < 0 ? DEFAULT_SIP_PORT : bindingPort));
+	}
+
+	private boolean hasRegistrationsKeptAlive() {
+		synchronized (transportToUserAgents) {
+			for (Set<SipUserAgent> userAgents : transportToUserAgents.values()) {
+				synchronized (userAgents) {
+					for (SipUserAgent userAgent : userAgents) {
+						if (!unregisteredLocalAddresses.contains(localAddressOf(userAgent))) {
+							return true;
 						}
-						SipUserAgent userAgent = bestCandidate.getUserAgentCandidate();
-						RequestEvent requestEvent = bestCandidate.getRequestEvent();
-						logger.debug("{}:{}/{}'s UAS was elected to process an incoming {} request!",
-								userAgent.getLocalIp(), userAgent.getLocalPort(), userAgent.getTransport(),
-								requestEvent.getRequest().getMethod());
-						userAgent.doProcessRequest(requestEvent);
 					}
-					electionCandidates.clear();
-					electionStarted.put(electionId, false);
 				}
-
-			}, 1000);
+			}
 		}
+		return false;
+	}
+
+	private static String localAddressOf(SipUserAgent userAgent) {
+		return String.format("%s:%d", userAgent.getLocalIp(), userAgent.getLocalPort());
 	}
 
 	@Override
@@ -356,15 +639,28 @@ public class Sipuada implements SipuadaApi {
 	}
 
 	@Override
-	public boolean registerAddresses(final BasicRequestCallback callback, int expires) {
+	public boolean registerAddresses(final BasicRequestCallback callback, final int expires) {
+		return registerAddresses(callback, expires, false);
+	}
+
+	/*
+	 * A refresh renews the registrations being kept alive, leaving out
+	 * the addresses unregistered since the last full registration.
+	 */
+	private boolean registerAddresses(final BasicRequestCallback callback, final int expires,
+			boolean refresh) {
 		if (registerOperationsInProgress.get(RequestMethod.REGISTER)) {
-			postponedRegisterOperations.add(new RegisterOperation(OperationMethod.REGISTER_ADDRESSES,
+			postponedRegisterOperations.add(new RegisterOperation(refresh
+					? OperationMethod.REFRESH_ADDRESSES : OperationMethod.REGISTER_ADDRESSES,
 					callback, expires));
 			logger.info("Register addresses: operation postponed because another " +
 					"related operation is in progress.");
 			return true;
 		}
-		List<String> registeredAddresses = new LinkedList<>();
+		if (!refresh) {
+			unregisteredLocalAddresses.clear();
+		}
+		final List<String> registeredAddresses = new LinkedList<>();
 		Set<Transport> transports = transportToUserAgents.keySet();
 		synchronized (transportToUserAgents) {
 			for (Transport transport : transports) {
@@ -373,26 +669,37 @@ public class Sipuada implements SipuadaApi {
 					Iterator<SipUserAgent> iterator = userAgents.iterator();
 					while (iterator.hasNext()) {
 						SipUserAgent userAgent = iterator.next();
-						registeredAddresses.add(String.format("%s:%d",
-								userAgent.getLocalIp(), userAgent.getLocalPort()));
+						if (!unregisteredLocalAddresses.contains(localAddressOf(userAgent))) {
+							registeredAddresses.add(getContactAddress(userAgent));
+						}
 					}
 				}
 			}
 		}
-		logger.debug("All existing registrations will be renewed.");
+		if (registeredAddresses.isEmpty()) {
+			logger.debug("No registration left to be renewed.");
+			registrationKeeper.cancel(getIdentity());
+			return true;
+		}
+		logger.debug(refresh ? "Registrations being kept alive will be renewed."
+			: "All existing registrations will be renewed.");
 		try {
-			boolean couldDispatchOperation = chooseBestAgentThatIsAvailable()
+			final SipUserAgent userAgent = chooseBestAgentThatIsAvailable();
+			boolean couldDispatchOperation = userAgent
 				.sendRegisterRequest(new BasicRequestCallback() {
 
 					@Override
 					public void onRequestSuccess(String localUser, String localUserDomain,
 							Object... registeredContacts) {
+						registrationKeeper.registrationGranted(getIdentity(), computeGrantedExpires
+							(userAgent, registeredAddresses, expires), registrationRefresher);
 						registerRelatedOperationFinished(localUser, localUserDomain);
 						callback.onRequestSuccess(localUser, localUserDomain, registeredContacts);
 					}
 
 					@Override
 					public void onRequestFailed(String localUser, String localUserDomain, String reason) {
+						registrationKeeper.refreshFailed(getIdentity(), expires);
 						registerRelatedOperationFinished(localUser, localUserDomain);
 						callback.onRequestFailed(localUser, localUserDomain, reason);
 					}
@@ -447,6 +754,11 @@ public class Sipuada implements SipuadaApi {
 						listeningPoint.getPort(), listeningPoint.getTransport().toUpperCase());
 			}
 		}
+		//Stop refreshing the addresses removed only: the others must be kept alive.
+		unregisteredLocalAddresses.addAll(unregisteredAddresses);
+		if (!hasRegistrationsKeptAlive()) {
+			registrationKeeper.cancel(getIdentity());
+		}
 		try {
 			boolean couldDispatchOperation = chooseBestAgentThatIsAvailable()
 				.sendUnregisterRequest(new BasicRequestCallback() {
@@ -476,6 +788,7 @@ public class Sipuada implements SipuadaApi {
 
 	@Override
 	public boolean clearAddresses(final BasicRequestCallback callback) {
+		registrationKeeper.cancel(getIdentity());
 		if (registerOperationsInProgress.get(RequestMethod.REGISTER)) {
 			postponedRegisterOperations.add(new RegisterOperation(OperationMethod.CLEAR_ADDRESSES,
 					callback, 0));
@@ -556,6 +869,7 @@ public class Sipuada implements SipuadaApi {
 			logger.debug("{}:{}/{} registration will be left untouched.", listeningPoint.getIPAddress(),
 					listeningPoint.getPort(), listeningPoint.getTransport().toUpperCase());
 		}
+		unregisteredLocalAddresses.removeAll(registeredAddresses);
 		try {
 			boolean couldDispatchOperation = chooseBestAgentThatIsAvailable()
 				.sendRegisterRequest(new BasicRequestCallback() {
@@ -857,10 +1171,8 @@ public class Sipuada implements SipuadaApi {
 						localIp = localAddress.split(":")[0];
 						localPort = localAddress.split(":")[1].split("/")[0];
 						rawTransport = localAddress.split("/")[1];
-						SipStack stack = generateSipStack();
-						ListeningPoint listeningPoint = stack.createListeningPoint(localIp,
-								Integer.parseInt(localPort), rawTransport);
-						listeningPointToStack.put(listeningPoint, stack);
+						ListeningPoint listeningPoint = generateListeningPoint(localIp,
+								Integer.parseInt(localPort), rawTransport, listeningPointToStack);
 						brandNew.add(listeningPoint);
 					} catch (IndexOutOfBoundsException malformedAddress) {
 						logger.error("Malformed address: {}.", localAddress);
@@ -898,6 +1210,10 @@ public class Sipuada implements SipuadaApi {
 						couldDispatchOperation = registerAddresses
 							(operation.callback, operation.expires);
 						break;
+					case REFRESH_ADDRESSES:
+						couldDispatchOperation = registerAddresses
+							(operation.callback, operation.expires, true);
+						break;
 					case UNREGISTER_ADDRESSES:
 						couldDispatchOperation = unregisterAddresses
 							(operation.callback, operation.arguments);
@@ -934,8 +1250,6 @@ public class Sipuada implements SipuadaApi {
 		for (ListeningPoint listeningPoint : brandNewListeningPoints) {
 			try {
 				SipStack stack = listeningPointToStack.get(listeningPoint);
-				SipProvider sipProvider = stack.createSipProvider(listeningPoint);
-				stack.start();
 				String rawTransport = listeningPoint.getTransport().toUpperCase();
 				Transport transport = Transport.UNKNOWN;
 				try {
@@ -949,15 +1263,7 @@ public class Sipuada implements SipuadaApi {
 					}
 				}
 				Set<SipUserAgent> userAgents = transportToUserAgents.get(transport);
-				SipUserAgent userAgent = new SipUserAgent(stack.getStackName(),
-					eventBus, sipProvider, listener, registeredPlugins,
-					username, primaryHost, password, listeningPoint.getIPAddress(),
-					Integer.toString(listeningPoint.getPort()), rawTransport,
-					callIdToActiveUserAgent, activeUserAgentCallIds,
-					registerCallIds, registerCSeqs, intolerantModeEnabled);
-				userAgents.add(userAgent);
-				activeUserAgentCallIds.put(userAgent, Collections
-						.synchronizedSet(new HashSet<String>()));
+				userAgents.add(generateUserAgent(stack, listeningPoint));
 			} catch (ObjectInUseException unexpectedException) {
 				logger.error("Unexpected problem: {}.", unexpectedException.getMessage(),
 						unexpectedException.getCause());
@@ -988,8 +1294,7 @@ public class Sipuada implements SipuadaApi {
 									&& expiredListeningPoint.getPort() == userAgent.getLocalPort()
 									&& expiredListeningPoint.getTransport().toUpperCase()
 										.equals(userAgent.getTransport())) {
-								Set<String> activeCallIds = activeUserAgentCallIds.get(userAgent);
-								if (activeCallIds != null && !activeCallIds.isEmpty()) {
+								if (callRegistry.hasActiveCalls(userAgent)) {
 									logger.error("UserAgent bound to {}:{} through {}" +
 											" cannot be removed as it is currently in use.",
 											expiredListeningPoint.getIPAddress(),
@@ -1065,27 +1370,21 @@ public class Sipuada implements SipuadaApi {
 									&& expiredListeningPoint.getPort() == userAgent.getLocalPort()
 									&& expiredListeningPoint.getTransport().toUpperCase()
 										.equals(userAgent.getTransport())) {
-								SipProvider provider = userAgent.getProvider();
-								SipStack stack = provider.getSipStack();
-								try {
-									stack.deleteSipProvider(provider);
-									stack.deleteListeningPoint(expiredListeningPoint);
-								} catch (ObjectInUseException ignore) {
-									ignore.printStackTrace();
-								}
-								synchronized (activeUserAgentCallIds) {
-									Set<String> activeCallIds = activeUserAgentCallIds.get(userAgent);
-									if (activeCallIds != null) {
-										synchronized (activeCallIds) {
-											Iterator<String> callIdsIterator = activeCallIds.iterator();
-											while (callIdsIterator.hasNext()) {
-												String callId = callIdsIterator.next();
-												callIdToActiveUserAgent.remove(callId);
-											}
-											activeUserAgentCallIds.remove(userAgent);
-										}
+								if (transportPool != null) {
+									transportPool.detach(userAgent);
+								} else {
+									SipProvider provider = userAgent.getProvider();
+									SipStack stack = provider.getSipStack();
+									try {
+										stack.deleteSipProvider(provider);
+										stack.deleteListeningPoint(expiredListeningPoint);
+									} catch (ObjectInUseException ignore) {
+										ignore.printStackTrace();
 									}
 								}
+								for (CallRecord finishedCall : callRegistry.finishAll(userAgent)) {
+									scheduler.cancelAll(finishedCall.getCallId());
+								}
 								userAgentsIterator.remove();
 								if (userAgents.isEmpty()) {
 									transportsIterator.remove();
@@ -1221,7 +1520,7 @@ public class Sipuada implements SipuadaApi {
 
 	@Override
 	public boolean cancelCallInvitation(String callId) {
-		SipUserAgent userAgent = callIdToActiveUserAgent.get(callId);
+		SipUserAgent userAgent = callRegistry.getUserAgent(callId);
 		if (userAgent == null) {
 			return false;
 		}
@@ -1234,7 +1533,7 @@ public class Sipuada implements SipuadaApi {
 
 	@Override
 	public boolean acceptCallInvitation(String callId) {
-		SipUserAgent userAgent = callIdToActiveUserAgent.get(callId);
+		SipUserAgent userAgent = callRegistry.getUserAgent(callId);
 		if (userAgent == null) {
 			return false;
 		}
@@ -1247,7 +1546,7 @@ public class Sipuada implements SipuadaApi {
 
 	@Override
 	public boolean declineCallInvitation(String callId) {
-		SipUserAgent userAgent = callIdToActiveUserAgent.get(callId);
+		SipUserAgent userAgent = callRegistry.getUserAgent(callId);
 		if (userAgent == null) {
 			return false;
 		}
@@ -1260,7 +1559,7 @@ public class Sipuada implements SipuadaApi {
 
 	@Override
 	public boolean finishCall(String callId) {
-		SipUserAgent userAgent = callIdToActiveUserAgent.get(callId);
+		SipUserAgent userAgent = callRegistry.getUserAgent(callId);
 		if (userAgent == null) {
 			return false;
 		}
@@ -1285,14 +1584,43 @@ public class Sipuada implements SipuadaApi {
 	@Override
 	public boolean sendMessage(String callId, String content, String contentType,
 			BasicRequestCallback callback, String... additionalHeaders) {
+		SipUserAgent userAgent = callRegistry.getUserAgent(callId);
+		if (userAgent == null) {
+			return false;
+		}
 		try {
-			return chooseBestAgentThatIsAvailable().sendMessageRequest(callId, content, contentType,
+			return userAgent.sendMessageRequest(callId, content, contentType,
 				callback, additionalHeaders);
 		} catch (InternalJainSipException internalJainSipError) {
 			return false;
 		}
 	}
 
+	public void finishAllCalls() {
+		for (CallRecord call : callRegistry.snapshot()) {
+			SipUserAgent userAgent = call.getUserAgent();
+			try {
+				switch (call.getState()) {
+					case INVITE_PENDING:
+						userAgent.cancelInviteRequest(call.getCallId());
+						break;
+					case INVITE_ANSWERABLE:
+						userAgent.answerInviteRequest(call.getCallId(), false);
+						break;
+					case ESTABLISHED:
+						userAgent.finishCall(call.getCallId());
+						break;
+				}
+			} catch (InternalJainSipException internalJainSipError) {
+				logger.error("Could not finish call {}.", call.getCallId(), internalJainSipError);
+			}
+		}
+	}
+
+	public CallRegistry getCallRegistry() {
+		return callRegistry;
+	}
+
 	@Override
 	public boolean registerPlugin(SipuadaPlugin plugin) {
 		if (registeredPlugins.containsKey(RequestMethod.INVITE)) {
@@ -1304,6 +1632,8 @@ public class Sipuada implements SipuadaApi {
 
 	public void destroySipuada() {
 		eventBus.unregister(this);
+		registrationKeeper.cancel(getIdentity());
+		incomingRequestElection.shutdown();
 		Set<Transport> transports = transportToUserAgents.keySet();
 		synchronized (transportToUserAgents) {
 			for (Transport transport : transports) {
@@ -1315,14 +1645,21 @@ public class Sipuada implements SipuadaApi {
 				}
 			}
 			transportToUserAgents.clear();
-			callIdToActiveUserAgent.clear();
-			activeUserAgentCallIds.clear();
+			callRegistry.clear();
 			registerOperationsInProgress.put(RequestMethod.REGISTER, false);
 			postponedRegisterOperations.clear();
 		}
+		if (transportPool == null) {
+			scheduler.shutdown();
+			eventDispatcher.shutdown();
+		}
 	}
 
 	private void destroyUserAgent(SipUserAgent userAgent) {
+		if (transportPool != null) {
+			transportPool.detach(userAgent);
+			return;
+		}
 		SipProvider provider = userAgent.getProvider();
 		if (provider != null) {
 			SipStack stack = provider.getSipStack();
@@ -0,0 +1,278 @@
+package org.github.sipuada;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Delayed and immediate actions of the user agents, tracked by Call-ID so
+ * that those of a call can be canceled when it is over. The timer threads
+ * only fire the tasks: the tasks themselves run on a separate pool of
+ * workers, so that one blocked in a network send or a DNS lookup never
+ * holds back the timers of the other calls.
+ */
+public class SipuadaScheduler {
+
+	public static final int DEFAULT_THREADS = Math.max(2,
+		Math.min(4, Runtime.getRuntime().availableProcessors()));
+	private static final String UNBOUND_TASKS_KEY = "";
+
+	private final Logger logger = LoggerFactory.getLogger(SipuadaScheduler.class);
+
+	private final ScheduledThreadPoolExecutor executor;
+	private final ExecutorService workers;
+	private final ConcurrentMap<String, Set<ScheduledTask>> callIdToTasks =
+			new ConcurrentHashMap<>();
+
+	private final AtomicLong scheduledTasks = new AtomicLong();
+	private final AtomicLong firedTasks = new AtomicLong();
+	private final AtomicLong canceledTasks = new AtomicLong();
+	private final AtomicLong pendingTasks = new AtomicLong();
+
+	public class ScheduledTask implements Runnable {
+
+		private final String callId;
+		private final Runnable task;
+		private final boolean periodic;
+		private final AtomicInteger state = new AtomicInteger(PENDING);
+		private final AtomicInteger runningPeriods = new AtomicInteger();
+		private volatile ScheduledFuture<?> future;
+
+		private static final int PENDING = 0;
+		private static final int FIRED = 1;
+		private static final int CANCELED = 2;
+
+		private ScheduledTask(String callId, Runnable task, boolean periodic) {
+			this.callId = callId;
+			this.task = task;
+			this.periodic = periodic;
+		}
+
+		@Override
+		public void run() {
+			if (state.get() == CANCELED) {
+				return;
+			}
+			if (!periodic) {
+				if (!state.compareAndSet(PENDING, FIRED)) {
+					return;
+				}
+				pendingTasks.decrementAndGet();
+				untrack(this);
+			}
+			else if (!runningPeriods.compareAndSet(0, 1)) {
+				//The previous period is still running, skip this one.
+				return;
+			}
+			firedTasks.incrementAndGet();
+			try {
+				workers.execute(new Runnable() {
+
+					@Override
+					public void run() {
+						try {
+							if (!periodic || state.get() != CANCELED) {
+								task.run();
+							}
+						} catch (Throwable unexpectedException) {
+							logger.error("Scheduled task bound to call {} crashed.",
+								callId, unexpectedException);
+						} finally {
+							runningPeriods.set(0);
+						}
+					}
+
+				});
+			} catch (RejectedExecutionException schedulerAlreadyShutdown) {
+				runningPeriods.set(0);
+				logger.error("Could not run task bound to call {}: scheduler is shut down.", callId);
+			}
+		}
+
+		public boolean cancel() {
+			if (!state.compareAndSet(PENDING, CANCELED)) {
+				return false;
+			}
+			pendingTasks.decrementAndGet();
+			canceledTasks.incrementAndGet();
+			untrack(this);
+			ScheduledFuture<?> scheduledFuture = future;
+			if (scheduledFuture != null) {
+				scheduledFuture.cancel(false);
+			}
+			return true;
+		}
+
+		public boolean isCanceled() {
+			return state.get() == CANCELED;
+		}
+
+		public String getCallId() {
+			return callId;
+		}
+
+	}
+
+	public SipuadaScheduler() {
+		this(DEFAULT_THREADS);
+	}
+
+	public SipuadaScheduler(int threads) {
+		executor = new ScheduledThreadPoolExecutor(threads, new ThreadFactory() {
+
+			private final AtomicInteger index = new AtomicInteger(1);
+
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "SipuadaScheduler-"
+					+ index.getAndIncrement());
+				thread.setDaemon(true);
+				return thread;
+			}
+
+		});
+		executor.setRemoveOnCancelPolicy(true);
+		executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+		workers = Executors.newCachedThreadPool(new ThreadFactory() {
+
+			private final AtomicInteger index = new AtomicInteger(1);
+
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "SipuadaWorker-"
+					+ index.getAndIncrement());
+				thread.setDaemon(true);
+				return thread;
+			}
+
+		});
+	}
+
+	/**
+	 * Runs the task right away on a worker, without going through the timers.
+	 */
+	public ScheduledTask execute(String callId, Runnable task) {
+		ScheduledTask scheduledTask = track(new ScheduledTask(callId, task, false));
+		scheduledTask.run();
+		return scheduledTask;
+	}
+
+	public ScheduledTask schedule(String callId, Runnable task, long delayMillis) {
+		ScheduledTask scheduledTask = track(new ScheduledTask(callId, task, false));
+		try {
+			scheduledTask.future = executor.schedule(scheduledTask,
+				Math.max(0, delayMillis), TimeUnit.MILLISECONDS);
+		} catch (RejectedExecutionException schedulerAlreadyShutdown) {
+			scheduledTask.cancel();
+			logger.error("Could not schedule task bound to call {}: scheduler is shut down.", callId);
+		}
+		return scheduledTask;
+	}
+
+	public ScheduledTask scheduleAtFixedRate(String callId, Runnable task,
+			long initialDelayMillis, long periodMillis) {
+		ScheduledTask scheduledTask = track(new ScheduledTask(callId, task, true));
+		try {
+			scheduledTask.future = executor.scheduleAtFixedRate(scheduledTask,
+				Math.max(0, initialDelayMillis), periodMillis, TimeUnit.MILLISECONDS);
+		} catch (RejectedExecutionException schedulerAlreadyShutdown) {
+			scheduledTask.cancel();
+			logger.error("Could not schedule task bound to call {}: scheduler is shut down.", callId);
+		}
+		return scheduledTask;
+	}
+
+	public int cancelAll(String callId) {
+		Set<ScheduledTask> tasks = callIdToTasks.remove(keyOf(callId));
+		if (tasks == null) {
+			return 0;
+		}
+		int canceled = 0;
+		for (ScheduledTask task : tasks) {
+			if (task.cancel()) {
+				canceled++;
+			}
+		}
+		return canceled;
+	}
+
+	private ScheduledTask track(ScheduledTask task) {
+		String key = keyOf(task.callId);
+		while (true) {
+			Set<ScheduledTask> tasks = callIdToTasks.get(key);
+			if (tasks == null) {
+				Set<ScheduledTask> newTasks = Collections
+					.newSetFromMap(new ConcurrentHashMap<ScheduledTask, Boolean>());
+				tasks = callIdToTasks.putIfAbsent(key, newTasks);
+				if (tasks == null) {
+					tasks = newTasks;
+				}
+			}
+			tasks.add(task);
+			if (callIdToTasks.get(key) == tasks) {
+				break;
+			}
+			tasks.remove(task);
+		}
+		scheduledTasks.incrementAndGet();
+		pendingTasks.incrementAndGet();
+		return task;
+	}
+
+	private void untrack(ScheduledTask task) {
+		String key = keyOf(task.callId);
+		Set<ScheduledTask> tasks = callIdToTasks.get(key);
+		if (tasks != null) {
+			tasks.remove(task);
+			if (tasks.isEmpty()) {
+				callIdToTasks.remove(key, tasks);
+			}
+		}
+	}
+
+	private String keyOf(String callId) {
+		return callId == null ? UNBOUND_TASKS_KEY : callId;
+	}
+
+	public long getScheduledTasks() {
+		return scheduledTasks.get();
+	}
+
+	public long getFiredTasks() {
+		return firedTasks.get();
+	}
+
+	public long getCanceledTasks() {
+		return canceledTasks.get();
+	}
+
+	public long getPendingTasks() {
+		return pendingTasks.get();
+	}
+
+	public int getTrackedCalls() {
+		return callIdToTasks.size();
+	}
+
+	public void shutdown() {
+		for (String callId : callIdToTasks.keySet()) {
+			cancelAll(callId);
+		}
+		executor.shutdownNow();
+		workers.shutdownNow();
+	}
+
+}
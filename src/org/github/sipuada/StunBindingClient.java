@@ -0,0 +1,228 @@
+package org.github.sipuada;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+
+import android.gov.nist.javax.sip.stack.UDPMessageProcessor;
+import de.javawi.jstun.attribute.MappedResponseChangedSourceAddressReflectedFrom;
+import de.javawi.jstun.attribute.MessageAttribute;
+import de.javawi.jstun.attribute.MessageAttributeParsingException;
+import de.javawi.jstun.header.MessageHeader;
+import de.javawi.jstun.header.MessageHeaderParsingException;
+import de.javawi.jstun.test.DiscoveryClient;
+import de.javawi.jstun.util.UtilityException;
+
+/**
+ * Does STUN bindings from the very UDP sockets SIP uses, so that the
+ * address found is the one the NAT maps these sockets to and may be
+ * registered as Contact. The binding requests are retransmitted as
+ * DiscoveryClient does, and the outcomes are reused for as long.
+ */
+class StunBindingClient implements UDPMessageProcessor.StunMessageHandler {
+
+	private static final Logger logger = LoggerFactory.getLogger(StunBindingClient.class);
+
+	private static final int INITIAL_RETRANSMISSION_TIMEOUT = 100; // ms
+	private static final int MAX_RETRANSMISSION_TIMEOUT = 1600; // ms
+
+	private final ConcurrentHashMap<String, CacheEntry> cache = new ConcurrentHashMap<>();
+	private final ConcurrentHashMap<ByteBuffer, Binding> pendingBindings = new ConcurrentHashMap<>();
+	private final ScheduledExecutorService timer = Executors
+		.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "StunBinding");
+				thread.setDaemon(true);
+				return thread;
+			}
+
+		});
+	private volatile long timeToLive = DiscoveryClient.DEFAULT_TIME_TO_LIVE;
+	private volatile int timeout = DiscoveryClient.DEFAULT_TIMEOUT;
+
+	private static final class CacheEntry {
+		final SettableFuture<InetSocketAddress> future = SettableFuture.create();
+		volatile long expiresAt = Long.MAX_VALUE;
+	}
+
+	private final class Binding implements Runnable {
+
+		final String key;
+		final CacheEntry entry;
+		final UDPMessageProcessor processor;
+		final InetSocketAddress server;
+		final ByteBuffer transactionId;
+		final byte[] request;
+		final long giveUpAt;
+		int retransmissionTimeout = INITIAL_RETRANSMISSION_TIMEOUT;
+
+		Binding(String key, CacheEntry entry, UDPMessageProcessor processor,
+				InetSocketAddress server, ByteBuffer transactionId, byte[] request) {
+			this.key = key;
+			this.entry = entry;
+			this.processor = processor;
+			this.server = server;
+			this.transactionId = transactionId;
+			this.request = request;
+			this.giveUpAt = System.currentTimeMillis() + timeout;
+		}
+
+		@Override
+		public void run() {
+			if (entry.future.isDone()) {
+				return;
+			}
+			if (System.currentTimeMillis() >= giveUpAt) {
+				fail(this, new IOException(String.format("No STUN binding response from %s",
+					server)));
+				return;
+			}
+			try {
+				processor.sendStunMessage(request, server);
+			} catch (IOException failure) {
+				fail(this, failure);
+				return;
+			}
+			timer.schedule(this, retransmissionTimeout, TimeUnit.MILLISECONDS);
+			retransmissionTimeout = Math.min(retransmissionTimeout * 2,
+				MAX_RETRANSMISSION_TIMEOUT);
+		}
+
+	}
+
+	/**
+	 * @param timeToLive how long, in ms, a binding outcome is reused.
+	 */
+	public void setTimeToLive(long timeToLive) {
+		this.timeToLive = timeToLive;
+	}
+
+	/**
+	 * @param timeout how long, in ms, a binding request is retransmitted
+	 * before giving up.
+	 */
+	public void setTimeout(int timeout) {
+		this.timeout = timeout;
+	}
+
+	/**
+	 * Starts a binding from the socket of the processor unless a recent or
+	 * ongoing one to the same STUN server exists, in which case its outcome
+	 * is returned. The name of the STUN server is resolved by the calling
+	 * thread.
+	 */
+	public ListenableFuture<InetSocketAddress> bind(UDPMessageProcessor processor,
+			String stunServer, int stunPort) {
+		String key = String.format("%s:%d/%s:%d", processor.getIpAddress().getHostAddress(),
+			processor.getPort(), stunServer, stunPort);
+		while (true) {
+			CacheEntry entry = cache.get(key);
+			if (entry != null && entry.expiresAt > System.currentTimeMillis()) {
+				return entry.future;
+			}
+			CacheEntry freshEntry = new CacheEntry();
+			if (entry == null ? cache.putIfAbsent(key, freshEntry) != null
+					: !cache.replace(key, entry, freshEntry)) {
+				continue;
+			}
+			try {
+				InetSocketAddress server = new InetSocketAddress(InetAddress
+					.getByName(stunServer), stunPort);
+				MessageHeader request = new MessageHeader(MessageHeader
+					.MessageHeaderType.BindingRequest);
+				ByteBuffer transactionId;
+				do {
+					request.generateRfc5389TransactionID();
+					transactionId = ByteBuffer.wrap(request.getTransactionID());
+				} while (pendingBindings.containsKey(transactionId));
+				Binding binding = new Binding(key, freshEntry, processor, server,
+					transactionId, request.getBytes());
+				processor.setStunMessageHandler(this);
+				pendingBindings.put(transactionId, binding);
+				timer.execute(binding);
+			} catch (IOException failure) {
+				cache.remove(key, freshEntry);
+				freshEntry.future.setException(failure);
+			} catch (UtilityException failure) {
+				cache.remove(key, freshEntry);
+				freshEntry.future.setException(new IOException(failure));
+			}
+			return freshEntry.future;
+		}
+	}
+
+	@Override
+	public void handleStunMessage(UDPMessageProcessor processor, byte[] message,
+			InetSocketAddress source) {
+		Binding binding = pendingBindings.get(ByteBuffer.wrap(message, 4, 16).slice());
+		if (binding == null || binding.processor != processor
+				|| !binding.server.equals(source)) {
+			logger.debug("Unexpected STUN message from {} ignored.", source);
+			return;
+		}
+		MessageHeader response = new MessageHeader();
+		try {
+			response.decode(ByteBuffer.wrap(message));
+		} catch (MessageHeaderParsingException | MessageAttributeParsingException failure) {
+			logger.debug("Unparsable STUN message from {} ignored: {}.", source,
+				failure.getMessage());
+			return;
+		}
+		if (response.getType() == MessageHeader.MessageHeaderType.BindingErrorResponse) {
+			fail(binding, new IOException(String.format("STUN binding refused by %s",
+				source)));
+			return;
+		}
+		if (response.getType() != MessageHeader.MessageHeaderType.BindingResponse) {
+			return;
+		}
+		// RFC 5389 servers may only send the XOR'ed form
+		MessageAttribute mappedAddress = response.getMessageAttribute(MessageAttribute
+			.MessageAttributeType.MappedAddress);
+		if (mappedAddress == null) {
+			mappedAddress = response.getMessageAttribute(MessageAttribute
+				.MessageAttributeType.XorMappedAddress);
+		}
+		if (mappedAddress == null) {
+			fail(binding, new IOException(String.format("STUN binding response from %s "
+				+ "without a mapped address", source)));
+			return;
+		}
+		MappedResponseChangedSourceAddressReflectedFrom mapped =
+			(MappedResponseChangedSourceAddressReflectedFrom) mappedAddress;
+		InetSocketAddress publicAddress;
+		try {
+			publicAddress = new InetSocketAddress(mapped.getAddress().getInetAddress(),
+				mapped.getPort());
+		} catch (UtilityException | IOException failure) {
+			fail(binding, new IOException(failure));
+			return;
+		}
+		pendingBindings.remove(binding.transactionId, binding);
+		binding.entry.expiresAt = System.currentTimeMillis() + timeToLive;
+		binding.entry.future.set(publicAddress);
+		logger.debug("Socket {}:{} is mapped to {}.", processor.getIpAddress()
+			.getHostAddress(), processor.getPort(), publicAddress);
+	}
+
+	private void fail(Binding binding, IOException cause) {
+		pendingBindings.remove(binding.transactionId, binding);
+		cache.remove(binding.key, binding.entry);
+		binding.entry.future.setException(cause);
+	}
+
+}
@@ -0,0 +1,7 @@
+package org.github.sipuada.events;
+
+public interface CallEvent {
+
+	String getCallId();
+
+}
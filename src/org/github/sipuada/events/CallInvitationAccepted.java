@@ -2,7 +2,7 @@ package org.github.sipuada.events;
 
 import android.javax.sip.Dialog;
 
-public class CallInvitationAccepted {
+public class CallInvitationAccepted implements CallEvent {
 
 	private final String callId;
 	private final Dialog dialog;
@@ -12,6 +12,7 @@ public class CallInvitationAccepted {
 		this.dialog = dialog;
 	}
 
+	@Override
 	public String getCallId() {
 		return callId;
 	}
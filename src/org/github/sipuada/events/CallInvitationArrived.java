@@ -2,7 +2,7 @@ package org.github.sipuada.events;
 
 import android.javax.sip.ServerTransaction;
 
-public class CallInvitationArrived {
+public class CallInvitationArrived implements CallEvent {
 
 	private final String callId;
 	private final ServerTransaction serverTransaction;
@@ -19,6 +19,7 @@ public class CallInvitationArrived {
 		this.shouldExpectEarlyMedia = shouldExpectEarlyMedia;
 	}
 
+	@Override
 	public String getCallId() {
 		return callId;
 	}
@@ -1,6 +1,6 @@
 package org.github.sipuada.events;
 
-public class CallInvitationCanceled {
+public class CallInvitationCanceled implements CallEvent {
 
 	private final String reason;
 	private final String callId;
@@ -16,6 +16,7 @@ public class CallInvitationCanceled {
 		return reason;
 	}
 
+	@Override
 	public String getCallId() {
 		return callId;
 	}
@@ -1,6 +1,6 @@
 package org.github.sipuada.events;
 
-public class CallInvitationDeclined {
+public class CallInvitationDeclined implements CallEvent {
 
 	private final String reason;
 	private final String callId;
@@ -14,6 +14,7 @@ public class CallInvitationDeclined {
 		return reason;
 	}
 
+	@Override
 	public String getCallId() {
 		return callId;
 	}
@@ -2,7 +2,7 @@ package org.github.sipuada.events;
 
 import android.javax.sip.ClientTransaction;
 
-public class CallInvitationRinging {
+public class CallInvitationRinging implements CallEvent {
 	
 	private final String callId;
 	private final ClientTransaction clientTransaction;
@@ -19,6 +19,7 @@ public class CallInvitationRinging {
 		this.shouldExpectEarlyMedia = shouldExpectEarlyMedia;
 	}
 
+	@Override
 	public String getCallId() {
 		return callId;
 	}
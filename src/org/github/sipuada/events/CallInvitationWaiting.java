@@ -2,7 +2,7 @@ package org.github.sipuada.events;
 
 import android.javax.sip.ClientTransaction;
 
-public class CallInvitationWaiting {
+public class CallInvitationWaiting implements CallEvent {
 
 	private final String  callId;
 	private final ClientTransaction clientTransaction;
@@ -12,6 +12,7 @@ public class CallInvitationWaiting {
 		clientTransaction = transaction;
 	}
 
+	@Override
 	public String getCallId() {
 		return callId;
 	}
@@ -1,6 +1,6 @@
 package org.github.sipuada.events;
 
-public class EarlyMediaSessionFinished {
+public class EarlyMediaSessionFinished implements CallEvent {
 
 	private final String callId;
 
@@ -8,6 +8,7 @@ public class EarlyMediaSessionFinished {
 		this.callId = callId;
 	}
 
+	@Override
 	public String getCallId() {
 		return callId;
 	}
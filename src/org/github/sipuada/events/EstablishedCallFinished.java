@@ -1,6 +1,6 @@
 package org.github.sipuada.events;
 
-public class EstablishedCallFinished {
+public class EstablishedCallFinished implements CallEvent {
 
 	private final String callId;
 
@@ -8,6 +8,7 @@ public class EstablishedCallFinished {
 		this.callId = callId;
 	}
 
+	@Override
 	public String getCallId() {
 		return callId;
 	}
@@ -2,7 +2,7 @@ package org.github.sipuada.events;
 
 import android.javax.sip.Dialog;
 
-public class EstablishedCallStarted {
+public class EstablishedCallStarted implements CallEvent {
 
 	private final String callId;
 	private final Dialog dialog;
@@ -12,6 +12,7 @@ public class EstablishedCallStarted {
 		this.dialog = dialog;
 	}
 
+	@Override
 	public String getCallId() {
 		return callId;
 	}
@@ -3,7 +3,7 @@ package org.github.sipuada.events;
 import android.javax.sip.header.ContentTypeHeader;
 import android.javax.sip.header.Header;
 
-public class MessageReceived {
+public class MessageReceived implements CallEvent {
 
 	private final String callId;
 	private final String remoteUser;
@@ -22,6 +22,7 @@ public class MessageReceived {
 		this.additionalHeaders = additionalHeader;
 	}
 
+	@Override
 	public String getCallId() {
 		return callId;
 	}
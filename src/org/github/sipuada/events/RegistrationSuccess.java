@@ -1,24 +1,41 @@
 package org.github.sipuada.events;
 
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.ListIterator;
+import java.util.Map;
 
 import android.javax.sip.header.ContactHeader;
+import android.javax.sip.header.ExpiresHeader;
 
-public class RegistrationSuccess {
+public class RegistrationSuccess implements CallEvent {
 
 	private final String callId;
 	private final List<String> contactBindings = new LinkedList<>();
+	private final Map<String, Integer> contactExpires = new LinkedHashMap<>();
+	private final int expires;
 
 	public RegistrationSuccess(String callId, ListIterator<?> contactHeaders) {
+		this(callId, contactHeaders, null);
+	}
+
+	public RegistrationSuccess(String callId, ListIterator<?> contactHeaders,
+			ExpiresHeader expiresHeader) {
 		this.callId = callId;
+		this.expires = expiresHeader == null ? -1 : expiresHeader.getExpires();
 		while (contactHeaders.hasNext()) {
 			ContactHeader contactHeader = (ContactHeader) contactHeaders.next();
-			contactBindings.add(contactHeader.getAddress().getURI().toString());
+			String contactBinding = contactHeader.getAddress().getURI().toString();
+			contactBindings.add(contactBinding);
+			int contactExpiration = contactHeader.getExpires();
+			contactExpires.put(contactBinding, contactExpiration >= 0
+				? contactExpiration : expires);
 		}
 	}
 
+	@Override
 	public String getCallId() {
 		return callId;
 	}
@@ -27,4 +44,12 @@ public class RegistrationSuccess {
 		return contactBindings;
 	}
 
+	public Map<String, Integer> getContactExpires() {
+		return Collections.unmodifiableMap(contactExpires);
+	}
+
+	public int getExpires() {
+		return expires;
+	}
+
 }
@@ -4,7 +4,7 @@ import org.github.sipuada.plugins.SessionType;
 
 import android.javax.sip.Dialog;
 
-public class SendUpdateEvent {
+public class SendUpdateEvent implements CallEvent {
 
 	private final String callId;
 	private final Dialog dialog;
@@ -16,6 +16,7 @@ public class SendUpdateEvent {
 		this.type = type;
 	}
 
+	@Override
 	public String getCallId() {
 		return callId;
 	}
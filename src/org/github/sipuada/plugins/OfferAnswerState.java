@@ -0,0 +1,109 @@
+package org.github.sipuada.plugins;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.Locale;
+import java.util.Set;
+
+import android.javax.sip.header.CSeqHeader;
+import android.javax.sip.header.CallIdHeader;
+import android.javax.sip.header.ContentDispositionHeader;
+import android.javax.sip.header.ContentLengthHeader;
+import android.javax.sip.header.ContentTypeHeader;
+import android.javax.sip.header.FromHeader;
+import android.javax.sip.header.ToHeader;
+import android.javax.sip.message.Message;
+
+/**
+ * The messages of an offer/answer exchange of a call. Only trimmed copies
+ * are kept: the start line, the headers identifying the message and its body,
+ * so that no transaction, dialog or other header is held on to.
+ */
+final class OfferAnswerState {
+
+	static final int REQUEST = 0;
+	static final int PROVISIONAL_RESPONSE = 1;
+	static final int PRACK_REQUEST = 2;
+	static final int PRACK_RESPONSE = 3;
+	static final int FINAL_RESPONSE = 4;
+	static final int ACK_REQUEST = 5;
+
+	private static final Set<String> KEPT_HEADERS = new HashSet<>();
+
+	static {
+		for (String headerName : Arrays.asList(CallIdHeader.NAME, CSeqHeader.NAME,
+				FromHeader.NAME, ToHeader.NAME, ContentTypeHeader.NAME,
+				ContentDispositionHeader.NAME, ContentLengthHeader.NAME)) {
+			KEPT_HEADERS.add(headerName.toLowerCase(Locale.ENGLISH));
+		}
+	}
+
+	private final Message[] messages = new Message[ACK_REQUEST + 1];
+	private volatile long expiresAt;
+
+	OfferAnswerState(long expiresAt) {
+		this.expiresAt = expiresAt;
+	}
+
+	Message get(int slot) {
+		return messages[slot];
+	}
+
+	/**
+	 * @return the message replaced, if any.
+	 */
+	Message record(int slot, Message message) {
+		Message previousMessage = messages[slot];
+		if (message == previousMessage) {
+			return null;
+		}
+		messages[slot] = trim(message);
+		return previousMessage;
+	}
+
+	boolean holds(Message message) {
+		for (Message storedMessage : messages) {
+			if (storedMessage == message) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	List<Message> getMessages() {
+		List<Message> storedMessages = new ArrayList<>(messages.length);
+		for (Message storedMessage : messages) {
+			if (storedMessage != null) {
+				storedMessages.add(storedMessage);
+			}
+		}
+		return storedMessages;
+	}
+
+	long getExpiresAt() {
+		return expiresAt;
+	}
+
+	void setExpiresAt(long expiresAt) {
+		this.expiresAt = expiresAt;
+	}
+
+	private static Message trim(Message message) {
+		Message copy = (Message) message.clone();
+		List<String> removedHeaders = new ArrayList<>();
+		for (ListIterator<?> headerNames = copy.getHeaderNames(); headerNames.hasNext();) {
+			String headerName = (String) headerNames.next();
+			if (!KEPT_HEADERS.contains(headerName.toLowerCase(Locale.ENGLISH))) {
+				removedHeaders.add(headerName);
+			}
+		}
+		for (String headerName : removedHeaders) {
+			copy.removeHeader(headerName);
+		}
+		return copy;
+	}
+
+}
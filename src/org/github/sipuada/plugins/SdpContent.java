@@ -0,0 +1,230 @@
+package org.github.sipuada.plugins;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+import android.javax.sdp.SdpFactoryImpl;
+import android.javax.sdp.SdpParseException;
+import android.javax.sdp.SessionDescription;
+import android.javax.sip.header.ContentTypeHeader;
+import android.javax.sip.message.Message;
+
+/**
+ * The body parts of a message, found in a single pass over its raw content,
+ * with the SDP of each part parsed at most once.
+ */
+final class SdpContent {
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	static final class Part {
+
+		private final String contentType;
+		private final String disposition;
+		private final int start;
+		private final int end;
+		private SessionDescription sdp;
+
+		private Part(String contentType, String disposition, int start, int end) {
+			this.contentType = contentType;
+			this.disposition = disposition;
+			this.start = start;
+			this.end = end;
+		}
+
+		boolean isSdp() {
+			return "application/sdp".equals(contentType);
+		}
+
+		/**
+		 * @return the disposition of the part, "session" if none is given.
+		 */
+		String getDisposition() {
+			return disposition == null ? SessionType.REGULAR.getDisposition() : disposition;
+		}
+
+		boolean hasSessionDisposition() {
+			return SessionType.REGULAR.getDisposition().equals(disposition)
+				|| SessionType.EARLY.getDisposition().equals(disposition);
+		}
+
+	}
+
+	private final byte[] rawContent;
+	private final boolean multipart;
+	private final List<Part> parts;
+
+	private SdpContent(byte[] rawContent, boolean multipart, List<Part> parts) {
+		this.rawContent = rawContent;
+		this.multipart = multipart;
+		this.parts = parts;
+	}
+
+	static SdpContent of(Message message) {
+		byte[] rawContent = message.getRawContent();
+		ContentTypeHeader contentTypeHeader = (ContentTypeHeader) message
+			.getHeader(ContentTypeHeader.NAME);
+		if (rawContent != null && contentTypeHeader != null
+				&& contentTypeHeader.getContentType().trim().equalsIgnoreCase("multipart")
+				&& contentTypeHeader.getContentSubType().trim().equalsIgnoreCase("mixed")) {
+			String boundary = contentTypeHeader.getParameter("boundary");
+			return new SdpContent(rawContent, true, boundary == null
+				? Collections.<Part>emptyList() : scan(rawContent, boundary));
+		}
+		List<Part> parts = rawContent == null ? Collections.<Part>emptyList()
+			: Collections.singletonList(new Part("application/sdp", null, 0, rawContent.length));
+		return new SdpContent(rawContent, false, parts);
+	}
+
+	/**
+	 * @return true if this is still the content of the message.
+	 */
+	boolean isContentOf(Message message) {
+		return message.getRawContent() == rawContent;
+	}
+
+	boolean isBlank() {
+		if (rawContent != null) {
+			for (byte b : rawContent) {
+				if (b > ' ') {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	List<Part> getParts() {
+		return parts;
+	}
+
+	/**
+	 * @return the SDP of the part with the preferred disposition, else the
+	 * one of the session part, null if there is none.
+	 */
+	SessionDescription getSdp(SessionType preferredType) throws SdpParseException {
+		if (!multipart) {
+			return parts.isEmpty() ? null : parse(parts.get(0));
+		}
+		Part sessionPart = null;
+		for (Part part : parts) {
+			if (!part.isSdp()) {
+				continue;
+			}
+			String disposition = part.getDisposition();
+			if (disposition.equals(preferredType.getDisposition())) {
+				return parse(part);
+			}
+			if (sessionPart == null
+					&& disposition.equals(SessionType.REGULAR.getDisposition())) {
+				sessionPart = part;
+			}
+		}
+		return sessionPart == null ? null : parse(sessionPart);
+	}
+
+	private SessionDescription parse(Part part) throws SdpParseException {
+		if (part.sdp == null) {
+			part.sdp = SdpFactoryImpl.getInstance().createSessionDescriptionFromString
+				(new String(rawContent, part.start, part.end - part.start, UTF_8));
+		}
+		return part.sdp;
+	}
+
+	/*
+	 * Splits a multipart body (RFC 2046) on its delimiter lines, taking the
+	 * Content-Type and Content-Disposition of each part on the way.
+	 */
+	private static List<Part> scan(byte[] content, String boundary) {
+		byte[] delimiter = ("--" + boundary.trim()).getBytes(UTF_8);
+		List<Part> parts = new ArrayList<>(2);
+		int position = indexOfDelimiter(content, delimiter, 0);
+		while (position >= 0) {
+			position += delimiter.length;
+			if (position + 1 < content.length && content[position] == '-'
+					&& content[position + 1] == '-') {
+				break;
+			}
+			position = nextLine(content, position);
+			String contentType = null;
+			String disposition = null;
+			while (position < content.length) {
+				int lineEnd = nextLine(content, position);
+				int end = lineEnd;
+				while (end > position && (content[end - 1] == '\n' || content[end - 1] == '\r')) {
+					end--;
+				}
+				if (end == position) {
+					position = lineEnd;
+					break;
+				}
+				int colon = indexOf(content, (byte) ':', position, end);
+				if (colon > 0) {
+					String name = trimmedLowerCase(content, position, colon);
+					if (name.equals("content-type")) {
+						contentType = headerValue(content, colon + 1, end);
+					} else if (name.equals("content-disposition")) {
+						disposition = headerValue(content, colon + 1, end);
+					}
+				}
+				position = lineEnd;
+			}
+			int next = indexOfDelimiter(content, delimiter, position);
+			int end = next < 0 ? content.length : next;
+			// the line break before the delimiter belongs to it
+			if (end > position && content[end - 1] == '\n') {
+				end--;
+				if (end > position && content[end - 1] == '\r') {
+					end--;
+				}
+			}
+			parts.add(new Part(contentType, disposition, position, end));
+			position = next;
+		}
+		return parts;
+	}
+
+	private static int indexOfDelimiter(byte[] content, byte[] delimiter, int from) {
+		outer:
+		for (int i = from; i <= content.length - delimiter.length; i++) {
+			if (i > 0 && content[i - 1] != '\n') {
+				continue;
+			}
+			for (int j = 0; j < delimiter.length; j++) {
+				if (content[i + j] != delimiter[j]) {
+					continue outer;
+				}
+			}
+			return i;
+		}
+		return -1;
+	}
+
+	private static int nextLine(byte[] content, int from) {
+		int newLine = indexOf(content, (byte) '\n', from, content.length);
+		return newLine < 0 ? content.length : newLine + 1;
+	}
+
+	private static int indexOf(byte[] content, byte value, int from, int to) {
+		for (int i = from; i < to; i++) {
+			if (content[i] == value) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	// The value without its parameters
+	private static String headerValue(byte[] content, int from, int to) {
+		int semicolon = indexOf(content, (byte) ';', from, to);
+		return trimmedLowerCase(content, from, semicolon < 0 ? to : semicolon);
+	}
+
+	private static String trimmedLowerCase(byte[] content, int from, int to) {
+		return new String(content, from, to - from, UTF_8).trim().toLowerCase(Locale.ENGLISH);
+	}
+
+}
@@ -1,19 +1,22 @@
 package org.github.sipuada.plugins;
 
 import java.text.ParseException;
-import java.util.HashMap;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.github.sipuada.Constants.RequestMethod;
+import org.github.sipuada.CallEventRouter;
 import org.github.sipuada.SipUserAgent;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.google.common.eventbus.EventBus;
-
-import android.javax.sdp.SdpFactoryImpl;
 import android.javax.sdp.SdpParseException;
 import android.javax.sdp.SessionDescription;
 import android.javax.sip.header.ContentDispositionHeader;
@@ -37,14 +40,21 @@ public class SessionManager {
 	private final SipUserAgentRole role;
 	private final String localAddress;
 	private final HeaderFactory headerMaker;
-	private final Map<String, Request> reqStore = new HashMap<>();
-	private final Map<String, Response> provResStore = new HashMap<>();
-	private final Map<String, Request> prackStore = new HashMap<>();
-	private final Map<String, Response> prackResStore = new HashMap<>();
-	private final Map<String, Response> resStore = new HashMap<>();
-	private final Map<String, Request> ackStore = new HashMap<>();
-
-	public SessionManager(Map<RequestMethod, SipuadaPlugin> sessionPlugins, EventBus bus,
+	public static final long DEFAULT_STATE_TIME_TO_LIVE = 10 * 60 * 1000;
+	// How long the state of a call is kept once its dialog or INVITE transaction ended,
+	// enough for the retransmissions and ACK still in flight
+	private static final long TERMINATED_STATE_TIME_TO_LIVE = 32 * 1000;
+	private static final long EVICTION_INTERVAL = 10 * 1000;
+
+	private final ConcurrentHashMap<String, OfferAnswerState> stateStore
+		= new ConcurrentHashMap<>();
+	private final Map<Message, SdpContent> sdpCache
+		= Collections.synchronizedMap(new IdentityHashMap<Message, SdpContent>());
+	private final AtomicLong evictedStates = new AtomicLong();
+	private volatile long stateTimeToLive = DEFAULT_STATE_TIME_TO_LIVE;
+	private volatile long nextEviction;
+
+	public SessionManager(Map<RequestMethod, SipuadaPlugin> sessionPlugins, CallEventRouter bus,
 		SipUserAgentRole role, String localAddress, HeaderFactory headerMaker) {
 		this.sessionPlugins = sessionPlugins;
 		this.role = role;
@@ -63,32 +73,47 @@ public class SessionManager {
 	public boolean performOfferAnswerExchangeStep(String callId, SessionType type,
 			Request request, Response provisionalResponse, Request prackRequest,
 			Response prackResponse, Response finalResponse, Request ackRequest) {
-		if (request == null) {
-			request = reqStore.get(callId);
-		}
-		if (provisionalResponse == null) {
-			provisionalResponse = provResStore.get(callId);
-		}
-		if (prackRequest == null) {
-			prackRequest = prackStore.get(callId);
-		}
-		if (prackResponse == null) {
-			prackResponse = prackResStore.get(callId);
-		}
-		if (finalResponse == null) {
-			finalResponse = resStore.get(callId);
-		}
-		if (ackRequest == null) {
-			ackRequest = ackStore.get(callId);
+		OfferAnswerState state = stateStore.get(callId);
+		if (state != null) {
+			synchronized (state) {
+				if (request == null) {
+					request = (Request) state.get(OfferAnswerState.REQUEST);
+				}
+				if (provisionalResponse == null) {
+					provisionalResponse = (Response) state
+						.get(OfferAnswerState.PROVISIONAL_RESPONSE);
+				}
+				if (prackRequest == null) {
+					prackRequest = (Request) state.get(OfferAnswerState.PRACK_REQUEST);
+				}
+				if (prackResponse == null) {
+					prackResponse = (Response) state.get(OfferAnswerState.PRACK_RESPONSE);
+				}
+				if (finalResponse == null) {
+					finalResponse = (Response) state.get(OfferAnswerState.FINAL_RESPONSE);
+				}
+				if (ackRequest == null) {
+					ackRequest = (Request) state.get(OfferAnswerState.ACK_REQUEST);
+				}
+			}
 		}
 
 		boolean output = doPerformOfferAnswerExchangeStep
 			(callId, type, request, provisionalResponse, prackRequest,
 				prackResponse, finalResponse, ackRequest);
 
-		recordOfferAnswerExchangeMessages(callId,
+		state = doRecordOfferAnswerExchangeMessages(callId,
 			request, provisionalResponse, prackRequest,
 			prackResponse, finalResponse, ackRequest);
+		// Only the trimmed copies recorded are kept, along with their SDP
+		synchronized (state) {
+			for (Message message : new Message[] {request, provisionalResponse,
+					prackRequest, prackResponse, finalResponse, ackRequest}) {
+				if (message != null && !state.holds(message)) {
+					sdpCache.remove(message);
+				}
+			}
+		}
 		return output;
 	}
 
@@ -273,33 +298,127 @@ public class SessionManager {
 	public void recordOfferAnswerExchangeMessages(String callId,
 			Request request, Response provisionalResponse, Request prackRequest,
 			Response prackResponse, Response finalResponse, Request ackRequest) {
-		if (request != null) {
-			reqStore.put(callId, request);
+		doRecordOfferAnswerExchangeMessages(callId, request, provisionalResponse,
+			prackRequest, prackResponse, finalResponse, ackRequest);
+	}
+
+	private OfferAnswerState doRecordOfferAnswerExchangeMessages(String callId,
+			Request request, Response provisionalResponse, Request prackRequest,
+			Response prackResponse, Response finalResponse, Request ackRequest) {
+		long now = System.currentTimeMillis();
+		evictExpiredStates(now);
+		OfferAnswerState state = stateStore.get(callId);
+		if (state == null) {
+			state = new OfferAnswerState(now + stateTimeToLive);
+			OfferAnswerState existingState = stateStore.putIfAbsent(callId, state);
+			if (existingState != null) {
+				state = existingState;
+			}
 		}
-		if (provisionalResponse != null) {
-			provResStore.put(callId, provisionalResponse);
+		synchronized (state) {
+			state.setExpiresAt(now + stateTimeToLive);
+			record(state, OfferAnswerState.REQUEST, request);
+			record(state, OfferAnswerState.PROVISIONAL_RESPONSE, provisionalResponse);
+			record(state, OfferAnswerState.PRACK_REQUEST, prackRequest);
+			record(state, OfferAnswerState.PRACK_RESPONSE, prackResponse);
+			record(state, OfferAnswerState.FINAL_RESPONSE, finalResponse);
+			record(state, OfferAnswerState.ACK_REQUEST, ackRequest);
 		}
-		if (prackRequest != null) {
-			prackStore.put(callId, prackRequest);
+		return state;
+	}
+
+	private void record(OfferAnswerState state, int slot, Message message) {
+		if (message != null) {
+			Message replacedMessage = state.record(slot, message);
+			if (replacedMessage != null) {
+				sdpCache.remove(replacedMessage);
+			}
 		}
-		if (prackResponse != null) {
-			prackResStore.put(callId, prackResponse);
+	}
+
+	public void wipeOfferAnswerExchangeMessages(String callId) {
+		OfferAnswerState state = stateStore.remove(callId);
+		if (state != null) {
+			forgetSdp(state);
 		}
-		if (finalResponse != null) {
-			resStore.put(callId, finalResponse);
+	}
+
+	/**
+	 * Keep the offer/answer exchange state of a call only for the messages
+	 * still in flight, once its dialog or INVITE transaction has terminated.
+	 */
+	public void expireOfferAnswerExchangeMessages(String callId) {
+		OfferAnswerState state = stateStore.get(callId);
+		if (state != null) {
+			long expiresAt = System.currentTimeMillis() + TERMINATED_STATE_TIME_TO_LIVE;
+			synchronized (state) {
+				if (state.getExpiresAt() > expiresAt) {
+					state.setExpiresAt(expiresAt);
+				}
+			}
 		}
-		if (ackRequest != null) {
-			ackStore.put(callId, ackRequest);
+	}
+
+	private void evictExpiredStates(long now) {
+		if (now < nextEviction) {
+			return;
+		}
+		nextEviction = now + EVICTION_INTERVAL;
+		for (Iterator<Map.Entry<String, OfferAnswerState>> entries
+				= stateStore.entrySet().iterator(); entries.hasNext();) {
+			Map.Entry<String, OfferAnswerState> entry = entries.next();
+			if (entry.getValue().getExpiresAt() <= now) {
+				logger.debug("$ Evicting OFFER/ANSWER exchange state of call {}. $",
+					entry.getKey());
+				entries.remove();
+				forgetSdp(entry.getValue());
+				evictedStates.incrementAndGet();
+			}
 		}
 	}
 
-	public void wipeOfferAnswerExchangeMessages(String callId) {
-		reqStore.put(callId, null);
-		provResStore.put(callId, null);
-		prackStore.put(callId, null);
-		prackResStore.put(callId, null);
-		resStore.put(callId, null);
-		ackStore.put(callId, null);
+	private void forgetSdp(OfferAnswerState state) {
+		synchronized (state) {
+			for (Message message : state.getMessages()) {
+				sdpCache.remove(message);
+			}
+		}
+	}
+
+	/**
+	 * Set how long the offer/answer exchange state of a call is kept after the
+	 * last message recorded, if neither its dialog nor its transaction end.
+	 */
+	public void setStateTimeToLive(long stateTimeToLive) {
+		this.stateTimeToLive = stateTimeToLive;
+	}
+
+	/**
+	 * @return the number of calls with an offer/answer exchange state.
+	 */
+	public int getStateCount() {
+		return stateStore.size();
+	}
+
+	/**
+	 * @return the number of states evicted because they expired.
+	 */
+	public long getEvictedStateCount() {
+		return evictedStates.get();
+	}
+
+	/**
+	 * The body parts of messages are scanned once, and their SDP parsed once,
+	 * for as long as the message is part of the offer/answer exchange and its
+	 * content doesn't change.
+	 */
+	private SdpContent sdpContent(Message message) {
+		SdpContent sdpContent = sdpCache.get(message);
+		if (sdpContent == null || !sdpContent.isContentOf(message)) {
+			sdpContent = SdpContent.of(message);
+			sdpCache.put(message, sdpContent);
+		}
+		return sdpContent;
 	}
 
 	private boolean contentDispositionMatters(Message message) {
@@ -312,25 +431,8 @@ public class SessionManager {
 				.toLowerCase().trim().equals("multipart")
 				&& contentTypeHeader.getContentSubType()
 				.toLowerCase().trim().equals("mixed")) {
-			String boundary = contentTypeHeader.getParameter("boundary");
-			String content = new String(message.getRawContent());
-			String[] sdps = content.substring(boundary.length() + 3, content.length())
-				.replace(boundary + "--", boundary).split("\\s*--" + boundary + "\\s*");
-			for (String sdpWithHeaders : sdps) {
-				boolean contentIsSession = false;
-				boolean contentIsEarlySession = false;
-				String[] headers = sdpWithHeaders.split("\\n\\n")[0].split("\\n");
-				for (String header : headers) {
-					header = header.trim();
-					String headerKey = header.split(":")[0].trim().toLowerCase();
-					String headerValue = header.split(":")[1].trim().toLowerCase();
-					if (headerKey.equals("content-disposition")) {
-						contentIsSession = headerValue.equals("session");
-						contentIsEarlySession = headerValue.equals("early-session");
-					}
-				}
-				return contentIsSession || contentIsEarlySession;
-			}
+			List<SdpContent.Part> parts = sdpContent(message).getParts();
+			return !parts.isEmpty() && parts.get(0).hasSessionDisposition();
 		} else if (contentTypeHeader != null
 			&& contentTypeHeader.getContentType()
 				.toLowerCase().trim().equals("application")
@@ -365,30 +467,9 @@ public class SessionManager {
 				.toLowerCase().trim().equals("mixed")) {
 			String boundary = contentTypeHeader.getParameter("boundary");
 			logger.debug("$ And content contains multipart/mixed! (Boundary: {}) $", boundary);
-			String content = new String(message.getRawContent());
-			String[] sdps = content.substring(boundary.length() + 3, content.length())
-				.replace(boundary + "--", boundary).split("\\s*--" + boundary + "\\s*");
-			for (String sdpWithHeaders : sdps) {
-				boolean contentIsSdp = false;
-				boolean contentIsSession = false;
-				boolean contentIsEarlySession = false;
-				String[] headers = sdpWithHeaders.split("\\n\\n")[0].split("\\n");
-				for (String header : headers) {
-					header = header.trim();
-					String headerKey = header.split(":")[0].trim().toLowerCase();
-					String headerValue = header.split(":")[1].trim().toLowerCase();
-					if (headerKey.equals("content-type")) {
-						contentIsSdp = headerValue.equals("application/sdp");
-					} else if (headerKey.equals("content-disposition")) {
-						contentIsSession = headerValue.equals("session");
-						contentIsEarlySession = headerValue.equals("early-session");
-					}
-				}
-				if (contentIsSdp && (!contentIsSession && !contentIsEarlySession)) {
-					contentIsSession = true;
-				}
-				if (contentIsSdp && ((type == SessionType.REGULAR && contentIsSession)
-						|| (type == SessionType.EARLY && contentIsEarlySession))) {
+			for (SdpContent.Part part : sdpContent(message).getParts()) {
+				if (part.isSdp() && (type == SessionType.REGULAR || type == SessionType.EARLY)
+						&& part.getDisposition().equals(type.getDisposition())) {
 					logger.debug("$ And some part is application/sdp of interest! $");
 					return true;
 				}
@@ -667,54 +748,14 @@ public class SessionManager {
 
 	private SessionDescription extractRelevantSdp(Message message,
 			SessionType preferredType) throws SdpParseException {
-		Object currentContent = message.getContent();
-		ContentTypeHeader currentContentTypeHeader
-			= (ContentTypeHeader) message.getHeader(ContentTypeHeader.NAME);
-		if (currentContent == null || currentContent.toString().trim().isEmpty()) {
+		if (message.getContent() == null) {
+			return null;
+		}
+		SdpContent sdpContent = sdpContent(message);
+		if (sdpContent.isBlank()) {
 			return null;
-		} else if (currentContentTypeHeader != null
-				&& currentContentTypeHeader.getContentType().equals("multipart")
-				&& currentContentTypeHeader.getContentSubType().equals("mixed")) {
-			String boundary = currentContentTypeHeader.getParameter("boundary");
-			String content = new String(message.getRawContent());
-			String[] sdps = content.substring(boundary.length() + 3, content.length())
-				.replace(boundary + "--", boundary).split("\\s*--" + boundary + "\\s*");
-			String sessionSdp = null;
-			for (String sdpWithHeaders : sdps) {
-				String[] headers = sdpWithHeaders.split("\\n\\n")[0].split("\\n");
-				String sdp = sdpWithHeaders.split("\\n\\n")[1];
-				for (String header : headers) {
-					header = header.trim();
-					String headerKey = header.split(":")[0].trim().toLowerCase();
-					String headerValue = header.split(":")[1].trim().toLowerCase();
-					if (headerKey.equals("content-type")) {
-						if (!headerValue.equals("application/sdp")) {
-							continue;
-						}
-					} else if (headerKey.equals("content-disposition")) {
-						if (headerValue.equals("session")) {
-							sessionSdp = sdp;
-						}
-						if (headerValue.equals("session")
-								&& preferredType == SessionType.REGULAR) {
-							return SdpFactoryImpl.getInstance()
-								.createSessionDescriptionFromString
-								(new String(sessionSdp));
-						} else if (headerValue.equals("early-session")
-								&& preferredType == SessionType.EARLY) {
-							return SdpFactoryImpl.getInstance()
-								.createSessionDescriptionFromString
-								(new String(sdp));
-						}
-					}
-				}
-			}
-			return sessionSdp == null ? null : SdpFactoryImpl.getInstance()
-				.createSessionDescriptionFromString(new String(sessionSdp));
-		} else {
-			return SdpFactoryImpl.getInstance().createSessionDescriptionFromString
-				(new String(message.getRawContent()));
 		}
+		return sdpContent.getSdp(preferredType);
 	}
 
 	public boolean isSessionPrepared(String callId, SessionType type) {
@@ -0,0 +1,387 @@
+package android.gov.nist.javax.sip;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.gov.nist.core.net.DnsClient;
+import android.gov.nist.javax.sip.stack.HopImpl;
+import android.javax.sip.address.Hop;
+
+/**
+ * Checks DnsAddressResolver against an in-process stub DNS server: RFC 3263
+ * lookups, caching, stale records, failover and truncated answers.
+ */
+public class DnsAddressResolverTest {
+
+	private static final Charset LATIN_1 = Charset.forName("ISO-8859-1");
+
+	/**
+	 * Answers the queries from a fixed zone, over UDP and TCP, and counts
+	 * them.
+	 */
+	private static class StubDnsServer implements Runnable {
+
+		private static class Answer {
+			private final String name;
+			private final int type;
+			private final byte[] data;
+
+			private Answer(String name, int type, byte[] data) {
+				this.name = name;
+				this.type = type;
+				this.data = data;
+			}
+		}
+
+		private final DatagramSocket udpSocket;
+		private final ServerSocket tcpSocket;
+		private final List<Answer> zone = new CopyOnWriteArrayList<Answer>();
+		private final List<String> truncatedNames = new CopyOnWriteArrayList<String>();
+		private final ConcurrentHashMap<String, AtomicInteger> queries =
+			new ConcurrentHashMap<String, AtomicInteger>();
+		private volatile boolean failing;
+		private volatile int ttl = 300;
+
+		private StubDnsServer() throws IOException {
+			InetAddress loopback = InetAddress.getByName("127.0.0.1");
+			udpSocket = new DatagramSocket(new InetSocketAddress(loopback, 0));
+			tcpSocket = new ServerSocket(udpSocket.getLocalPort(), 5, loopback);
+			Thread udpThread = new Thread(this, "StubDnsServerUdp");
+			udpThread.setDaemon(true);
+			udpThread.start();
+			Thread tcpThread = new Thread(new Runnable() {
+				public void run() {
+					serveTcp();
+				}
+			}, "StubDnsServerTcp");
+			tcpThread.setDaemon(true);
+			tcpThread.start();
+		}
+
+		private String address() {
+			return "127.0.0.1:" + udpSocket.getLocalPort();
+		}
+
+		private void addA(String name, String address) throws IOException {
+			zone.add(new Answer(name, DnsClient.TYPE_A,
+				InetAddress.getByName(address).getAddress()));
+		}
+
+		private void addSrv(String name, int priority, int weight, int port, String target) {
+			ByteArrayOutputStream data = new ByteArrayOutputStream();
+			writeShort(data, priority);
+			writeShort(data, weight);
+			writeShort(data, port);
+			writeName(data, target);
+			zone.add(new Answer(name, DnsClient.TYPE_SRV, data.toByteArray()));
+		}
+
+		private void addNaptr(String name, int order, String service, String replacement) {
+			ByteArrayOutputStream data = new ByteArrayOutputStream();
+			writeShort(data, order);
+			writeShort(data, 10);
+			writeString(data, "s");
+			writeString(data, service);
+			writeString(data, "");
+			writeName(data, replacement);
+			zone.add(new Answer(name, DnsClient.TYPE_NAPTR, data.toByteArray()));
+		}
+
+		private int queries(int type, String name) {
+			AtomicInteger count = queries.get(type + " " + name);
+			return count == null ? 0 : count.get();
+		}
+
+		public void run() {
+			byte[] buffer = new byte[512];
+			while (!udpSocket.isClosed()) {
+				try {
+					DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+					udpSocket.receive(packet);
+					byte[] answer = answer(buffer, true);
+					udpSocket.send(new DatagramPacket(answer, answer.length,
+						packet.getSocketAddress()));
+				} catch (SocketException closed) {
+					return;
+				} catch (IOException ex) {
+					ex.printStackTrace();
+				}
+			}
+		}
+
+		private void serveTcp() {
+			while (!tcpSocket.isClosed()) {
+				try {
+					Socket socket = tcpSocket.accept();
+					try {
+						DataInputStream in = new DataInputStream(socket.getInputStream());
+						byte[] query = new byte[in.readUnsignedShort()];
+						in.readFully(query);
+						byte[] answer = answer(query, false);
+						OutputStream out = socket.getOutputStream();
+						out.write(answer.length >> 8);
+						out.write(answer.length);
+						out.write(answer);
+						out.flush();
+					} finally {
+						socket.close();
+					}
+				} catch (SocketException closed) {
+					return;
+				} catch (IOException ex) {
+					ex.printStackTrace();
+				}
+			}
+		}
+
+		private byte[] answer(byte[] query, boolean overUdp) {
+			int offset = 12;
+			StringBuilder name = new StringBuilder();
+			while (query[offset] != 0) {
+				if (name.length() > 0) {
+					name.append('.');
+				}
+				name.append(new String(query, offset + 1, query[offset], LATIN_1));
+				offset += 1 + query[offset];
+			}
+			offset++;
+			int type = ((query[offset] & 0xff) << 8) | (query[offset + 1] & 0xff);
+			offset += 4;
+			String queriedName = name.toString().toLowerCase();
+			AtomicInteger count = new AtomicInteger();
+			AtomicInteger existing = queries.putIfAbsent(type + " " + queriedName, count);
+			(existing != null ? existing : count).incrementAndGet();
+
+			List<Answer> answers = new ArrayList<Answer>();
+			boolean nameExists = false;
+			for (Answer answer : zone) {
+				if (answer.name.equals(queriedName)) {
+					nameExists = true;
+					if (answer.type == type) {
+						answers.add(answer);
+					}
+				}
+			}
+			boolean truncated = overUdp && truncatedNames.contains(queriedName);
+			int rcode = failing ? DnsClient.RCODE_SERVFAIL
+				: nameExists ? DnsClient.RCODE_NOERROR : DnsClient.RCODE_NXDOMAIN;
+			if (truncated || failing) {
+				answers.clear();
+			}
+			ByteArrayOutputStream response = new ByteArrayOutputStream();
+			response.write(query, 0, 2);
+			response.write(0x81 | (truncated ? 0x02 : 0));
+			response.write(0x80 | rcode);
+			writeShort(response, 1);
+			writeShort(response, answers.size());
+			writeShort(response, answers.isEmpty() && !failing && !truncated ? 1 : 0);
+			writeShort(response, 0);
+			response.write(query, 12, offset - 12);
+			for (Answer answer : answers) {
+				writeName(response, answer.name);
+				writeShort(response, answer.type);
+				writeShort(response, 1);
+				writeInt(response, ttl);
+				writeShort(response, answer.data.length);
+				response.write(answer.data, 0, answer.data.length);
+			}
+			if (answers.isEmpty() && !failing && !truncated) {
+				// SOA with a minimum of 60s, the negative TTL
+				ByteArrayOutputStream soa = new ByteArrayOutputStream();
+				writeName(soa, "ns.example.com");
+				writeName(soa, "admin.example.com");
+				for (int i = 0; i < 4; i++) {
+					writeInt(soa, 1);
+				}
+				writeInt(soa, 60);
+				writeName(response, "example.com");
+				writeShort(response, DnsClient.TYPE_SOA);
+				writeShort(response, 1);
+				writeInt(response, 3600);
+				writeShort(response, soa.size());
+				response.write(soa.toByteArray(), 0, soa.size());
+			}
+			return response.toByteArray();
+		}
+
+		private void close() throws IOException {
+			udpSocket.close();
+			tcpSocket.close();
+		}
+
+		private static void writeShort(ByteArrayOutputStream out, int value) {
+			out.write(value >> 8);
+			out.write(value);
+		}
+
+		private static void writeInt(ByteArrayOutputStream out, int value) {
+			writeShort(out, value >>> 16);
+			writeShort(out, value & 0xffff);
+		}
+
+		private static void writeString(ByteArrayOutputStream out, String value) {
+			out.write(value.length());
+			for (int i = 0; i < value.length(); i++) {
+				out.write(value.charAt(i));
+			}
+		}
+
+		private static void writeName(ByteArrayOutputStream out, String name) {
+			if (name.length() > 0) {
+				for (String label : name.split("\\.")) {
+					writeString(out, label);
+				}
+			}
+			out.write(0);
+		}
+
+	}
+
+	public static void main(String[] args) throws Exception {
+		StubDnsServer server = new StubDnsServer();
+		try {
+			server.addNaptr("example.com", 10, "SIP+D2T", "_sip._tcp.example.com");
+			server.addNaptr("example.com", 20, "SIP+D2U", "_sip._udp.example.com");
+			server.addSrv("_sip._udp.example.com", 10, 0, 5070, "sip1.example.com");
+			server.addSrv("_sip._udp.example.com", 20, 0, 5080, "sip2.example.com");
+			server.addA("sip1.example.com", "192.0.2.1");
+			server.addA("sip2.example.com", "192.0.2.2");
+			server.addSrv("_sip._udp.nonaptr.com", 10, 0, 5090, "sip.nonaptr.com");
+			server.addA("sip.nonaptr.com", "192.0.2.3");
+			server.addA("nonaptr.com", "192.0.2.4");
+			server.addA("big.example.com", "192.0.2.5");
+			server.truncatedNames.add("big.example.com");
+
+			DnsAddressResolver resolver = new DnsAddressResolver();
+			Properties properties = new Properties();
+			properties.setProperty("android.gov.nist.javax.sip.DNS_SERVERS", server.address());
+			properties.setProperty("android.gov.nist.javax.sip.DNS_TIMEOUT", "500");
+			properties.setProperty("android.gov.nist.javax.sip.DNS_ATTEMPTS", "1");
+			properties.setProperty("android.gov.nist.javax.sip.DNS_FAILOVER_TIME", "1");
+			resolver.init(properties);
+
+			naptrLeadsToOrderedSrvTargets(resolver, server);
+			recordsAreCached(resolver, server);
+			srvIsUsedWithoutNaptr(resolver, server);
+			portSkipsSrv(resolver, server);
+			absentNameIsCached(resolver, server);
+			failedTargetIsSkipped(resolver);
+			truncatedAnswerIsRetriedOverTcp(resolver, server);
+			expiredRecordsServeWhenServerFails(resolver, server);
+		} finally {
+			server.close();
+		}
+		System.out.println("DnsAddressResolverTest: all checks passed.");
+	}
+
+	private static void naptrLeadsToOrderedSrvTargets(DnsAddressResolver resolver,
+			StubDnsServer server) {
+		List<Hop> targets = resolver.resolveTargets(new HopImpl("example.com", -1, "udp"));
+		check(targets.size() == 2, "one target per SRV record: " + targets);
+		check(targets.get(0).getHost().equals("192.0.2.1") && targets.get(0).getPort() == 5070,
+			"highest priority SRV target first");
+		check(targets.get(1).getHost().equals("192.0.2.2") && targets.get(1).getPort() == 5080,
+			"lower priority SRV target next");
+		check(targets.get(0).getTransport().equalsIgnoreCase("udp"), "transport kept");
+		check(server.queries(DnsClient.TYPE_SRV, "_sip._tcp.example.com") == 0,
+			"NAPTR of the other transports not followed");
+	}
+
+	private static void recordsAreCached(DnsAddressResolver resolver, StubDnsServer server) {
+		long hits = resolver.getCacheHits();
+		Hop target = resolver.resolveAddress(new HopImpl("example.com", -1, "udp"));
+		check(target.getHost().equals("192.0.2.1"), "first target resolved");
+		check(server.queries(DnsClient.TYPE_NAPTR, "example.com") == 1, "NAPTR queried once");
+		check(server.queries(DnsClient.TYPE_SRV, "_sip._udp.example.com") == 1, "SRV queried once");
+		check(server.queries(DnsClient.TYPE_A, "sip1.example.com") == 1, "A queried once");
+		check(resolver.getCacheHits() > hits, "answered from the cache");
+	}
+
+	private static void srvIsUsedWithoutNaptr(DnsAddressResolver resolver, StubDnsServer server) {
+		List<Hop> targets = resolver.resolveTargets(new HopImpl("nonaptr.com", -1, "udp"));
+		check(targets.size() == 1 && targets.get(0).getHost().equals("192.0.2.3")
+			&& targets.get(0).getPort() == 5090, "SRV target without NAPTR: " + targets);
+		check(server.queries(DnsClient.TYPE_A, "nonaptr.com") == 0, "no A lookup of the domain");
+	}
+
+	private static void portSkipsSrv(DnsAddressResolver resolver, StubDnsServer server) {
+		List<Hop> targets = resolver.resolveTargets(new HopImpl("nonaptr.com", 5062, "udp"));
+		check(targets.size() == 1 && targets.get(0).getHost().equals("192.0.2.4")
+			&& targets.get(0).getPort() == 5062, "A target with the given port: " + targets);
+		int naptrQueries = server.queries(DnsClient.TYPE_NAPTR, "nonaptr.com");
+		resolver.resolveTargets(new HopImpl("192.0.2.9", -1, "udp"));
+		check(server.queries(DnsClient.TYPE_NAPTR, "nonaptr.com") == naptrQueries
+			&& server.queries(DnsClient.TYPE_A, "192.0.2.9") == 0, "IP address not looked up");
+	}
+
+	private static void absentNameIsCached(DnsAddressResolver resolver, StubDnsServer server) {
+		Hop hop = new HopImpl("missing.example.org", 5060, "udp");
+		check(resolver.resolveTargets(hop).isEmpty(), "absent name has no target");
+		check(resolver.resolveTargets(hop).isEmpty(), "absent name still has no target");
+		check(server.queries(DnsClient.TYPE_A, "missing.example.org") == 1,
+			"absence cached");
+		Hop fallback = resolver.resolveAddress(hop);
+		check(fallback.getHost().equals("missing.example.org") && fallback.getPort() == 5060,
+			"unresolved hop left to the stack");
+	}
+
+	private static void failedTargetIsSkipped(DnsAddressResolver resolver)
+			throws InterruptedException {
+		Hop hop = new HopImpl("example.com", -1, "udp");
+		Hop first = resolver.resolveAddress(hop);
+		resolver.reportFailure(first);
+		Hop next = resolver.resolveAddress(hop);
+		check(next.getHost().equals("192.0.2.2"), "failed target skipped for the next one");
+		Thread.sleep(1100);
+		check(resolver.resolveAddress(hop).getHost().equals("192.0.2.1"),
+			"failed target used again after the failover time");
+	}
+
+	private static void truncatedAnswerIsRetriedOverTcp(DnsAddressResolver resolver,
+			StubDnsServer server) {
+		List<Hop> targets = resolver.resolveTargets(new HopImpl("big.example.com", 5060, "tcp"));
+		check(targets.size() == 1 && targets.get(0).getHost().equals("192.0.2.5"),
+			"truncated answer completed over TCP: " + targets);
+		check(server.queries(DnsClient.TYPE_A, "big.example.com") == 2,
+			"queried over UDP then TCP");
+	}
+
+	private static void expiredRecordsServeWhenServerFails(DnsAddressResolver resolver,
+			StubDnsServer server) throws IOException, InterruptedException {
+		server.ttl = 1;
+		server.addA("short.example.com", "192.0.2.6");
+		Hop hop = new HopImpl("short.example.com", 5060, "udp");
+		check(resolver.resolveTargets(hop).size() == 1, "short-lived record resolved");
+		Thread.sleep(1100);
+		server.failing = true;
+		List<Hop> targets = resolver.resolveTargets(hop);
+		check(targets.size() == 1 && targets.get(0).getHost().equals("192.0.2.6"),
+			"expired record used while the server fails");
+		check(server.queries(DnsClient.TYPE_A, "short.example.com") == 2,
+			"expired record queried again");
+		server.failing = false;
+	}
+
+	private static void check(boolean condition, String description) {
+		if (!condition) {
+			throw new AssertionError(description);
+		}
+	}
+
+}
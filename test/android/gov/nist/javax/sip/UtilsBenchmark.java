@@ -0,0 +1,162 @@
+package android.gov.nist.javax.sip;
+
+import java.security.MessageDigest;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Times generateTag, generateBranchId and generateCallIdentifier called from
+ * one thread and from many at once: the way Utils generated them before (a
+ * synchronized tag, branches and Call-IDs hashed with MD5 digesters taken
+ * from a pool and locked), and the way it does now.
+ * Usage: UtilsBenchmark [threads] [ids per thread], 8 and 200000 by default.
+ */
+public class UtilsBenchmark {
+
+	private static final String ADDRESS = "10.0.0.1";
+
+	private static long blackhole;
+
+	public static void main(String[] args) throws Exception {
+		int threads = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+		int ids = args.length > 1 ? Integer.parseInt(args[1]) : 200000;
+		final UtilsBefore before = new UtilsBefore();
+		final Utils now = Utils.getInstance();
+		System.out.println(String.format("%d processors", Runtime.getRuntime().availableProcessors()));
+
+		for (int round = 0; round < 2; round++) {
+			boolean report = round == 1;
+			for (int threadCount : new int[] { 1, threads }) {
+				String suffix = ", " + threadCount + (threadCount == 1 ? " thread" : " threads");
+				run("tag, before" + suffix, threadCount, ids, report, new Step() {
+					long run() {
+						return before.generateTag().length();
+					}
+				});
+				run("tag, now" + suffix, threadCount, ids, report, new Step() {
+					long run() {
+						return now.generateTag().length();
+					}
+				});
+				run("branch, before" + suffix, threadCount, ids, report, new Step() {
+					long run() {
+						return before.generateBranchId().length();
+					}
+				});
+				run("branch, now" + suffix, threadCount, ids, report, new Step() {
+					long run() {
+						return now.generateBranchId().length();
+					}
+				});
+				run("Call-ID, before" + suffix, threadCount, ids, report, new Step() {
+					long run() {
+						return before.generateCallIdentifier(ADDRESS).length();
+					}
+				});
+				run("Call-ID, now" + suffix, threadCount, ids, report, new Step() {
+					long run() {
+						return now.generateCallIdentifier(ADDRESS).length();
+					}
+				});
+			}
+		}
+		System.out.println("(" + blackhole + ")");
+	}
+
+	private abstract static class Step {
+
+		abstract long run();
+
+	}
+
+	private static void run(String name, int threadCount, final int ids, boolean report,
+			final Step step) throws InterruptedException {
+		final CountDownLatch start = new CountDownLatch(1);
+		final long[] results = new long[threadCount];
+		Thread[] threads = new Thread[threadCount];
+		for (int t = 0; t < threadCount; t++) {
+			final int index = t;
+			threads[t] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						start.await();
+					} catch (InterruptedException e) {
+						return;
+					}
+					long result = 0;
+					for (int i = 0; i < ids; i++) {
+						result += step.run();
+					}
+					results[index] = result;
+				}
+			});
+			threads[t].start();
+		}
+		long startedAt = System.nanoTime();
+		start.countDown();
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		long elapsed = System.nanoTime() - startedAt;
+		for (long result : results) {
+			blackhole += result;
+		}
+		long total = (long) threadCount * ids;
+		if (report) {
+			System.out.println(String.format("%-28s %8.1f ns/id %12.0f ids/s", name,
+				(double) elapsed / total, total * 1e9 / elapsed));
+		}
+	}
+
+	/*
+	 * What Utils did before its per thread generators.
+	 */
+	private static class UtilsBefore {
+
+		private static final int DIGESTER_POOL_SIZE = 20;
+
+		private final MessageDigest[] digesterPool = new MessageDigest[DIGESTER_POOL_SIZE];
+		private final Random rand = new Random(System.nanoTime());
+		private final String signature;
+		private long counter;
+		private int callIDCounter;
+
+		private UtilsBefore() throws Exception {
+			for (int q = 0; q < DIGESTER_POOL_SIZE; q++) {
+				digesterPool[q] = MessageDigest.getInstance("MD5");
+			}
+			signature = Utils.toHexString(Integer.toString(Math.abs(rand.nextInt() % 1000))
+				.getBytes());
+		}
+
+		private String generateCallIdentifier(String address) {
+			long random = rand.nextLong();
+			int hash = (int) Math.abs(random % DIGESTER_POOL_SIZE);
+			MessageDigest md = digesterPool[hash];
+			synchronized (md) {
+				String date = Long.toString(System.nanoTime() + System.currentTimeMillis()
+					+ callIDCounter++ + random);
+				byte cid[] = md.digest(date.getBytes());
+				return Utils.toHexString(cid) + "@" + address;
+			}
+		}
+
+		private synchronized String generateTag() {
+			return Integer.toHexString(rand.nextInt());
+		}
+
+		private String generateBranchId() {
+			long num = rand.nextLong() + counter++ + System.currentTimeMillis() + System.nanoTime();
+			int hash = (int) Math.abs(num % DIGESTER_POOL_SIZE);
+			MessageDigest digester = digesterPool[hash];
+			synchronized (digester) {
+				byte bid[] = digester.digest(Long.toString(num).getBytes());
+				return SIPConstants.BRANCH_MAGIC_COOKIE + "-" + signature + "-"
+					+ Utils.toHexString(bid);
+			}
+		}
+
+	}
+
+}
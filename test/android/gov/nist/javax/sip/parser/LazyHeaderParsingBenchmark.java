@@ -0,0 +1,120 @@
+package android.gov.nist.javax.sip.parser;
+
+import java.lang.management.ManagementFactory;
+
+import android.gov.nist.javax.sip.message.SIPMessage;
+import android.gov.nist.javax.sip.message.SIPRequest;
+
+/**
+ * Times the parsing of an INVITE with eager and with lazy header parsing and
+ * counts the bytes allocated per message: parsed only (what a stateless
+ * proxy or a transaction match needs), with two headers looked up, and
+ * encoded again (which parses every header).
+ * Usage: LazyHeaderParsingBenchmark [iterations], 200000 by default.
+ */
+public class LazyHeaderParsingBenchmark {
+
+	private static final String BODY = "v=0\r\n"
+		+ "o=alice 2890844526 2890844526 IN IP4 10.0.0.1\r\n"
+		+ "s=-\r\n"
+		+ "c=IN IP4 10.0.0.1\r\n"
+		+ "t=0 0\r\n"
+		+ "m=audio 49170 RTP/AVP 0\r\n";
+
+	private static final byte[] INVITE = ("INVITE sip:bob@example.com SIP/2.0\r\n"
+		+ "Via: SIP/2.0/UDP 10.0.0.1:5060;branch=z9hG4bK776asdhds\r\n"
+		+ "Via: SIP/2.0/UDP 10.0.0.2:5060;branch=z9hG4bK4b43c2ff8.1\r\n"
+		+ "Max-Forwards: 70\r\n"
+		+ "Record-Route: <sip:proxy1.example.com;lr>\r\n"
+		+ "Record-Route: <sip:proxy2.example.com;lr>\r\n"
+		+ "To: <sip:bob@example.com>\r\n"
+		+ "From: \"Alice\" <sip:alice@example.com>;tag=1928301774\r\n"
+		+ "Call-ID: a84b4c76e66710@pc33.example.com\r\n"
+		+ "CSeq: 314159 INVITE\r\n"
+		+ "Contact: <sip:alice@10.0.0.1:5060>;+sip.instance=\"<urn:uuid:00000000-0000-1000-8000-000A95A0E128>\"\r\n"
+		+ "Subject: lazy parsing\r\n"
+		+ "User-Agent: Sipuada\r\n"
+		+ "Allow: INVITE, ACK, CANCEL, BYE, OPTIONS, INFO, UPDATE, PRACK\r\n"
+		+ "Supported: replaces, timer, 100rel\r\n"
+		+ "Accept: application/sdp\r\n"
+		+ "Session-Expires: 1800;refresher=uac\r\n"
+		+ "Min-SE: 90\r\n"
+		+ "Organization: Example\r\n"
+		+ "P-Asserted-Identity: <sip:alice@example.com>\r\n"
+		+ "X-Custom: first\r\n"
+		+ "Content-Type: application/sdp\r\n"
+		+ "Content-Length: " + BODY.length() + "\r\n"
+		+ "\r\n"
+		+ BODY).getBytes();
+
+	private static long blackhole;
+
+	public static void main(String[] args) throws Exception {
+		int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+		final StringMsgParser eager = new StringMsgParser();
+		final StringMsgParser lazy = new StringMsgParser();
+		lazy.setLazyHeaderParsing(true);
+
+		for (int round = 0; round < 2; round++) {
+			boolean report = round == 1;
+			for (final StringMsgParser parser : new StringMsgParser[] { eager, lazy }) {
+				String mode = parser == eager ? "eager" : "lazy";
+				run(mode + ", parsed", iterations, report, new Step() {
+					long run() throws Exception {
+						SIPMessage message = parser.parseSIPMessage(INVITE, true, false, null);
+						return message.getCallId().getCallId().length();
+					}
+				});
+				run(mode + ", 2 lookups", iterations, report, new Step() {
+					long run() throws Exception {
+						SIPRequest request = (SIPRequest) parser.parseSIPMessage(INVITE, true,
+							false, null);
+						return request.getHeader("Contact").hashCode()
+							+ request.getHeader("Session-Expires").hashCode();
+					}
+				});
+				run(mode + ", encoded", iterations, report, new Step() {
+					long run() throws Exception {
+						return parser.parseSIPMessage(INVITE, true, false, null).encode().length();
+					}
+				});
+			}
+		}
+		System.out.println("(" + blackhole + ")");
+	}
+
+	private abstract static class Step {
+
+		abstract long run() throws Exception;
+
+	}
+
+	private static void run(String name, int iterations, boolean report, Step step)
+			throws Exception {
+		long allocatedBefore = allocatedBytes();
+		long start = System.nanoTime();
+		for (int i = 0; i < iterations; i++) {
+			blackhole += step.run();
+		}
+		long elapsed = System.nanoTime() - start;
+		long allocated = allocatedBytes() - allocatedBefore;
+		if (report) {
+			System.out.println(String.format("%-18s %8.2f us/message %10d bytes/message", name,
+				elapsed / 1000.0 / iterations, allocated / iterations));
+		}
+	}
+
+	/*
+	 * Bytes allocated so far by this thread, where the JVM tells it
+	 * (HotSpot does), -1 otherwise.
+	 */
+	static long allocatedBytes() {
+		java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		if (threads instanceof com.sun.management.ThreadMXBean) {
+			return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread
+				.currentThread().getId());
+		}
+		return -1;
+	}
+
+}
@@ -0,0 +1,208 @@
+package android.gov.nist.javax.sip.parser;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.Properties;
+
+import android.gov.nist.javax.sip.SipStackImpl;
+import android.gov.nist.javax.sip.header.ExtensionHeaderImpl;
+import android.gov.nist.javax.sip.header.SIPHeader;
+import android.gov.nist.javax.sip.message.SIPMessage;
+import android.gov.nist.javax.sip.message.SIPRequest;
+import android.gov.nist.javax.sip.message.SIPResponse;
+
+/**
+ * Checks that lazy header parsing is transparent: a request parsed lazily
+ * encodes, clones, iterates and answers lookups as the same request parsed
+ * eagerly does, and that it is set per stack.
+ */
+public class LazyHeaderParsingTest {
+
+	private static final String BODY = "v=0\r\n"
+		+ "o=alice 2890844526 2890844526 IN IP4 10.0.0.1\r\n"
+		+ "s=-\r\n"
+		+ "c=IN IP4 10.0.0.1\r\n"
+		+ "t=0 0\r\n"
+		+ "m=audio 49170 RTP/AVP 0\r\n";
+
+	private static final String INVITE = "INVITE sip:bob@example.com SIP/2.0\r\n"
+		+ "Via: SIP/2.0/UDP 10.0.0.1:5060;branch=z9hG4bK776asdhds\r\n"
+		+ "Via: SIP/2.0/UDP 10.0.0.2:5060;branch=z9hG4bK4b43c2ff8.1\r\n"
+		+ "Max-Forwards: 70\r\n"
+		+ "Record-Route: <sip:proxy1.example.com;lr>\r\n"
+		+ "To: <sip:bob@example.com>\r\n"
+		+ "From: \"Alice\" <sip:alice@example.com>;tag=1928301774\r\n"
+		+ "Record-Route: <sip:proxy2.example.com;lr>\r\n"
+		+ "Call-ID: a84b4c76e66710@pc33.example.com\r\n"
+		+ "CSeq: 314159 INVITE\r\n"
+		+ "Contact: <sip:alice@10.0.0.1:5060>\r\n"
+		+ "Subject: lazy parsing\r\n"
+		+ "User-Agent: Sipuada\r\n"
+		+ "Allow: INVITE, ACK, CANCEL, BYE, OPTIONS\r\n"
+		+ "Supported: replaces, timer\r\n"
+		+ "Accept: application/sdp\r\n"
+		+ "Session-Expires: 1800\r\n"
+		+ "Organization: Example\r\n"
+		+ "X-Custom: first\r\n"
+		+ "X-Custom: second\r\n"
+		+ "Content-Type: application/sdp\r\n"
+		+ "Content-Length: " + BODY.length() + "\r\n"
+		+ "\r\n"
+		+ BODY;
+
+	public static void main(String[] args) throws Exception {
+		encodingIsTheSame();
+		cloneIsTheSame();
+		iterationIsTheSame();
+		lookupsAreTheSame();
+		removingAnUnparsedHeaderDropsIt();
+		responseCarriesRecordRoutes();
+		malformedHeaderIsKeptRaw();
+		settingIsPerStack();
+		System.out.println("LazyHeaderParsingTest: all checks passed.");
+	}
+
+	private static void encodingIsTheSame() throws Exception {
+		check(parse(INVITE, true).encode().equals(parse(INVITE, false).encode()),
+			"lazy request encodes as the eager one");
+	}
+
+	private static void cloneIsTheSame() throws Exception {
+		String expected = parse(INVITE, false).encode();
+		SIPRequest lazy = parse(INVITE, true);
+		SIPRequest clone = (SIPRequest) lazy.clone();
+		check(clone.encode().equals(expected), "clone of lazy request encodes as the eager one");
+		check(lazy.encode().equals(expected), "lazy request unchanged by its clone being parsed");
+		clone.removeHeader("Organization");
+		check(lazy.getHeader("Organization") != null, "clone does not share the headers of the original");
+	}
+
+	private static void iterationIsTheSame() throws Exception {
+		SIPRequest eager = parse(INVITE, false);
+		SIPRequest lazy = parse(INVITE, true);
+		check(names(lazy).equals(names(eager)), "header names in the same order");
+		check(headers(lazy).equals(headers(eager)), "headers in the same order");
+	}
+
+	private static void lookupsAreTheSame() throws Exception {
+		SIPRequest eager = parse(INVITE, false);
+		String[] names = { "Subject", "User-Agent", "Record-Route", "Contact", "X-Custom",
+			"Session-Expires", "Allow" };
+		for (String name : names) {
+			SIPRequest lazy = parse(INVITE, true);
+			check(lazy.getHeader(name) != null, name + " found");
+			check(lazy.getHeader(name).toString().equals(eager.getHeader(name).toString()),
+				name + " looked up as when parsed eagerly");
+			check(values(lazy.getHeaders(name)).equals(values(eager.getHeaders(name))),
+				"all the " + name + " values looked up");
+			check(lazy.encode().equals(eager.encode()), "lookup of " + name + " keeps the encoding");
+		}
+		SIPRequest lazy = parse(INVITE, true);
+		check(lazy.getHeader("subject") != null, "looked up whatever the case of the name");
+		check(lazy.getHeader("Warning") == null, "absent header not found");
+		for (String name : names) {
+			lazy = parse(INVITE, true);
+			check(lazy.hasHeader(name), name + " present");
+			check(lazy.getHeader(name) != null, name + " found once said present");
+		}
+		check(!lazy.hasHeader("Warning"), "absent header not present");
+	}
+
+	private static void removingAnUnparsedHeaderDropsIt() throws Exception {
+		SIPRequest eager = parse(INVITE, false);
+		SIPRequest lazy = parse(INVITE, true);
+		eager.removeHeader("Subject");
+		lazy.removeHeader("Subject");
+		check(lazy.getHeader("Subject") == null, "removed header gone");
+		check(lazy.encode().equals(eager.encode()), "removal encodes as on the eager request");
+		eager.removeHeader("Record-Route", true);
+		lazy.removeHeader("Record-Route", true);
+		check(lazy.encode().equals(eager.encode()), "removal of the first value as on the eager request");
+	}
+
+	private static void responseCarriesRecordRoutes() throws Exception {
+		SIPResponse eager = parse(INVITE, false).createResponse(180);
+		SIPResponse lazy = parse(INVITE, true).createResponse(180);
+		check(lazy.getHeader("Record-Route") != null, "response carries Record-Route");
+		check(lazy.encode().equals(eager.encode()), "response encodes as the eager one");
+	}
+
+	private static void malformedHeaderIsKeptRaw() throws Exception {
+		String malformed = INVITE.replace("Session-Expires: 1800", "Session-Expires: never");
+		SIPRequest lazy = parse(malformed, true);
+		check(lazy.hasHeader("Session-Expires"), "malformed header present");
+		check(lazy.getHeader("Session-Expires") instanceof ExtensionHeaderImpl,
+			"malformed header kept as an extension header");
+		check(((ExtensionHeaderImpl) lazy.getHeader("Session-Expires")).getValue().equals("never"),
+			"malformed header keeps its raw value");
+		check(lazy.getHeader("Subject") != null, "other headers still there");
+		check(lazy.encode().contains("Session-Expires: never"), "malformed header encoded as it came");
+	}
+
+	private static void settingIsPerStack() throws Exception {
+		String malformed = INVITE.replace("Session-Expires: 1800", "Session-Expires: never");
+		SipStackImpl lazyStack = stack("LazyHeaderParsingTest lazy", true);
+		SipStackImpl eagerStack = stack("LazyHeaderParsingTest eager", false);
+		try {
+			StringMsgParserFactory factory = new StringMsgParserFactory();
+			SIPMessage lazy = factory.createMessageParser(lazyStack).parseSIPMessage(
+				malformed.getBytes("UTF-8"), true, false, null);
+			SIPMessage eager = factory.createMessageParser(eagerStack).parseSIPMessage(
+				malformed.getBytes("UTF-8"), true, false, null);
+			check(lazy.getHeader("Session-Expires") != null, "lazy stack parses lazily");
+			check(eager.getHeader("Session-Expires") == null,
+				"eager stack unaffected by the lazy one");
+		} finally {
+			lazyStack.stop();
+			eagerStack.stop();
+		}
+	}
+
+	private static SipStackImpl stack(String name, boolean lazy) throws Exception {
+		Properties properties = new Properties();
+		properties.setProperty("android.javax.sip.STACK_NAME", name);
+		properties.setProperty("android.gov.nist.javax.sip.LAZY_HEADER_PARSING",
+			String.valueOf(lazy));
+		return new SipStackImpl(properties);
+	}
+
+	private static SIPRequest parse(String message, boolean lazily) throws Exception {
+		StringMsgParser parser = new StringMsgParser();
+		parser.setLazyHeaderParsing(lazily);
+		SIPMessage parsed = parser.parseSIPMessage(message.getBytes("UTF-8"), true, false, null);
+		return (SIPRequest) parsed;
+	}
+
+	private static List<String> names(SIPMessage message) {
+		List<String> names = new ArrayList<String>();
+		for (ListIterator<String> it = message.getHeaderNames(); it.hasNext();) {
+			names.add(it.next());
+		}
+		return names;
+	}
+
+	private static List<String> headers(SIPMessage message) {
+		List<String> headers = new ArrayList<String>();
+		for (Iterator<SIPHeader> it = message.getHeaders(); it.hasNext();) {
+			headers.add(it.next().encode());
+		}
+		return headers;
+	}
+
+	private static List<String> values(ListIterator<?> it) {
+		List<String> values = new ArrayList<String>();
+		while (it.hasNext()) {
+			values.add(it.next().toString());
+		}
+		return values;
+	}
+
+	private static void check(boolean condition, String description) {
+		if (!condition) {
+			throw new AssertionError(description);
+		}
+	}
+
+}
@@ -0,0 +1,294 @@
+package android.gov.nist.javax.sip.parser;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.text.ParseException;
+import java.util.Properties;
+
+import android.gov.nist.javax.sip.SipStackImpl;
+import android.gov.nist.javax.sip.message.SIPMessage;
+
+/**
+ * Times the framing and parsing of a TCP stream of INVITEs with an SDP body,
+ * read in 1460 byte segments and in reads of a whole message, and counts the
+ * bytes allocated per message: the way NioPipelineParser did it before it
+ * worked on bytes (a String per line through readLine, the lines collected
+ * in a StringBuffer and encoded again with getBytes), and the way it does
+ * now.
+ * Usage: NioPipelineParserBenchmark [iterations], 20000 by default.
+ */
+public class NioPipelineParserBenchmark {
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	private static final String BODY = "v=0\r\n"
+		+ "o=alice 2890844526 2890844526 IN IP4 10.0.0.1\r\n"
+		+ "s=-\r\n"
+		+ "c=IN IP4 10.0.0.1\r\n"
+		+ "t=0 0\r\n"
+		+ "m=audio 49170 RTP/AVP 0 8 97\r\n"
+		+ "a=rtpmap:0 PCMU/8000\r\n"
+		+ "a=rtpmap:8 PCMA/8000\r\n"
+		+ "a=rtpmap:97 iLBC/8000\r\n";
+
+	private static final String INVITE = "INVITE sip:bob@example.com;transport=tcp SIP/2.0\r\n"
+		+ "Via: SIP/2.0/TCP 10.0.0.1:5060;branch=z9hG4bK776asdhds;rport\r\n"
+		+ "Max-Forwards: 70\r\n"
+		+ "Route: <sip:proxy.example.com;transport=tcp;lr>\r\n"
+		+ "To: <sip:bob@example.com>\r\n"
+		+ "From: \"Alice\" <sip:alice@example.com>;tag=1928301774\r\n"
+		+ "Call-ID: a84b4c76e66710@pc33.example.com\r\n"
+		+ "CSeq: 314159 INVITE\r\n"
+		+ "Contact: <sip:alice@10.0.0.1:5060;transport=tcp>\r\n"
+		+ "Allow: INVITE, ACK, CANCEL, BYE, OPTIONS, INFO, UPDATE, PRACK\r\n"
+		+ "Supported: replaces, timer, 100rel\r\n"
+		+ "Session-Expires: 1800;refresher=uac\r\n"
+		+ "User-Agent: Sipuada\r\n"
+		+ "Content-Type: application/sdp\r\n"
+		+ "Content-Length: " + BODY.length() + "\r\n"
+		+ "\r\n"
+		+ BODY;
+
+	private static final int MESSAGES_PER_STREAM = 16;
+
+	private static final int SEGMENT_SIZE = 1460;
+
+	private static long blackhole;
+
+	public static void main(String[] args) throws Exception {
+		int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+		StringBuilder stream = new StringBuilder();
+		for (int i = 0; i < MESSAGES_PER_STREAM; i++) {
+			stream.append(INVITE);
+		}
+		final byte[] bytes = stream.toString().getBytes(UTF_8);
+		final byte[][] segments = split(bytes, SEGMENT_SIZE);
+		final byte[][] messages = split(bytes, INVITE.getBytes(UTF_8).length);
+		Properties properties = new Properties();
+		properties.setProperty("android.javax.sip.STACK_NAME", "NioPipelineParserBenchmark");
+		SipStackImpl sipStack = new SipStackImpl(properties);
+		try {
+			final CountingListener listener = new CountingListener();
+			final LineFramingBefore before = new LineFramingBefore(
+				sipStack.getMessageParserFactory().createMessageParser(sipStack), listener);
+			final NioPipelineParser now = new NioPipelineParser(sipStack, listener, 0);
+			for (int round = 0; round < 2; round++) {
+				boolean report = round == 1;
+				for (final byte[][] reads : new byte[][][] { segments, messages }) {
+					String split = reads == segments ? "segments" : "messages";
+					run("before, " + split, iterations, report, new Step() {
+						long run() throws Exception {
+							for (byte[] read : reads) {
+								before.addBytes(read);
+							}
+							return listener.take();
+						}
+					});
+					run("now, " + split, iterations, report, new Step() {
+						long run() throws Exception {
+							for (byte[] read : reads) {
+								now.addBytes(read);
+							}
+							return listener.take();
+						}
+					});
+				}
+			}
+		} finally {
+			sipStack.stop();
+		}
+		System.out.println("(" + blackhole + ")");
+	}
+
+	private abstract static class Step {
+
+		/**
+		 * @return the number of messages handed to the listener.
+		 */
+		abstract long run() throws Exception;
+
+	}
+
+	private static void run(String name, int iterations, boolean report, Step step)
+			throws Exception {
+		long allocatedBefore = LazyHeaderParsingBenchmark.allocatedBytes();
+		long start = System.nanoTime();
+		for (int i = 0; i < iterations; i++) {
+			long messages = step.run();
+			if (messages != MESSAGES_PER_STREAM) {
+				throw new AssertionError(name + ": " + messages + " messages instead of "
+					+ MESSAGES_PER_STREAM);
+			}
+		}
+		long elapsed = System.nanoTime() - start;
+		long allocated = LazyHeaderParsingBenchmark.allocatedBytes() - allocatedBefore;
+		long messages = (long) iterations * MESSAGES_PER_STREAM;
+		if (report) {
+			System.out.println(String.format("%-20s %8.2f us/message %10d bytes/message "
+				+ "%10.0f messages/s", name, elapsed / 1000.0 / messages, allocated / messages,
+				messages * 1e9 / elapsed));
+		}
+	}
+
+	private static byte[][] split(byte[] bytes, int size) {
+		byte[][] chunks = new byte[(bytes.length + size - 1) / size][];
+		for (int i = 0; i < chunks.length; i++) {
+			int offset = i * size;
+			chunks[i] = new byte[Math.min(size, bytes.length - offset)];
+			System.arraycopy(bytes, offset, chunks[i], 0, chunks[i].length);
+		}
+		return chunks;
+	}
+
+	private static class CountingListener implements SIPMessageListener {
+
+		private long messages;
+
+		@Override
+		public void processMessage(SIPMessage message) {
+			blackhole += message.getContentLength().getContentLength();
+			messages++;
+		}
+
+		@Override
+		public void sendSingleCLRF() {
+		}
+
+		@Override
+		public void handleException(ParseException ex, SIPMessage sipMessage, Class headerClass,
+				String headerText, String messageText) throws ParseException {
+			throw ex;
+		}
+
+		private long take() {
+			long taken = messages;
+			messages = 0;
+			return taken;
+		}
+
+	}
+
+	/*
+	 * What NioPipelineParser did before it worked on bytes, less the
+	 * keepalive, size limit and post parse executor handling the stream of
+	 * this benchmark does not go through.
+	 */
+	private static class LineFramingBefore {
+
+		private final MessageParser smp;
+		private final SIPMessageListener listener;
+		private boolean currentStreamEnded;
+		private boolean readingHeaderLines = true;
+		private boolean partialLineRead;
+		private String partialLine = "";
+		private StringBuffer message = new StringBuffer();
+		private byte[] messageBody;
+		private int contentLength;
+		private int contentReadSoFar;
+
+		private LineFramingBefore(MessageParser smp, SIPMessageListener listener) {
+			this.smp = smp;
+			this.listener = listener;
+		}
+
+		private void addBytes(byte[] bytes) throws Exception {
+			currentStreamEnded = false;
+			InputStream inputStream = new ByteArrayInputStream(bytes);
+			while (!currentStreamEnded) {
+				if (readingHeaderLines) {
+					readHeaderLine(inputStream);
+				}
+				if (!readingHeaderLines) {
+					readBody(inputStream);
+				}
+			}
+		}
+
+		private void readHeaderLine(InputStream inputStream) throws IOException {
+			String line = readLine(inputStream);
+			if (partialLineRead) {
+				partialLine = partialLine + line;
+				return;
+			}
+			line = partialLine + line;
+			partialLine = "";
+			if (!line.equals("\r\n")) {
+				message.append(line);
+				String lineIgnoreCase = line.toLowerCase();
+				if (lineIgnoreCase.startsWith("content-length")) {
+					contentLength = Integer.parseInt(line.substring(
+						"content-length".length() + 1).trim());
+				} else if (lineIgnoreCase.startsWith("call-id")) {
+					blackhole += line.substring("call-id".length() + 1).trim().length();
+				}
+			} else if (message.length() > 0) {
+				readingHeaderLines = false;
+				message.append("\r\n");
+				contentReadSoFar = 0;
+				messageBody = new byte[contentLength];
+			}
+		}
+
+		private void readBody(InputStream inputStream) throws Exception {
+			if (contentLength > 0) {
+				int bytesRead = inputStream.read(messageBody, contentReadSoFar,
+					contentLength - contentReadSoFar);
+				if (bytesRead == -1) {
+					currentStreamEnded = true;
+					return;
+				}
+				contentReadSoFar += bytesRead;
+			}
+			if (contentReadSoFar == contentLength) {
+				readingHeaderLines = true;
+				String msgLines = message.toString();
+				message = new StringBuffer();
+				SIPMessage sipMessage = smp.parseSIPMessage(msgLines.getBytes(), false, false, null);
+				sipMessage.setMessageContent(messageBody);
+				contentLength = 0;
+				listener.processMessage(sipMessage);
+			}
+		}
+
+		private String readLine(InputStream inputStream) throws IOException {
+			partialLineRead = false;
+			int counter = 0;
+			byte[] lineBuffer = new byte[1024];
+			byte[] crlfBuffer = new byte[2];
+			int crlfCounter = 0;
+			while (true) {
+				int i = inputStream.read();
+				if (i == -1) {
+					partialLineRead = true;
+					currentStreamEnded = true;
+					break;
+				}
+				if (i != '\r') {
+					lineBuffer[counter++] = (byte) i;
+				} else if (counter == 0) {
+					crlfBuffer[crlfCounter++] = (byte) '\r';
+				}
+				if (i == '\n') {
+					if (counter == 1 && crlfCounter > 0) {
+						crlfBuffer[crlfCounter++] = (byte) '\n';
+					}
+					break;
+				}
+				if (counter == lineBuffer.length) {
+					byte[] tempBuffer = new byte[lineBuffer.length + 1024];
+					System.arraycopy(lineBuffer, 0, tempBuffer, 0, counter);
+					lineBuffer = tempBuffer;
+				}
+			}
+			if (counter == 1 && crlfCounter > 0) {
+				return new String(crlfBuffer, 0, crlfCounter, "UTF-8");
+			}
+			String lineRead = new String(lineBuffer, 0, counter, "UTF-8");
+			return crlfCounter == 1 ? lineRead + "\r" : lineRead;
+		}
+
+	}
+
+}
@@ -0,0 +1,187 @@
+package android.gov.nist.javax.sip.parser;
+
+import java.nio.charset.Charset;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import android.gov.nist.javax.sip.SipStackImpl;
+import android.gov.nist.javax.sip.message.SIPMessage;
+
+/**
+ * Checks the byte level framing of NioPipelineParser: messages cut anywhere
+ * across reads, keepalive CRLFs between messages and Content-Length edge cases.
+ */
+public class NioPipelineParserTest {
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	private static final String REQUEST_WITH_BODY = "MESSAGE sip:bob@example.com SIP/2.0\r\n"
+		+ "Via: SIP/2.0/TCP 10.0.0.1:5060;branch=z9hG4bK776asdhds\r\n"
+		+ "Max-Forwards: 70\r\n"
+		+ "To: <sip:bob@example.com>\r\n"
+		+ "From: <sip:alice@example.com>;tag=1928301774\r\n"
+		+ "Call-ID: a84b4c76e66710@pc33.example.com\r\n"
+		+ "CSeq: 1 MESSAGE\r\n"
+		+ "Content-Type: text/plain\r\n"
+		+ "Content-Length: 12\r\n"
+		+ "\r\n"
+		+ "Hello\r\nWorld";
+
+	private static final String COMPACT_RESPONSE = "SIP/2.0 200 OK\r\n"
+		+ "v: SIP/2.0/TCP 10.0.0.1:5060;branch=z9hG4bK776asdhds\r\n"
+		+ "t: <sip:bob@example.com>;tag=a6c85cf\r\n"
+		+ "f: <sip:alice@example.com>;tag=1928301774\r\n"
+		+ "i: a84b4c76e66710@pc33.example.com\r\n"
+		+ "CSeq: 1 MESSAGE\r\n"
+		+ "l:0\r\n"
+		+ "\r\n";
+
+	private static final String NO_CONTENT_LENGTH = "OPTIONS sip:bob@example.com SIP/2.0\r\n"
+		+ "Via: SIP/2.0/TCP 10.0.0.1:5060;branch=z9hG4bKnashds8\r\n"
+		+ "To: <sip:bob@example.com>\r\n"
+		+ "From: <sip:alice@example.com>;tag=456248\r\n"
+		+ "Call-ID: 843817637684230@998sdasdh09\r\n"
+		+ "CSeq: 63104 OPTIONS\r\n"
+		+ "\r\n";
+
+	private static class RecordingListener implements SIPMessageListener {
+
+		private final List<SIPMessage> messages = new ArrayList<>();
+		private int singleCrlfsSent;
+
+		@Override
+		public void processMessage(SIPMessage message) {
+			messages.add(message);
+		}
+
+		@Override
+		public void sendSingleCLRF() {
+			singleCrlfsSent++;
+		}
+
+		@Override
+		public void handleException(ParseException ex, SIPMessage sipMessage, Class headerClass,
+				String headerText, String messageText) throws ParseException {
+			throw ex;
+		}
+
+	}
+
+	private static SipStackImpl sipStack;
+
+	public static void main(String[] args) throws Exception {
+		Properties properties = new Properties();
+		properties.setProperty("android.javax.sip.STACK_NAME", "NioPipelineParserTest");
+		sipStack = new SipStackImpl(properties);
+		try {
+			everyChunkSizeGivesTheSameMessages();
+			keepAliveCrlfs();
+			contentLengthEdgeCases();
+			oversizedMessageIsRejected();
+		} finally {
+			sipStack.stop();
+		}
+		System.out.println("NioPipelineParserTest: all checks passed.");
+	}
+
+	private static void everyChunkSizeGivesTheSameMessages() throws Exception {
+		byte[] stream = ("\r\n\r\n" + REQUEST_WITH_BODY + COMPACT_RESPONSE
+			+ "\r\n" + NO_CONTENT_LENGTH).getBytes(UTF_8);
+		for (int chunkSize = 1; chunkSize <= stream.length; chunkSize++) {
+			RecordingListener listener = new RecordingListener();
+			NioPipelineParser parser = newParser(listener, 0);
+			for (int offset = 0; offset < stream.length; offset += chunkSize) {
+				parser.addBytes(stream, offset, Math.min(chunkSize, stream.length - offset));
+			}
+			String context = "chunk size " + chunkSize;
+			check(listener.messages.size() == 3, context + ": 3 messages expected, got "
+				+ listener.messages.size());
+			SIPMessage request = listener.messages.get(0);
+			check("Hello\r\nWorld".equals(new String(request.getRawContent(), UTF_8)),
+				context + ": request body");
+			check("a84b4c76e66710@pc33.example.com".equals(request.getCallId().getCallId()),
+				context + ": request Call-ID");
+			SIPMessage response = listener.messages.get(1);
+			check(response.getRawContent() == null || response.getRawContent().length == 0,
+				context + ": compact response body");
+			check("a84b4c76e66710@pc33.example.com".equals(response.getCallId().getCallId()),
+				context + ": compact Call-ID");
+			check("843817637684230@998sdasdh09".equals(listener.messages.get(2)
+				.getCallId().getCallId()), context + ": last message Call-ID");
+		}
+	}
+
+	private static void keepAliveCrlfs() throws Exception {
+		RecordingListener listener = new RecordingListener();
+		NioPipelineParser parser = newParser(listener, 0);
+		// A double CRLF ping is answered with a single CRLF pong
+		parser.addBytes("\r\n\r\n".getBytes(UTF_8));
+		check(listener.singleCrlfsSent == 1, "double CRLF answered once");
+		// A lone CRLF between messages is skipped without an answer
+		parser.addBytes(("\r\n" + COMPACT_RESPONSE).getBytes(UTF_8));
+		check(listener.singleCrlfsSent == 1, "single CRLF not answered");
+		check(listener.messages.size() == 1, "message after single CRLF");
+		// Single CRLFs of separate reads (pongs) are not taken for a ping
+		parser.addBytes("\r\n".getBytes(UTF_8));
+		parser.addBytes("\r\n".getBytes(UTF_8));
+		check(listener.singleCrlfsSent == 1, "pongs of separate reads not answered");
+		// Bare LF line endings are accepted too
+		parser.addBytes(COMPACT_RESPONSE.replace("\r\n", "\n").getBytes(UTF_8));
+		check(listener.messages.size() == 2, "LF only message");
+	}
+
+	private static void contentLengthEdgeCases() throws Exception {
+		RecordingListener listener = new RecordingListener();
+		NioPipelineParser parser = newParser(listener, 0);
+		// Body cut right after the blank line, then byte by byte
+		byte[] request = REQUEST_WITH_BODY.getBytes(UTF_8);
+		int headersEnd = REQUEST_WITH_BODY.indexOf("\r\n\r\n") + 4;
+		parser.addBytes(request, 0, headersEnd);
+		check(listener.messages.isEmpty(), "no message before its body");
+		for (int i = headersEnd; i < request.length; i++) {
+			parser.addBytes(request, i, 1);
+			check(listener.messages.size() == (i == request.length - 1 ? 1 : 0),
+				"message complete only with its last body byte");
+		}
+		// Whitespace around the value and a mixed case header name
+		parser.addBytes(REQUEST_WITH_BODY.replace("Content-Length: 12", "content-LENGTH :  12 ")
+			.getBytes(UTF_8));
+		check(listener.messages.size() == 2 && listener.messages.get(1).getRawContent().length == 12,
+			"Content-Length with whitespace");
+		// The next message starts in the same read as the end of a body
+		parser.addBytes((REQUEST_WITH_BODY + NO_CONTENT_LENGTH).getBytes(UTF_8));
+		check(listener.messages.size() == 4, "message right after a body");
+		// A non numeric value is a framing error
+		boolean rejected = false;
+		try {
+			newParser(new RecordingListener(), 0).addBytes(REQUEST_WITH_BODY
+				.replace("Content-Length: 12", "Content-Length: 1x2").getBytes(UTF_8));
+		} catch (NumberFormatException expected) {
+			rejected = true;
+		}
+		check(rejected, "bad Content-Length rejected");
+	}
+
+	private static void oversizedMessageIsRejected() throws Exception {
+		boolean rejected = false;
+		try {
+			newParser(new RecordingListener(), 64).addBytes(REQUEST_WITH_BODY.getBytes(UTF_8));
+		} catch (RuntimeException expected) {
+			rejected = true;
+		}
+		check(rejected, "message over the max message size rejected");
+	}
+
+	private static NioPipelineParser newParser(SIPMessageListener listener, int maxMessageSize) {
+		return new NioPipelineParser(sipStack, listener, maxMessageSize);
+	}
+
+	private static void check(boolean condition, String description) {
+		if (!condition) {
+			throw new AssertionError(description);
+		}
+	}
+
+}
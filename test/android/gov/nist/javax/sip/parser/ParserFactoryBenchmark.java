@@ -0,0 +1,187 @@
+package android.gov.nist.javax.sip.parser;
+
+import java.lang.reflect.Constructor;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import android.gov.nist.javax.sip.header.SIPHeaderNamesCache;
+
+/**
+ * Counts the bytes allocated and the time spent per message to create the
+ * parsers of the headers of an INVITE, a REGISTER and a 200 OK, and to
+ * parse them: the way ParserFactory did before its parser factories (name
+ * and value copied out of the line, lower cased, parser created through
+ * Constructor.newInstance, line terminated through a StringBuilder), and
+ * the way it does now. The whole message parsing is timed as well.
+ * Usage: ParserFactoryBenchmark [iterations], 100000 by default.
+ */
+public class ParserFactoryBenchmark {
+
+	private static final String INVITE = "INVITE sip:bob@example.com SIP/2.0\r\n"
+		+ "Via: SIP/2.0/UDP 10.0.0.1:5060;branch=z9hG4bK776asdhds;rport\r\n"
+		+ "Max-Forwards: 70\r\n"
+		+ "Route: <sip:proxy.example.com;lr>\r\n"
+		+ "To: <sip:bob@example.com>\r\n"
+		+ "From: \"Alice\" <sip:alice@example.com>;tag=1928301774\r\n"
+		+ "Call-ID: a84b4c76e66710@pc33.example.com\r\n"
+		+ "CSeq: 314159 INVITE\r\n"
+		+ "Contact: <sip:alice@10.0.0.1:5060;transport=udp>\r\n"
+		+ "Allow: INVITE, ACK, CANCEL, BYE, OPTIONS, INFO, UPDATE, PRACK\r\n"
+		+ "Supported: replaces, timer, 100rel\r\n"
+		+ "Session-Expires: 1800;refresher=uac\r\n"
+		+ "User-Agent: Sipuada\r\n"
+		+ "Content-Type: application/sdp\r\n"
+		+ "Content-Length: 0\r\n"
+		+ "\r\n";
+
+	private static final String REGISTER = "REGISTER sip:example.com SIP/2.0\r\n"
+		+ "Via: SIP/2.0/UDP 10.0.0.1:5060;branch=z9hG4bKnashds7;rport\r\n"
+		+ "Max-Forwards: 70\r\n"
+		+ "To: <sip:alice@example.com>\r\n"
+		+ "From: <sip:alice@example.com>;tag=456248\r\n"
+		+ "Call-ID: 843817637684230@998sdasdh09\r\n"
+		+ "CSeq: 1826 REGISTER\r\n"
+		+ "Contact: <sip:alice@10.0.0.1:5060>;expires=3600\r\n"
+		+ "Authorization: Digest username=\"alice\", realm=\"example.com\", "
+		+ "nonce=\"dcd98b7102dd2f0e8b11d0f600bfb0c093\", uri=\"sip:example.com\", "
+		+ "response=\"6629fae49393a05397450978507c4ef1\", algorithm=MD5, "
+		+ "qop=auth, nc=00000001, cnonce=\"0a4f113b\"\r\n"
+		+ "Expires: 3600\r\n"
+		+ "User-Agent: Sipuada\r\n"
+		+ "Content-Length: 0\r\n"
+		+ "\r\n";
+
+	private static final String OK = "SIP/2.0 200 OK\r\n"
+		+ "Via: SIP/2.0/UDP 10.0.0.1:5060;branch=z9hG4bK776asdhds;rport=5060;received=192.0.2.4\r\n"
+		+ "Record-Route: <sip:proxy.example.com;lr>\r\n"
+		+ "To: <sip:bob@example.com>;tag=a6c85cf\r\n"
+		+ "From: \"Alice\" <sip:alice@example.com>;tag=1928301774\r\n"
+		+ "Call-ID: a84b4c76e66710@pc33.example.com\r\n"
+		+ "CSeq: 314159 INVITE\r\n"
+		+ "Contact: <sip:bob@192.0.2.4:5060>\r\n"
+		+ "Allow: INVITE, ACK, CANCEL, BYE, OPTIONS\r\n"
+		+ "Require: timer\r\n"
+		+ "Session-Expires: 1800;refresher=uac\r\n"
+		+ "Server: Sipuada\r\n"
+		+ "Content-Length: 0\r\n"
+		+ "\r\n";
+
+	/*
+	 * The parser constructors, as the former parser table held the parser
+	 * classes by lower case name.
+	 */
+	private static final ConcurrentHashMap<String, Constructor<?>> constructors =
+		new ConcurrentHashMap<String, Constructor<?>>();
+
+	private static long blackhole;
+
+	public static void main(String[] args) throws Exception {
+		int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+		String[] names = { "INVITE", "REGISTER", "200 OK" };
+		String[] messages = { INVITE, REGISTER, OK };
+		for (String message : messages) {
+			for (String line : headerLines(message)) {
+				constructors.put(SIPHeaderNamesCache.toLowerCase(Lexer.getHeaderName(line)),
+					ParserFactory.createParser(line + "\n").getClass().getConstructor(String.class));
+			}
+		}
+
+		for (int round = 0; round < 2; round++) {
+			boolean report = round == 1;
+			for (int i = 0; i < messages.length; i++) {
+				final List<String> lines = headerLines(messages[i]);
+				final byte[] bytes = messages[i].getBytes("UTF-8");
+				run(names[i] + ", parsers before", iterations, report, new Step() {
+					long run() throws Exception {
+						long result = 0;
+						for (String line : lines) {
+							result += createParserBefore(line).hashCode();
+						}
+						return result;
+					}
+				});
+				run(names[i] + ", parsers now", iterations, report, new Step() {
+					long run() throws Exception {
+						long result = 0;
+						for (String line : lines) {
+							result += ParserFactory.createParser(line.concat("\n")).hashCode();
+						}
+						return result;
+					}
+				});
+				run(names[i] + ", headers before", iterations, report, new Step() {
+					long run() throws Exception {
+						long result = 0;
+						for (String line : lines) {
+							result += createParserBefore(line).parse().hashCode();
+						}
+						return result;
+					}
+				});
+				run(names[i] + ", headers now", iterations, report, new Step() {
+					long run() throws Exception {
+						long result = 0;
+						for (String line : lines) {
+							result += ParserFactory.createParser(line.concat("\n")).parse().hashCode();
+						}
+						return result;
+					}
+				});
+				final StringMsgParser parser = new StringMsgParser();
+				run(names[i] + ", message now", iterations, report, new Step() {
+					long run() throws Exception {
+						return parser.parseSIPMessage(bytes, true, false, null).getSize();
+					}
+				});
+			}
+		}
+		System.out.println("(" + blackhole + ")");
+	}
+
+	private abstract static class Step {
+
+		abstract long run() throws Exception;
+
+	}
+
+	private static void run(String name, int iterations, boolean report, Step step)
+			throws Exception {
+		long allocatedBefore = LazyHeaderParsingBenchmark.allocatedBytes();
+		long start = System.nanoTime();
+		for (int i = 0; i < iterations; i++) {
+			blackhole += step.run();
+		}
+		long elapsed = System.nanoTime() - start;
+		long allocated = LazyHeaderParsingBenchmark.allocatedBytes() - allocatedBefore;
+		if (report) {
+			System.out.println(String.format("%-26s %8.2f us/message %10d bytes/message", name,
+				elapsed / 1000.0 / iterations, allocated / iterations));
+		}
+	}
+
+	/*
+	 * What StringMsgParser.processHeader and ParserFactory.createParser did
+	 * before the parser factories.
+	 */
+	private static HeaderParser createParserBefore(String header) throws Exception {
+		String line = new StringBuilder(header).append("\n").toString();
+		String headerName = Lexer.getHeaderName(line);
+		String headerValue = Lexer.getHeaderValue(line);
+		if (headerName == null || headerValue == null) {
+			throw new IllegalArgumentException(line);
+		}
+		Constructor<?> constructor = constructors.get(SIPHeaderNamesCache.toLowerCase(headerName));
+		return (HeaderParser) constructor.newInstance(new Object[] { line });
+	}
+
+	private static List<String> headerLines(String message) {
+		List<String> lines = new ArrayList<String>();
+		String[] all = message.split("\r\n");
+		for (int i = 1; i < all.length && all[i].length() > 0; i++) {
+			lines.add(all[i]);
+		}
+		return lines;
+	}
+
+}
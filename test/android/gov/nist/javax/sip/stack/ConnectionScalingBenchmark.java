@@ -0,0 +1,233 @@
+package android.gov.nist.javax.sip.stack;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+
+import android.javax.sip.DialogTerminatedEvent;
+import android.javax.sip.IOExceptionEvent;
+import android.javax.sip.ListeningPoint;
+import android.javax.sip.RequestEvent;
+import android.javax.sip.ResponseEvent;
+import android.javax.sip.SipFactory;
+import android.javax.sip.SipListener;
+import android.javax.sip.SipProvider;
+import android.javax.sip.SipStack;
+import android.javax.sip.TimeoutEvent;
+import android.javax.sip.TransactionTerminatedEvent;
+import android.javax.sip.message.MessageFactory;
+import android.javax.sip.message.Response;
+
+/**
+ * Opens idle and active TCP connections to a stack answering OPTIONS and
+ * reports, for the OIO processors, the OIO processors with
+ * OIO_INLINE_PARSING and the NIO processors: the threads and the memory the
+ * connections hold, and the OPTIONS round trip on the active ones.
+ * Usage: ConnectionScalingBenchmark [idle] [active] [rounds], 10000, 1000
+ * and 5 by default. Client and server ends being in the same process, it
+ * needs about two file descriptors per connection, and the OIO processors
+ * two threads per connection.
+ */
+public class ConnectionScalingBenchmark {
+
+	private static final String LOCALHOST = "127.0.0.1";
+
+	public static void main(String[] args) throws Exception {
+		int idle = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+		int active = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+		int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+		System.out.println(String.format("%d idle and %d active connections, %d rounds",
+			idle, active, rounds));
+		System.out.println(String.format("%-20s %8s %10s %10s %10s %10s", "processors",
+			"threads", "heap MB", "RSS MB", "p50 us", "p99 us"));
+		run("OIO", OIOMessageProcessorFactory.class, false, idle, active, rounds);
+		run("OIO inline parsing", OIOMessageProcessorFactory.class, true, idle, active, rounds);
+		run("NIO", NioMessageProcessorFactory.class, false, idle, active, rounds);
+	}
+
+	private static void run(String name, Class<?> factory, boolean inlineParsing, int idle,
+			int active, int rounds) throws Exception {
+		int port = freePort();
+		Properties properties = new Properties();
+		// A name of its own, as SipFactory hands out the stacks it made by name.
+		properties.setProperty("android.javax.sip.STACK_NAME", "ConnectionScalingBenchmark " + name);
+		properties.setProperty("android.gov.nist.javax.sip.MESSAGE_PROCESSOR_FACTORY",
+			factory.getName());
+		properties.setProperty("android.gov.nist.javax.sip.OIO_INLINE_PARSING",
+			String.valueOf(inlineParsing));
+		SipFactory sipFactory = SipFactory.getInstance();
+		sipFactory.setPathName("android.gov.nist");
+		SipStack stack = sipFactory.createSipStack(properties);
+		List<Socket> sockets = new ArrayList<Socket>();
+		try {
+			ListeningPoint listeningPoint = stack.createListeningPoint(LOCALHOST, port,
+				ListeningPoint.TCP);
+			SipProvider provider = stack.createSipProvider(listeningPoint);
+			provider.addSipListener(new OptionsResponder(provider, sipFactory.createMessageFactory()));
+			stack.start();
+
+			settle();
+			int baseThreads = Thread.activeCount();
+			long baseHeap = usedHeap();
+			long baseRss = rss();
+
+			for (int i = 0; i < idle; i++) {
+				sockets.add(new Socket(LOCALHOST, port));
+			}
+			List<Socket> activeSockets = new ArrayList<Socket>();
+			for (int i = 0; i < active; i++) {
+				Socket socket = new Socket(LOCALHOST, port);
+				socket.setTcpNoDelay(true);
+				activeSockets.add(socket);
+				sockets.add(socket);
+			}
+
+			long[] latencies = new long[active * rounds];
+			int sent = 0;
+			for (int round = 0; round < rounds; round++) {
+				for (int i = 0; i < active; i++) {
+					latencies[sent] = roundTrip(activeSockets.get(i), port, sent);
+					sent++;
+				}
+			}
+			Arrays.sort(latencies);
+
+			settle();
+			System.out.println(String.format("%-20s %8d %10.1f %10.1f %10.1f %10.1f", name,
+				Thread.activeCount() - baseThreads,
+				(usedHeap() - baseHeap) / 1048576.0,
+				(rss() - baseRss) / 1048576.0,
+				latencies[latencies.length / 2] / 1000.0,
+				latencies[latencies.length * 99 / 100] / 1000.0));
+		} finally {
+			for (Socket socket : sockets) {
+				socket.close();
+			}
+			stack.stop();
+			settle();
+		}
+	}
+
+	/**
+	 * Sends an OPTIONS on the connection and waits for the 200 OK.
+	 *
+	 * @return the round trip, in ns.
+	 */
+	private static long roundTrip(Socket socket, int port, int sequence) throws IOException {
+		String options = "OPTIONS sip:bob@" + LOCALHOST + ":" + port + ";transport=tcp SIP/2.0\r\n"
+			+ "Via: SIP/2.0/TCP " + LOCALHOST + ":" + socket.getLocalPort()
+			+ ";branch=z9hG4bK" + sequence + "x;rport\r\n"
+			+ "Max-Forwards: 70\r\n"
+			+ "To: <sip:bob@" + LOCALHOST + ">\r\n"
+			+ "From: <sip:alice@" + LOCALHOST + ">;tag=" + sequence + "\r\n"
+			+ "Call-ID: " + sequence + "@" + LOCALHOST + "\r\n"
+			+ "CSeq: 1 OPTIONS\r\n"
+			+ "Content-Length: 0\r\n"
+			+ "\r\n";
+		long start = System.nanoTime();
+		socket.getOutputStream().write(options.getBytes("UTF-8"));
+		readResponse(socket.getInputStream());
+		return System.nanoTime() - start;
+	}
+
+	// The responses have no body, so they end at the first empty line.
+	private static void readResponse(InputStream in) throws IOException {
+		int matched = 0;
+		while (matched < 4) {
+			int b = in.read();
+			if (b == -1) {
+				throw new IOException("Connection closed before the response");
+			}
+			matched = (b == (matched % 2 == 0 ? '\r' : '\n')) ? matched + 1 : (b == '\r' ? 1 : 0);
+		}
+	}
+
+	private static class OptionsResponder implements SipListener {
+
+		private final SipProvider provider;
+		private final MessageFactory messageFactory;
+
+		private OptionsResponder(SipProvider provider, MessageFactory messageFactory) {
+			this.provider = provider;
+			this.messageFactory = messageFactory;
+		}
+
+		@Override
+		public void processRequest(RequestEvent requestEvent) {
+			try {
+				provider.sendResponse(messageFactory.createResponse(Response.OK,
+					requestEvent.getRequest()));
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
+		}
+
+		@Override
+		public void processResponse(ResponseEvent responseEvent) {
+		}
+
+		@Override
+		public void processTimeout(TimeoutEvent timeoutEvent) {
+		}
+
+		@Override
+		public void processIOException(IOExceptionEvent exceptionEvent) {
+		}
+
+		@Override
+		public void processTransactionTerminated(TransactionTerminatedEvent transactionTerminatedEvent) {
+		}
+
+		@Override
+		public void processDialogTerminated(DialogTerminatedEvent dialogTerminatedEvent) {
+		}
+
+	}
+
+	private static int freePort() throws IOException {
+		ServerSocket socket = new ServerSocket(0, 1, InetAddress.getByName(LOCALHOST));
+		int port = socket.getLocalPort();
+		socket.close();
+		return port;
+	}
+
+	private static void settle() throws InterruptedException {
+		for (int i = 0; i < 3; i++) {
+			System.gc();
+			Thread.sleep(500);
+		}
+	}
+
+	private static long usedHeap() {
+		Runtime runtime = Runtime.getRuntime();
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+	// Resident set size, which counts the thread stacks the heap does not, 0 when unknown.
+	private static long rss() {
+		try {
+			BufferedReader status = new BufferedReader(new FileReader("/proc/self/status"));
+			try {
+				String line;
+				while ((line = status.readLine()) != null) {
+					if (line.startsWith("VmRSS:")) {
+						return Long.parseLong(line.replaceAll("[^0-9]", "")) * 1024;
+					}
+				}
+			} finally {
+				status.close();
+			}
+		} catch (IOException unknown) {
+		}
+		return 0;
+	}
+
+}
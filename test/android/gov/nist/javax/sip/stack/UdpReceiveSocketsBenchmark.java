@@ -0,0 +1,207 @@
+package android.gov.nist.javax.sip.stack;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.javax.sip.DialogTerminatedEvent;
+import android.javax.sip.IOExceptionEvent;
+import android.javax.sip.ListeningPoint;
+import android.javax.sip.RequestEvent;
+import android.javax.sip.ResponseEvent;
+import android.javax.sip.SipFactory;
+import android.javax.sip.SipListener;
+import android.javax.sip.SipProvider;
+import android.javax.sip.SipStack;
+import android.javax.sip.TimeoutEvent;
+import android.javax.sip.TransactionTerminatedEvent;
+
+/**
+ * Floods a UDP listening point with OPTIONS from many source ports and
+ * reports the messages per second handed to the listener as the number of
+ * receive sockets (UDP_RECEIVE_SOCKETS) grows: 1, 2, 4... up to the maximum.
+ * Usage: UdpReceiveSocketsBenchmark [max sockets] [seconds] [senders], twice
+ * the number of processors, 5 and 4 by default. The senders run in the same
+ * process and take their share of the processors. A JVM without SO_REUSEPORT
+ * (before Java 9) always uses one socket.
+ */
+public class UdpReceiveSocketsBenchmark {
+
+	private static final String LOCALHOST = "127.0.0.1";
+
+	private static final int SOURCE_PORTS_PER_SENDER = 16;
+
+	public static void main(String[] args) throws Exception {
+		int maxSockets = args.length > 0 ? Integer.parseInt(args[0])
+			: 2 * Runtime.getRuntime().availableProcessors();
+		int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+		int senders = args.length > 2 ? Integer.parseInt(args[2]) : 4;
+		System.out.println(String.format("%d processors, %d senders, %d s per step",
+			Runtime.getRuntime().availableProcessors(), senders, seconds));
+		System.out.println(String.format("%-8s %12s %12s", "sockets", "received/s", "sent/s"));
+		for (int sockets = 1; sockets <= maxSockets; sockets *= 2) {
+			run(sockets, seconds, senders);
+		}
+	}
+
+	private static void run(int sockets, int seconds, int senders) throws Exception {
+		int port = freePort();
+		Properties properties = new Properties();
+		// A name of its own, as SipFactory hands out the stacks it made by name.
+		properties.setProperty("android.javax.sip.STACK_NAME", "UdpReceiveSocketsBenchmark "
+			+ sockets);
+		properties.setProperty("android.gov.nist.javax.sip.UDP_RECEIVE_SOCKETS",
+			String.valueOf(sockets));
+		properties.setProperty("android.gov.nist.javax.sip.THREAD_POOL_SIZE",
+			String.valueOf(Math.max(sockets, 4)));
+		SipFactory sipFactory = SipFactory.getInstance();
+		sipFactory.setPathName("android.gov.nist");
+		SipStack stack = sipFactory.createSipStack(properties);
+		Sender[] running = new Sender[senders];
+		try {
+			ListeningPoint listeningPoint = stack.createListeningPoint(LOCALHOST, port,
+				ListeningPoint.UDP);
+			SipProvider provider = stack.createSipProvider(listeningPoint);
+			RequestCounter counter = new RequestCounter();
+			provider.addSipListener(counter);
+			stack.start();
+
+			for (int i = 0; i < senders; i++) {
+				running[i] = new Sender(i, port);
+				running[i].start();
+			}
+			// Let the receivers get going before counting.
+			Thread.sleep(1000);
+			long receivedBefore = counter.requests.get();
+			long sentBefore = sent(running);
+			Thread.sleep(seconds * 1000L);
+			long received = counter.requests.get() - receivedBefore;
+			long sent = sent(running) - sentBefore;
+			System.out.println(String.format("%-8d %12d %12d", sockets, received / seconds,
+				sent / seconds));
+		} finally {
+			for (Sender sender : running) {
+				if (sender != null) {
+					sender.halt();
+				}
+			}
+			// Let the workers drain their queues, stop interrupts the busy ones.
+			Thread.sleep(1000);
+			stack.stop();
+			Thread.sleep(500);
+		}
+	}
+
+	private static long sent(Sender[] senders) {
+		long sent = 0;
+		for (Sender sender : senders) {
+			sent += sender.sent.get();
+		}
+		return sent;
+	}
+
+	/**
+	 * Sends OPTIONS as fast as it can, each one with a new branch and Call-ID,
+	 * round robin over source ports of its own so that the kernel spreads
+	 * them over the receive sockets.
+	 */
+	private static class Sender extends Thread {
+
+		private final int id;
+		private final InetSocketAddress destination;
+		private final DatagramSocket[] sockets = new DatagramSocket[SOURCE_PORTS_PER_SENDER];
+		private final AtomicLong sent = new AtomicLong();
+		private volatile boolean running = true;
+
+		private Sender(int id, int port) throws IOException {
+			super("UdpSender-" + id);
+			setDaemon(true);
+			this.id = id;
+			this.destination = new InetSocketAddress(LOCALHOST, port);
+			for (int i = 0; i < sockets.length; i++) {
+				sockets[i] = new DatagramSocket(0, InetAddress.getByName(LOCALHOST));
+			}
+		}
+
+		@Override
+		public void run() {
+			long sequence = 0;
+			try {
+				while (running) {
+					DatagramSocket socket = sockets[(int) (sequence % sockets.length)];
+					byte[] data = options(socket.getLocalPort(), id + "-" + sequence)
+						.getBytes("UTF-8");
+					socket.send(new DatagramPacket(data, data.length, destination));
+					sent.incrementAndGet();
+					sequence++;
+				}
+			} catch (IOException closed) {
+				// Halted.
+			}
+		}
+
+		private String options(int sourcePort, String unique) {
+			return "OPTIONS sip:bob@" + LOCALHOST + ":" + destination.getPort() + " SIP/2.0\r\n"
+				+ "Via: SIP/2.0/UDP " + LOCALHOST + ":" + sourcePort + ";branch=z9hG4bK" + unique
+				+ "\r\n"
+				+ "Max-Forwards: 70\r\n"
+				+ "To: <sip:bob@" + LOCALHOST + ">\r\n"
+				+ "From: <sip:alice@" + LOCALHOST + ">;tag=" + unique + "\r\n"
+				+ "Call-ID: " + unique + "@" + LOCALHOST + "\r\n"
+				+ "CSeq: 1 OPTIONS\r\n"
+				+ "Content-Length: 0\r\n"
+				+ "\r\n";
+		}
+
+		private void halt() {
+			running = false;
+			for (DatagramSocket socket : sockets) {
+				socket.close();
+			}
+		}
+
+	}
+
+	private static class RequestCounter implements SipListener {
+
+		private final AtomicLong requests = new AtomicLong();
+
+		@Override
+		public void processRequest(RequestEvent requestEvent) {
+			requests.incrementAndGet();
+		}
+
+		@Override
+		public void processResponse(ResponseEvent responseEvent) {
+		}
+
+		@Override
+		public void processTimeout(TimeoutEvent timeoutEvent) {
+		}
+
+		@Override
+		public void processIOException(IOExceptionEvent exceptionEvent) {
+		}
+
+		@Override
+		public void processTransactionTerminated(TransactionTerminatedEvent transactionTerminatedEvent) {
+		}
+
+		@Override
+		public void processDialogTerminated(DialogTerminatedEvent dialogTerminatedEvent) {
+		}
+
+	}
+
+	private static int freePort() throws IOException {
+		DatagramSocket socket = new DatagramSocket(0, InetAddress.getByName(LOCALHOST));
+		int port = socket.getLocalPort();
+		socket.close();
+		return port;
+	}
+
+}
@@ -0,0 +1,157 @@
+package android.gov.nist.javax.sip.stack;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Times the masking and the encoding of masked WebSocket frames carrying 1 KB
+ * to 64 KB payloads: the way WebSocketCodec did it before (a byte at a time,
+ * the frame built in a ByteArrayOutputStream), and the way it does now (a
+ * long at a time, the frame written straight into an array or a reused
+ * buffer).
+ * Usage: WebSocketCodecBenchmark [iterations], 200000 by default, for 1 KB
+ * payloads and fewer for the larger ones so that each size moves as many
+ * bytes.
+ */
+public class WebSocketCodecBenchmark {
+
+	private static final int[] PAYLOAD_SIZES = { 1024, 4096, 16384, 65536 };
+
+	private static final byte[] MASK = { 0x12, 0x34, 0x56, 0x78 };
+
+	private static long blackhole;
+
+	public static void main(String[] args) throws Exception {
+		int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+		checkSameMasking();
+
+		for (int round = 0; round < 2; round++) {
+			boolean report = round == 1;
+			for (int size : PAYLOAD_SIZES) {
+				int sizeIterations = Math.max(1, (int) ((long) iterations * PAYLOAD_SIZES[0] / size));
+				final byte[] payload = payload(size);
+				String kb = (size / 1024) + " KB";
+				run(kb + ", mask before", size, sizeIterations, report, new Step() {
+					long run() throws Exception {
+						applyMaskBefore(payload, 0, payload.length, MASK);
+						return payload[0];
+					}
+				});
+				run(kb + ", mask now", size, sizeIterations, report, new Step() {
+					long run() throws Exception {
+						WebSocketCodec.applyMask(payload, 0, payload.length, MASK);
+						return payload[0];
+					}
+				});
+				run(kb + ", encode before", size, sizeIterations, report, new Step() {
+					long run() throws Exception {
+						return encodeBefore(payload, 0, true, true, WebSocketCodec.OPCODE_TEXT).length;
+					}
+				});
+				run(kb + ", encode now", size, sizeIterations, report, new Step() {
+					long run() throws Exception {
+						return WebSocketCodec.encode(payload, 0, true, true).length;
+					}
+				});
+				final ByteBuffer frame = ByteBuffer.allocate(WebSocketCodec.getFrameLength(size, true));
+				run(kb + ", encode in place", size, sizeIterations, report, new Step() {
+					long run() throws Exception {
+						frame.clear();
+						WebSocketCodec.encode(frame, payload, 0, payload.length, 0, true, true,
+							WebSocketCodec.OPCODE_TEXT);
+						return frame.position();
+					}
+				});
+			}
+		}
+		System.out.println("(" + blackhole + ")");
+	}
+
+	private abstract static class Step {
+
+		abstract long run() throws Exception;
+
+	}
+
+	private static void run(String name, int payloadSize, int iterations, boolean report, Step step)
+			throws Exception {
+		long start = System.nanoTime();
+		for (int i = 0; i < iterations; i++) {
+			blackhole += step.run();
+		}
+		long elapsed = System.nanoTime() - start;
+		if (report) {
+			System.out.println(String.format("%-24s %10.1f ns/frame %8.0f MB/s", name,
+				(double) elapsed / iterations, (double) payloadSize * iterations * 1000 / elapsed));
+		}
+	}
+
+	private static byte[] payload(int size) {
+		byte[] payload = new byte[size];
+		new Random(42).nextBytes(payload);
+		return payload;
+	}
+
+	/*
+	 * What applyMask did before it worked a long at a time.
+	 */
+	private static void applyMaskBefore(byte[] frame, int startIndex, int endIndex, byte[] mask) {
+		for (int i = 0; i < endIndex - startIndex; i++) {
+			frame[startIndex + i] = (byte) (frame[startIndex + i] ^ mask[i % 4]);
+		}
+	}
+
+	/*
+	 * What encode did before it wrote the frame in place, the payload being
+	 * masked in the array of the caller.
+	 */
+	private static byte[] encodeBefore(byte[] msg, int rsv, boolean fin, boolean maskPayload,
+			byte opcode) throws Exception {
+		ByteArrayOutputStream frame = new ByteArrayOutputStream();
+		int length = msg.length;
+		int b0 = 0;
+		if (fin) {
+			b0 |= 1 << 7;
+		}
+		b0 |= rsv % 8 << 4;
+		b0 |= opcode % 128;
+		if (length <= 125) {
+			frame.write(b0);
+			frame.write((byte) (maskPayload ? 0x80 | (byte) length : (byte) length));
+		} else if (length <= 0xFFFF) {
+			frame.write(b0);
+			frame.write(maskPayload ? 0xFE : 126);
+			frame.write(length >>> 8 & 0xFF);
+			frame.write(length & 0xFF);
+		} else {
+			frame.write(b0);
+			frame.write(maskPayload ? 0xFF : 127);
+			for (int q = 0; q < 8; q++) {
+				frame.write((0xFF) & (length >> q));
+			}
+		}
+		if (maskPayload) {
+			byte[] mask = new byte[] { 1, 1, 1, 1 };
+			frame.write(mask);
+			applyMaskBefore(msg, 0, msg.length, mask);
+		}
+		frame.write(msg);
+		return frame.toByteArray();
+	}
+
+	private static void checkSameMasking() {
+		byte[] payload = payload(1027);
+		for (int start = 0; start < 8; start++) {
+			byte[] before = payload.clone();
+			byte[] now = payload.clone();
+			applyMaskBefore(before, start, before.length, MASK);
+			WebSocketCodec.applyMask(now, start, now.length, MASK);
+			if (!Arrays.equals(before, now)) {
+				throw new AssertionError("former and current masking disagree from " + start);
+			}
+		}
+	}
+
+}
@@ -0,0 +1,130 @@
+package android.gov.nist.javax.sip.stack.timers;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.gov.nist.javax.sip.stack.SIPStackTimerTask;
+
+/**
+ * Checks HashedWheelSipTimer on an 8-bucket wheel, so that tasks wrap around
+ * it many times: deadlines, cancellation and fixed-delay tasks.
+ */
+public class HashedWheelSipTimerTest {
+
+	private static final int TASKS = 2000;
+	private static final long MAX_DELAY_MILLIS = 1000;
+	private static final long TOLERATED_LATENESS_MILLIS = 100;
+
+	private static class RecordingTask extends SIPStackTimerTask {
+
+		private final long dueAt;
+		private final CountDownLatch done;
+		private volatile long ranAt = -1;
+		private final AtomicInteger runs = new AtomicInteger();
+
+		private RecordingTask(long delayMillis, CountDownLatch done) {
+			this.dueAt = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delayMillis);
+			this.done = done;
+		}
+
+		@Override
+		public void runTask() {
+			ranAt = System.nanoTime();
+			runs.incrementAndGet();
+			if (done != null) {
+				done.countDown();
+			}
+		}
+
+	}
+
+	public static void main(String[] args) throws Exception {
+		HashedWheelSipTimer timer = new HashedWheelSipTimer();
+		Properties properties = new Properties();
+		properties.setProperty(HashedWheelSipTimer.TICK_DURATION_PROPERTY, "10");
+		properties.setProperty(HashedWheelSipTimer.WHEEL_SIZE_PROPERTY, "8");
+		timer.start(null, properties);
+		try {
+			tasksRunOnTimeAndCancelledOnesNever(timer);
+			cancelledFixedDelayTaskStops(timer);
+			stoppedTimerRefusesTasks(timer);
+		} finally {
+			timer.stop();
+		}
+		System.out.println("HashedWheelSipTimerTest: all checks passed.");
+	}
+
+	private static void tasksRunOnTimeAndCancelledOnesNever(HashedWheelSipTimer timer)
+			throws InterruptedException {
+		Random random = new Random(42);
+		CountDownLatch done = new CountDownLatch(TASKS / 2);
+		List<RecordingTask> kept = new ArrayList<>();
+		List<RecordingTask> cancelled = new ArrayList<>();
+		for (int i = 0; i < TASKS; i++) {
+			long delay = random.nextInt((int) MAX_DELAY_MILLIS);
+			boolean cancel = i % 2 == 1;
+			RecordingTask task = new RecordingTask(delay, cancel ? null : done);
+			timer.schedule(task, delay);
+			(cancel ? cancelled : kept).add(task);
+		}
+		List<RecordingTask> cancelledInTime = new ArrayList<>();
+		for (RecordingTask task : cancelled) {
+			// Tasks may already have run if their delay was very short
+			if (timer.cancel(task)) {
+				cancelledInTime.add(task);
+			}
+		}
+		check(cancelledInTime.size() > cancelled.size() / 2, "most tasks cancelled in time");
+		check(done.await(MAX_DELAY_MILLIS + 5000, TimeUnit.MILLISECONDS), "all kept tasks ran");
+		long worstLatenessNanos = 0;
+		for (RecordingTask task : kept) {
+			check(task.ranAt >= task.dueAt, "a task ran early");
+			worstLatenessNanos = Math.max(worstLatenessNanos, task.ranAt - task.dueAt);
+			check(task.runs.get() == 1, "a one-shot task ran once");
+		}
+		check(worstLatenessNanos <= TimeUnit.MILLISECONDS.toNanos(TOLERATED_LATENESS_MILLIS),
+			"a task ran " + TimeUnit.NANOSECONDS.toMillis(worstLatenessNanos) + " ms late");
+		Thread.sleep(100);
+		for (RecordingTask task : cancelledInTime) {
+			check(task.runs.get() == 0, "a cancelled task ran");
+		}
+		check(timer.getPendingTasksCount() == 0, "no task left waiting for the wheel");
+	}
+
+	private static void cancelledFixedDelayTaskStops(HashedWheelSipTimer timer)
+			throws InterruptedException {
+		CountDownLatch threeRuns = new CountDownLatch(3);
+		RecordingTask task = new RecordingTask(0, threeRuns);
+		timer.scheduleWithFixedDelay(task, 0, 20);
+		check(threeRuns.await(2, TimeUnit.SECONDS), "fixed-delay task repeats");
+		check(timer.cancel(task), "fixed-delay task cancelled");
+		int runsAtCancel = task.runs.get();
+		Thread.sleep(200);
+		check(task.runs.get() <= runsAtCancel + 1, "fixed-delay task stopped after cancel");
+		check(!timer.cancel(task), "second cancel refused");
+	}
+
+	private static void stoppedTimerRefusesTasks(HashedWheelSipTimer timer) {
+		timer.stop();
+		check(!timer.isStarted(), "timer stopped");
+		boolean refused = false;
+		try {
+			timer.schedule(new RecordingTask(0, null), 10);
+		} catch (IllegalStateException expected) {
+			refused = true;
+		}
+		check(refused, "stopped timer refuses tasks");
+	}
+
+	private static void check(boolean condition, String description) {
+		if (!condition) {
+			throw new AssertionError(description);
+		}
+	}
+
+}
@@ -0,0 +1,101 @@
+package android.gov.nist.javax.sip.stack.timers;
+
+import java.util.Properties;
+import java.util.Random;
+
+import android.gov.nist.javax.sip.SipStackImpl;
+import android.gov.nist.javax.sip.stack.SIPStackTimerTask;
+
+/**
+ * Times schedule and cancel on DefaultSipTimer, ScheduledExecutorSipTimer
+ * and HashedWheelSipTimer the way transactions use them: with a backlog of
+ * pending tasks due in 0.5 to 32 s (retransmission and timeout timers),
+ * tasks are scheduled then cancelled before they are due. The backlog makes
+ * the difference, as the cost of a cancel may grow with the number of
+ * pending tasks.
+ * Usage: SipTimerBenchmark [tasks] [backlog], 20000 and 20000 by default.
+ */
+public class SipTimerBenchmark {
+
+	private static final int MIN_DELAY_MILLIS = 500;
+	private static final int MAX_DELAY_MILLIS = 32000;
+
+	private static class NoopTask extends SIPStackTimerTask {
+
+		@Override
+		public void runTask() {
+		}
+
+	}
+
+	public static void main(String[] args) throws Exception {
+		int tasks = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+		int backlog = args.length > 1 ? Integer.parseInt(args[1]) : 20000;
+		Properties properties = new Properties();
+		properties.setProperty("android.javax.sip.STACK_NAME", "SipTimerBenchmark");
+		SipStackImpl sipStack = new SipStackImpl(properties);
+		try {
+			System.out.println(String.format("%d tasks over a backlog of %d", tasks, backlog));
+			for (int round = 0; round < 2; round++) {
+				boolean report = round == 1;
+				run(new DefaultSipTimer(), sipStack, properties, tasks, backlog, report);
+				run(new ScheduledExecutorSipTimer(), sipStack, properties, tasks, backlog, report);
+				run(new HashedWheelSipTimer(), sipStack, properties, tasks, backlog, report);
+			}
+		} finally {
+			sipStack.stop();
+		}
+	}
+
+	private static void run(SipTimer timer, SipStackImpl sipStack, Properties properties,
+			int tasks, int backlog, boolean report) {
+		timer.start(sipStack, properties);
+		try {
+			Random random = new Random(42);
+			NoopTask[] pending = schedule(timer, random, backlog);
+			NoopTask[] scheduled = new NoopTask[tasks];
+			long start = System.nanoTime();
+			for (int i = 0; i < tasks; i++) {
+				scheduled[i] = new NoopTask();
+				timer.schedule(scheduled[i], delay(random));
+			}
+			long scheduling = System.nanoTime() - start;
+			int cancelled = 0;
+			start = System.nanoTime();
+			for (NoopTask task : scheduled) {
+				if (timer.cancel(task)) {
+					cancelled++;
+				}
+			}
+			long cancelling = System.nanoTime() - start;
+			if (cancelled != tasks) {
+				throw new AssertionError(timer.getClass().getSimpleName() + ": " + cancelled
+					+ " of " + tasks + " tasks cancelled");
+			}
+			for (NoopTask task : pending) {
+				timer.cancel(task);
+			}
+			if (report) {
+				System.out.println(String.format("%-28s %10.1f ns/schedule %10.1f ns/cancel",
+					timer.getClass().getSimpleName(), (double) scheduling / tasks,
+					(double) cancelling / tasks));
+			}
+		} finally {
+			timer.stop();
+		}
+	}
+
+	private static NoopTask[] schedule(SipTimer timer, Random random, int count) {
+		NoopTask[] tasks = new NoopTask[count];
+		for (int i = 0; i < count; i++) {
+			tasks[i] = new NoopTask();
+			timer.schedule(tasks[i], delay(random));
+		}
+		return tasks;
+	}
+
+	private static long delay(Random random) {
+		return MIN_DELAY_MILLIS + random.nextInt(MAX_DELAY_MILLIS - MIN_DELAY_MILLIS);
+	}
+
+}
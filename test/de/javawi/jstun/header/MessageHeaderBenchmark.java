@@ -0,0 +1,146 @@
+package de.javawi.jstun.header;
+
+import java.nio.ByteBuffer;
+
+import de.javawi.jstun.attribute.Fingerprint;
+import de.javawi.jstun.attribute.MappedAddress;
+import de.javawi.jstun.attribute.MessageAttribute;
+import de.javawi.jstun.attribute.XorMappedAddress;
+import de.javawi.jstun.util.Address;
+
+/**
+ * Times the encoding and the decoding of a keep-alive binding response
+ * (MAPPED-ADDRESS, XOR-MAPPED-ADDRESS and FINGERPRINT): through the byte
+ * arrays of each attribute and the array based parsers, and in place into
+ * a reused buffer and header.
+ * Usage: MessageHeaderBenchmark [iterations], 1000000 by default.
+ */
+public class MessageHeaderBenchmark {
+
+	private static long blackhole;
+
+	public static void main(String[] args) throws Exception {
+		int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+		final MessageHeader response = keepAliveResponse();
+		final byte[] message = response.getBytes();
+		checkSameDecoding(message);
+
+		for (int round = 0; round < 2; round++) {
+			boolean report = round == 1;
+			run("encode, arrays", iterations, report, new Step() {
+				long run() throws Exception {
+					return encodeThroughArrays(response).length;
+				}
+			});
+			final ByteBuffer buffer = ByteBuffer.allocate(message.length);
+			run("encode, in place", iterations, report, new Step() {
+				long run() throws Exception {
+					buffer.clear();
+					response.encode(buffer);
+					return buffer.position();
+				}
+			});
+			run("decode, arrays", iterations, report, new Step() {
+				long run() throws Exception {
+					MessageHeader header = MessageHeader.parseHeader(message);
+					header.parseAttributes(message);
+					return header.getMessageAttribute(MessageAttribute.MessageAttributeType
+						.XorMappedAddress).hashCode();
+				}
+			});
+			final MessageHeader reused = new MessageHeader();
+			final ByteBuffer source = ByteBuffer.wrap(message);
+			run("decode, in place", iterations, report, new Step() {
+				long run() throws Exception {
+					source.clear();
+					reused.decode(source);
+					return reused.getMessageAttribute(MessageAttribute.MessageAttributeType
+						.XorMappedAddress).hashCode();
+				}
+			});
+		}
+		System.out.println("(" + blackhole + ")");
+	}
+
+	private abstract static class Step {
+
+		abstract long run() throws Exception;
+
+	}
+
+	private static void run(String name, int iterations, boolean report, Step step)
+			throws Exception {
+		long start = System.nanoTime();
+		for (int i = 0; i < iterations; i++) {
+			blackhole += step.run();
+		}
+		long elapsed = System.nanoTime() - start;
+		if (report) {
+			System.out.println(String.format("%-20s %8.1f ns/message", name,
+				(double) elapsed / iterations));
+		}
+	}
+
+	private static MessageHeader keepAliveResponse() throws Exception {
+		MessageHeader response = new MessageHeader(MessageHeader.MessageHeaderType.BindingResponse);
+		response.generateRfc5389TransactionID();
+		MappedAddress mappedAddress = new MappedAddress();
+		mappedAddress.setAddress(new Address("192.0.2.1"));
+		mappedAddress.setPort(40000);
+		response.addMessageAttribute(mappedAddress);
+		XorMappedAddress xorMappedAddress = new XorMappedAddress();
+		xorMappedAddress.setAddress(new Address("192.0.2.1"));
+		xorMappedAddress.setPort(40000);
+		response.addMessageAttribute(xorMappedAddress);
+		response.addMessageAttribute(new Fingerprint());
+		return response;
+	}
+
+	/*
+	 * The encoding MessageHeader did before encode(ByteBuffer), each
+	 * attribute building its own array.
+	 */
+	private static byte[] encodeThroughArrays(MessageHeader header) throws Exception {
+		MessageAttribute.MessageAttributeType[] types = {
+			MessageAttribute.MessageAttributeType.MappedAddress,
+			MessageAttribute.MessageAttributeType.XorMappedAddress,
+			MessageAttribute.MessageAttributeType.Fingerprint };
+		byte[][] attributes = new byte[types.length][];
+		int length = 0;
+		for (int i = 0; i < types.length; i++) {
+			attributes[i] = header.getMessageAttribute(types[i]).getBytes();
+			length += attributes[i].length;
+		}
+		byte[] result = new byte[20 + length];
+		result[0] = 0x01;
+		result[1] = 0x01;
+		result[2] = (byte) (length >>> 8);
+		result[3] = (byte) length;
+		System.arraycopy(header.getTransactionID(), 0, result, 4, 16);
+		int offset = 20;
+		for (byte[] attribute : attributes) {
+			System.arraycopy(attribute, 0, result, offset, attribute.length);
+			offset += attribute.length;
+		}
+		return result;
+	}
+
+	private static void checkSameDecoding(byte[] message) throws Exception {
+		MessageHeader parsed = MessageHeader.parseHeader(message);
+		parsed.parseAttributes(message);
+		MessageHeader decoded = new MessageHeader();
+		decoded.decode(ByteBuffer.wrap(message));
+		for (MessageAttribute.MessageAttributeType type : new MessageAttribute.MessageAttributeType[] {
+				MessageAttribute.MessageAttributeType.MappedAddress,
+				MessageAttribute.MessageAttributeType.XorMappedAddress }) {
+			if (!parsed.getMessageAttribute(type).toString()
+					.equals(decoded.getMessageAttribute(type).toString())) {
+				throw new AssertionError("array and in place decoding disagree on " + type);
+			}
+		}
+		if (decoded.getType() != parsed.getType() || !decoded.equalTransactionID(parsed)) {
+			throw new AssertionError("array and in place decoding disagree on the header");
+		}
+	}
+
+}
@@ -0,0 +1,87 @@
+package de.javawi.jstun.test;
+
+import java.net.InetAddress;
+import java.util.concurrent.TimeUnit;
+
+import de.javawi.jstun.test.StunResponder.Behavior;
+
+/**
+ * Checks that DiscoveryClient tells the kinds of NAT apart, against an
+ * in-process STUN responder on 127.0.0.1 and 127.0.0.2.
+ */
+public class DiscoveryClientTest {
+
+	public static void main(String[] args) throws Exception {
+		InetAddress local = InetAddress.getByName("127.0.0.1");
+		StunResponder responder = new StunResponder(local, InetAddress.getByName("127.0.0.2"));
+		try {
+			DiscoveryInfo info = discover(responder, Behavior.OPEN_ACCESS);
+			check(info.isOpenAccess(), "open access: " + info);
+			check(info.getPublicIP().equals(local), "open access public IP is the local one");
+
+			info = discover(responder, Behavior.SYMMETRIC_UDP_FIREWALL);
+			check(info.isSymmetricUDPFirewall(), "symmetric UDP firewall: " + info);
+
+			info = discover(responder, Behavior.FULL_CONE);
+			check(info.isFullCone(), "full cone: " + info);
+			check(info.getPublicIP().getHostAddress().equals(StunResponder.PUBLIC_IP),
+				"full cone public IP is the mapped one");
+
+			info = discover(responder, Behavior.RESTRICTED_CONE);
+			check(info.isRestrictedCone(), "restricted cone: " + info);
+
+			info = discover(responder, Behavior.PORT_RESTRICTED_CONE);
+			check(info.isPortRestrictedCone(), "port restricted cone: " + info);
+
+			info = discover(responder, Behavior.SYMMETRIC);
+			check(info.isSymmetric(), "symmetric: " + info);
+
+			info = discover(responder, Behavior.BLOCKED_UDP);
+			check(info.isBlockedUDP(), "blocked UDP: " + info);
+
+			outcomeIsReused(responder);
+		} finally {
+			responder.close();
+		}
+		System.out.println("DiscoveryClientTest: all checks passed.");
+	}
+
+	private static DiscoveryInfo discover(StunResponder responder, Behavior behavior)
+			throws Exception {
+		responder.setBehavior(behavior);
+		DiscoveryClient client = new DiscoveryClient();
+		client.setTimeout(1000);
+		try {
+			return client.discover(InetAddress.getByName("127.0.0.1"), "127.0.0.1",
+				responder.getPort()).get(5, TimeUnit.SECONDS);
+		} finally {
+			client.close();
+		}
+	}
+
+	private static void outcomeIsReused(StunResponder responder) throws Exception {
+		responder.setBehavior(Behavior.FULL_CONE);
+		DiscoveryClient client = new DiscoveryClient();
+		try {
+			InetAddress local = InetAddress.getByName("127.0.0.1");
+			DiscoveryInfo first = client.discover(local, "127.0.0.1", responder.getPort())
+				.get(5, TimeUnit.SECONDS);
+			int requests = responder.getRequests();
+			DiscoveryInfo second = client.discover(local, "127.0.0.1", responder.getPort())
+				.get(5, TimeUnit.SECONDS);
+			check(second == first, "recent outcome reused");
+			check(responder.getRequests() == requests, "no request for a reused outcome");
+			check(client.getCachedInfo(local, "127.0.0.1", responder.getPort()) == first,
+				"recent outcome cached");
+		} finally {
+			client.close();
+		}
+	}
+
+	private static void check(boolean condition, String description) {
+		if (!condition) {
+			throw new AssertionError(description);
+		}
+	}
+
+}
@@ -0,0 +1,170 @@
+package de.javawi.jstun.test;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import de.javawi.jstun.attribute.ChangeRequest;
+import de.javawi.jstun.attribute.ChangedAddress;
+import de.javawi.jstun.attribute.MappedAddress;
+import de.javawi.jstun.attribute.MessageAttribute;
+import de.javawi.jstun.header.MessageHeader;
+import de.javawi.jstun.util.Address;
+
+/**
+ * In-process RFC 3489 STUN server answering as if the client were behind a
+ * given kind of NAT. It listens on a primary address and on a changed
+ * address (another IP and port), and answers the change requests from the
+ * address they ask for. Behind a NAT the client is mapped to PUBLIC_IP with
+ * its own port, except for a symmetric NAT which maps it to another port
+ * when the changed address is asked.
+ */
+public class StunResponder {
+
+	public static final String PUBLIC_IP = "192.0.2.1";
+
+	public enum Behavior {
+		OPEN_ACCESS, SYMMETRIC_UDP_FIREWALL, FULL_CONE, RESTRICTED_CONE,
+		PORT_RESTRICTED_CONE, SYMMETRIC, BLOCKED_UDP
+	}
+
+	private final DatagramSocket primarySocket;
+	private final DatagramSocket changedSocket;
+	private final DatagramSocket changedPortSocket;
+	private final AtomicInteger requests = new AtomicInteger();
+	private volatile Behavior behavior = Behavior.OPEN_ACCESS;
+
+	/**
+	 * @param primaryIp the IP the clients are told to use.
+	 * @param changedIp the other IP, e.g. 127.0.0.2 next to 127.0.0.1.
+	 */
+	public StunResponder(InetAddress primaryIp, InetAddress changedIp) throws IOException {
+		primarySocket = new DatagramSocket(new InetSocketAddress(primaryIp, 0));
+		DatagramSocket[] changedSockets = null;
+		for (int attempt = 0; changedSockets == null; attempt++) {
+			DatagramSocket samePort = new DatagramSocket(new InetSocketAddress(primaryIp, 0));
+			try {
+				changedSockets = new DatagramSocket[] { samePort, new DatagramSocket(
+					new InetSocketAddress(changedIp, samePort.getLocalPort())) };
+			} catch (SocketException portTaken) {
+				samePort.close();
+				if (attempt == 10) {
+					throw portTaken;
+				}
+			}
+		}
+		changedPortSocket = changedSockets[0];
+		changedSocket = changedSockets[1];
+		listen(primarySocket);
+		listen(changedSocket);
+	}
+
+	public void setBehavior(Behavior behavior) {
+		this.behavior = behavior;
+	}
+
+	public int getPort() {
+		return primarySocket.getLocalPort();
+	}
+
+	/**
+	 * @return how many binding requests were received so far.
+	 */
+	public int getRequests() {
+		return requests.get();
+	}
+
+	public void close() {
+		primarySocket.close();
+		changedSocket.close();
+		changedPortSocket.close();
+	}
+
+	private void listen(final DatagramSocket socket) {
+		Thread thread = new Thread(new Runnable() {
+
+			public void run() {
+				byte[] buffer = new byte[576];
+				while (!socket.isClosed()) {
+					try {
+						DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+						socket.receive(packet);
+						requests.incrementAndGet();
+						answer(socket, packet);
+					} catch (IOException closed) {
+						return;
+					} catch (Exception malformed) {
+						malformed.printStackTrace();
+					}
+				}
+			}
+
+		}, "StunResponder");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	private void answer(DatagramSocket receivingSocket, DatagramPacket packet) throws Exception {
+		Behavior behavior = this.behavior;
+		if (behavior == Behavior.BLOCKED_UDP) {
+			return;
+		}
+		MessageHeader request = new MessageHeader();
+		request.decode(ByteBuffer.wrap(packet.getData(), packet.getOffset(), packet.getLength()));
+		ChangeRequest changeRequest = (ChangeRequest) request
+			.getMessageAttribute(MessageAttribute.MessageAttributeType.ChangeRequest);
+		boolean changeIP = changeRequest != null && changeRequest.isChangeIP();
+		boolean changePort = changeRequest != null && changeRequest.isChangePort();
+
+		DatagramSocket sendingSocket = receivingSocket;
+		if (changeIP || changePort) {
+			// what the NAT or the firewall lets through from an unknown address
+			boolean letThrough;
+			switch (behavior) {
+				case OPEN_ACCESS:
+				case FULL_CONE:
+					letThrough = true;
+					break;
+				case RESTRICTED_CONE:
+					letThrough = !changeIP;
+					break;
+				default:
+					letThrough = false;
+			}
+			if (!letThrough) {
+				return;
+			}
+			sendingSocket = changeIP ? changedSocket : changedPortSocket;
+		}
+
+		MappedAddress mappedAddress = new MappedAddress();
+		switch (behavior) {
+			case OPEN_ACCESS:
+			case SYMMETRIC_UDP_FIREWALL:
+				mappedAddress.setAddress(new Address(packet.getAddress().getHostAddress()));
+				mappedAddress.setPort(packet.getPort());
+				break;
+			default:
+				mappedAddress.setAddress(new Address(PUBLIC_IP));
+				boolean otherMapping = behavior == Behavior.SYMMETRIC
+					&& receivingSocket == changedSocket;
+				mappedAddress.setPort(otherMapping ? packet.getPort() % 60000 + 1 : packet.getPort());
+		}
+		ChangedAddress changedAddress = new ChangedAddress();
+		changedAddress.setAddress(new Address(changedSocket.getLocalAddress().getHostAddress()));
+		changedAddress.setPort(changedSocket.getLocalPort());
+
+		MessageHeader response = new MessageHeader(MessageHeader.MessageHeaderType.BindingResponse);
+		response.setTransactionID(request.getTransactionID());
+		response.addMessageAttribute(mappedAddress);
+		response.addMessageAttribute(changedAddress);
+		byte[] data = response.getBytes();
+		sendingSocket.send(new DatagramPacket(data, data.length, packet.getSocketAddress()));
+	}
+
+}
@@ -0,0 +1,139 @@
+package org.github.sipuada;
+
+import java.security.MessageDigest;
+
+/**
+ * Times the MD5 digest of a REGISTER challenge answer, without qop and with
+ * qop "auth": the way AuthorizationDigest computed it before (three
+ * MessageDigest.getInstance calls and a String concatenation per byte of
+ * hex), the way getDigest() does now, and with H(user:realm:password) taken
+ * from a HA1Cache as SipUserAgentClient does.
+ * Usage: AuthorizationDigestBenchmark [iterations], 500000 by default.
+ */
+public class AuthorizationDigestBenchmark {
+
+	private static final String USER = "alice";
+	private static final String REALM = "example.com";
+	private static final String PASSWORD = "secret";
+	private static final String METHOD = "REGISTER";
+	private static final String URI = "sip:example.com";
+	private static final String NONCE = "dcd98b7102dd2f0e8b11d0f600bfb0c093";
+	private static final String NC = "00000001";
+	private static final String CNONCE = "0a4f113b";
+
+	private static long blackhole;
+
+	public static void main(String[] args) throws Exception {
+		int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 500000;
+		checkSameDigests();
+		final AuthorizationDigest.HA1Cache cache = new AuthorizationDigest.HA1Cache();
+
+		for (int round = 0; round < 2; round++) {
+			boolean report = round == 1;
+			run("no qop, before", iterations, report, new Step() {
+				long run() throws Exception {
+					return getDigestBefore(USER, REALM, PASSWORD, METHOD, URI, NONCE, null).hashCode();
+				}
+			});
+			run("no qop, now", iterations, report, new Step() {
+				long run() throws Exception {
+					return AuthorizationDigest.getDigest(USER, REALM, PASSWORD, METHOD, URI, NONCE)
+						.hashCode();
+				}
+			});
+			run("no qop, HA1 cache", iterations, report, new Step() {
+				long run() throws Exception {
+					return AuthorizationDigest.getDigestFromHA1(AuthorizationDigest.MD5,
+						cache.getHA1(AuthorizationDigest.MD5, USER, REALM, PASSWORD), METHOD, URI,
+						NONCE, null, null, null, null).hashCode();
+				}
+			});
+			run("auth, before", iterations, report, new Step() {
+				long run() throws Exception {
+					return getDigestBefore(USER, REALM, PASSWORD, METHOD, URI, NONCE,
+						":" + NC + ":" + CNONCE + ":" + AuthorizationDigest.QOP_AUTH).hashCode();
+				}
+			});
+			run("auth, now", iterations, report, new Step() {
+				long run() throws Exception {
+					return AuthorizationDigest.getDigest(USER, REALM, PASSWORD, METHOD, URI, NONCE, NC,
+						CNONCE, AuthorizationDigest.QOP_AUTH).hashCode();
+				}
+			});
+			run("auth, HA1 cache", iterations, report, new Step() {
+				long run() throws Exception {
+					return AuthorizationDigest.getDigestFromHA1(AuthorizationDigest.MD5,
+						cache.getHA1(AuthorizationDigest.MD5, USER, REALM, PASSWORD), METHOD, URI,
+						NONCE, NC, CNONCE, AuthorizationDigest.QOP_AUTH, null).hashCode();
+				}
+			});
+		}
+		System.out.println("(" + blackhole + ")");
+	}
+
+	private abstract static class Step {
+
+		abstract long run() throws Exception;
+
+	}
+
+	private static void run(String name, int iterations, boolean report, Step step)
+			throws Exception {
+		long start = System.nanoTime();
+		for (int i = 0; i < iterations; i++) {
+			blackhole += step.run();
+		}
+		long elapsed = System.nanoTime() - start;
+		if (report) {
+			System.out.println(String.format("%-20s %8.1f ns/digest", name,
+				(double) elapsed / iterations));
+		}
+	}
+
+	/*
+	 * What both getDigest() did before, qopPart being null without qop and
+	 * ":nc:cnonce:qop" with it.
+	 */
+	private static String getDigestBefore(String user, String realm, String password, String method,
+			String uri, String nonce, String qopPart) throws Exception {
+		String digest1 = user + ":" + realm + ":" + password;
+		String digest2 = method + ":" + uri;
+
+		MessageDigest digestOne = MessageDigest.getInstance("md5");
+		digestOne.update(digest1.getBytes());
+		String hexDigestOne = getHexStringBefore(digestOne.digest());
+
+		MessageDigest digestTwo = MessageDigest.getInstance("md5");
+		digestTwo.update(digest2.getBytes());
+		String hexDigestTwo = getHexStringBefore(digestTwo.digest());
+
+		String digest3 = hexDigestOne + ":" + nonce + (qopPart == null ? "" : qopPart) + ":"
+			+ hexDigestTwo;
+
+		MessageDigest digestThree = MessageDigest.getInstance("md5");
+		digestThree.update(digest3.getBytes());
+		return getHexStringBefore(digestThree.digest());
+	}
+
+	private static String getHexStringBefore(byte[] b) {
+		String result = "";
+		for (int i = 0; i < b.length; i++) {
+			result += Integer.toString((b[i] & 0xff) + 0x100, 16).substring(1);
+		}
+		return result;
+	}
+
+	private static void checkSameDigests() throws Exception {
+		if (!getDigestBefore(USER, REALM, PASSWORD, METHOD, URI, NONCE, null).equals(
+				AuthorizationDigest.getDigest(USER, REALM, PASSWORD, METHOD, URI, NONCE))) {
+			throw new AssertionError("former and current digests disagree without qop");
+		}
+		if (!getDigestBefore(USER, REALM, PASSWORD, METHOD, URI, NONCE,
+				":" + NC + ":" + CNONCE + ":" + AuthorizationDigest.QOP_AUTH).equals(
+				AuthorizationDigest.getDigest(USER, REALM, PASSWORD, METHOD, URI, NONCE, NC, CNONCE,
+					AuthorizationDigest.QOP_AUTH))) {
+			throw new AssertionError("former and current digests disagree with qop auth");
+		}
+	}
+
+}
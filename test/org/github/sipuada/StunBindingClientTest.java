@@ -0,0 +1,155 @@
+package org.github.sipuada;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.util.concurrent.ListenableFuture;
+
+import android.gov.nist.javax.sip.ListeningPointImpl;
+import android.gov.nist.javax.sip.stack.UDPMessageProcessor;
+import android.javax.sip.DialogTerminatedEvent;
+import android.javax.sip.IOExceptionEvent;
+import android.javax.sip.ListeningPoint;
+import android.javax.sip.RequestEvent;
+import android.javax.sip.ResponseEvent;
+import android.javax.sip.SipFactory;
+import android.javax.sip.SipListener;
+import android.javax.sip.SipProvider;
+import android.javax.sip.SipStack;
+import android.javax.sip.TimeoutEvent;
+import android.javax.sip.TransactionTerminatedEvent;
+import de.javawi.jstun.test.StunResponder;
+
+/**
+ * Checks that StunBindingClient binds from the UDP socket of a stack, against
+ * an in-process STUN responder, and that SIP still gets through that socket.
+ */
+public class StunBindingClientTest {
+
+	public static void main(String[] args) throws Exception {
+		InetAddress local = InetAddress.getByName("127.0.0.1");
+		StunResponder responder = new StunResponder(local, InetAddress.getByName("127.0.0.2"));
+		responder.setBehavior(StunResponder.Behavior.PORT_RESTRICTED_CONE);
+		Properties properties = new Properties();
+		properties.setProperty("android.javax.sip.STACK_NAME", "StunBindingClientTest");
+		SipFactory.getInstance().setPathName("android.gov.nist");
+		SipStack stack = SipFactory.getInstance().createSipStack(properties);
+		try {
+			ListeningPoint listeningPoint = stack.createListeningPoint("127.0.0.1",
+				freePort(), ListeningPoint.UDP);
+			SipProvider provider = stack.createSipProvider(listeningPoint);
+			final CountDownLatch requestReceived = new CountDownLatch(1);
+			provider.addSipListener(new RequestCounter(requestReceived));
+			stack.start();
+			UDPMessageProcessor processor = (UDPMessageProcessor) ((ListeningPointImpl)
+				listeningPoint).getMessageProcessor();
+
+			StunBindingClient client = new StunBindingClient();
+			ListenableFuture<InetSocketAddress> binding = client.bind(processor, "127.0.0.1",
+				responder.getPort());
+			InetSocketAddress mapped = binding.get(5, TimeUnit.SECONDS);
+			check(mapped.getAddress().getHostAddress().equals(StunResponder.PUBLIC_IP),
+				"mapped IP found: " + mapped);
+			check(mapped.getPort() == processor.getPort(),
+				"binding sent from the socket of the stack: " + mapped);
+
+			int requests = responder.getRequests();
+			check(client.bind(processor, "127.0.0.1", responder.getPort()) == binding,
+				"recent binding reused");
+			check(responder.getRequests() == requests, "no request for a reused binding");
+
+			sendOptions(processor.getPort());
+			check(requestReceived.await(5, TimeUnit.SECONDS),
+				"SIP still received on the socket once bound");
+
+			responder.setBehavior(StunResponder.Behavior.BLOCKED_UDP);
+			StunBindingClient blockedClient = new StunBindingClient();
+			blockedClient.setTimeout(500);
+			try {
+				blockedClient.bind(processor, "127.0.0.1", responder.getPort())
+					.get(5, TimeUnit.SECONDS);
+				check(false, "binding without response fails");
+			} catch (ExecutionException expected) {
+			}
+		} finally {
+			stack.stop();
+			responder.close();
+		}
+		System.out.println("StunBindingClientTest: all checks passed.");
+	}
+
+	private static int freePort() throws Exception {
+		DatagramSocket socket = new DatagramSocket(0, InetAddress.getByName("127.0.0.1"));
+		int port = socket.getLocalPort();
+		socket.close();
+		return port;
+	}
+
+	private static void sendOptions(int port) throws Exception {
+		String options = "OPTIONS sip:bob@127.0.0.1:" + port + " SIP/2.0\r\n"
+			+ "Via: SIP/2.0/UDP 127.0.0.1:5999;branch=z9hG4bK776asdhds\r\n"
+			+ "Max-Forwards: 70\r\n"
+			+ "To: <sip:bob@127.0.0.1>\r\n"
+			+ "From: <sip:alice@127.0.0.1>;tag=1928301774\r\n"
+			+ "Call-ID: a84b4c76e66710@127.0.0.1\r\n"
+			+ "CSeq: 63104 OPTIONS\r\n"
+			+ "Content-Length: 0\r\n"
+			+ "\r\n";
+		byte[] data = options.getBytes("UTF-8");
+		DatagramSocket socket = new DatagramSocket();
+		try {
+			socket.send(new DatagramPacket(data, data.length,
+				new InetSocketAddress("127.0.0.1", port)));
+		} finally {
+			socket.close();
+		}
+	}
+
+	private static class RequestCounter implements SipListener {
+
+		private final CountDownLatch requestReceived;
+
+		private RequestCounter(CountDownLatch requestReceived) {
+			this.requestReceived = requestReceived;
+		}
+
+		@Override
+		public void processRequest(RequestEvent requestEvent) {
+			requestReceived.countDown();
+		}
+
+		@Override
+		public void processResponse(ResponseEvent responseEvent) {
+		}
+
+		@Override
+		public void processTimeout(TimeoutEvent timeoutEvent) {
+		}
+
+		@Override
+		public void processIOException(IOExceptionEvent exceptionEvent) {
+		}
+
+		@Override
+		public void processTransactionTerminated(TransactionTerminatedEvent transactionTerminatedEvent) {
+		}
+
+		@Override
+		public void processDialogTerminated(DialogTerminatedEvent dialogTerminatedEvent) {
+		}
+
+	}
+
+	private static void check(boolean condition, String description) {
+		if (!condition) {
+			throw new AssertionError(description);
+		}
+	}
+
+}
@@ -0,0 +1,199 @@
+package org.github.sipuada.plugins;
+
+import android.gov.nist.javax.sip.parser.StringMsgParser;
+import android.javax.sdp.SdpFactoryImpl;
+import android.javax.sdp.SessionDescription;
+import android.javax.sip.header.ContentTypeHeader;
+import android.javax.sip.message.Message;
+
+/**
+ * Times one offer/answer step (is there SDP, then the session and the early
+ * session SDP) on an INVITE offering both a session and an early-session
+ * part: with the former String.split parsing, with SdpContent built for the
+ * step, and with SdpContent cached per message as SessionManager does.
+ * Usage: SdpContentBenchmark [iterations], 20000 by default.
+ */
+public class SdpContentBenchmark {
+
+	private static final String BOUNDARY = "boundary42";
+
+	private static final String SESSION_SDP = "v=0\n"
+		+ "o=alice 2890844526 2890844526 IN IP4 10.0.0.1\n"
+		+ "s=-\n"
+		+ "c=IN IP4 10.0.0.1\n"
+		+ "t=0 0\n"
+		+ "m=audio 49170 RTP/AVP 0 8 97\n"
+		+ "a=rtpmap:0 PCMU/8000\n"
+		+ "a=rtpmap:8 PCMA/8000\n"
+		+ "a=rtpmap:97 iLBC/8000\n"
+		+ "m=video 51372 RTP/AVP 31 32\n"
+		+ "a=rtpmap:31 H261/90000\n"
+		+ "a=rtpmap:32 MPV/90000\n";
+
+	private static final String EARLY_SDP = "v=0\n"
+		+ "o=alice 2890844527 2890844527 IN IP4 10.0.0.1\n"
+		+ "s=-\n"
+		+ "c=IN IP4 10.0.0.1\n"
+		+ "t=0 0\n"
+		+ "m=audio 49180 RTP/AVP 0\n"
+		+ "a=rtpmap:0 PCMU/8000\n";
+
+	private static final String BODY = "--" + BOUNDARY + "\n"
+		+ "Content-Type: application/sdp\n"
+		+ "Content-Disposition: session\n"
+		+ "\n"
+		+ SESSION_SDP
+		+ "\n--" + BOUNDARY + "\n"
+		+ "Content-Type: application/sdp\n"
+		+ "Content-Disposition: early-session\n"
+		+ "\n"
+		+ EARLY_SDP
+		+ "\n--" + BOUNDARY + "--\n";
+
+	private static final String INVITE = "INVITE sip:bob@example.com SIP/2.0\r\n"
+		+ "Via: SIP/2.0/UDP 10.0.0.1:5060;branch=z9hG4bK776asdhds\r\n"
+		+ "Max-Forwards: 70\r\n"
+		+ "To: <sip:bob@example.com>\r\n"
+		+ "From: <sip:alice@example.com>;tag=1928301774\r\n"
+		+ "Call-ID: a84b4c76e66710@pc33.example.com\r\n"
+		+ "CSeq: 314159 INVITE\r\n"
+		+ "Contact: <sip:alice@10.0.0.1:5060>\r\n"
+		+ "Content-Type: multipart/mixed;boundary=" + BOUNDARY + "\r\n"
+		+ "Content-Length: " + BODY.length() + "\r\n"
+		+ "\r\n"
+		+ BODY;
+
+	private static long blackhole;
+
+	public static void main(String[] args) throws Exception {
+		int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+		Message invite = new StringMsgParser().parseSIPMessage(INVITE.getBytes("UTF-8"),
+			true, false, null);
+		checkSameSdp(invite);
+
+		for (int round = 0; round < 2; round++) {
+			boolean report = round == 1;
+			run("String.split", iterations, report, new Step(invite) {
+				long run() throws Exception {
+					return splitStep(message);
+				}
+			});
+			run("SdpContent per step", iterations, report, new Step(invite) {
+				long run() throws Exception {
+					return scanStep(SdpContent.of(message));
+				}
+			});
+			final SdpContent cached = SdpContent.of(invite);
+			run("SdpContent cached", iterations, report, new Step(invite) {
+				long run() throws Exception {
+					return scanStep(cached);
+				}
+			});
+		}
+		System.out.println("(" + blackhole + ")");
+	}
+
+	private abstract static class Step {
+
+		final Message message;
+
+		Step(Message message) {
+			this.message = message;
+		}
+
+		abstract long run() throws Exception;
+
+	}
+
+	private static void run(String name, int iterations, boolean report, Step step)
+			throws Exception {
+		long start = System.nanoTime();
+		for (int i = 0; i < iterations; i++) {
+			blackhole += step.run();
+		}
+		long elapsed = System.nanoTime() - start;
+		if (report) {
+			System.out.println(String.format("%-20s %8.2f us/step", name,
+				elapsed / 1000.0 / iterations));
+		}
+	}
+
+	private static long scanStep(SdpContent content) throws Exception {
+		boolean hasSdp = false;
+		for (SdpContent.Part part : content.getParts()) {
+			hasSdp |= part.isSdp() && part.hasSessionDisposition();
+		}
+		SessionDescription session = content.getSdp(SessionType.REGULAR);
+		SessionDescription early = content.getSdp(SessionType.EARLY);
+		return (hasSdp ? 1 : 0) + session.hashCode() + early.hashCode();
+	}
+
+	/*
+	 * The parsing SessionManager did before SdpContent, the body being split
+	 * again for each question.
+	 */
+	private static long splitStep(Message message) throws Exception {
+		boolean hasSdp = false;
+		for (String[] part : splitParts(message)) {
+			String disposition = dispositionOf(part[0]);
+			hasSdp |= "session".equals(disposition) || "early-session".equals(disposition);
+		}
+		SessionDescription session = splitSdp(message, "session");
+		SessionDescription early = splitSdp(message, "early-session");
+		return (hasSdp ? 1 : 0) + session.hashCode() + early.hashCode();
+	}
+
+	private static SessionDescription splitSdp(Message message, String preferredDisposition)
+			throws Exception {
+		String sessionSdp = null;
+		for (String[] part : splitParts(message)) {
+			String disposition = dispositionOf(part[0]);
+			if ("session".equals(disposition)) {
+				sessionSdp = part[1];
+			}
+			if (preferredDisposition.equals(disposition)) {
+				return SdpFactoryImpl.getInstance().createSessionDescriptionFromString(part[1]);
+			}
+		}
+		return sessionSdp == null ? null
+			: SdpFactoryImpl.getInstance().createSessionDescriptionFromString(sessionSdp);
+	}
+
+	private static String[][] splitParts(Message message) {
+		ContentTypeHeader contentTypeHeader = (ContentTypeHeader) message
+			.getHeader(ContentTypeHeader.NAME);
+		String boundary = contentTypeHeader.getParameter("boundary");
+		String content = new String(message.getRawContent());
+		String[] sdps = content.substring(boundary.length() + 3, content.length())
+			.replace(boundary + "--", boundary).split("\\s*--" + boundary + "\\s*");
+		String[][] parts = new String[sdps.length][];
+		for (int i = 0; i < sdps.length; i++) {
+			parts[i] = sdps[i].split("\\n\\n");
+		}
+		return parts;
+	}
+
+	private static String dispositionOf(String headers) {
+		for (String header : headers.split("\\n")) {
+			header = header.trim();
+			String headerKey = header.split(":")[0].trim().toLowerCase();
+			String headerValue = header.split(":")[1].trim().toLowerCase();
+			if (headerKey.equals("content-disposition")) {
+				return headerValue;
+			}
+		}
+		return null;
+	}
+
+	private static void checkSameSdp(Message invite) throws Exception {
+		SdpContent content = SdpContent.of(invite);
+		String session = content.getSdp(SessionType.REGULAR).toString();
+		String early = content.getSdp(SessionType.EARLY).toString();
+		if (!session.equals(splitSdp(invite, "session").toString())
+				|| !early.equals(splitSdp(invite, "early-session").toString())
+				|| session.equals(early)) {
+			throw new AssertionError("SdpContent and String.split disagree on the SDP");
+		}
+	}
+
+}